@@ -7,6 +7,7 @@
 
 package ome.services.blitz.impl;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import ome.api.RawPixelsStore;
@@ -30,6 +31,7 @@ import omero.api.AMD_RawPixelsStore_getStack;
 import omero.api.AMD_RawPixelsStore_getStackOffset;
 import omero.api.AMD_RawPixelsStore_getStackSize;
 import omero.api.AMD_RawPixelsStore_getTile;
+import omero.api.AMD_RawPixelsStore_getTiles;
 import omero.api.AMD_RawPixelsStore_getTimepoint;
 import omero.api.AMD_RawPixelsStore_getTimepointOffset;
 import omero.api.AMD_RawPixelsStore_getTimepointSize;
@@ -45,6 +47,7 @@ import omero.api.AMD_RawPixelsStore_setRow;
 import omero.api.AMD_RawPixelsStore_setStack;
 import omero.api.AMD_RawPixelsStore_setTile;
 import omero.api.AMD_RawPixelsStore_setTimepoint;
+import omero.api.TileDef;
 import omero.api._RawPixelsStoreOperations;
 import Ice.Current;
 
@@ -265,6 +268,28 @@ public class RawPixelsStoreI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, z, c, t, x, y, w, h);
     }
 
+    /* (non-Javadoc)
+     * @see omero.api._RawPixelsStoreOperations#getTiles_async(omero.api.AMD_RawPixelsStore_getTiles, omero.api.TileDef[], Ice.Current)
+     */
+    public void getTiles_async(AMD_RawPixelsStore_getTiles __cb,
+            TileDef[] tiles, Current __current) throws ServerError
+    {
+        List<ome.util.TileDef> defs = new ArrayList<ome.util.TileDef>();
+        if (tiles != null) {
+            for (int i = 0; i < tiles.length; i++) {
+                TileDef tile = tiles[i];
+                if (tile == null) {
+                    __cb.ice_exception(new omero.ApiUsageException(null,
+                            null, "Tile definition cannot be null: " + i));
+                    return;
+                }
+                defs.add(new ome.util.TileDef(tile.z, tile.c, tile.t,
+                        tile.x, tile.y, tile.w, tile.h));
+            }
+        }
+        callInvokerOnRawArgs(__cb, __current, defs);
+    }
+
     /* (non-Javadoc)
      * @see omero.api._RawPixelsStoreOperations#setTile_async(omero.api.AMD_RawPixelsStore_setTile, byte[], int, int, int, int, int, int, int, Ice.Current)
      */
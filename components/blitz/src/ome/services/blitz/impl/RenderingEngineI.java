@@ -7,7 +7,9 @@
 
 package ome.services.blitz.impl;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -26,6 +28,7 @@ import omero.api.AMD_RenderingEngine_getChannelNoiseReduction;
 import omero.api.AMD_RenderingEngine_getChannelStats;
 import omero.api.AMD_RenderingEngine_getChannelWindowEnd;
 import omero.api.AMD_RenderingEngine_getChannelWindowStart;
+import omero.api.AMD_RenderingEngine_getCompressionFormat;
 import omero.api.AMD_RenderingEngine_getCompressionLevel;
 import omero.api.AMD_RenderingEngine_getDefaultT;
 import omero.api.AMD_RenderingEngine_getDefaultZ;
@@ -47,6 +50,8 @@ import omero.api.AMD_RenderingEngine_render;
 import omero.api.AMD_RenderingEngine_renderAsPackedInt;
 import omero.api.AMD_RenderingEngine_renderAsPackedIntAsRGBA;
 import omero.api.AMD_RenderingEngine_renderCompressed;
+import omero.api.AMD_RenderingEngine_renderCompressedTiles;
+import omero.api.AMD_RenderingEngine_renderCompressedTilesToCallback;
 import omero.api.AMD_RenderingEngine_renderProjectedAsPackedInt;
 import omero.api.AMD_RenderingEngine_renderProjectedCompressed;
 import omero.api.AMD_RenderingEngine_resetDefaults;
@@ -55,6 +60,7 @@ import omero.api.AMD_RenderingEngine_saveCurrentSettings;
 import omero.api.AMD_RenderingEngine_setActive;
 import omero.api.AMD_RenderingEngine_setChannelWindow;
 import omero.api.AMD_RenderingEngine_setCodomainInterval;
+import omero.api.AMD_RenderingEngine_setCompressionFormat;
 import omero.api.AMD_RenderingEngine_setCompressionLevel;
 import omero.api.AMD_RenderingEngine_setDefaultT;
 import omero.api.AMD_RenderingEngine_setDefaultZ;
@@ -65,6 +71,7 @@ import omero.api.AMD_RenderingEngine_setQuantumStrategy;
 import omero.api.AMD_RenderingEngine_setRGBA;
 import omero.api.AMD_RenderingEngine_updateCodomainMap;
 import omero.api.IRoiPrx;
+import omero.api.RenderedTileCallbackPrx;
 import omero.api._RenderingEngineOperations;
 import omero.constants.projection.ProjectionType;
 import omero.grid.Column;
@@ -161,6 +168,12 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, w);
     }
 
+    public void getCompressionFormat_async(
+            AMD_RenderingEngine_getCompressionFormat __cb, Current __current)
+            throws ServerError {
+        callInvokerOnRawArgs(__cb, __current);
+    }
+
     public void getCompressionLevel_async(
             AMD_RenderingEngine_getCompressionLevel __cb, Current __current)
             throws ServerError {
@@ -344,6 +357,29 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, def);
     }
 
+    public void renderCompressedTiles_async(
+            AMD_RenderingEngine_renderCompressedTiles __cb, List<PlaneDef> defs,
+            Current __current) throws ServerError {
+        callInvokerOnMappedArgs(new IceMapper(IceMapper.UNMAPPED), __cb,
+                __current, convert(defs));
+    }
+
+    public void renderCompressedTilesToCallback_async(
+            AMD_RenderingEngine_renderCompressedTilesToCallback __cb,
+            List<PlaneDef> defs, final RenderedTileCallbackPrx cb,
+            Current __current) throws ServerError {
+        omeis.providers.re.RenderedTileCallback callback = null;
+        if (cb != null) {
+            callback = new omeis.providers.re.RenderedTileCallback() {
+                public void tileRendered(int index, byte[] tile) {
+                    cb.tileRendered(index, tile);
+                }
+            };
+        }
+        callInvokerOnMappedArgs(new IceMapper(IceMapper.VOID), __cb,
+                __current, convert(defs), callback);
+    }
+
     public void renderProjectedAsPackedInt_async(
             AMD_RenderingEngine_renderProjectedAsPackedInt __cb, 
             ProjectionType algorithm, int timepoint, int stepping, int start, 
@@ -399,6 +435,12 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, start, end);
     }
 
+    public void setCompressionFormat_async(
+            AMD_RenderingEngine_setCompressionFormat __cb, String format,
+            Current __current) throws ServerError {
+        callInvokerOnRawArgs(__cb, __current, format);
+    }
+
     public void setCompressionLevel_async(
             AMD_RenderingEngine_setCompressionLevel __cb, float percentage,
             Current __current) throws ServerError {
@@ -452,5 +494,20 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current);
     }
 
-
+    /**
+     * Converts the plane definitions of a batch rendering call, which are
+     * not mapped by the {@link IceMapper} when passed in a list.
+     */
+    private List<omeis.providers.re.data.PlaneDef> convert(
+            List<PlaneDef> defs) {
+        if (defs == null) {
+            return null;
+        }
+        List<omeis.providers.re.data.PlaneDef> rv =
+            new ArrayList<omeis.providers.re.data.PlaneDef>(defs.size());
+        for (PlaneDef def : defs) {
+            rv.add(def == null ? null : IceMapper.convert(def));
+        }
+        return rv;
+    }
 }
@@ -38,6 +38,7 @@ import omero.api.AMD_RawPixelsStore_getStack;
 import omero.api.AMD_RawPixelsStore_getStackOffset;
 import omero.api.AMD_RawPixelsStore_getStackSize;
 import omero.api.AMD_RawPixelsStore_getTile;
+import omero.api.AMD_RawPixelsStore_getTiles;
 import omero.api.AMD_RawPixelsStore_getTimepoint;
 import omero.api.AMD_RawPixelsStore_getTimepointOffset;
 import omero.api.AMD_RawPixelsStore_getTimepointSize;
@@ -57,6 +58,7 @@ import omero.api.AMD_StatefulServiceInterface_activate;
 import omero.api.AMD_StatefulServiceInterface_close;
 import omero.api.AMD_StatefulServiceInterface_getCurrentEventContext;
 import omero.api.AMD_StatefulServiceInterface_passivate;
+import omero.api.TileDef;
 import omero.api._RawPixelsStoreDisp;
 
 import org.slf4j.Logger;
@@ -433,6 +435,15 @@ public class BfPixelsStoreI extends _RawPixelsStoreDisp {
         throw new UnsupportedOperationException("NYI");
     }
 
+    /* (non-Javadoc)
+     * @see omero.api._RawPixelsStoreOperations#getTiles_async(omero.api.AMD_RawPixelsStore_getTiles, omero.api.TileDef[], Ice.Current)
+     */
+    public void getTiles_async(AMD_RawPixelsStore_getTiles __cb,
+            TileDef[] tiles, Current __current) throws ServerError
+    {
+        throw new UnsupportedOperationException("NYI");
+    }
+
     /* (non-Javadoc)
      * @see omero.api._RawPixelsStoreOperations#setTile_async(omero.api.AMD_RawPixelsStore_setTile, byte[], int, int, int, int, int, int, int, Ice.Current)
      */
@@ -15,6 +15,7 @@ import java.util.Set;
 import ome.annotations.Validate;
 import ome.model.core.Pixels;
 import ome.util.PixelData;
+import ome.util.TileDef;
 
 /**
  * Binary data provider. Initialized with the id of a
@@ -88,6 +89,18 @@ public interface RawPixelsStore extends StatefulServiceInterface {
 
     public byte[] getTile(int z, int c, int t, int x, int y, int w, int h);
 
+    /**
+     * Reads a batch of tiles in a single call.
+     *
+     * @param tiles The tiles to read.
+     * @return The data of each tile, as returned by
+     * {@link #getTile(int, int, int, int, int, int, int)}, one after the
+     * other in the order of <code>tiles</code>. Each tile is
+     * <code>width * height * </code>{@link #getByteWidth()} bytes long.
+     * @see ome.io.nio.PixelBuffer#getTilesDirect(List, byte[])
+     */
+    public byte[] getTiles(@Validate(TileDef.class) List<TileDef> tiles);
+
     public byte[] getRegion(int size, long offset);
     
     public byte[] getRow(int y, int z, int c, int t);
@@ -0,0 +1,27 @@
+/*
+ * omeis.providers.re.RenderedTileCallback
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+/**
+ * Receives the compressed images produced by
+ * {@link RenderingEngine#renderCompressedTilesToCallback(java.util.List,
+ * RenderedTileCallback)} as they complete, which is not necessarily in the
+ * order they were requested in.
+ *
+ * @since 5.0
+ */
+public interface RenderedTileCallback {
+
+    /**
+     * Invoked once for each requested plane or tile.
+     *
+     * @param index The index of the plane definition in the requested list.
+     * @param tile The compressed image.
+     */
+    public void tileRendered(int index, byte[] tile);
+}
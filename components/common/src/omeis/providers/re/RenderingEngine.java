@@ -129,6 +129,45 @@ public interface RenderingEngine extends StatefulServiceInterface {
      * @see renderAsPackedInt()
      */
     public byte[] renderCompressed(PlaneDef pd);
+
+    /**
+     * Renders and compresses many planes or tiles in a single call. The
+     * planes are rendered in parallel according to the current rendering
+     * settings.
+     * 
+     * @param pds
+     *            The planes or tiles to render, each selects a plane
+     *            orthogonal to one of the <i>X</i>, <i>Y</i>, or <i>Z</i>
+     *            axes.
+     * @return The compressed RGBA JPEGs for display in the order of
+     *         <code>pds</code>.
+     * @throws ValidationException
+     *             If <code>pds</code> or one of its elements is
+     *             <code>null</code>.
+     * @see renderCompressed()
+     */
+    public List<byte[]> renderCompressedTiles(List<PlaneDef> pds);
+
+    /**
+     * Renders and compresses many planes or tiles in a single call, handing
+     * each compressed image to <code>callback</code> as soon as it is ready
+     * rather than once all have been rendered. The callback is invoked from
+     * the calling thread.
+     * 
+     * @param pds
+     *            The planes or tiles to render, each selects a plane
+     *            orthogonal to one of the <i>X</i>, <i>Y</i>, or <i>Z</i>
+     *            axes.
+     * @param callback
+     *            Receives each compressed RGBA JPEG along with its index in
+     *            <code>pds</code>.
+     * @throws ValidationException
+     *             If <code>pds</code>, one of its elements or
+     *             <code>callback</code> is <code>null</code>.
+     * @see renderCompressedTiles()
+     */
+    public void renderCompressedTilesToCallback(List<PlaneDef> pds,
+            RenderedTileCallback callback);
     
     
     /**
@@ -540,6 +579,26 @@ public interface RenderingEngine extends StatefulServiceInterface {
 	 * @see ICompress#getCompressionLevel()
 	 */
 	public float getCompressionLevel();
+
+	/**
+	 * Sets the format of the compressed images returned by the
+	 * <code>render*Compressed</code> methods. (The default is
+	 * <code>jpeg</code>)
+	 * 
+	 * @param format Either <code>jpeg</code> or <code>png</code>, the
+	 * compression level is ignored for the latter.
+	 * @throws ValidationException if the <code>format</code> is not
+	 * supported.
+	 */
+	public void setCompressionFormat(String format);
+
+	/**
+	 * Returns the format of the compressed images returned by the
+	 * <code>render*Compressed</code> methods.
+	 * 
+	 * @return See above.
+	 */
+	public String getCompressionFormat();
 	
 	/**
      * Returns <code>true</code> if the pixels type is signed, 
@@ -0,0 +1,107 @@
+/*
+ * ome.util.TileDef
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.util;
+
+import java.io.Serializable;
+
+/**
+ * Definition of a tile of a pixels set read in a batch of tiles.
+ *
+ * @since 5.0
+ */
+public class TileDef implements Serializable
+{
+    private static final long serialVersionUID = 5467237189354230245L;
+
+    private final int z;
+
+    private final int c;
+
+    private final int t;
+
+    private final int x;
+
+    private final int y;
+
+    private final int width;
+
+    private final int height;
+
+    /**
+     * Creates a new instance.
+     * @param z offset across the Z-axis of the pixel buffer.
+     * @param c offset across the C-axis of the pixel buffer.
+     * @param t offset across the T-axis of the pixel buffer.
+     * @param x Top left corner of the tile, X offset.
+     * @param y Top left corner of the tile, Y offset.
+     * @param width Width of the tile.
+     * @param height Height of the tile.
+     */
+    public TileDef(int z, int c, int t, int x, int y, int width, int height)
+    {
+        this.z = z;
+        this.c = c;
+        this.t = t;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getZ()
+    {
+        return z;
+    }
+
+    public int getC()
+    {
+        return c;
+    }
+
+    public int getT()
+    {
+        return t;
+    }
+
+    public int getX()
+    {
+        return x;
+    }
+
+    public int getY()
+    {
+        return y;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Returns the number of bytes of the tile.
+     * @param byteWidth The number of bytes per pixel.
+     * @return See above.
+     */
+    public long getSize(int byteWidth)
+    {
+        return (long) width * (long) height * byteWidth;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("TileDef(z=%d, c=%d, t=%d, x=%d, y=%d, w=%d, h=%d)",
+                z, c, t, x, y, width, height);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * omeis.providers.re.ChannelColorTable
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+// Application-internal dependencies
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.quantum.Quantization_8_16_bit;
+import omeis.providers.re.quantum.QuantizationException;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+/**
+ * Lookup table fusing, for a single channel, the codomain chain and the
+ * channel colour (alpha pre-multiplied) into one packed
+ * <code>0x00RRGGBB</code> value per quantized value. Compositing a pixel of
+ * the channel then boils down to an add-and-saturate of the looked up
+ * components, whichever way the pixel was quantized.
+ * <p>
+ * For a {@link Quantization_8_16_bit} strategy, i.e. for integral pixel
+ * types, the quantization is fused in as well over the input range of its
+ * look-up table so that a pixel intensity value is looked up directly.
+ * Values outside of that range are quantized on the fly. The table records
+ * the revisions of the quantum strategy and codomain chain it was built from
+ * so that the {@link Renderer} can tell when it is stale.
+ * </p>
+ *
+ * @since 5.0
+ */
+class ChannelColorTable {
+
+    /** The strategy the table was built from. */
+    private final QuantumStrategy qs;
+
+    /** The codomain chain the table was built from. */
+    private final CodomainChain cc;
+
+    /** The revision of {@link #qs} the table was built against. */
+    private final int qsRevision;
+
+    /** The revision of {@link #cc} the table was built against. */
+    private final int ccRevision;
+
+    /** Whether or not the table is for a banded buffer. */
+    private final boolean banded;
+
+    /** Whether or not alpha was ignored when building the table. */
+    private final boolean alphaless;
+
+    /** The red component of the channel colour. */
+    private final int red;
+
+    /** The green component of the channel colour. */
+    private final int green;
+
+    /** The blue component of the channel colour. */
+    private final int blue;
+
+    /** The alpha component of the channel colour. */
+    private final int alpha;
+
+    /** The packed colour for each quantized value in [0, 255]. */
+    private final int[] colors;
+
+    /** The lowest pixel intensity value in {@link #table}. */
+    private final int min;
+
+    /** The highest pixel intensity value in {@link #table}. */
+    private final int max;
+
+    /**
+     * The packed colour for each value in [{@link #min}, {@link #max}],
+     * <code>null</code> if the quantum strategy does not use a look-up table.
+     */
+    private final int[] table;
+
+    /**
+     * Creates a new table for a channel.
+     *
+     * @param qs The quantum strategy of the channel.
+     * @param cc The codomain chain.
+     * @param color The <code>RGBA</code> colour of the channel.
+     * @param banded Pass <code>true</code> to build a table for a banded
+     * buffer, <code>false</code> for a packed integer buffer.
+     * @param alphaless Pass <code>true</code> if alpha should be ignored,
+     * only considered for packed integer buffers.
+     * @return See above.
+     * @throws QuantizationException If an error occurs while quantizing a
+     * value of the input range.
+     */
+    static ChannelColorTable create(QuantumStrategy qs, CodomainChain cc,
+            int[] color, boolean banded, boolean alphaless)
+        throws QuantizationException
+    {
+        return new ChannelColorTable(qs, cc, color, banded, alphaless);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param qs The quantum strategy of the channel.
+     * @param cc The codomain chain.
+     * @param color The <code>RGBA</code> colour of the channel.
+     * @param banded Whether or not the table is for a banded buffer.
+     * @param alphaless Whether or not alpha should be ignored.
+     * @throws QuantizationException If an error occurs while quantizing a
+     * value of the input range.
+     */
+    private ChannelColorTable(QuantumStrategy qs, CodomainChain cc,
+            int[] color, boolean banded, boolean alphaless)
+        throws QuantizationException
+    {
+        // Read the revisions first so that a concurrent change results in a
+        // table which is considered stale rather than one which is wrong.
+        this.qsRevision = qs.getRevision();
+        this.ccRevision = cc.getRevision();
+        this.qs = qs;
+        this.cc = cc;
+        this.banded = banded;
+        this.alphaless = alphaless;
+        red = color[ColorsFactory.RED_INDEX];
+        green = color[ColorsFactory.GREEN_INDEX];
+        blue = color[ColorsFactory.BLUE_INDEX];
+        alpha = color[ColorsFactory.ALPHA_INDEX];
+        colors = new int[256];
+        for (int v = 0; v < colors.length; v++)
+        {
+            colors[v] = pack(v);
+        }
+        if (qs instanceof Quantization_8_16_bit)
+        {
+            Quantization_8_16_bit lut = (Quantization_8_16_bit) qs;
+            min = lut.getLutMin();
+            max = lut.getLutMax();
+            table = new int[max - min + 1];
+            for (int x = min; x <= max; x++)
+            {
+                table[x - min] = color(qs.quantize(x));
+            }
+        }
+        else
+        {
+            min = 0;
+            max = -1;
+            table = null;
+        }
+    }
+
+    /**
+     * Applies the codomain chain and the channel colour to a quantized value.
+     *
+     * @param discreteValue The quantized value.
+     * @return The colour components packed as <code>0x00RRGGBB</code>.
+     */
+    private int pack(int discreteValue)
+    {
+        discreteValue = cc.transform(discreteValue);
+        int r, g, b;
+        if (banded)
+        {
+            float v = discreteValue * (alpha / 65025.0f);  // 255*255
+            r = (int) (red * v);
+            g = (int) (green * v);
+            b = (int) (blue * v);
+        }
+        else
+        {
+            r = red > 0 ? (int) (red / 255.0 * discreteValue) : 0;
+            g = green > 0 ? (int) (green / 255.0 * discreteValue) : 0;
+            b = blue > 0 ? (int) (blue / 255.0 * discreteValue) : 0;
+            if (!alphaless)
+            {
+                float a = alpha / 255.0f;
+                r *= a;
+                g *= a;
+                b *= a;
+            }
+        }
+        return (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+    }
+
+    /**
+     * Returns <code>true</code> if pixel intensity values can be looked up
+     * directly, i.e. if {@link #lookup(int)} may be used, <code>false</code>
+     * if the values have to be quantized first.
+     *
+     * @return See above.
+     */
+    boolean hasLookup()
+    {
+        return table != null;
+    }
+
+    /**
+     * Returns the packed colour for a quantized value.
+     *
+     * @param discreteValue The quantized value.
+     * @return The colour components packed as <code>0x00RRGGBB</code>.
+     */
+    int color(int discreteValue)
+    {
+        if (discreteValue < 0 || discreteValue >= colors.length)
+        {
+            return pack(discreteValue);
+        }
+        return colors[discreteValue];
+    }
+
+    /**
+     * Returns the packed colour for a pixel intensity value. Only available
+     * if {@link #hasLookup()} returns <code>true</code>.
+     *
+     * @param value The pixel intensity value.
+     * @return The colour components packed as <code>0x00RRGGBB</code>.
+     * @throws QuantizationException If an error occurs while quantizing a
+     * value outside of the range of the table.
+     */
+    int lookup(int value) throws QuantizationException
+    {
+        if (value < min || value > max)
+        {
+            return color(qs.quantize(value));
+        }
+        return table[value - min];
+    }
+
+    /**
+     * Returns <code>true</code> if this table still reflects the state of
+     * its quantum strategy and codomain chain and was built for the given
+     * settings, <code>false</code> otherwise.
+     *
+     * @param qs The current quantum strategy of the channel.
+     * @param cc The current codomain chain.
+     * @param banded Whether or not the table is for a banded buffer.
+     * @param alphaless Whether or not alpha should be ignored.
+     * @return See above.
+     */
+    boolean isValid(QuantumStrategy qs, CodomainChain cc, boolean banded,
+            boolean alphaless)
+    {
+        return this.qs == qs && this.cc == cc
+            && qsRevision == qs.getRevision()
+            && ccRevision == cc.getRevision()
+            && this.banded == banded
+            && (banded || this.alphaless == alphaless);
+    }
+}
@@ -15,7 +15,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // Application-internal dependencies
-import ome.conditions.ResourceError;
 import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.display.ChannelBinding;
@@ -67,16 +66,20 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRgbBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        PixelBuffer pixels = pixelBuffer;
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain();
         
         // Retrieve the planar data to render
         performanceStats.startIO(channel);
-        Plane2D plane =
-        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
+        Plane2D plane;
+        synchronized (pixels)
+        {
+            plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                    pixels);
+        }
         performanceStats.endIO(channel);
 
         RGBBuffer buf = getRgbBuffer();
@@ -139,8 +142,8 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        PixelBuffer pixels = pixelBuffer;
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain();
@@ -148,23 +151,16 @@ class GreyScaleStrategy extends RenderingStrategy {
         // Retrieve the planar data to render
         
         Plane2D plane;
-        try {
-        	performanceStats.startIO(channel);
-        	plane = PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
-        	performanceStats.endIO(channel);
-		} finally
-		{
-			try
-            {
-                pixels.close();
-            } 
-            catch (IOException e)
-            {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
-            }
-		}
+        // Reads from a shared pixel buffer are serialized, concurrent calls
+        // only overlap while rendering. The buffer belongs to the renderer,
+        // which closes it.
+        synchronized (pixels)
+        {
+            performanceStats.startIO(channel);
+            plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                    pixels);
+            performanceStats.endIO(channel);
+        }
        
 	    RGBIntBuffer dataBuf = getIntBuffer();
 	    
@@ -217,16 +213,20 @@ class GreyScaleStrategy extends RenderingStrategy {
         {
             return getRGBAIntBuffer();
         }
-        PixelBuffer pixels = renderer.getPixels();
-        RenderingStats performanceStats = renderer.getStats();
+        PixelBuffer pixels = pixelBuffer;
+        RenderingStats performanceStats = stats;
         QuantumStrategy qs = 
         	renderer.getQuantumManager().getStrategyFor(channel);
         CodomainChain cc = renderer.getCodomainChain();
         
         // Retrieve the planar data to render
         performanceStats.startIO(channel);
-        Plane2D plane =
-        	PlaneFactory.createPlane(planeDef, channel, metadata, pixels);
+        Plane2D plane;
+        synchronized (pixels)
+        {
+            plane = PlaneFactory.createPlane(planeDef, channel, metadata,
+                    pixels);
+        }
         performanceStats.endIO(channel);
 	
 	    RGBAIntBuffer dataBuf = getRGBAIntBuffer();
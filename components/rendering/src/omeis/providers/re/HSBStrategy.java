@@ -14,8 +14,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 // Third-party libraries
@@ -23,7 +22,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // Application-internal dependencies
-import ome.conditions.ResourceError;
 import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.display.ChannelBinding;
@@ -44,9 +42,10 @@ import omeis.providers.re.quantum.QuantumStrategy;
  * each wavelength is mapped to a color. All these things are specified by the
  * rendering context.
  * <p>
- * This strategy renders the in "regions", dividing the planar data up based
- * on {@link #maxTasks} and assigning each task to its own thread. This should
- * result in parallel rendering on multi-processor machines.
+ * This strategy renders the in "regions", dividing the planar data up into
+ * row bands based on {@link #maxTasks} and submitting each task to the
+ * process-wide {@link RenderingExecutor}. This should result in parallel
+ * rendering on multi-processor machines.
  * </p>
  * <p>
  * Thread-safety relies on the fact that the rendering context is not going to
@@ -68,70 +67,132 @@ class HSBStrategy extends RenderingStrategy {
     /** The logger for this particular class */
     private static Logger log = LoggerFactory.getLogger(HSBStrategy.class);
     
+    /**
+     * The minimum number of rows along the <i>X2</i>-axis that a single task
+     * will be asked to render. Below this the scheduling overhead outweighs
+     * the benefit of splitting the work.
+     */
+    private static final int MIN_ROWS_PER_TASK = 16;
+
     /**
      * Retrieves the maximum number of reasonable tasks to schedule based on
-     * image size and <i>maxTasks</i>.
+     * image size and <i>maxTasks</i>. The work is split into row bands
+     * along the <i>X2</i>-axis regardless of the number of active channels.
      * 
      * @param size The width along the X2 axis.
      * @return the number of tasks to schedule.
      */
     private int numTasks(int size) {
-        for (int i = maxTasks; i > 0; i--) {
-            if (size % i == 0) {
-                return i;
-            }
-        }
-        return 1;
+        int taskCount = Math.min(maxTasks, size / MIN_ROWS_PER_TASK);
+        return Math.max(taskCount, 1);
     }
 
+    /** The cache of quantized planes used for this call or <code>null</code>. */
+    private QuantizedPlaneCache quantizedPlaneCache;
+
+    /** Identifies the plane being rendered in {@link #quantizedPlaneCache}. */
+    private String planeKey;
+
+    /** The channel index of each active channel. */
+    private List<Integer> channels;
+
+    /**
+     * The quantized plane of each wavelength found in the cache, 
+     * <code>null</code> elements for the wavelengths which are read.
+     */
+    private List<byte[]> cachedPlanes;
+
+    /**
+     * The array each wavelength is quantized into for the cache,
+     * <code>null</code> elements for the wavelengths which are not cached.
+     */
+    private List<byte[]> planeStores;
+
+    /** The quantum strategy of each active channel. */
+    private List<QuantumStrategy> quantumStrategies;
+
+    /** The revision of each quantum strategy read before quantizing. */
+    private List<Integer> revisions;
+
     /**
      * Retrieves the wavelength data for all the active channels and overlays.
+     * The element is <code>null</code> for channels whose quantized plane is
+     * found in the renderer's cache of quantized planes.
      * 
+     * @param pDef The plane to render.
+     * @param strategies The quantum strategy for each active channel.
      * @return the wavelength data.
      */
-    private List<Plane2D> getWavelengthData(PlaneDef pDef) {
+    private List<Plane2D> getWavelengthData(PlaneDef pDef,
+            List<QuantumStrategy> strategies) {
         ChannelBinding[] channelBindings = renderer.getChannelBindings();
         Pixels metadata = renderer.getMetadata();
-        PixelBuffer pixels = renderer.getPixels();
-        List<Plane2D> wData = null;
-        try
+        PixelBuffer pixels = pixelBuffer;
+        List<Plane2D> wData = new ArrayList<Plane2D>();
+        // Only planes of the renderer's own buffer are cached, not those of
+        // the temporary buffers used for projections.
+        int length = sizeX1 * sizeX2;
+        quantizedPlaneCache = null;
+        if (pixels == renderer.getPixels())
         {
-        	RenderingStats performanceStats = renderer.getStats();
-        	wData = new ArrayList<Plane2D>();
-
-        	for (int w = 0; w < channelBindings.length; w++) {
-        		if (channelBindings[w].getActive()) {
-        			performanceStats.startIO(w);
-        			wData.add(PlaneFactory.createPlane(pDef, w, metadata, 
-        					pixels));
-        			performanceStats.endIO(w);
-        		}
-        	}
-        	Map<byte[], Integer> overlays = renderer.getOverlays();
-        	if (overlays != null)
-        	{
-        		for (byte[] overlay : overlays.keySet())
-        		{
-				ome.util.PixelData data =
-					new PixelData(PlaneFactory.BIT, ByteBuffer.wrap(overlay));
-        			wData.add(new Plane2D(pDef, metadata, data));
-        		}
-        	}
+            quantizedPlaneCache = renderer.getQuantizedPlaneCache();
         }
-        finally
+        if (quantizedPlaneCache != null
+            && !quantizedPlaneCache.accepts(length))
         {
-            // Make sure that the pixel buffer is cleansed properly.
-            try
-            {
-                pixels.close();
-            } 
-            catch (IOException e)
-            {
-                log.error("Pixels could not be closed successfully.", e);
-    			throw new ResourceError(
-    					e.getMessage() + " Please check server log.");
-            }        	
+            quantizedPlaneCache = null;
         }
+        planeKey = pDef + "; stride=" + pDef.getStride();
+        quantumStrategies = strategies;
+        channels = new ArrayList<Integer>();
+        cachedPlanes = new ArrayList<byte[]>();
+        planeStores = new ArrayList<byte[]>();
+        revisions = new ArrayList<Integer>();
+        // Reads from a shared pixel buffer are serialized, concurrent calls
+        // only overlap while rendering. The buffer belongs to the renderer,
+        // which closes it.
+        synchronized (pixels)
+        {
+            for (int w = 0; w < channelBindings.length; w++) {
+                if (!channelBindings[w].getActive()) {
+                    continue;
+                }
+                QuantumStrategy qs = strategies.get(channels.size());
+                byte[] cached = null;
+                byte[] store = null;
+                int revision = qs.getRevision();
+                if (quantizedPlaneCache != null) {
+                    cached = quantizedPlaneCache.get(w, planeKey, qs);
+                    if (cached == null) {
+                        store = new byte[length];
+                    }
+                }
+                channels.add(w);
+                cachedPlanes.add(cached);
+                planeStores.add(store);
+                revisions.add(revision);
+                if (cached != null) {
+                    wData.add(null);
+                    continue;
+                }
+                stats.startIO(w);
+                wData.add(PlaneFactory.createPlane(pDef, w, metadata, 
+                        pixels));
+                stats.endIO(w);
+            }
+        }
+    	Map<byte[], Integer> overlays = renderer.getOverlays();
+    	if (overlays != null)
+    	{
+    		for (byte[] overlay : overlays.keySet())
+    		{
+    			ome.util.PixelData data =
+    				new PixelData(PlaneFactory.BIT, ByteBuffer.wrap(overlay));
+    			wData.add(new Plane2D(pDef, metadata, data));
+    			cachedPlanes.add(null);
+    			planeStores.add(null);
+    		}
+    	}
 
         return wData;
     }
@@ -197,6 +258,41 @@ class HSBStrategy extends RenderingStrategy {
         return strats;
     }
 
+    /**
+     * Retrieves the fused colour lookup table for each active channel and
+     * overlay. The codomain chain is not applied to the overlays, which are
+     * binary masks.
+     * 
+     * @param banded Pass <code>true</code> if rendering into a banded
+     * buffer, <code>false</code> otherwise.
+     * @param strategies The quantum strategy for each active channel and
+     * overlay.
+     * @param colors The colour of each active channel and overlay.
+     * @return See above.
+     * @throws QuantizationException If an error occurs while building a
+     * table.
+     */
+    private List<ChannelColorTable> getColorTables(boolean banded,
+            List<QuantumStrategy> strategies, List<int[]> colors)
+        throws QuantizationException {
+        ChannelBinding[] channelBindings = renderer.getChannelBindings();
+        List<ChannelColorTable> tables = new ArrayList<ChannelColorTable>();
+
+        for (int w = 0; w < channelBindings.length; w++) {
+            if (channelBindings[w].getActive()) {
+                tables.add(renderer.getColorTable(w, banded));
+            }
+        }
+        boolean alphaless =
+            renderer.getOptimizations().isAlphalessRendering();
+        CodomainChain identity = new CodomainChain(0, 255);
+        for (int i = tables.size(); i < strategies.size(); i++) {
+            tables.add(ChannelColorTable.create(strategies.get(i), identity,
+                    colors.get(i), banded, alphaless));
+        }
+        return tables;
+    }
+
     /**
      * Creates a set of rendering tasks for the image based on the calling
      * buffer type.
@@ -206,28 +302,38 @@ class HSBStrategy extends RenderingStrategy {
      * @param buf
      *            The buffer to render into.
      * @return An array containing the tasks.
+     * @throws QuantizationException If an error occurs while building the
+     * colour lookup tables.
      */
-    private RenderingTask[] makeRenderingTasks(PlaneDef def, RGBBuffer buf) {
+    private RenderingTask[] makeRenderingTasks(PlaneDef def, RGBBuffer buf)
+        throws QuantizationException {
         List<RenderHSBRegionTask> tasks = new ArrayList<RenderHSBRegionTask>();
 
         // Get all objects we need to create the tasks.
-        CodomainChain cc = renderer.getCodomainChain();
         //RenderingStats performanceStats = renderer.getStats();
-        List<Plane2D> wData = getWavelengthData(def);
-        List<int[]> colors = getColors();
         List<QuantumStrategy> strategies = getStrategies();
+        List<Plane2D> wData = getWavelengthData(def, strategies);
+        boolean banded = !(buf instanceof RGBIntBuffer
+                || buf instanceof RGBAIntBuffer);
+        List<ChannelColorTable> colorTables =
+            getColorTables(banded, strategies, getColors());
         // Create a number of rendering tasks.
         int taskCount = numTasks(sizeX2);
-        int delta = sizeX2/taskCount;
+        int delta = (sizeX2 + taskCount - 1)/taskCount;
         int x1Start = 0;
         int x1End = sizeX1;
         int x2Start, x2End;
-        log.info("taskCount: "+taskCount+" delta: "+delta);
+        if (log.isDebugEnabled()) {
+            log.debug("taskCount: "+taskCount+" delta: "+delta);
+        }
         for (int i = 0; i < taskCount; i++) {
             x2Start = i*delta;
-            x2End = (i+1)*delta;
-            tasks.add(new RenderHSBRegionTask(buf, wData, strategies, cc,
-            		colors, renderer.getOptimizations(),
+            x2End = Math.min((i+1)*delta, sizeX2);
+            if (x2Start >= x2End) {
+                break;
+            }
+            tasks.add(new RenderHSBRegionTask(buf, wData, strategies,
+            		colorTables, cachedPlanes, planeStores,
             		x1Start, x1End, x2Start, x2End));
         }
 
@@ -304,15 +410,15 @@ class HSBStrategy extends RenderingStrategy {
      */
     private void render(RGBBuffer buf, PlaneDef planeDef) throws IOException,
             QuantizationException {
-        RenderingStats performanceStats = renderer.getStats();
-        // Process each active wavelength. If their number N > 1, then
-        // process N-1 async and one in the current thread. If N = 1,
-        // just use the current thread.
+        RenderingStats performanceStats = stats;
+        // Process each row band. If their number N > 1, then process N-1
+        // on the shared rendering executor and one in the current thread.
+        // If N = 1, just use the current thread.
         RenderingTask[] tasks = makeRenderingTasks(planeDef, buf);
         performanceStats.startRendering();
         int n = tasks.length;
         Future[] rndTskFutures = new Future[n]; // [0] unused.
-        ExecutorService processor = Executors.newCachedThreadPool();
+        RenderingExecutor processor = RenderingExecutor.getInstance();
 
         while (0 < --n) {
             rndTskFutures[n] = processor.submit(tasks[n]);
@@ -327,19 +433,38 @@ class HSBStrategy extends RenderingStrategy {
         for (n = 1; n < rndTskFutures.length; ++n) {
             try {
                 rndTskFutures[n].get();
-            } catch (Exception e) {
-                if (e instanceof QuantizationException) {
-                    throw (QuantizationException) e;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof QuantizationException) {
+                    throw (QuantizationException) cause;
                 }
+                throw new RuntimeException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 throw new RuntimeException(e);
             }
         }
 
-        // Shutdown the task processor
-        processor.shutdown();
-
         // End the performance metrics for this rendering event.
         performanceStats.endRendering();
+        storeQuantizedPlanes();
+    }
+
+    /**
+     * Hands the planes quantized during this call to the cache of quantized
+     * planes.
+     */
+    private void storeQuantizedPlanes() {
+        if (quantizedPlaneCache == null) {
+            return;
+        }
+        for (int i = 0; i < channels.size(); i++) {
+            byte[] store = planeStores.get(i);
+            if (store != null) {
+                quantizedPlaneCache.put(channels.get(i), planeKey,
+                        quantumStrategies.get(i), revisions.get(i), store);
+            }
+        }
     }
 
     /**
@@ -0,0 +1,160 @@
+/*
+ * omeis.providers.re.QuantizedPlaneCache
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+// Java imports
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Application-internal dependencies
+import omeis.providers.re.quantum.QuantumStrategy;
+
+/**
+ * Keeps, for each channel, the last plane rendered by the {@link HSBStrategy}
+ * once quantized to 8 bits. When only the settings of some channels change
+ * between two renderings of the same plane, for example while a window
+ * slider is dragged, the other channels are composited straight from their
+ * quantized plane without being read or quantized again.
+ * <p>
+ * An entry is only handed out for the plane it was quantized from and as
+ * long as the quantum strategy of the channel is the same object at the
+ * same revision. The total size of the entries is bounded, the least
+ * recently used channels are dropped first.
+ * </p>
+ *
+ * @since 5.0
+ */
+class QuantizedPlaneCache {
+
+    /** A quantized plane of a channel. */
+    private static final class Entry {
+
+        /** Identifies the plane the values were quantized from. */
+        final String planeKey;
+
+        /** The strategy the values were quantized with. */
+        final QuantumStrategy qs;
+
+        /** The revision of {@link #qs} the values were quantized with. */
+        final int revision;
+
+        /** The quantized values, one per pixel. */
+        final byte[] data;
+
+        Entry(String planeKey, QuantumStrategy qs, int revision, byte[] data)
+        {
+            this.planeKey = planeKey;
+            this.qs = qs;
+            this.revision = revision;
+            this.data = data;
+        }
+    }
+
+    /** The maximum number of bytes of quantized planes kept. */
+    private final long maxBytes;
+
+    /** The entries keyed by channel index, least recently used first. */
+    private final Map<Integer, Entry> entries =
+        new LinkedHashMap<Integer, Entry>(16, 0.75f, true);
+
+    /** The number of bytes of quantized planes currently kept. */
+    private long size;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param maxBytes The maximum number of bytes of quantized planes kept.
+     */
+    QuantizedPlaneCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns <code>true</code> if a plane of <code>length</code> pixels can
+     * be cached at all, <code>false</code> otherwise.
+     *
+     * @param length The number of pixels of the plane.
+     * @return See above.
+     */
+    boolean accepts(int length)
+    {
+        return length <= maxBytes;
+    }
+
+    /**
+     * Returns the quantized plane of a channel if it was quantized from the
+     * given plane with the current settings of <code>qs</code>.
+     *
+     * @param w The channel index.
+     * @param planeKey Identifies the plane.
+     * @param qs The current quantum strategy of the channel.
+     * @return See above or <code>null</code>.
+     */
+    synchronized byte[] get(int w, String planeKey, QuantumStrategy qs)
+    {
+        Entry entry = entries.get(w);
+        if (entry == null || entry.qs != qs
+            || entry.revision != qs.getRevision()
+            || !entry.planeKey.equals(planeKey))
+        {
+            return null;
+        }
+        return entry.data;
+    }
+
+    /**
+     * Replaces the quantized plane of a channel.
+     *
+     * @param w The channel index.
+     * @param planeKey Identifies the plane.
+     * @param qs The quantum strategy the plane was quantized with.
+     * @param revision The revision of <code>qs</code> read before the plane
+     * was quantized.
+     * @param data The quantized values.
+     */
+    synchronized void put(int w, String planeKey, QuantumStrategy qs,
+            int revision, byte[] data)
+    {
+        Entry previous = entries.remove(w);
+        if (previous != null)
+        {
+            size -= previous.data.length;
+        }
+        if (!accepts(data.length))
+        {
+            return;
+        }
+        Iterator<Entry> i = entries.values().iterator();
+        while (size + data.length > maxBytes && i.hasNext())
+        {
+            size -= i.next().data.length;
+            i.remove();
+        }
+        entries.put(w, new Entry(planeKey, qs, revision, data));
+        size += data.length;
+    }
+
+    /** Drops all the quantized planes. */
+    synchronized void clear()
+    {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of bytes of quantized planes currently kept.
+     *
+     * @return See above.
+     */
+    synchronized long getSize()
+    {
+        return size;
+    }
+}
@@ -14,7 +14,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 // Application-internal dependencies
 import ome.util.PixelData;
-import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.data.Plane2D;
 import omeis.providers.re.quantum.BinaryMaskQuantizer;
 import omeis.providers.re.quantum.QuantizationException;
@@ -45,14 +44,20 @@ class RenderHSBRegionTask implements RenderingTask {
     /** How to quantize a pixel intensity value. */
     private List<QuantumStrategy> strategies;
 
-    /** The spatial transformations to apply to the quantized data. */
-    private CodomainChain cc;
+    /** The fused colour lookup table for each wavelength. */
+    private List<ChannelColorTable> colorTables;
 
     /**
-     * The color components used when mapping a quantized value onto the color
-     * space.
+     * The cached quantized plane of each wavelength, <code>null</code>
+     * entries for wavelengths which have to be quantized.
      */
-    private List<int[]> colors;
+    private List<byte[]> cachedPlanes;
+
+    /**
+     * The array each wavelength is quantized into for later reuse,
+     * <code>null</code> entries for wavelengths which are not kept.
+     */
+    private List<byte[]> planeStores;
 
     /** The <i>X1/<i>-axis start */
     private int x1Start;
@@ -65,9 +70,15 @@ class RenderHSBRegionTask implements RenderingTask {
 
     /** The <i>X2</i>-axis end */
     private int x2End;
-    
-    /** The optimizations that the renderer has turned on for us. */
-    private Optimizations optimizations;
+
+    /** The quantized values of the row currently being rendered. */
+    private int[] quantized;
+
+    /** Integral pixel values of the row currently being rendered. */
+    private int[] intRow;
+
+    /** Floating point pixel values of the row currently being rendered. */
+    private double[] doubleRow;
 
     /**
      * Creates a new instance to render a wavelength.
@@ -78,11 +89,14 @@ class RenderHSBRegionTask implements RenderingTask {
      *            The wavelength data.
      * @param strategies
      *            The quantum strategy for each wavelength.
-     * @param cc
-     *            The spatial transformations to apply to the quantized data.
-     * @param colors
-     *            The color components to use when mapping quantized values onto
-     *            the color space.
+     * @param colorTables
+     *            The fused colour lookup table for each wavelength.
+     * @param cachedPlanes
+     *            The cached quantized plane of each wavelength, may contain
+     *            <code>null</code> elements.
+     * @param planeStores
+     *            The array to quantize each wavelength into, may contain
+     *            <code>null</code> elements.
      * @param x1Start
      *            The <i>X1</i>-axis start
      * @param x1End
@@ -93,15 +107,16 @@ class RenderHSBRegionTask implements RenderingTask {
      *            The <i>X2</i>-axis start
      */
     RenderHSBRegionTask(RGBBuffer dataBuffer, List<Plane2D> wData,
-            List<QuantumStrategy> strategies, CodomainChain cc,
-            List<int[]> colors, Optimizations optimizations,
+            List<QuantumStrategy> strategies,
+            List<ChannelColorTable> colorTables,
+            List<byte[]> cachedPlanes, List<byte[]> planeStores,
             int x1Start, int x1End, int x2Start, int x2End) {
         this.dataBuffer = dataBuffer;
         this.wData = wData;
         this.strategies = strategies;
-        this.cc = cc;
-        this.colors = colors;
-        this.optimizations = optimizations;
+        this.colorTables = colorTables;
+        this.cachedPlanes = cachedPlanes;
+        this.planeStores = planeStores;
         this.x1Start = x1Start;
         this.x1End = x1End;
         this.x2Start = x2Start;
@@ -116,6 +131,7 @@ class RenderHSBRegionTask implements RenderingTask {
      */
     public Object call() throws QuantizationException {
     	log.debug("Buffer type: "+dataBuffer);
+        quantized = new int[x1End];
         if (dataBuffer instanceof RGBIntBuffer) {
             renderPackedInt();
         } else if (dataBuffer instanceof RGBAIntBuffer){
@@ -134,57 +150,43 @@ class RenderHSBRegionTask implements RenderingTask {
      *             if there is an error during pixel value quantization.
      */
     private void renderBanded() throws QuantizationException {
-        int discreteValue, pix;
-        int rValue, gValue, bValue;
-        float v;
-
+        int c, pix;
         int width = x1End - x1Start;
         int i = 0;
         byte[] r = dataBuffer.getRedBand();
         byte[] g = dataBuffer.getGreenBand();
         byte[] b = dataBuffer.getBlueBand();
         for (Plane2D plane : wData) {
-            int[] color = colors.get(i);
+            ChannelColorTable table = colorTables.get(i);
+            byte[] cached = cachedPlanes.get(i);
+            byte[] store = planeStores.get(i);
             QuantumStrategy qs = strategies.get(i);
-            int rColor = color[ColorsFactory.RED_INDEX];
-            int gColor = color[ColorsFactory.GREEN_INDEX];
-            int bColor = color[ColorsFactory.BLUE_INDEX];
-
-            float alpha = new Float(
-            		color[ColorsFactory.ALPHA_INDEX]).floatValue() / 65025;// 255*255
+            i++;
+            if (cached != null) {
+                renderBanded(cached, table, r, g, b);
+                continue;
+            }
+            if (table.hasLookup() && plane.hasIntegerRows()) {
+                renderBanded(plane, table, qs, store, r, g, b);
+                continue;
+            }
+            boolean isMask = qs instanceof BinaryMaskQuantizer;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
-                for (int x1 = x1Start; x1 < x1End; ++x1) {
-                    pix = width * x2 + x1;
-                    discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-                    discreteValue = cc.transform(discreteValue);
-
-                    // Pre-multiply the alpha component and add the existing
-                    // colour value to the new colour value.
-                    v = discreteValue * alpha;
-                    rValue = (int) (rColor * v) + r[pix];
-                    gValue = (int) (gColor * v) + g[pix];
-                    bValue = (int) (bColor * v) + b[pix];
-
-                    // Ensure that each colour component value is between 0 and
-                    // 255 (byte). We must make *certain* that values to not
-                    // wrap over 255 otherwise there will be corruption
-                    // introduced into the rendered image.
-                    if (rValue > 255) {
-                        rValue = 255;
-                    }
-                    if (gValue > 255) {
-                        gValue = 255;
-                    }
-                    if (bValue > 255) {
-                        bValue = 255;
+                quantizeRow(plane, qs, x2, store);
+                pix = width * x2 + x1Start;
+                for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                    c = table.color(quantized[x1]);
+                    if (isMask && quantized[x1] == 255) {
+                        // Since the mask is a hard value, we do not want to
+                        // compromise on colour fidelity.
+                        r[pix] = (byte) (c >> 16);
+                        g[pix] = (byte) (c >> 8);
+                        b[pix] = (byte) c;
+                        continue;
                     }
-                    r[pix] = (byte) (rValue & 0xFF);
-                    g[pix] = (byte) (gValue & 0xFF);
-                    b[pix] = (byte) (bValue & 0xFF);
+                    addBanded(r, g, b, pix, c);
                 }
             }
-
-            i++;
         }
     }
 
@@ -195,118 +197,39 @@ class RenderHSBRegionTask implements RenderingTask {
      *             if there is an error during pixel value quantization.
      */
     private void renderPackedInt() throws QuantizationException {
-        int discreteValue, pix;
-        double redRatio, greenRatio, blueRatio;
-        int rValue, gValue, bValue;
-        int newRValue, newGValue, newBValue;
-        int colorOffset = 24;  // Only used when we're doing primary color.
-
+        int c, pix;
         int width = x1End - x1Start;
         int i = 0;
         int[] buf = ((RGBIntBuffer) dataBuffer).getDataBuffer();
-        boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
-        boolean isAlphaless = optimizations.isAlphalessRendering();
         for (Plane2D plane : wData) {
-            int[] color = colors.get(i);
+            ChannelColorTable table = colorTables.get(i);
+            byte[] cached = cachedPlanes.get(i);
+            byte[] store = planeStores.get(i);
             QuantumStrategy qs = strategies.get(i);
-            boolean isMask = qs instanceof BinaryMaskQuantizer? true : false;
-            redRatio = color[ColorsFactory.RED_INDEX] > 0 ? 
-            		color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
-            greenRatio = color[ColorsFactory.GREEN_INDEX] > 0 ? 
-            		color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
-            blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
-            		color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
-
-            // Get our color offset if we've got the primary color optimization
-            // enabled.
-            if (isPrimaryColor)
-            	colorOffset = getColorOffset(color);
-            
-            float alpha = new Integer(
-            		color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
+            i++;
+            if (cached != null) {
+                renderPackedInt(cached, table, buf);
+                continue;
+            }
+            if (table.hasLookup() && plane.hasIntegerRows()) {
+                renderPackedInt(plane, table, qs, store, buf);
+                continue;
+            }
+            boolean isMask = qs instanceof BinaryMaskQuantizer;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
-                for (int x1 = x1Start; x1 < x1End; ++x1) {
-                    pix = width * x2 + x1;
-                    if (isXYPlanar)
-                    	discreteValue = 
-                    		qs.quantize(
-                    			data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                    	discreteValue = 
-                    		qs.quantize(plane.getPixelValue(x1, x2));
-                    
-                    // Right now we have no transforms being used so it's safe to
-                    // comment this out for the time being.
-                    //discreteValue = cc.transform(discreteValue);
-
-                    // Primary colour optimization is in effect, we don't need
-                    // to do any of the sillyness below just shift the value
-                    // into the correct colour component slot and move on to
-                    // the next pixel value.
-                    if (colorOffset != 24)
-                    {
-                    	buf[pix] |= 0xFF000000;  // Alpha.
-                    	buf[pix] |= discreteValue << colorOffset;
-                    	continue;
-                    }
-
-                    newRValue = (int) (redRatio * discreteValue);
-                    newGValue = (int) (greenRatio * discreteValue);
-                    newBValue = (int) (blueRatio * discreteValue);
-                    
-                    // Pre-multiply the alpha for each colour component if the
-                    // image has a non-1.0 alpha component.
-                    if (!isAlphaless)
-                    {
-                    	newRValue *= alpha;
-                    	newGValue *= alpha;
-                    	newBValue *= alpha;
-                    }
-
-                    if (isMask && discreteValue == 255) {
-                    	// Since the mask is a hard value, we do not want to
-                    	// compromise on colour fidelity. Packed each colour
-                    	// component along with a 1.0 alpha into the buffer so
-                    	// that buffered images that use this buffer can be
-                    	// type 1 (3 bands, pre-multiplied alpha) or type 2
-                        // (4 bands, alpha component included).
-                        buf[pix] = 0xFF000000 | newRValue << 16
-                                   | newGValue << 8 | newBValue;
+                quantizeRow(plane, qs, x2, store);
+                pix = width * x2 + x1Start;
+                for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                    c = table.color(quantized[x1]);
+                    if (isMask && quantized[x1] == 255) {
+                        // Since the mask is a hard value, we do not want to
+                        // compromise on colour fidelity.
+                        buf[pix] = 0xFF000000 | c;
                         continue;
                     }
-                    // Add the existing colour component values to the new
-                    // colour component values.
-                    rValue = ((buf[pix] & 0x00FF0000) >> 16) + newRValue;
-                    gValue = ((buf[pix] & 0x0000FF00) >> 8) + newGValue;
-                    bValue = (buf[pix] & 0x000000FF) + newBValue;
-
-                    // Ensure that each colour component value is between 0 and
-                    // 255 (byte). We must make *certain* that values do not
-                    // wrap over 255 otherwise there will be corruption
-                    // introduced into the rendered image. The value may be over
-                    // 255 if we have mapped two high intensity channels to
-                    // the same color.
-                    if (rValue > 255) {
-                        rValue = 255;
-                    }
-                    if (gValue > 255) {
-                        gValue = 255;
-                    }
-                    if (bValue > 255) {
-                        bValue = 255;
-                    }
-
-                    // Packed each colour component along with a 1.0 alpha into
-                    // the buffer so that buffered images that use this buffer
-                    // can be type 1 (3 bands, pre-multiplied alpha) or type 2
-                    // (4 bands, alpha component included).
-                    buf[pix] = 0xFF000000 | rValue << 16 | gValue << 8 | bValue;
+                    buf[pix] = addPackedInt(buf[pix], c);
                 }
             }
-            i++;
         }
     }
 
@@ -317,140 +240,374 @@ class RenderHSBRegionTask implements RenderingTask {
      *             if there is an error during pixel value quantization.
      */
     private void renderPackedIntAsRGBA() throws QuantizationException {
-        int discreteValue, pix;
-        double redRatio, greenRatio, blueRatio;
-        int rValue, gValue, bValue;
-        int newRValue, newGValue, newBValue;
-        int colorOffset = 32;  // Only used when we're doing primary color.
-
+        int c, pix;
         int width = x1End - x1Start;
         int i = 0;
         int[] buf = ((RGBAIntBuffer) dataBuffer).getDataBuffer();
-        boolean isPrimaryColor = optimizations.isPrimaryColorEnabled();
-        boolean isAlphaless = optimizations.isAlphalessRendering();
         for (Plane2D plane : wData) {
-            int[] color = colors.get(i);
+            ChannelColorTable table = colorTables.get(i);
+            byte[] cached = cachedPlanes.get(i);
+            byte[] store = planeStores.get(i);
             QuantumStrategy qs = strategies.get(i);
-            redRatio = color[ColorsFactory.RED_INDEX] > 0 ? 
-            		color[ColorsFactory.RED_INDEX] / 255.0 : 0.0;
-            greenRatio = color[ColorsFactory.GREEN_INDEX] > 0 ? 
-            		color[ColorsFactory.GREEN_INDEX] / 255.0 : 0.0;
-            blueRatio = color[ColorsFactory.BLUE_INDEX] > 0 ? 
-            		color[ColorsFactory.BLUE_INDEX] / 255.0 : 0.0;
-            boolean isXYPlanar = plane.isXYPlanar();
-            PixelData data = plane.getData();
-            int bytesPerPixel = data.bytesPerPixel();
-
-            // Get our color offset if we've got the primary color optimization
-            // enabled.
-            if (isPrimaryColor)
-            	colorOffset = getColorOffsetAsRGBA(color);
-
-            float alpha = new Integer(color[ColorsFactory.ALPHA_INDEX]).floatValue() / 255;
+            i++;
+            if (cached != null) {
+                renderPackedIntAsRGBA(cached, table, buf);
+                continue;
+            }
+            if (table.hasLookup() && plane.hasIntegerRows()) {
+                renderPackedIntAsRGBA(plane, table, qs, store, buf);
+                continue;
+            }
+            boolean isMask = qs instanceof BinaryMaskQuantizer;
             for (int x2 = x2Start; x2 < x2End; ++x2) {
-                for (int x1 = x1Start; x1 < x1End; ++x1) {
-                    pix = width * x2 + x1;
-                    if (isXYPlanar)
-                    	discreteValue = 
-                    		qs.quantize(
-                    			data.getPixelValueDirect(pix * bytesPerPixel));
-                    else
-                    	discreteValue = 
-                    		qs.quantize(plane.getPixelValue(x1, x2));
-                    // Right now we have no transforms being used so it's safe to
-                    // comment this out for the time being.
-                    //discreteValue = cc.transform(discreteValue);
-
-                    // Primary colour optimization is in effect, we don't need
-                    // to do any of the sillyness below just shift the value
-                    // into the correct colour component slot and move on to
-                    // the next pixel value.
-                    if (colorOffset != 32)
-                    {
-                    	buf[pix] |= 0x000000FF;  // Alpha.
-                    	buf[pix] |= discreteValue << colorOffset;
-                    	continue;
+                quantizeRow(plane, qs, x2, store);
+                pix = width * x2 + x1Start;
+                for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                    c = table.color(quantized[x1]);
+                    if (isMask && quantized[x1] == 255) {
+                        // Since the mask is a hard value, we do not want to
+                        // compromise on colour fidelity.
+                        buf[pix] = c << 8 | 0x000000FF;
+                        continue;
                     }
+                    buf[pix] = addPackedIntAsRGBA(buf[pix], c);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Composites a wavelength whose quantized plane is cached into a banded
+     * byte buffer using its fused colour lookup table.
+     * 
+     * @param cached The cached quantized plane of the wavelength.
+     * @param table The fused colour lookup table of the wavelength.
+     * @param r The red band.
+     * @param g The green band.
+     * @param b The blue band.
+     */
+    private void renderBanded(byte[] cached, ChannelColorTable table,
+            byte[] r, byte[] g, byte[] b) {
+        int pix;
+        int width = x1End - x1Start;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            pix = width * x2 + x1Start;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                addBanded(r, g, b, pix, table.color(cached[pix] & 0xFF));
+            }
+        }
+    }
 
-                    newRValue = (int) (redRatio * discreteValue);
-                    newGValue = (int) (greenRatio * discreteValue);
-                    newBValue = (int) (blueRatio * discreteValue);
-
-                    // Pre-multiply the alpha for each colour component if the
-                    // image has a non-1.0 alpha component.
-                    if (!isAlphaless)
-                    {
-                    	newRValue *= alpha;
-                    	newGValue *= alpha;
-                    	newBValue *= alpha;
-                    }
+    /**
+     * Composites a wavelength whose quantized plane is cached into a packed
+     * <code>ARGB</code> integer array using its fused colour lookup table.
+     * 
+     * @param cached The cached quantized plane of the wavelength.
+     * @param table The fused colour lookup table of the wavelength.
+     * @param buf The packed integer array.
+     */
+    private void renderPackedInt(byte[] cached, ChannelColorTable table,
+            int[] buf) {
+        int pix;
+        int width = x1End - x1Start;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            pix = width * x2 + x1Start;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                buf[pix] = addPackedInt(buf[pix],
+                        table.color(cached[pix] & 0xFF));
+            }
+        }
+    }
 
-                    // Add the existing colour component values to the new
-                    // colour component values.
-                    rValue = ((buf[pix] & 0xFF000000) >> 24) + newRValue;
-                    gValue = ((buf[pix] & 0x00FF0000) >> 16) + newGValue;
-                    bValue = ((buf[pix] & 0x0000FF00) >>8) + newBValue;
-
-                    // Ensure that each colour component value is between 0 and
-                    // 255 (byte). We must make *certain* that values do not
-                    // wrap over 255 otherwise there will be corruption
-                    // introduced into the rendered image. The value may be over
-                    // 255 if we have mapped two high intensity channels to
-                    // the same color.
-                    if (rValue > 255) {
-                        rValue = 255;
-                    }
-                    if (gValue > 255) {
-                        gValue = 255;
-                    }
-                    if (bValue > 255) {
-                        bValue = 255;
-                    }
+    /**
+     * Composites a wavelength whose quantized plane is cached into a packed
+     * <code>RGBA</code> integer array using its fused colour lookup table.
+     * 
+     * @param cached The cached quantized plane of the wavelength.
+     * @param table The fused colour lookup table of the wavelength.
+     * @param buf The packed integer array.
+     */
+    private void renderPackedIntAsRGBA(byte[] cached,
+            ChannelColorTable table, int[] buf) {
+        int pix;
+        int width = x1End - x1Start;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            pix = width * x2 + x1Start;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                buf[pix] = addPackedIntAsRGBA(buf[pix],
+                        table.color(cached[pix] & 0xFF));
+            }
+        }
+    }
+
+    /**
+     * Composites a wavelength into a banded byte buffer using its fused
+     * colour lookup table.
+     * 
+     * @param plane The wavelength data.
+     * @param table The fused colour lookup table of the wavelength.
+     * @param qs The quantum strategy of the wavelength.
+     * @param store The array to quantize the wavelength into or
+     * <code>null</code>.
+     * @param r The red band.
+     * @param g The green band.
+     * @param b The blue band.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void renderBanded(Plane2D plane, ChannelColorTable table,
+            QuantumStrategy qs, byte[] store, byte[] r, byte[] g, byte[] b)
+            throws QuantizationException {
+        int pix;
+        int width = x1End - x1Start;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            int[] row = getIntRow(plane, x2);
+            pix = width * x2 + x1Start;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                if (store != null) {
+                    store[pix] = (byte) qs.quantize(row[x1]);
+                }
+                addBanded(r, g, b, pix, table.lookup(row[x1]));
+            }
+        }
+    }
 
-                    // Packed each colour component along with a 1.0 alpha into
-                    // the buffer so that buffered images that use this buffer
-                    // can be type 1 (3 bands, pre-multiplied alpha) or type 2
-                    // (4 bands, alpha component included).
-                    buf[pix] = 0x000000FF | rValue << 24 | gValue << 16 | bValue<<8;
+    /**
+     * Composites a wavelength into a packed <code>ARGB</code> integer array
+     * using its fused colour lookup table.
+     * 
+     * @param plane The wavelength data.
+     * @param table The fused colour lookup table of the wavelength.
+     * @param qs The quantum strategy of the wavelength.
+     * @param store The array to quantize the wavelength into or
+     * <code>null</code>.
+     * @param buf The packed integer array.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void renderPackedInt(Plane2D plane, ChannelColorTable table,
+            QuantumStrategy qs, byte[] store, int[] buf)
+            throws QuantizationException {
+        int pix;
+        int width = x1End - x1Start;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            int[] row = getIntRow(plane, x2);
+            pix = width * x2 + x1Start;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                if (store != null) {
+                    store[pix] = (byte) qs.quantize(row[x1]);
                 }
+                buf[pix] = addPackedInt(buf[pix], table.lookup(row[x1]));
             }
+        }
+    }
 
-            i++;
+    /**
+     * Composites a wavelength into a packed <code>RGBA</code> integer array
+     * using its fused colour lookup table.
+     * 
+     * @param plane The wavelength data.
+     * @param table The fused colour lookup table of the wavelength.
+     * @param qs The quantum strategy of the wavelength.
+     * @param store The array to quantize the wavelength into or
+     * <code>null</code>.
+     * @param buf The packed integer array.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
+     */
+    private void renderPackedIntAsRGBA(Plane2D plane, ChannelColorTable table,
+            QuantumStrategy qs, byte[] store, int[] buf)
+            throws QuantizationException {
+        int pix;
+        int width = x1End - x1Start;
+        for (int x2 = x2Start; x2 < x2End; ++x2) {
+            int[] row = getIntRow(plane, x2);
+            pix = width * x2 + x1Start;
+            for (int x1 = x1Start; x1 < x1End; ++x1, ++pix) {
+                if (store != null) {
+                    store[pix] = (byte) qs.quantize(row[x1]);
+                }
+                buf[pix] = addPackedIntAsRGBA(buf[pix],
+                        table.lookup(row[x1]));
+            }
         }
     }
-    
+
+    /**
+     * Adds a packed <code>0x00RRGGBB</code> colour to a pixel of a banded
+     * byte buffer. Each colour component value is kept between 0 and 255
+     * (byte): values must *not* wrap over 255 otherwise there will be
+     * corruption introduced into the rendered image. The value may be over
+     * 255 if we have mapped two high intensity channels to the same color.
+     * 
+     * @param r The red band.
+     * @param g The green band.
+     * @param b The blue band.
+     * @param pix The index of the pixel.
+     * @param c The colour to add.
+     */
+    private static void addBanded(byte[] r, byte[] g, byte[] b, int pix,
+            int c)
+    {
+        int rValue = (r[pix] & 0xFF) + ((c >> 16) & 0xFF);
+        int gValue = (g[pix] & 0xFF) + ((c >> 8) & 0xFF);
+        int bValue = (b[pix] & 0xFF) + (c & 0xFF);
+        r[pix] = (byte) (rValue > 255 ? 255 : rValue);
+        g[pix] = (byte) (gValue > 255 ? 255 : gValue);
+        b[pix] = (byte) (bValue > 255 ? 255 : bValue);
+    }
+
+    /**
+     * Adds a packed <code>0x00RRGGBB</code> colour to a packed
+     * <code>ARGB</code> pixel, saturating each colour component at 255. The
+     * result has a 1.0 alpha so that buffered images that use the buffer can
+     * be type 1 (3 bands, pre-multiplied alpha) or type 2 (4 bands, alpha
+     * component included).
+     * 
+     * @param p The pixel.
+     * @param c The colour to add.
+     * @return The composited pixel.
+     */
+    private static int addPackedInt(int p, int c)
+    {
+        int rValue = ((p >> 16) & 0xFF) + ((c >> 16) & 0xFF);
+        int gValue = ((p >> 8) & 0xFF) + ((c >> 8) & 0xFF);
+        int bValue = (p & 0xFF) + (c & 0xFF);
+        if (rValue > 255) {
+            rValue = 255;
+        }
+        if (gValue > 255) {
+            gValue = 255;
+        }
+        if (bValue > 255) {
+            bValue = 255;
+        }
+        return 0xFF000000 | rValue << 16 | gValue << 8 | bValue;
+    }
+
+    /**
+     * Adds a packed <code>0x00RRGGBB</code> colour to a packed
+     * <code>RGBA</code> pixel, saturating each colour component at 255. The
+     * result has a 1.0 alpha.
+     * 
+     * @param p The pixel.
+     * @param c The colour to add.
+     * @return The composited pixel.
+     */
+    private static int addPackedIntAsRGBA(int p, int c)
+    {
+        int rValue = (p >>> 24) + ((c >> 16) & 0xFF);
+        int gValue = ((p >> 16) & 0xFF) + ((c >> 8) & 0xFF);
+        int bValue = ((p >> 8) & 0xFF) + (c & 0xFF);
+        if (rValue > 255) {
+            rValue = 255;
+        }
+        if (gValue > 255) {
+            gValue = 255;
+        }
+        if (bValue > 255) {
+            bValue = 255;
+        }
+        return 0x000000FF | rValue << 24 | gValue << 16 | bValue << 8;
+    }
+
+    /**
+     * Retrieves a row of a plane whose pixels are integral into
+     * {@link #intRow}.
+     * 
+     * @param plane The plane to read from.
+     * @param x2 The row to read.
+     * @return {@link #intRow} holding the pixel values of the row.
+     */
+    private int[] getIntRow(Plane2D plane, int x2)
+    {
+        if (intRow == null || intRow.length < plane.getRowLength())
+        {
+            intRow = new int[plane.getRowLength()];
+        }
+        plane.getRow(x2, intRow);
+        return intRow;
+    }
+
     /**
-     * Returns a color offset based on which color component is 0xFF.
-     * @param color the color to check.
-     * @return an integer color offset in bits.
+     * Quantizes a row of a plane into {@link #quantized}, copying the values
+     * into <code>store</code> if not <code>null</code>.
+     * 
+     * @param plane The plane to quantize.
+     * @param qs The quantum strategy for the plane.
+     * @param x2 The row to quantize.
+     * @param store The array to quantize the plane into or <code>null</code>.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
      */
-    private int getColorOffset(int[] color)
+    private void quantizeRow(Plane2D plane, QuantumStrategy qs, int x2,
+            byte[] store) throws QuantizationException
     {
-    	if (color[ColorsFactory.RED_INDEX] == 255)
-    		return 16;
-    	if (color[ColorsFactory.GREEN_INDEX] == 255)
-    		return 8;
-    	if (color[ColorsFactory.BLUE_INDEX] == 255)
-    		return 0;
-    	throw new IllegalArgumentException(
-    			"Unable to find color component offset in color.");
+        quantizeRow(plane, qs, x2);
+        if (store != null)
+        {
+            int offset = (x1End - x1Start) * x2;
+            for (int x1 = x1Start; x1 < x1End; ++x1)
+            {
+                store[offset + x1] = (byte) quantized[x1];
+            }
+        }
     }
 
     /**
-     * Returns a color offset based on which color component is 0xFF.
-     * @param color the color to check. This is for colour components
-	 * of RGBA, rather than java colour components which are ARGB.
-     * @return an integer color offset in bits.
+     * Quantizes a row of a plane into {@link #quantized}. Rows of
+     * <i>XY</i> planes are retrieved in bulk with loops specialized for the
+     * pixel type so that no per-pixel type dispatch takes place; other
+     * planes (and bit masks) fall back to per-pixel retrieval.
+     * 
+     * @param plane The plane to quantize.
+     * @param qs The quantum strategy for the plane.
+     * @param x2 The row to quantize.
+     * @throws QuantizationException
+     *             if there is an error during pixel value quantization.
      */
-    private int getColorOffsetAsRGBA(int[] color)
+    private void quantizeRow(Plane2D plane, QuantumStrategy qs, int x2)
+        throws QuantizationException
     {
-    	if (color[ColorsFactory.RED_INDEX] == 255)
-    		return 24;
-    	if (color[ColorsFactory.GREEN_INDEX] == 255)
-    		return 16;
-    	if (color[ColorsFactory.BLUE_INDEX] == 255)
-    		return 8;
-    	throw new IllegalArgumentException(
-    			"Unable to find color component offset in color.");
+        int x1;
+        if (plane.hasIntegerRows())
+        {
+            int[] row = getIntRow(plane, x2);
+            for (x1 = x1Start; x1 < x1End; ++x1)
+            {
+                quantized[x1] = qs.quantize(row[x1]);
+            }
+        }
+        else if (plane.hasRows())
+        {
+            if (doubleRow == null || doubleRow.length < plane.getRowLength())
+            {
+                doubleRow = new double[plane.getRowLength()];
+            }
+            plane.getRow(x2, doubleRow);
+            for (x1 = x1Start; x1 < x1End; ++x1)
+            {
+                quantized[x1] = qs.quantize(doubleRow[x1]);
+            }
+        }
+        else if (plane.isXYPlanar())
+        {
+            PixelData data = plane.getData();
+            int bytesPerPixel = data.bytesPerPixel();
+            int offset = (x1End - x1Start) * x2;
+            for (x1 = x1Start; x1 < x1End; ++x1)
+            {
+                quantized[x1] = qs.quantize(
+                        data.getPixelValueDirect(
+                                (offset + x1) * bytesPerPixel));
+            }
+        }
+        else
+        {
+            for (x1 = x1Start; x1 < x1End; ++x1)
+            {
+                quantized[x1] = qs.quantize(plane.getPixelValue(x1, x2));
+            }
+        }
     }
 }
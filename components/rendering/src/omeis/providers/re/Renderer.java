@@ -128,9 +128,10 @@ public class Renderer {
 
     /**
      * Collects performance measurements during each invocation of the
-     * {@link #render(PlaneDef) render} method.
+     * {@link #render(PlaneDef) render} method. When rendering calls run
+     * concurrently this holds the measurements of the last call started.
      */
-    private RenderingStats stats;
+    private volatile RenderingStats stats;
 
     /** Renderer optimizations. */
     private Optimizations optimizations = new Optimizations();
@@ -138,6 +139,18 @@ public class Renderer {
     /** Map of overlays we've currently been told to render. */
     private Map<byte[], Integer> overlays;
 
+    /**
+     * The fused colour lookup table of each channel, lazily built and
+     * discarded whenever the channel colours or quantization change.
+     */
+    private ChannelColorTable[] colorTables;
+
+    /**
+     * The last quantized plane of each channel, <code>null</code> if planes
+     * are quantized again for every rendering call.
+     */
+    private volatile QuantizedPlaneCache quantizedPlaneCache;
+
     /**
      * Returns a copy of a list of channel bindings with one element removed;
      * the so called "other" channel bindings for the image.
@@ -294,8 +307,9 @@ public class Renderer {
      * Checks the region definition to ensure that the requested tile width
      * and height are valid with respect to the current resolution level.
      * @param rd Requested region definition.
+     * @param buffer The pixel buffer the region is read from.
      */
-    private void checkRegionDef(RegionDef rd)
+    private void checkRegionDef(RegionDef rd, PixelBuffer buffer)
     {
         if (rd == null)
         {
@@ -430,6 +444,84 @@ public class Renderer {
         QuantumDef qd = rndDef.getQuantization();
         ChannelBinding[] cb = getChannelBindings();
         quantumManager.initStrategies(qd, metadata.getPixelsType(), cb);
+        invalidateColorTables();
+    }
+
+    /**
+     * Returns the fused colour lookup table of the specified channel,
+     * rebuilding it if the quantum strategy or the codomain chain changed
+     * since it was last built.
+     * 
+     * @param w The channel index.
+     * @param banded Pass <code>true</code> if rendering into a banded
+     * buffer, <code>false</code> otherwise.
+     * @return See above.
+     * @throws QuantizationException If an error occurs while building the
+     * table.
+     */
+    synchronized ChannelColorTable getColorTable(int w, boolean banded)
+        throws QuantizationException
+    {
+        ChannelBinding[] cb = getChannelBindings();
+        if (colorTables == null)
+        {
+            colorTables = new ChannelColorTable[cb.length];
+        }
+        QuantumStrategy qs = quantumManager.getStrategyFor(w);
+        boolean alphaless = optimizations.isAlphalessRendering();
+        ChannelColorTable table = colorTables[w];
+        if (table == null
+            || !table.isValid(qs, codomainChain, banded, alphaless))
+        {
+            int[] color = new int[] { cb[w].getRed(), cb[w].getGreen(),
+                    cb[w].getBlue(), cb[w].getAlpha() };
+            table = ChannelColorTable.create(qs, codomainChain, color,
+                    banded, alphaless);
+            colorTables[w] = table;
+        }
+        return table;
+    }
+
+    /**
+     * Discards the fused colour lookup tables of all channels.
+     */
+    private synchronized void invalidateColorTables()
+    {
+        colorTables = null;
+    }
+
+    /**
+     * Creates the rendering strategy used by a single rendering call. Each
+     * call gets its own strategy, performance statistics and pixel buffer so
+     * that calls which do not change the rendering settings can run
+     * concurrently.
+     * 
+     * @param pd
+     *            Selects a plane orthogonal to one of the <i>X</i>, <i>Y</i>,
+     *            or <i>Z</i> axes.
+     * @param newBuffer
+     *            The pixel buffer to use in place of the one currently
+     *            defined in the renderer or <code>null</code>.
+     * @return See above.
+     * @throws NullPointerException
+     *             If <code>pd</code> is <code>null</code>.
+     */
+    private RenderingStrategy prepareRendering(PlaneDef pd,
+            PixelBuffer newBuffer)
+    {
+        if (pd == null) {
+            throw new NullPointerException("No plane definition.");
+        }
+        PixelBuffer pixels = newBuffer == null? buffer : newBuffer;
+        checkRegionDef(pd.getRegion(), pixels);
+        RenderingStrategy strategy =
+            RenderingStrategy.makeNew(rndDef.getModel());
+        strategy.pixelBuffer = pixels;
+        strategy.stats = new RenderingStats(this, pd);
+        stats = strategy.stats;
+        log.info("Using: '" + strategy.getClass().getName()
+                + "' rendering strategy.");
+        return strategy;
     }
 
     /**
@@ -453,15 +545,9 @@ public class Renderer {
      */
     public RGBBuffer render(PlaneDef pd) throws IOException,
             QuantizationException {
-        if (pd == null) {
-            throw new NullPointerException("No plane definition.");
-        }
-        checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
-        log.info("Using: '" + renderingStrategy.getClass().getName()
-                + "' rendering strategy.");
-        RGBBuffer img = renderingStrategy.render(this, pd);
-        stats.stop();
+        RenderingStrategy strategy = prepareRendering(pd, null);
+        RGBBuffer img = strategy.render(this, pd);
+        strategy.stats.stop();
         // TODO: Commenting this out for now. -- callan
         //log.info(stats.getStats());
         return img;
@@ -494,30 +580,12 @@ public class Renderer {
     public int[] renderAsPackedInt(PlaneDef pd, PixelBuffer newBuffer)
         throws IOException, QuantizationException
     {
-        if (pd == null) {
-            throw new NullPointerException("No plane definition.");
-        }
-        checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
-        log.info("Using: '" + renderingStrategy.getClass().getName()
-                + "' rendering strategy.");
-        PixelBuffer oldBuffer = buffer;
-        try
-        {
-            if (newBuffer != null)
-            {
-                buffer = newBuffer;
-            }
-            RGBIntBuffer img = renderingStrategy.renderAsPackedInt(this, pd);
-            stats.stop();
-            // TODO: Commenting this out for now. -- callan
-            //log.info(stats.getStats());
-            return img.getDataBuffer();
-        }
-        finally
-        {
-            buffer = oldBuffer;
-        }
+        RenderingStrategy strategy = prepareRendering(pd, newBuffer);
+        RGBIntBuffer img = strategy.renderAsPackedInt(this, pd);
+        strategy.stats.stop();
+        // TODO: Commenting this out for now. -- callan
+        //log.info(stats.getStats());
+        return img.getDataBuffer();
     }
     
     /**
@@ -548,30 +616,12 @@ public class Renderer {
     public int[] renderAsPackedIntAsRGBA(PlaneDef pd, PixelBuffer newBuffer)
         throws IOException, QuantizationException
     {
-        if (pd == null) {
-            throw new NullPointerException("No plane definition.");
-        }
-        checkRegionDef(pd.getRegion());
-        stats = new RenderingStats(this, pd);
-        log.info("Using: '" + renderingStrategy.getClass().getName()
-                + "' rendering strategy.");
-        PixelBuffer oldBuffer = buffer;
-        try
-        {
-            if (newBuffer != null)
-            {
-                buffer = newBuffer;
-            }
-            RGBAIntBuffer img = renderingStrategy.renderAsPackedIntAsRGBA(this, pd);
-            stats.stop();
-            // TODO: Commenting this out for now. -- callan
-            //log.info(stats.getStats());
-            return img.getDataBuffer();
-        }
-        finally
-        {
-            buffer = oldBuffer;
-        }
+        RenderingStrategy strategy = prepareRendering(pd, newBuffer);
+        RGBAIntBuffer img = strategy.renderAsPackedIntAsRGBA(this, pd);
+        strategy.stats.stop();
+        // TODO: Commenting this out for now. -- callan
+        //log.info(stats.getStats());
+        return img.getDataBuffer();
     }
 
 
@@ -751,6 +801,7 @@ public class Renderer {
     public void setCodomainInterval(int start, int end) {
         CodomainChain chain = getCodomainChain();
         chain.setInterval(start, end);
+        invalidateColorTables();
         /*
          * RenderingDef rd = getRenderingDef(); QuantumDef qd =
          * rd.getQuantization(), newQd; newQd = new QuantumDef();
@@ -835,6 +886,7 @@ public class Renderer {
         cb[w].setBlue(Integer.valueOf(blue));
         cb[w].setAlpha(Integer.valueOf(alpha));
         checkOptimizations();
+        invalidateColorTables();
     }
     
     /**
@@ -847,8 +899,34 @@ public class Renderer {
     	ChannelBinding[] cb = getChannelBindings();
     	cb[w].setActive(Boolean.valueOf(active));
     	checkOptimizations();
+    	invalidateColorTables();
     }
     
+    /**
+     * Sets the maximum number of bytes used to keep the last quantized plane
+     * of each channel. When the same plane is rendered again only the
+     * channels whose quantization settings changed in between are read and
+     * quantized again, the others are composited from the kept planes.
+     * 
+     * @param maxBytes The maximum number of bytes, a value <code>&lt;= 0
+     * </code> disables keeping quantized planes.
+     */
+    public void setQuantizedPlaneCacheSize(long maxBytes)
+    {
+        quantizedPlaneCache =
+            maxBytes > 0 ? new QuantizedPlaneCache(maxBytes) : null;
+    }
+
+    /**
+     * Returns the cache of quantized planes.
+     * 
+     * @return See above or <code>null</code> if disabled.
+     */
+    QuantizedPlaneCache getQuantizedPlaneCache()
+    {
+        return quantizedPlaneCache;
+    }
+
     /**
      * Returns the optimizations that the renderer currently has enabled.
      * @return See above.
@@ -864,6 +942,11 @@ public class Renderer {
      * @throws IOException if an I/O error occurs.
      */
     public void close() {
+		QuantizedPlaneCache cache = quantizedPlaneCache;
+		if (cache != null)
+		{
+			cache.clear();
+		}
 		try
 		{
 			if (buffer != null)
@@ -938,6 +1021,11 @@ public class Renderer {
     public void setResolutionLevel(int resolutionLevel)
     {
         buffer.setResolutionLevel(resolutionLevel);
+        QuantizedPlaneCache cache = quantizedPlaneCache;
+        if (cache != null)
+        {
+            cache.clear();
+        }
     }
 
     /**
@@ -0,0 +1,295 @@
+/*
+ * omeis.providers.re.RenderingExecutor
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+// Java imports
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Third-party libraries
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide worker pool shared by all {@link Renderer} instances. Rather
+ * than each rendering strategy creating (and tearing down) its own thread
+ * pool for every plane, {@link RenderingTask}s are submitted to this bounded
+ * pool which is sized from the maximum number of rendering tasks.
+ * <p>
+ * The queue in front of the workers is bounded as well. When it is full (or
+ * the executor has been shut down) the submitting thread executes the task
+ * itself so that a heavily loaded server degrades to in-thread rendering
+ * instead of buffering an unbounded amount of work.
+ * </p>
+ * <p>
+ * Queue depth and task latency (from submission to completion) are tracked
+ * and exposed for monitoring.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class RenderingExecutor {
+
+    /** The logger for this particular class */
+    private static Logger log =
+        LoggerFactory.getLogger(RenderingExecutor.class);
+
+    /** Number of queued tasks allowed per worker thread. */
+    private static final int QUEUE_SIZE_PER_THREAD = 64;
+
+    /** Flags the worker threads of every rendering executor. */
+    private static final ThreadLocal<Boolean> WORKER =
+        new ThreadLocal<Boolean>();
+
+    /** The process-wide instance. */
+    private static RenderingExecutor instance;
+
+    /** The number of worker threads. */
+    private final int maxTasks;
+
+    /** The backing thread pool. */
+    private final ThreadPoolExecutor executor;
+
+    /** Number of tasks which have completed. */
+    private final AtomicLong completedTasks = new AtomicLong();
+
+    /** Cumulative latency, in nanoseconds, of all completed tasks. */
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    /** Largest latency, in nanoseconds, of any completed task. */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Returns the process-wide rendering executor, creating it with one
+     * worker per available processor if it has not yet been configured.
+     *
+     * @return See above.
+     */
+    public static synchronized RenderingExecutor getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new RenderingExecutor(0);
+        }
+        return instance;
+    }
+
+    /**
+     * Configures the process-wide rendering executor. Any previously
+     * configured executor is shut down once its queued tasks have completed.
+     *
+     * @param maxTasks The number of worker threads. A value <code>&lt;= 0
+     * </code> selects the number of available processors.
+     * @return The newly configured executor.
+     */
+    public static synchronized RenderingExecutor configure(int maxTasks)
+    {
+        if (instance != null)
+        {
+            instance.shutdown();
+        }
+        instance = new RenderingExecutor(maxTasks);
+        return instance;
+    }
+
+    /**
+     * Creates a new executor.
+     *
+     * @param maxTasks The number of worker threads. A value <code>&lt;= 0
+     * </code> selects the number of available processors.
+     */
+    RenderingExecutor(int maxTasks)
+    {
+        if (maxTasks <= 0)
+        {
+            maxTasks = Runtime.getRuntime().availableProcessors();
+        }
+        this.maxTasks = maxTasks;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory()
+        {
+            public Thread newThread(final Runnable r)
+            {
+                Runnable worker = new Runnable()
+                {
+                    public void run()
+                    {
+                        WORKER.set(Boolean.TRUE);
+                        r.run();
+                    }
+                };
+                Thread t = new Thread(worker, "RenderingExecutor-"
+                        + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        executor = new ThreadPoolExecutor(maxTasks, maxTasks,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(
+                        maxTasks * QUEUE_SIZE_PER_THREAD),
+                factory, new RejectedExecutionHandler()
+        {
+            public void rejectedExecution(Runnable r,
+                    ThreadPoolExecutor e)
+            {
+                // Unlike ThreadPoolExecutor.CallerRunsPolicy we also run the
+                // task after shutdown so that no caller is left waiting on a
+                // future which will never complete.
+                r.run();
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        log.info("Rendering executor started with " + maxTasks + " threads.");
+    }
+
+    /**
+     * Returns <code>true</code> if the current thread is a worker of a
+     * rendering executor. Tasks running on a worker, for example one of many
+     * tiles rendered in parallel, should not fork further tasks and wait for
+     * them as this could exhaust the pool.
+     *
+     * @return See above.
+     */
+    public static boolean isWorkerThread()
+    {
+        return WORKER.get() != null;
+    }
+
+    /**
+     * Returns the maximum number of rendering tasks which will be executed
+     * concurrently.
+     *
+     * @return See above.
+     */
+    public int getMaxTasks()
+    {
+        return maxTasks;
+    }
+
+    /**
+     * Submits a rendering task for execution.
+     *
+     * @param task The task to execute.
+     * @return A future representing the pending completion of the task.
+     */
+    public Future<Object> submit(final RenderingTask task)
+    {
+        final long submitted = System.nanoTime();
+        return executor.submit(new Callable<Object>()
+        {
+            public Object call() throws Exception
+            {
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    recordLatency(System.nanoTime() - submitted);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the latency of a completed task.
+     *
+     * @param latency The latency in nanoseconds.
+     */
+    private void recordLatency(long latency)
+    {
+        completedTasks.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max = maxLatency.get();
+        while (latency > max && !maxLatency.compareAndSet(max, latency))
+        {
+            max = maxLatency.get();
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker thread.
+     *
+     * @return See above.
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the approximate number of worker threads actively executing
+     * tasks.
+     *
+     * @return See above.
+     */
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of tasks submitted to this executor which have
+     * completed.
+     *
+     * @return See above.
+     */
+    public long getCompletedTaskCount()
+    {
+        return completedTasks.get();
+    }
+
+    /**
+     * Returns the mean latency, from submission to completion, of the tasks
+     * submitted to this executor in milliseconds.
+     *
+     * @return See above.
+     */
+    public double getMeanTaskLatency()
+    {
+        long completed = completedTasks.get();
+        if (completed == 0)
+        {
+            return 0.0;
+        }
+        return totalLatency.get() / (completed * 1000000.0);
+    }
+
+    /**
+     * Returns the largest latency, from submission to completion, of any task
+     * submitted to this executor in milliseconds.
+     *
+     * @return See above.
+     */
+    public double getMaxTaskLatency()
+    {
+        return maxLatency.get() / 1000000.0;
+    }
+
+    /**
+     * Shuts the executor down. Previously submitted tasks are executed but no
+     * new tasks will be accepted.
+     */
+    public void shutdown()
+    {
+        log.info(String.format(
+                "Shutting down rendering executor; completed tasks: %d " +
+                "mean latency: %.2fms max latency: %.2fms",
+                getCompletedTaskCount(), getMeanTaskLatency(),
+                getMaxTaskLatency()));
+        executor.shutdown();
+    }
+}
@@ -15,6 +15,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // Application-internal dependencies
+import ome.io.nio.PixelBuffer;
 import ome.model.core.Pixels;
 import ome.model.enums.RenderingModel;
 import omeis.providers.re.data.PlaneDef;
@@ -52,6 +53,18 @@ abstract class RenderingStrategy {
     
     /** The rendering context. */
     protected Renderer renderer;
+
+    /**
+     * The pixel buffer to read the planes to render from. Set by the
+     * {@link Renderer} for each rendering call.
+     */
+    PixelBuffer pixelBuffer;
+
+    /**
+     * Collects performance measurements of the rendering call. Set by the
+     * {@link Renderer} for each rendering call.
+     */
+    RenderingStats stats;
     
     /**
      * The number of pixels on the <i>X1</i>-axis. This is the <i>X</i>-axis
@@ -69,6 +82,8 @@ abstract class RenderingStrategy {
     
     /**
      * The maximum number of tasks that we will be using during rendering.
+     * This is the size of the process-wide {@link RenderingExecutor} or one
+     * when already rendering on one of its workers.
      */
     protected int maxTasks;
 
@@ -153,7 +168,14 @@ abstract class RenderingStrategy {
      */
     protected RenderingStrategy()
     {
-    	maxTasks = Runtime.getRuntime().availableProcessors();
+    	if (RenderingExecutor.isWorkerThread())
+    	{
+    		maxTasks = 1;
+    	}
+    	else
+    	{
+    		maxTasks = RenderingExecutor.getInstance().getMaxTasks();
+    	}
     }
 
     /**
@@ -167,7 +189,6 @@ abstract class RenderingStrategy {
      */
     protected RGBBuffer getRgbBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBBuffer buf = new RGBBuffer(sizeX1, sizeX2);
 		stats.endMalloc();
@@ -183,7 +204,6 @@ abstract class RenderingStrategy {
      */
 	protected RGBIntBuffer getIntBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBIntBuffer buf =  new RGBIntBuffer(sizeX1, sizeX2);
     	stats.endMalloc();
@@ -199,7 +219,6 @@ abstract class RenderingStrategy {
      */
 	protected RGBAIntBuffer getRGBAIntBuffer()
     {
-    	RenderingStats stats = renderer.getStats();
     	stats.startMalloc();
     	RGBAIntBuffer buf =  new RGBAIntBuffer(sizeX1, sizeX2);
     	stats.endMalloc();
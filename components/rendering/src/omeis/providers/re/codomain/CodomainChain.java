@@ -69,6 +69,9 @@ public class CodomainChain {
     /** The upper bound of the codomain interval. */
     private int intervalEnd;
 
+    /** Incremented each time the lookup table is rebuilt. */
+    private volatile int revision;
+
     /** Builds the lookup table. */
     private void buildLUT() {
         LUT = new int[intervalEnd - intervalStart + 1];
@@ -87,6 +90,7 @@ public class CodomainChain {
             }
             LUT[x - intervalStart] = v;
         }
+        revision++;
     }
 
     /**
@@ -234,6 +238,32 @@ public class CodomainChain {
         return intervalStart;
     }
 
+    /**
+     * Returns a counter which is incremented each time the transformation
+     * applied by this chain changes.
+     * 
+     * @return See above.
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Returns <code>true</code> if the chain only contains the identity
+     * transformation, <code>false</code> otherwise.
+     * 
+     * @return See above.
+     */
+    public boolean isIdentity() {
+        Iterator i = chain.iterator();
+        while (i.hasNext()) {
+            if (!(i.next() instanceof IdentityMapContext)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Removes all {@link CodomainMapContext}s except the identity and resets
      * the interval.
@@ -8,6 +8,11 @@
 package omeis.providers.re.data;
 
 // Java imports
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 // Third-party libraries
 import org.slf4j.Logger;
@@ -81,6 +86,68 @@ public class Plane2D {
     /** The slice we're working with */
     protected int slice;
 
+    /**
+     * The Java type of the backing pixel data. This may differ from
+     * {@link #javaType} for overlays where the backing data is a bit mask.
+     */
+    private int dataJavaType;
+
+    /** Whether or not the backing pixel data is signed. */
+    private boolean dataSigned;
+
+    /** Byte view of the backing buffer for <i>XY</i> row access. */
+    private ByteBuffer byteView;
+
+    /** Short view of the backing buffer for <i>XY</i> row access. */
+    private ShortBuffer shortView;
+
+    /** Integer view of the backing buffer for <i>XY</i> row access. */
+    private IntBuffer intView;
+
+    /** Float view of the backing buffer for <i>XY</i> row access. */
+    private FloatBuffer floatView;
+
+    /** Double view of the backing buffer for <i>XY</i> row access. */
+    private DoubleBuffer doubleView;
+
+    /**
+     * Creates the typed views of the backing buffer used by the bulk row
+     * accessors. Only <i>XY</i> planes are supported. The views are only
+     * ever accessed using absolute indexes so they may be safely shared by
+     * concurrent rendering tasks.
+     */
+    private void initViews()
+    {
+        dataJavaType = data.javaType();
+        dataSigned = data.isSigned();
+        if (slice != PlaneDef.XY)
+        {
+            return;
+        }
+        // Duplicates do not inherit the byte order of their source.
+        ByteBuffer buf = data.getData().duplicate();
+        buf.order(data.getOrder());
+        buf.clear();
+        switch (dataJavaType)
+        {
+            case PixelData.BYTE:
+                byteView = buf;
+                break;
+            case PixelData.SHORT:
+                shortView = buf.asShortBuffer();
+                break;
+            case PixelData.INT:
+                intView = buf.asIntBuffer();
+                break;
+            case PixelData.FLOAT:
+                floatView = buf.asFloatBuffer();
+                break;
+            case PixelData.DOUBLE:
+                doubleView = buf.asDoubleBuffer();
+                break;
+        }
+    }
+
     /**
      * Constructor that sub-classes must call.
      * 
@@ -115,6 +182,7 @@ public class Plane2D {
         this.javaType = PlaneFactory.javaType(type);
         this.signed = PlaneFactory.isTypeSigned(type);
         this.slice = pDef.getSlice();
+        initViews();
 
         log.debug("Created Plane2D with dimensions " + sizeX + "x" + sizeY + "x"
                 + bytesPerPixel);
@@ -167,6 +235,173 @@ public class Plane2D {
     	return data.getPixelValue(offset);
     }
 
+    /**
+     * Returns <code>true</code> if rows of this plane can be retrieved, 
+     * without loss, as integers using {@link #getRow(int, int[])}. This is
+     * the case for <i>XY</i> planes of 8-bit, 16-bit and signed 32-bit
+     * pixel data.
+     * 
+     * @return See above.
+     */
+    public boolean hasIntegerRows()
+    {
+        return byteView != null || shortView != null
+            || (intView != null && dataSigned);
+    }
+
+    /**
+     * Returns <code>true</code> if rows of this plane can be retrieved using
+     * {@link #getRow(int, double[])}. This is the case for <i>XY</i> planes
+     * of all pixel types with the exception of bit masks.
+     * 
+     * @return See above.
+     */
+    public boolean hasRows()
+    {
+        return hasIntegerRows() || intView != null || floatView != null
+            || doubleView != null;
+    }
+
+    /**
+     * Copies the pixel intensity values of an <i>XY</i> row into
+     * <code>dst</code>. The pixel type is only inspected once per row,
+     * avoiding per-pixel dispatch.
+     * 
+     * @param x2 The row (<i>Y</i> coordinate) to retrieve.
+     * @param dst The destination array. Must be at least {@link #sizeX}
+     * elements long.
+     * @throws IllegalStateException If {@link #hasIntegerRows()} returns
+     * <code>false</code>.
+     */
+    public void getRow(int x2, int[] dst)
+    {
+        int offset = sizeX * x2;
+        int x1;
+        if (byteView != null)
+        {
+            if (dataSigned)
+            {
+                for (x1 = 0; x1 < sizeX; x1++)
+                {
+                    dst[x1] = byteView.get(offset + x1);
+                }
+            }
+            else
+            {
+                for (x1 = 0; x1 < sizeX; x1++)
+                {
+                    dst[x1] = byteView.get(offset + x1) & 0xFF;
+                }
+            }
+        }
+        else if (shortView != null)
+        {
+            if (dataSigned)
+            {
+                for (x1 = 0; x1 < sizeX; x1++)
+                {
+                    dst[x1] = shortView.get(offset + x1);
+                }
+            }
+            else
+            {
+                for (x1 = 0; x1 < sizeX; x1++)
+                {
+                    dst[x1] = shortView.get(offset + x1) & 0xFFFF;
+                }
+            }
+        }
+        else if (intView != null && dataSigned)
+        {
+            for (x1 = 0; x1 < sizeX; x1++)
+            {
+                dst[x1] = intView.get(offset + x1);
+            }
+        }
+        else
+        {
+            throw new IllegalStateException(
+                    "Integer row access not supported by this plane.");
+        }
+    }
+
+    /**
+     * Copies the pixel intensity values of an <i>XY</i> row into
+     * <code>dst</code>. The pixel type is only inspected once per row,
+     * avoiding per-pixel dispatch.
+     * 
+     * @param x2 The row (<i>Y</i> coordinate) to retrieve.
+     * @param dst The destination array. Must be at least {@link #sizeX}
+     * elements long.
+     * @throws IllegalStateException If {@link #hasRows()} returns
+     * <code>false</code>.
+     */
+    public void getRow(int x2, double[] dst)
+    {
+        int offset = sizeX * x2;
+        int x1;
+        if (intView != null && !dataSigned)
+        {
+            for (x1 = 0; x1 < sizeX; x1++)
+            {
+                dst[x1] = intView.get(offset + x1) & 0xFFFFFFFFL;
+            }
+        }
+        else if (floatView != null)
+        {
+            for (x1 = 0; x1 < sizeX; x1++)
+            {
+                dst[x1] = floatView.get(offset + x1);
+            }
+        }
+        else if (doubleView != null)
+        {
+            for (x1 = 0; x1 < sizeX; x1++)
+            {
+                dst[x1] = doubleView.get(offset + x1);
+            }
+        }
+        else if (intView != null)
+        {
+            for (x1 = 0; x1 < sizeX; x1++)
+            {
+                dst[x1] = intView.get(offset + x1);
+            }
+        }
+        else if (shortView != null)
+        {
+            for (x1 = 0; x1 < sizeX; x1++)
+            {
+                dst[x1] = dataSigned? shortView.get(offset + x1)
+                        : shortView.get(offset + x1) & 0xFFFF;
+            }
+        }
+        else if (byteView != null)
+        {
+            for (x1 = 0; x1 < sizeX; x1++)
+            {
+                dst[x1] = dataSigned? byteView.get(offset + x1)
+                        : byteView.get(offset + x1) & 0xFF;
+            }
+        }
+        else
+        {
+            throw new IllegalStateException(
+                    "Row access not supported by this plane.");
+        }
+    }
+
+    /**
+     * Returns the number of pixels along the <i>X1</i>-axis of an <i>XY</i>
+     * plane; the length of a row returned by the bulk row accessors.
+     * 
+     * @return See above.
+     */
+    public int getRowLength()
+    {
+        return sizeX;
+    }
+
     /**
      * Returns <code>true</code> if the plane is an <code>XY-plane</code>,
      * <code>false</code> otherwise.
@@ -295,6 +295,24 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         super(qd, type);
     }
 
+    /**
+     * Returns the lowest value mapped by the look-up table.
+     * 
+     * @return See above.
+     */
+    public int getLutMin() {
+        return lutMin;
+    }
+
+    /**
+     * Returns the highest value mapped by the look-up table.
+     * 
+     * @return See above.
+     */
+    public int getLutMax() {
+        return lutMax;
+    }
+
     /**
      * Implemented as specified in {@link QuantumStrategy}.
      * 
@@ -339,4 +357,19 @@ public class Quantization_8_16_bit extends QuantumStrategy {
         return i & 0xFF; // assumed x in [min, max]
     }
 
+    /**
+     * Implemented as specified in {@link QuantumStrategy}. Values within the
+     * bounds of the look-up table are mapped directly, all others are
+     * handled by {@link #quantize(double)}.
+     * 
+     * @see QuantumStrategy#quantize(int)
+     */
+    @Override
+    public int quantize(int value) throws QuantizationException {
+        if (value < lutMin || value > lutMax) {
+            return quantize((double) value);
+        }
+        return LUT[value - lutMin] & 0xFF;
+    }
+
 }
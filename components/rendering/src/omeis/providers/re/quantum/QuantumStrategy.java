@@ -103,6 +103,12 @@ public abstract class QuantumStrategy {
     /** Reference to the value mapper. */
     protected QuantumMap valueMapper;
 
+    /**
+     * Incremented each time the mapping of pixel intensity values onto the
+     * codomain changes.
+     */
+    private volatile int revision;
+
     /**
      * Defines the value mapper corresponding to the specified family.
      * 
@@ -296,6 +302,7 @@ public abstract class QuantumStrategy {
         this.windowStart = globalMin;
         this.windowEnd = globalMax;
         initPixelsRange(true);
+        revision++;
     }
 
     /**
@@ -321,6 +328,7 @@ public abstract class QuantumStrategy {
         windowStart = start;
         windowEnd = end;
         onWindowChange();
+        revision++;
     }
 
     /**
@@ -339,6 +347,7 @@ public abstract class QuantumStrategy {
         this.family = family;
         curveCoefficient = k;
         this.noiseReduction = noiseReduction;
+        revision++;
     }
 
     /**
@@ -356,6 +365,7 @@ public abstract class QuantumStrategy {
             boolean noiseReduction) {
         setMapping(family, k, noiseReduction);
         onWindowChange();
+        revision++;
     }
 
     /**
@@ -365,6 +375,19 @@ public abstract class QuantumStrategy {
      */
     public void setMap(QuantumMap qMap) {
         valueMapper = qMap;
+        revision++;
+    }
+
+    /**
+     * Returns a counter which is incremented each time the window, the
+     * mapping or the extent of this strategy changes. Lookup tables derived
+     * from this strategy must be rebuilt when the value they were built
+     * against differs.
+     * 
+     * @return See above.
+     */
+    public int getRevision() {
+        return revision;
     }
 
     /**
@@ -487,4 +510,22 @@ public abstract class QuantumStrategy {
      */
     public abstract int quantize(double value) throws QuantizationException;
 
+    /**
+     * Maps an integral value from [windowStart, windowEnd] to a value in the
+     * codomain interval. Strategies which can avoid floating point
+     * conversion for integral pixel types should override this method; by
+     * default it delegates to {@link #quantize(double)}.
+     * 
+     * @param value
+     *            The pixel intensity value.
+     * @return The value in the codomain interval i.e. sub-interval of [0,
+     *         255].
+     * @throws QuantizationException
+     *             If the specified value is not in the interval [globalMin,
+     *             globalMax].
+     */
+    public int quantize(int value) throws QuantizationException {
+        return quantize((double) value);
+    }
+
 }
@@ -17,7 +17,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
-import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
@@ -29,7 +28,9 @@ import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
 import ome.io.nio.PixelBufferException;
 import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileBatch;
 import ome.util.PixelData;
+import ome.util.TileDef;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -493,6 +494,16 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
         }
     }
 
+    /* (non-Javadoc)
+     * @see ome.io.nio.PixelBuffer#getTilesDirect(java.util.List, byte[])
+     */
+    public byte[] getTilesDirect(List<TileDef> tiles, byte[] buffer)
+            throws IOException
+    {
+        // A single Bio-Formats reader, tiles are read one at a time.
+        return TileBatch.read(this, tiles, buffer, null);
+    }
+
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
@@ -538,15 +549,27 @@ public class BfPixelBuffer implements PixelBuffer, Serializable {
 
     public List<List<Integer>> getResolutionDescriptions()
     {
+        // Ensure the reader has been initialized
+        reader();
         final List<List<Integer>> rv = new ArrayList<List<Integer>>();
         final int no = bfReader.getResolutionCount();
-        final List<CoreMetadata> cms = bfReader.getCoreMetadataList();
-        for (int i = 0; i < no; i++)
+        final int current = bfReader.getResolution();
+        // Walk the resolutions rather than the core metadata list: readers
+        // such as the plain pyramid reader expose resolutions which have no
+        // core metadata of their own.
+        try
+        {
+            for (int i = 0; i < no; i++)
+            {
+                bfReader.setResolution(i);
+                List<Integer> sizes = Arrays.asList(
+                        bfReader.getSizeX(), bfReader.getSizeY());
+                rv.add(sizes);
+            }
+        }
+        finally
         {
-            int coreIndex = bfReader.seriesToCoreIndex(bfReader.getSeries()) + i;
-            CoreMetadata cm = cms.get(coreIndex);
-            List<Integer> sizes = Arrays.asList(cm.sizeX, cm.sizeY);
-            rv.add(sizes);
+            bfReader.setResolution(current);
         }
         return rv;
     }
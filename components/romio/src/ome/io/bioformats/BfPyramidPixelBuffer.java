@@ -17,7 +17,10 @@ import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
@@ -33,9 +36,11 @@ import ome.conditions.LockTimeout;
 import ome.io.nio.ConfiguredTileSizes;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
+import ome.io.nio.TileBatch;
 import ome.io.nio.TileSizes;
 import ome.model.core.Pixels;
 import ome.util.PixelData;
+import ome.util.TileDef;
 import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.EnumerationException;
 import ome.xml.model.primitives.PositiveInteger;
@@ -122,7 +127,59 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     private FileLock fileLock;
 
     /** The byte order of the compressed pyramid. */
-    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private volatile ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+    /**
+     * The size of the current resolution level, <code>null</code> until the
+     * reader has been initialized. Read without holding the buffer's lock.
+     */
+    private volatile Dimension levelSize;
+
+    /** The current resolution level of the delegate. */
+    private volatile int resolutionLevel;
+
+    /**
+     * Maximum number of readers decoding tiles of the pyramid concurrently.
+     */
+    private volatile int maxReaders = Runtime.getRuntime().availableProcessors();
+
+    /** Readers of the pool which are not in use. */
+    private final List<BfPixelBuffer> idleReaders =
+        new ArrayList<BfPixelBuffer>();
+
+    /** Readers of the pool which are in use. */
+    private final Set<BfPixelBuffer> busyReaders = new HashSet<BfPixelBuffer>();
+
+    /**
+     * Readers which were in use when the buffer was closed and have to be
+     * closed once released.
+     */
+    private final Set<BfPixelBuffer> retiredReaders =
+        new HashSet<BfPixelBuffer>();
+
+    /** Number of readers of the pool being opened. */
+    private int openingReaders;
+
+    /** Decoded tiles shared with the other buffers, may be <code>null</code>. */
+    private volatile DecodedTileCache tileCache;
+
+    /**
+     * The modification time of the pyramid file when the reader was
+     * initialized, part of the keys of {@link #tileCache}.
+     */
+    private volatile long readerLastModified;
+
+    /** The pixels type of the pyramid, set when the reader is initialized. */
+    private volatile String readerPixelsType;
+
+    /**
+     * Workers reading the tiles of a batch concurrently, may be
+     * <code>null</code>.
+     */
+    private volatile ExecutorService tileWorkers;
+
+    /** The compression of the tiles of a pyramid being written. */
+    private String compression = TiffCompression.JPEG_2000.getCodecName();
 
     public static final String PYR_LOCK_EXT = ".pyr_lock";
 
@@ -193,6 +250,261 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         delegate = new BfPixelBuffer(readerFile.getAbsolutePath(), reader);
         byteOrder = delegate.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
                 : ByteOrder.BIG_ENDIAN;
+        resolutionLevel = delegate.getResolutionLevel();
+        levelSize = new Dimension(delegate.getSizeX(), delegate.getSizeY());
+        readerLastModified = readerFile.lastModified();
+        readerPixelsType = FormatTools.getPixelTypeString(reader.getPixelType());
+    }
+
+    /**
+     * Sets the cache of decoded tiles shared by the pyramid pixel buffers of
+     * the process. Tiles are looked up there before being decoded and added
+     * to it once decoded.
+     *
+     * @param tileCache The cache or <code>null</code> to decode every tile.
+     */
+    public void setTileCache(DecodedTileCache tileCache)
+    {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Sets the workers reading the tiles of a batch concurrently, each
+     * through a reader of the pool.
+     *
+     * @param tileWorkers The workers or <code>null</code> to read the tiles
+     * of a batch one at a time.
+     * @see #getTilesDirect(List, byte[])
+     */
+    public void setTileWorkers(ExecutorService tileWorkers)
+    {
+        this.tileWorkers = tileWorkers;
+    }
+
+    /**
+     * Sets the compression of the tiles of the pyramid, one of the
+     * compression types of the TIFF writer such as
+     * <code>JPEG-2000</code>, <code>LZW</code> or <code>Uncompressed</code>.
+     * Pyramids of any compression are read alike. Only applies to a pyramid
+     * which has not been written yet; a compression the writer does not
+     * support falls back to JPEG 2000, as do pyramids of <code>bit</code>
+     * pixels.
+     *
+     * @param compression The compression of the tiles.
+     */
+    public synchronized void setCompression(String compression)
+    {
+        if (compression == null || compression.trim().length() == 0)
+        {
+            throw new ApiUsageException("Missing pyramid compression.");
+        }
+        this.compression = compression.trim();
+    }
+
+    /**
+     * Returns the key of a tile of a resolution level in {@link #tileCache}.
+     */
+    private String tileKey(DecodedTileCache cache, int level, int t, int x,
+            int y, int w, int h)
+    {
+        return cache.createKey(readerFile.getAbsolutePath(),
+                readerLastModified, level, t, x, y, w, h);
+    }
+
+    /**
+     * Sets the maximum number of readers, each with its own Bio-Formats
+     * reader of the pyramid file, which decode tiles concurrently. Reads of
+     * pixels data are served by these readers rather than under the buffer's
+     * lock.
+     *
+     * @param maxReaders The maximum number of readers, at least 1.
+     */
+    public void setMaxReaders(int maxReaders)
+    {
+        if (maxReaders < 1)
+        {
+            throw new ApiUsageException(
+                    "Invalid maximum number of readers: " + maxReaders);
+        }
+        this.maxReaders = maxReaders;
+    }
+
+    /**
+     * Returns the current resolution level, initializing the reader first.
+     *
+     * @return See above.
+     */
+    private int currentResolutionLevel()
+    {
+        synchronized (this)
+        {
+            // Ensures a pyramid being written is completed first.
+            delegate();
+            return resolutionLevel;
+        }
+    }
+
+    /**
+     * Takes a reader from the pool set to the current resolution level.
+     *
+     * @return See above.
+     * @see #acquireReader(int)
+     */
+    private BfPixelBuffer acquireReader()
+    {
+        return acquireReader(currentResolutionLevel());
+    }
+
+    /**
+     * Takes a reader from the pool, opening a new one if all are in use and
+     * fewer than {@link #maxReaders} are open, waiting otherwise. The reader
+     * is set to the given resolution level, so that a read is served at the
+     * level it was keyed with even if the level is changed meanwhile.
+     *
+     * @param level The resolution level, see
+     * {@link #currentResolutionLevel()}.
+     * @return See above.
+     */
+    private BfPixelBuffer acquireReader(int level)
+    {
+        BfPixelBuffer pooled = null;
+        synchronized (idleReaders)
+        {
+            while (idleReaders.isEmpty() && busyReaders.size()
+                   + retiredReaders.size() + openingReaders >= maxReaders)
+            {
+                try
+                {
+                    idleReaders.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            if (idleReaders.isEmpty())
+            {
+                openingReaders++;
+            }
+            else
+            {
+                pooled = idleReaders.remove(idleReaders.size() - 1);
+                busyReaders.add(pooled);
+            }
+        }
+        try
+        {
+            if (pooled == null)
+            {
+                try
+                {
+                    pooled = new BfPixelBuffer(readerFile.getAbsolutePath(),
+                            new OmeroPixelsPyramidReader());
+                }
+                finally
+                {
+                    synchronized (idleReaders)
+                    {
+                        openingReaders--;
+                        if (pooled != null)
+                        {
+                            busyReaders.add(pooled);
+                        }
+                        idleReaders.notifyAll();
+                    }
+                }
+            }
+            if (pooled.getResolutionLevel() != level)
+            {
+                pooled.setResolutionLevel(level);
+            }
+            return pooled;
+        }
+        catch (Exception e)
+        {
+            if (pooled != null)
+            {
+                releaseReader(pooled, true);
+            }
+            if (e instanceof RuntimeException)
+            {
+                throw (RuntimeException) e;
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a reader to the pool or closes it if the buffer has been closed
+     * while it was in use or if a read of it failed, e.g. when interrupted,
+     * which may have closed its file.
+     *
+     * @param pooled The reader to release.
+     * @param failed Whether or not a read of the reader threw.
+     */
+    private void releaseReader(BfPixelBuffer pooled, boolean failed)
+    {
+        boolean retired;
+        synchronized (idleReaders)
+        {
+            retired = retiredReaders.remove(pooled);
+            if (!retired)
+            {
+                busyReaders.remove(pooled);
+                if (failed)
+                {
+                    retired = true;
+                }
+                else
+                {
+                    idleReaders.add(pooled);
+                }
+            }
+            idleReaders.notifyAll();
+        }
+        if (retired)
+        {
+            closeReader(pooled);
+        }
+    }
+
+    /**
+     * Closes all the readers of the pool, those in use are closed once they
+     * are released.
+     */
+    private void closeReaders()
+    {
+        List<BfPixelBuffer> toClose;
+        synchronized (idleReaders)
+        {
+            toClose = new ArrayList<BfPixelBuffer>(idleReaders);
+            idleReaders.clear();
+            retiredReaders.addAll(busyReaders);
+            busyReaders.clear();
+            idleReaders.notifyAll();
+        }
+        for (BfPixelBuffer pooled : toClose)
+        {
+            closeReader(pooled);
+        }
+    }
+
+    /**
+     * Closes a reader of the pool, logging failures.
+     *
+     * @param pooled The reader to close.
+     */
+    private void closeReader(BfPixelBuffer pooled)
+    {
+        try
+        {
+            pooled.close();
+        }
+        catch (Exception e)
+        {
+            log.warn("Failed to close pooled reader", e);
+        }
     }
 
     /**
@@ -223,6 +535,19 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             addSeries(tileWidth, tileLength);
             writer = new OmeroPixelsPyramidWriter();
             writer.setMetadataRetrieve(metadata);
+            String jpeg2000 = TiffCompression.JPEG_2000.getCodecName();
+            if (!Arrays.asList(writer.getCompressionTypes()).contains(
+                    compression) || "bit".equals(
+                    pixels.getPixelsType().getValue()))
+            {
+                if (!jpeg2000.equals(compression))
+                {
+                    log.warn(String.format(
+                            "Compression %s unavailable for %s, using %s",
+                            compression, output, jpeg2000));
+                }
+                compression = jpeg2000;
+            }
             writer.setCompression(compression);
             writer.setWriteSequentially(true);
             writer.setInterleaved(true);
@@ -424,6 +749,10 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
                         FileUtils.moveFile(writerFile, readerFile);
                     } finally {
                         writerFile = null;
+                        DecodedTileCache cache = tileCache;
+                        if (cache != null) {
+                            cache.invalidate(readerFile.getAbsolutePath());
+                        }
                     }
                 }
             } finally {
@@ -519,7 +848,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             try
             {
                 initializeWriter(writerFile.getAbsolutePath(),
-                        TiffCompression.JPEG_2000.getCodecName(), true, w, h);
+                        compression, true, w, h);
             }
             catch (Exception e)
             {
@@ -577,7 +906,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
      * @throws IOException If there is a problem with the parameters or a
      * problem checking them.
      */
-    private synchronized void checkTileParameters(int x, int y, int w, int h)
+    private void checkTileParameters(int x, int y, int w, int h)
         throws IOException
     {
         // No-op.
@@ -638,6 +967,8 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             log.error("Failure to close delegate.", e);
         }
         delegate = null;
+        levelSize = null;
+        closeReaders();
 
         if (reader != null) {
             try {
@@ -664,29 +995,50 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getCol(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getCol(Integer x, Integer z, Integer c,
-                                         Integer t)
+    public PixelData getCol(Integer x, Integer z, Integer c,
+                            Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getCol(x, z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        BfPixelBuffer pooled = acquireReader();
+        boolean failed = true;
+        try
+        {
+            PixelData data = pooled.getCol(x, z, c, t);
+            data.setOrder(byteOrder);
+            failed = false;
+            return data;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getColDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getColDirect(Integer x, Integer z, Integer c,
+    public byte[] getColDirect(Integer x, Integer z, Integer c,
             Integer t, byte[] buffer)
         throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getColDirect(x, z, c, t, buffer);
+        BfPixelBuffer pooled = acquireReader();
+        boolean failed = true;
+        try
+        {
+            byte[] rv = pooled.getColDirect(x, z, c, t, buffer);
+            failed = false;
+            return rv;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
     }
 
     /* (non-Javadoc)
@@ -746,28 +1098,49 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlane(java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getPlane(Integer z, Integer c, Integer t)
+    public PixelData getPlane(Integer z, Integer c, Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getPlane(z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        BfPixelBuffer pooled = acquireReader();
+        boolean failed = true;
+        try
+        {
+            PixelData data = pooled.getPlane(z, c, t);
+            data.setOrder(byteOrder);
+            failed = false;
+            return data;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlaneDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getPlaneDirect(Integer z, Integer c, Integer t,
-                                              byte[] buffer)
+    public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+                                 byte[] buffer)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getPlaneDirect(z, c, t, buffer);
+        BfPixelBuffer pooled = acquireReader();
+        boolean failed = true;
+        try
+        {
+            byte[] rv = pooled.getPlaneDirect(z, c, t, buffer);
+            failed = false;
+            return rv;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
     }
 
     /* (non-Javadoc)
@@ -785,7 +1158,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getPlaneRegion(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getPlaneRegion(Integer x, Integer y,
+    public PixelData getPlaneRegion(Integer x, Integer y,
             Integer width, Integer height, Integer z, Integer c, Integer t,
             Integer stride)
             throws IOException, DimensionsOutOfBoundsException
@@ -793,10 +1166,20 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data =
-            delegate().getPlaneRegion(x, y, width, height, z, c, t, stride);
-        data.setOrder(byteOrder);
-        return data;
+        BfPixelBuffer pooled = acquireReader();
+        boolean failed = true;
+        try
+        {
+            PixelData data =
+                pooled.getPlaneRegion(x, y, width, height, z, c, t, stride);
+            data.setOrder(byteOrder);
+            failed = false;
+            return data;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
     }
 
     /* (non-Javadoc)
@@ -840,29 +1223,50 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getRow(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getRow(Integer y, Integer z, Integer c,
-                                         Integer t)
+    public PixelData getRow(Integer y, Integer z, Integer c,
+                            Integer t)
             throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getRow(y, z, c, t);
-        data.setOrder(byteOrder);
-        return data;
+        BfPixelBuffer pooled = acquireReader();
+        boolean failed = true;
+        try
+        {
+            PixelData data = pooled.getRow(y, z, c, t);
+            data.setOrder(byteOrder);
+            failed = false;
+            return data;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getRowDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getRowDirect(Integer y, Integer z, Integer c,
+    public byte[] getRowDirect(Integer y, Integer z, Integer c,
             Integer t, byte[] buffer)
         throws IOException, DimensionsOutOfBoundsException
     {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getRowDirect(y, z, c, t, buffer);
+        BfPixelBuffer pooled = acquireReader();
+        boolean failed = true;
+        try
+        {
+            byte[] rv = pooled.getRowDirect(y, z, c, t, buffer);
+            failed = false;
+            return rv;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
     }
 
     /* (non-Javadoc)
@@ -909,31 +1313,33 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getSizeX()
      */
-    public synchronized int getSizeX()
+    public int getSizeX()
     {
-        if (delegate == null || delegate.reader.get() == null)
+        Dimension size = levelSize;
+        if (size == null)
         {
             // The downstream reader has not been initialized, we don't need to
             // delegate and can't even if we wanted to because no data has
             // actually been written yet.
             return pixels.getSizeX();
         }
-        return delegate.getSizeX();
+        return size.width;
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getSizeY()
      */
-    public synchronized int getSizeY()
+    public int getSizeY()
     {
-        if (delegate == null || delegate.reader.get() == null)
+        Dimension size = levelSize;
+        if (size == null)
         {
             // The downstream reader has not been initialized, we don't need to
             // delegate and can't even if we wanted to because no data has
             // actually been written yet.
             return pixels.getSizeY();
         }
-        return delegate.getSizeY();
+        return size.height;
     }
 
     /* (non-Javadoc)
@@ -984,22 +1390,52 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTile(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
-    public synchronized PixelData getTile(Integer z, Integer c, Integer t,
+    public PixelData getTile(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h) throws IOException
     {
         checkTileParameters(x, y, w, h);
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        PixelData data = delegate().getTile(z, c, t, x, y, w, h);
-        data.setOrder(byteOrder);
-        return data;
+        // Read once, so that the tile is cached under the level it is read at.
+        int level = currentResolutionLevel();
+        DecodedTileCache cache = tileCache;
+        String key = null;
+        if (cache != null && cache.isEnabled())
+        {
+            key = tileKey(cache, level, t, x, y, w, h);
+            byte[] cached = cache.get(key);
+            if (cached != null)
+            {
+                PixelData data = new PixelData(
+                        readerPixelsType, ByteBuffer.wrap(cached));
+                data.setOrder(byteOrder);
+                return data;
+            }
+        }
+        BfPixelBuffer pooled = acquireReader(level);
+        boolean failed = true;
+        try
+        {
+            PixelData data = pooled.getTile(z, c, t, x, y, w, h);
+            data.setOrder(byteOrder);
+            if (key != null)
+            {
+                cache.put(key, data.getData().array());
+            }
+            failed = false;
+            return data;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
     }
 
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#getTileDirect(java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, byte[])
      */
-    public synchronized byte[] getTileDirect(Integer z, Integer c, Integer t,
+    public byte[] getTileDirect(Integer z, Integer c, Integer t,
             Integer x, Integer y, Integer w, Integer h, byte[] buffer)
         throws IOException
     {
@@ -1007,7 +1443,49 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+        // Read once, so that the tile is cached under the level it is read at.
+        int level = currentResolutionLevel();
+        DecodedTileCache cache = tileCache;
+        String key = null;
+        if (cache != null && cache.isEnabled())
+        {
+            key = tileKey(cache, level, t, x, y, w, h);
+            if (cache.get(key, buffer))
+            {
+                return buffer;
+            }
+        }
+        BfPixelBuffer pooled = acquireReader(level);
+        boolean failed = true;
+        try
+        {
+            byte[] tile = pooled.getTileDirect(z, c, t, x, y, w, h, buffer);
+            if (key != null)
+            {
+                cache.put(key, tile);
+            }
+            failed = false;
+            return tile;
+        }
+        finally
+        {
+            releaseReader(pooled, failed);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see ome.io.nio.PixelBuffer#getTilesDirect(java.util.List, byte[])
+     */
+    public byte[] getTilesDirect(List<TileDef> tiles, byte[] buffer)
+        throws IOException
+    {
+        synchronized (this)
+        {
+            // Initializes the reader before the workers share it.
+            delegate();
+        }
+        return TileBatch.read(this, tiles, buffer,
+                maxReaders > 1? tileWorkers : null);
     }
 
     /* (non-Javadoc)
@@ -1218,6 +1696,9 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         {
             throw new ApiUsageException("In write mode!");
         }
-        delegate().setResolutionLevel(resolutionLevel);
+        BfPixelBuffer buffer = delegate();
+        buffer.setResolutionLevel(resolutionLevel);
+        this.resolutionLevel = resolutionLevel;
+        levelSize = new Dimension(buffer.getSizeX(), buffer.getSizeY());
     }
 }
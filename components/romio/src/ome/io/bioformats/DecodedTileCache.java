@@ -0,0 +1,347 @@
+/*
+ * ome.io.bioformats.DecodedTileCache
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.bioformats;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide cache of decoded pyramid tiles shared by all
+ * {@link BfPyramidPixelBuffer} instances. Decoding a compressed tile costs
+ * far more than transferring it, and every rendering engine or raw pixels
+ * store session opens its own pixel buffer, so popular tiles would otherwise
+ * be decoded once per session.
+ * <p>
+ * Tiles are held off-heap in direct buffers, bounded by a total number of
+ * bytes and evicted least recently used first. The buffers of evicted or
+ * invalidated tiles are recycled for tiles of the same size instead of
+ * being allocated again.
+ * </p>
+ * <p>
+ * Keys are created by {@link #createKey(String, long, int, int, int, int,
+ * int, int)} from the path and modification time of the pyramid file so
+ * that a rewritten pyramid never returns stale tiles;
+ * {@link #invalidate(String)} frees the space held by a pyramid as soon as
+ * it has been rewritten.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class DecodedTileCache {
+
+    /** The logger for this class. */
+    private static Logger log = LoggerFactory.getLogger(DecodedTileCache.class);
+
+    /** Separates the pyramid path from the rest of a key. */
+    private static final String SEPARATOR = "|";
+
+    /** Maximum number of bytes held, tiles and recycled buffers alike. */
+    private final long maxBytes;
+
+    /** Tiles held, least recently used first. */
+    private final LinkedHashMap<String, ByteBuffer> tiles =
+        new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+
+    /** Buffers available for reuse keyed by capacity. */
+    private final Map<Integer, List<ByteBuffer>> freeBuffers =
+        new HashMap<Integer, List<ByteBuffer>>();
+
+    /** Number of bytes of tiles held. */
+    private long usedBytes;
+
+    /** Number of bytes of buffers available for reuse. */
+    private long freeBytes;
+
+    /** Number of requests answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of requests which could not be answered. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of tiles evicted. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes Maximum number of bytes held. A value
+     * <code>&lt;= 0</code> disables the cache.
+     */
+    public DecodedTileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        log.info(String.format("Decoded tile cache: %d bytes", maxBytes));
+    }
+
+    /**
+     * Returns <code>true</code> if the cache holds tiles at all,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Creates a key for a decoded tile.
+     *
+     * @param path The absolute path of the pyramid file.
+     * @param lastModified The modification time of the pyramid file.
+     * @param resolutionLevel The resolution level of the tile.
+     * @param t The rasterized timepoint of the tile.
+     * @param x The X coordinate of the tile.
+     * @param y The Y coordinate of the tile.
+     * @param w The width of the tile.
+     * @param h The height of the tile.
+     * @return See above.
+     */
+    public String createKey(String path, long lastModified,
+            int resolutionLevel, int t, int x, int y, int w, int h) {
+        StringBuilder sb = new StringBuilder(path);
+        sb.append(SEPARATOR).append(lastModified);
+        sb.append(SEPARATOR).append(resolutionLevel);
+        sb.append(SEPARATOR).append(t);
+        sb.append(SEPARATOR).append(x);
+        sb.append(SEPARATOR).append(y);
+        sb.append(SEPARATOR).append(w);
+        sb.append(SEPARATOR).append(h);
+        return sb.toString();
+    }
+
+    /**
+     * Returns a copy of the tile cached for a key.
+     *
+     * @param key The key created by {@link #createKey}.
+     * @return See above or <code>null</code> if the tile is not cached.
+     */
+    public byte[] get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (this) {
+            ByteBuffer tile = tiles.get(key);
+            if (tile != null) {
+                hits.incrementAndGet();
+                byte[] data = new byte[tile.remaining()];
+                tile.duplicate().get(data);
+                return data;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Copies the tile cached for a key into a buffer.
+     *
+     * @param key The key created by {@link #createKey}.
+     * @param buffer The buffer to copy the tile into.
+     * @return <code>true</code> if the tile was cached and has the size of
+     * the buffer, <code>false</code> otherwise.
+     */
+    public boolean get(String key, byte[] buffer) {
+        if (!isEnabled()) {
+            return false;
+        }
+        synchronized (this) {
+            ByteBuffer tile = tiles.get(key);
+            if (tile != null && tile.remaining() == buffer.length) {
+                hits.incrementAndGet();
+                tile.duplicate().get(buffer);
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Caches a decoded tile.
+     *
+     * @param key The key created by {@link #createKey}.
+     * @param tile The decoded tile, copied into the cache.
+     */
+    public void put(String key, byte[] tile) {
+        if (!isEnabled() || tile == null || tile.length > maxBytes) {
+            return;
+        }
+        int length = tile.length;
+        synchronized (this) {
+            if (tiles.containsKey(key)) {
+                return;
+            }
+            ByteBuffer buffer = takeFreeBuffer(length);
+            Iterator<Map.Entry<String, ByteBuffer>> i =
+                tiles.entrySet().iterator();
+            while (buffer == null && usedBytes + freeBytes + length > maxBytes)
+            {
+                if (freeBytes > 0) {
+                    // None of the recycled buffers fits, let them go.
+                    freeBuffers.clear();
+                    freeBytes = 0;
+                    continue;
+                }
+                ByteBuffer evicted = i.next().getValue();
+                i.remove();
+                usedBytes -= evicted.capacity();
+                evictions.incrementAndGet();
+                if (evicted.capacity() == length) {
+                    buffer = evicted;
+                }
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(length);
+            }
+            buffer.clear();
+            buffer.put(tile);
+            buffer.flip();
+            tiles.put(key, buffer);
+            usedBytes += length;
+        }
+    }
+
+    /**
+     * Removes all the tiles of a pyramid. Called when the pyramid has been
+     * rewritten or deleted.
+     *
+     * @param path The absolute path of the pyramid file.
+     */
+    public void invalidate(String path) {
+        if (!isEnabled()) {
+            return;
+        }
+        String prefix = path + SEPARATOR;
+        synchronized (this) {
+            Iterator<Map.Entry<String, ByteBuffer>> i =
+                tiles.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String, ByteBuffer> entry = i.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    i.remove();
+                    recycle(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the tiles.
+     */
+    public synchronized void clear() {
+        for (ByteBuffer tile : tiles.values()) {
+            recycle(tile);
+        }
+        tiles.clear();
+    }
+
+    /**
+     * Takes a recycled buffer. Caller must hold the lock.
+     *
+     * @param capacity The capacity of the buffer.
+     * @return See above or <code>null</code> if there is none.
+     */
+    private ByteBuffer takeFreeBuffer(int capacity) {
+        List<ByteBuffer> buffers = freeBuffers.get(capacity);
+        if (buffers == null || buffers.isEmpty()) {
+            return null;
+        }
+        freeBytes -= capacity;
+        return buffers.remove(buffers.size() - 1);
+    }
+
+    /**
+     * Makes the buffer of a removed tile available for reuse. Caller must
+     * hold the lock.
+     *
+     * @param tile The buffer.
+     */
+    private void recycle(ByteBuffer tile) {
+        int capacity = tile.capacity();
+        usedBytes -= capacity;
+        List<ByteBuffer> buffers = freeBuffers.get(capacity);
+        if (buffers == null) {
+            buffers = new ArrayList<ByteBuffer>();
+            freeBuffers.put(capacity, buffers);
+        }
+        buffers.add(tile);
+        freeBytes += capacity;
+    }
+
+    /**
+     * Returns the number of requests answered from the cache.
+     *
+     * @return See above.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests which could not be answered.
+     *
+     * @return See above.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of requests answered from the cache.
+     *
+     * @return See above, <code>0</code> if there was no request.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Returns the number of tiles evicted.
+     *
+     * @return See above.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of bytes of tiles currently held.
+     *
+     * @return See above.
+     */
+    public synchronized long getSize() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the number of tiles currently held.
+     *
+     * @return See above.
+     */
+    public synchronized int getCount() {
+        return tiles.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "DecodedTileCache(size=%d, hits=%d, misses=%d, ratio=%.3f, " +
+                "evictions=%d)", getSize(), getHits(), getMisses(),
+                getHitRatio(), getEvictions());
+    }
+}
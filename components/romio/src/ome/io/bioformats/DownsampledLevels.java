@@ -0,0 +1,320 @@
+/*
+ * ome.io.bioformats.DownsampledLevels
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.bioformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import ome.util.PixelData;
+
+/**
+ * Builds the lower resolution levels of a pixels pyramid from the full
+ * resolution tiles as they are written, so that they do not have to be read
+ * back and decoded once the full resolution level is complete.
+ * <p>
+ * Each tile is reduced by a box mean to the size it has in each level, using
+ * the same rounding of tile sizes as {@link BfPyramidPixelBuffer} uses for
+ * the size of the levels. Only the planes of the levels containing the
+ * current full resolution plane are held in memory; the planes completed are
+ * kept in a raw spill file until they are written.
+ * </p>
+ * <p>
+ * Tiles must lie on the grid of the first tile. {@link #add} returns
+ * <code>false</code> for any other tile, after which the levels cannot be
+ * used.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class DownsampledLevels {
+
+    /** The raw spill file holding the planes of all the levels. */
+    private final RandomAccessFile spill;
+
+    /** The file backing {@link #spill}. */
+    private final File spillFile;
+
+    /** The pixels type of the image. */
+    private final String pixelsType;
+
+    /** The byte order of the pixels. */
+    private final ByteOrder order;
+
+    /** The number of bytes per pixel. */
+    private final int bytesPerPixel;
+
+    /** The size of the full resolution level. */
+    private final int imageWidth, imageHeight;
+
+    /** The size of the tiles of the full resolution level. */
+    private final int tileWidth, tileHeight;
+
+    /** The downsampling factor of each level. */
+    private final int[] factors;
+
+    /** The width and height of each level. */
+    private final int[] levelWidths, levelHeights;
+
+    /** The width and height of the tiles of each level. */
+    private final int[] levelTileWidths, levelTileHeights;
+
+    /** The offset of the plane of each level within a plane of the spill. */
+    private final long[] levelOffsets;
+
+    /** The size of all the levels of a plane in the spill. */
+    private final long planeStride;
+
+    /** The plane of each level being built. */
+    private final byte[][] planes;
+
+    /** The full resolution plane being downsampled, <code>-1</code> if none. */
+    private int currentPlane = -1;
+
+    /**
+     * Creates the levels.
+     *
+     * @param spillFile The spill file, deleted by {@link #close()}.
+     * @param pixelsType The pixels type of the image.
+     * @param order The byte order of the tiles and of the levels.
+     * @param imageWidth The width of the full resolution level.
+     * @param imageHeight The height of the full resolution level.
+     * @param tileWidth The width of the full resolution tiles.
+     * @param tileHeight The height of the full resolution tiles.
+     * @param factors The downsampling factor of each level.
+     * @param levelWidths The width of each level.
+     * @param levelHeights The height of each level.
+     * @throws IOException If the spill file cannot be created.
+     */
+    public DownsampledLevels(File spillFile, String pixelsType,
+            ByteOrder order, int imageWidth, int imageHeight,
+            int tileWidth, int tileHeight, int[] factors,
+            int[] levelWidths, int[] levelHeights) throws IOException
+    {
+        this.spillFile = spillFile;
+        this.pixelsType = pixelsType;
+        this.order = order;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.factors = factors;
+        this.levelWidths = levelWidths;
+        this.levelHeights = levelHeights;
+        bytesPerPixel = new PixelData(
+                pixelsType, ByteBuffer.allocate(0)).bytesPerPixel();
+        levelTileWidths = new int[factors.length];
+        levelTileHeights = new int[factors.length];
+        levelOffsets = new long[factors.length];
+        planes = new byte[factors.length][];
+        long offset = 0;
+        for (int i = 0; i < factors.length; i++)
+        {
+            levelTileWidths[i] = (int) Math.max(
+                    1, Math.round((double) tileWidth / factors[i]));
+            levelTileHeights[i] = (int) Math.max(
+                    1, Math.round((double) tileHeight / factors[i]));
+            planes[i] = new byte[levelWidths[i] * levelHeights[i]
+                                 * bytesPerPixel];
+            levelOffsets[i] = offset;
+            offset += planes[i].length;
+        }
+        planeStride = offset;
+        spill = new RandomAccessFile(spillFile, "rw");
+    }
+
+    /**
+     * Returns the size, in one dimension, of the remainder tile of a level,
+     * as computed for the size of the levels.
+     */
+    private static int remainderSize(int size, int factor)
+    {
+        double remaining = (double) size / factor;
+        return (int) (remaining < 1? Math.ceil(remaining)
+                : Math.round(remaining));
+    }
+
+    /**
+     * Downsamples a full resolution tile into every level.
+     *
+     * @param no The plane number of the tile.
+     * @param tile The pixels of the tile.
+     * @param x The X coordinate of the tile.
+     * @param y The Y coordinate of the tile.
+     * @param w The width of the tile.
+     * @param h The height of the tile.
+     * @return <code>true</code> if the tile has been downsampled,
+     * <code>false</code> if it does not lie on the tile grid.
+     * @throws IOException If the planes cannot be spilled or reloaded.
+     */
+    public boolean add(int no, byte[] tile, int x, int y, int w, int h)
+        throws IOException
+    {
+        if (x % tileWidth != 0 || y % tileHeight != 0
+            || (w != tileWidth && x + w != imageWidth)
+            || (h != tileHeight && y + h != imageHeight))
+        {
+            return false;
+        }
+        if (no != currentPlane)
+        {
+            load(no);
+        }
+        PixelData source = new PixelData(pixelsType, ByteBuffer.wrap(tile));
+        source.setOrder(order);
+        for (int i = 0; i < factors.length; i++)
+        {
+            int dx = (x / tileWidth) * levelTileWidths[i];
+            int dy = (y / tileHeight) * levelTileHeights[i];
+            int dw = w == tileWidth? levelTileWidths[i]
+                    : remainderSize(w, factors[i]);
+            int dh = h == tileHeight? levelTileHeights[i]
+                    : remainderSize(h, factors[i]);
+            dw = Math.min(dw, levelWidths[i] - dx);
+            dh = Math.min(dh, levelHeights[i] - dy);
+            PixelData level = new PixelData(
+                    pixelsType, ByteBuffer.wrap(planes[i]));
+            level.setOrder(order);
+            downsample(source, w, h, level, levelWidths[i], dx, dy, dw, dh);
+        }
+        return true;
+    }
+
+    /**
+     * Reduces a tile by a box mean into a region of a level.
+     */
+    private void downsample(PixelData source, int w, int h, PixelData level,
+            int levelWidth, int dx, int dy, int dw, int dh)
+    {
+        boolean isFloat = source.isFloat();
+        for (int j = 0; j < dh; j++)
+        {
+            int y0 = j * h / dh;
+            int y1 = Math.max((j + 1) * h / dh, y0 + 1);
+            for (int i = 0; i < dw; i++)
+            {
+                int x0 = i * w / dw;
+                int x1 = Math.max((i + 1) * w / dw, x0 + 1);
+                double sum = 0;
+                for (int sy = y0; sy < y1; sy++)
+                {
+                    int row = sy * w;
+                    for (int sx = x0; sx < x1; sx++)
+                    {
+                        sum += source.getPixelValue(row + sx);
+                    }
+                }
+                double mean = sum / ((y1 - y0) * (x1 - x0));
+                level.setPixelValue((dy + j) * levelWidth + dx + i,
+                        isFloat? mean : Math.round(mean));
+            }
+        }
+    }
+
+    /**
+     * Spills the planes being built and loads those of another plane.
+     */
+    private void load(int no) throws IOException
+    {
+        flush();
+        long start = no * planeStride;
+        for (int i = 0; i < planes.length; i++)
+        {
+            Arrays.fill(planes[i], (byte) 0);
+            long offset = start + levelOffsets[i];
+            // Planes revisited are reloaded, new planes start empty.
+            if (offset < spill.length())
+            {
+                spill.seek(offset);
+                readFully(planes[i]);
+            }
+        }
+        currentPlane = no;
+    }
+
+    /**
+     * Reads into a buffer up to the end of the spill file.
+     */
+    private void readFully(byte[] buffer) throws IOException
+    {
+        int read = 0;
+        while (read < buffer.length)
+        {
+            int n = spill.read(buffer, read, buffer.length - read);
+            if (n < 0)
+            {
+                break;
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Writes the planes being built to the spill file.
+     *
+     * @throws IOException If the planes cannot be written.
+     */
+    public void flush() throws IOException
+    {
+        if (currentPlane < 0)
+        {
+            return;
+        }
+        long start = currentPlane * planeStride;
+        for (int i = 0; i < planes.length; i++)
+        {
+            spill.seek(start + levelOffsets[i]);
+            spill.write(planes[i]);
+        }
+    }
+
+    /**
+     * Returns a plane of a level. Planes of which no tile was added are
+     * empty.
+     *
+     * @param level The index of the level in the factors.
+     * @param no The plane number.
+     * @return See above.
+     * @throws IOException If the plane cannot be read.
+     */
+    public byte[] getPlane(int level, int no) throws IOException
+    {
+        if (no == currentPlane)
+        {
+            return planes[level].clone();
+        }
+        byte[] plane = new byte[planes[level].length];
+        long offset = no * planeStride + levelOffsets[level];
+        if (offset < spill.length())
+        {
+            spill.seek(offset);
+            readFully(plane);
+        }
+        return plane;
+    }
+
+    /**
+     * Closes and deletes the spill file.
+     *
+     * @throws IOException If the spill file cannot be closed.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            spill.close();
+        }
+        finally
+        {
+            spillFile.delete();
+        }
+    }
+}
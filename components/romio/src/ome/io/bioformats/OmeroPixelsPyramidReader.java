@@ -8,6 +8,10 @@
 package ome.io.bioformats;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,9 +19,11 @@ import org.slf4j.LoggerFactory;
 import loci.common.RandomAccessInputStream;
 import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.in.MinimalTiffReader;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffCompression;
 import loci.formats.tiff.TiffParser;
 
 /**
@@ -32,6 +38,23 @@ public class OmeroPixelsPyramidReader extends MinimalTiffReader {
     private final static Logger log =
         LoggerFactory.getLogger(OmeroPixelsPyramidReader.class);
 
+    /**
+     * IFDs of each resolution level, highest resolution first, of a pyramid
+     * whose tiles are not JPEG 2000 compressed and therefore do not expose
+     * lower resolutions themselves. <code>null</code> for JPEG 2000
+     * pyramids, whose resolution levels are handled by the TIFF reader.
+     */
+    private List<IFDList> plainLevels;
+
+    /** Stream of {@link #plainParser}. */
+    private RandomAccessInputStream plainStream;
+
+    /** Parser reading the lower resolution levels of a plain pyramid. */
+    private TiffParser plainParser;
+
+    /** Current resolution level of a plain pyramid. */
+    private int plainResolution;
+
    /* (non-Javadoc)
     * @see loci.formats.FormatReader#isThisType(java.lang.String, boolean)
     */
@@ -90,6 +113,234 @@ public class OmeroPixelsPyramidReader extends MinimalTiffReader {
     {
         log.debug("setId(" + id + ")");
         super.setId(id);
+        initPlainLevels();
+    }
+
+    /**
+     * Collects the resolution levels of a pyramid whose full resolution
+     * tiles are not JPEG 2000 compressed: the untagged IFDs hold the full
+     * resolution planes and the IFDs tagged with
+     * {@link OmeroPixelsPyramidWriter#IFD_TAG_SERIES} the lower resolutions.
+     */
+    private void initPlainLevels() throws FormatException, IOException
+    {
+        RandomAccessInputStream stream = new RandomAccessInputStream(currentId);
+        boolean plain = false;
+        try
+        {
+            TiffParser parser = new TiffParser(stream);
+            IFDList all = parser.getIFDs();
+            if (all.isEmpty())
+            {
+                return;
+            }
+            TiffCompression compression = all.get(0).getCompression();
+            if (compression == TiffCompression.JPEG_2000
+                || compression == TiffCompression.JPEG_2000_LOSSY)
+            {
+                return;
+            }
+            IFDList full = new IFDList();
+            // Lower tag values are higher resolutions.
+            Map<Integer, IFDList> lower = new TreeMap<Integer, IFDList>();
+            for (IFD ifd : all)
+            {
+                if (ifd.get(OmeroPixelsPyramidWriter.IFD_TAG_SERIES) == null)
+                {
+                    full.add(ifd);
+                    continue;
+                }
+                int series = ifd.getIFDIntValue(
+                        OmeroPixelsPyramidWriter.IFD_TAG_SERIES);
+                IFDList level = lower.get(series);
+                if (level == null)
+                {
+                    level = new IFDList();
+                    lower.put(series, level);
+                }
+                level.add(ifd);
+            }
+            plainLevels = new ArrayList<IFDList>();
+            plainLevels.add(full);
+            plainLevels.addAll(lower.values());
+            plainResolution = 0;
+            plainStream = stream;
+            plainParser = parser;
+            plain = true;
+            log.debug(String.format("Plain %s pyramid with %d levels: %s",
+                    compression, plainLevels.size(), currentId));
+        }
+        finally
+        {
+            if (!plain)
+            {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the first IFD of the current resolution level of a plain
+     * pyramid below the full resolution, <code>null</code> otherwise.
+     */
+    private IFD getPlainLevelIFD()
+    {
+        if (plainLevels == null || plainResolution == 0)
+        {
+            return null;
+        }
+        return plainLevels.get(plainResolution).get(0);
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.FormatReader#getResolutionCount()
+     */
+    @Override
+    public int getResolutionCount()
+    {
+        if (plainLevels != null)
+        {
+            return plainLevels.size();
+        }
+        return super.getResolutionCount();
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.FormatReader#getResolution()
+     */
+    @Override
+    public int getResolution()
+    {
+        if (plainLevels != null)
+        {
+            return plainResolution;
+        }
+        return super.getResolution();
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.FormatReader#setResolution(int)
+     */
+    @Override
+    public void setResolution(int no)
+    {
+        if (plainLevels == null)
+        {
+            super.setResolution(no);
+            return;
+        }
+        if (no < 0 || no >= plainLevels.size())
+        {
+            throw new IllegalArgumentException("Invalid resolution: " + no);
+        }
+        plainResolution = no;
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.FormatReader#getImageCount()
+     */
+    @Override
+    public int getImageCount()
+    {
+        if (plainLevels != null)
+        {
+            return plainLevels.get(0).size();
+        }
+        return super.getImageCount();
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.FormatReader#getSizeT()
+     */
+    @Override
+    public int getSizeT()
+    {
+        if (plainLevels != null)
+        {
+            // Pyramids rasterize all planes along T.
+            return plainLevels.get(0).size();
+        }
+        return super.getSizeT();
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.FormatReader#getSizeX()
+     */
+    @Override
+    public int getSizeX()
+    {
+        IFD ifd = getPlainLevelIFD();
+        if (ifd == null)
+        {
+            return super.getSizeX();
+        }
+        try
+        {
+            return (int) ifd.getImageWidth();
+        }
+        catch (FormatException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.FormatReader#getSizeY()
+     */
+    @Override
+    public int getSizeY()
+    {
+        IFD ifd = getPlainLevelIFD();
+        if (ifd == null)
+        {
+            return super.getSizeY();
+        }
+        try
+        {
+            return (int) ifd.getImageLength();
+        }
+        catch (FormatException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.in.MinimalTiffReader#getOptimalTileWidth()
+     */
+    @Override
+    public int getOptimalTileWidth()
+    {
+        // Lower resolutions are written as a single strip.
+        return getPlainLevelIFD() == null? super.getOptimalTileWidth()
+                : getSizeX();
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.in.MinimalTiffReader#getOptimalTileHeight()
+     */
+    @Override
+    public int getOptimalTileHeight()
+    {
+        return getPlainLevelIFD() == null? super.getOptimalTileHeight()
+                : getSizeY();
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.in.MinimalTiffReader#openBytes(int, byte[], int, int, int, int)
+     */
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+        throws FormatException, IOException
+    {
+        if (getPlainLevelIFD() == null)
+        {
+            return super.openBytes(no, buf, x, y, w, h);
+        }
+        FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
+        plainParser.getSamples(
+                plainLevels.get(plainResolution).get(no), buf, x, y, w, h);
+        return buf;
     }
 
     /* (non-Javadoc)
@@ -99,7 +350,20 @@ public class OmeroPixelsPyramidReader extends MinimalTiffReader {
     public void close() throws IOException
     {
         log.debug("close(" + currentId + ")");
-        super.close();
+        try
+        {
+            if (plainStream != null)
+            {
+                plainStream.close();
+            }
+        }
+        finally
+        {
+            plainStream = null;
+            plainParser = null;
+            plainLevels = null;
+            super.close();
+        }
     }
 
     @Override
@@ -7,15 +7,19 @@
 
 package ome.io.bioformats;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteOrder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import loci.formats.FormatException;
 import loci.formats.in.TiffReader;
+import loci.formats.meta.MetadataRetrieve;
 import loci.formats.out.TiffWriter;
 import loci.formats.tiff.IFD;
+import loci.formats.tiff.TiffCompression;
 
 /**
  * File format writer for OMERO pixels pyramid files.
@@ -38,6 +42,22 @@ public class OmeroPixelsPyramidWriter extends TiffWriter {
     /** TIFF tag we're using to store the Bio-Formats plane number. */
     public static final int IFD_TAG_PLANE_NUMBER = 65001;
 
+    /**
+     * Downsampling factors of the lower resolution series, the first being
+     * series 1, as created by {@link BfPyramidPixelBuffer}.
+     */
+    private static final int[] LEVEL_FACTORS = new int[] { 32, 16 };
+
+    /**
+     * Lower resolution levels built while the full resolution tiles are
+     * written, <code>null</code> until the first tile or once they cannot be
+     * used.
+     */
+    private DownsampledLevels levels;
+
+    /** Whether or not the lower resolution levels have to be re-compressed. */
+    private boolean recompress;
+
     /* (non-Javadoc)
      * @see loci.formats.out.TiffWriter#close()
      */
@@ -62,6 +82,115 @@ public class OmeroPixelsPyramidWriter extends TiffWriter {
         }
     }
 
+    /* (non-Javadoc)
+     * @see loci.formats.out.TiffWriter#saveBytes(int, byte[], loci.formats.tiff.IFD, int, int, int, int)
+     */
+    @Override
+    public void saveBytes(int no, byte[] buf, IFD ifd, int x, int y, int w,
+            int h) throws FormatException, IOException
+    {
+        if (getSeries() == 0 && !recompress)
+        {
+            downsample(no, buf, x, y, w, h);
+        }
+        super.saveBytes(no, buf, ifd, x, y, w, h);
+    }
+
+    /**
+     * Downsamples a full resolution tile into the lower resolution levels,
+     * falling back to re-compressing them from the written file if the tile
+     * cannot be downsampled.
+     */
+    private void downsample(int no, byte[] buf, int x, int y, int w, int h)
+    {
+        try
+        {
+            if (levels == null)
+            {
+                levels = createLevels(w, h);
+            }
+            if (levels != null && levels.add(no, buf, x, y, w, h))
+            {
+                return;
+            }
+            log.info("Tile off the grid, lower resolutions will be " +
+                     "re-compressed: " + currentId);
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to downsample, lower resolutions will be " +
+                     "re-compressed: " + currentId, e);
+        }
+        recompress = true;
+        closeLevels();
+    }
+
+    /**
+     * Creates the lower resolution levels from the size of the first tile.
+     * @return See above or <code>null</code> if the pixels type cannot be
+     * downsampled.
+     */
+    private DownsampledLevels createLevels(int tileWidth, int tileLength)
+        throws IOException
+    {
+        MetadataRetrieve r = getMetadataRetrieve();
+        String pixelsType = r.getPixelsType(0).getValue();
+        if ("bit".equals(pixelsType))
+        {
+            return null;
+        }
+        int[] widths = new int[LEVEL_FACTORS.length];
+        int[] heights = new int[LEVEL_FACTORS.length];
+        for (int i = 0; i < LEVEL_FACTORS.length; i++)
+        {
+            widths[i] = r.getPixelsSizeX(i + 1).getValue();
+            heights[i] = r.getPixelsSizeY(i + 1).getValue();
+        }
+        File output = new File(currentId);
+        File spill = File.createTempFile("." + output.getName(), ".levels",
+                output.getAbsoluteFile().getParentFile());
+        Boolean bigEndian = r.getPixelsBinDataBigEndian(0, 0);
+        boolean created = false;
+        try
+        {
+            DownsampledLevels rv = new DownsampledLevels(spill, pixelsType,
+                    bigEndian == null || bigEndian? ByteOrder.BIG_ENDIAN
+                            : ByteOrder.LITTLE_ENDIAN,
+                    r.getPixelsSizeX(0).getValue(),
+                    r.getPixelsSizeY(0).getValue(),
+                    tileWidth, tileLength, LEVEL_FACTORS, widths, heights);
+            created = true;
+            return rv;
+        }
+        finally
+        {
+            // Once created, the levels delete the spill file on close.
+            if (!created)
+            {
+                spill.delete();
+            }
+        }
+    }
+
+    /**
+     * Closes the lower resolution levels, deleting their spill file.
+     */
+    private void closeLevels()
+    {
+        if (levels != null)
+        {
+            try
+            {
+                levels.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Failed to close downsampled levels.", e);
+            }
+            levels = null;
+        }
+    }
+
     /* (non-Javadoc)
      * @see loci.formats.FormatWriter#setId(java.lang.String)
      */
@@ -73,12 +202,39 @@ public class OmeroPixelsPyramidWriter extends TiffWriter {
     }
 
     /**
-     * Performs re-compression post processing on the pixel pyramid.
+     * Writes the lower resolution levels of the pixel pyramid, from the
+     * levels downsampled while the tiles were written if possible and
+     * otherwise by re-compressing them from the written file.
      * @throws IOException
      * @throws FormatException
      */
     protected void postProcess() throws IOException, FormatException
     {
+        if (levels != null)
+        {
+            try
+            {
+                levels.flush();
+                // Series 1 is the lowest resolution, as when re-compressing.
+                for (int i = 0; i < LEVEL_FACTORS.length; i++)
+                {
+                    writeSeries(i + 1);
+                }
+                return;
+            }
+            finally
+            {
+                closeLevels();
+            }
+        }
+        if (!TiffCompression.JPEG_2000.getCodecName().equals(getCompression()))
+        {
+            // Only JPEG 2000 tiles expose lower resolutions to read back.
+            throw new FormatException(String.format(
+                    "Cannot create the lower resolutions of %s: %s tiles " +
+                    "can only be downsampled while written on their grid",
+                    currentId, getCompression()));
+        }
         TiffReader reader = new TiffReader();
         try
         {
@@ -127,4 +283,34 @@ public class OmeroPixelsPyramidWriter extends TiffWriter {
             saveBytes(i, plane, ifd);
         }
     }
+
+    /**
+     * Writes a lower resolution series from the levels downsampled while
+     * the full resolution tiles were written.
+     * @param series Target series, <code>1</code> for the lowest resolution.
+     * @throws FormatException
+     * @throws IOException
+     */
+    protected void writeSeries(int series)
+        throws FormatException, IOException
+    {
+        MetadataRetrieve r = getMetadataRetrieve();
+        int imageCount = r.getPixelsSizeZ(0).getValue()
+            * r.getPixelsSizeC(0).getValue() * r.getPixelsSizeT(0).getValue();
+        int sizeY = r.getPixelsSizeY(series).getValue();
+        // Matches the series tag of the re-compressed series, whose source
+        // series are the resolution levels of the JPEG 2000 codestream.
+        int level = Integer.numberOfTrailingZeros(LEVEL_FACTORS[series - 1]);
+        setSeries(series);
+        for (int i = 0; i < imageCount; i++)
+        {
+            byte[] plane = levels.getPlane(series - 1, i);
+            IFD ifd = new IFD();
+            ifd.put(IFD.ROWS_PER_STRIP, new long[] { sizeY });
+            ifd.put(IFD.IMAGE_DESCRIPTION, IMAGE_DESCRIPTION);
+            ifd.put(IFD_TAG_SERIES, level - 1);
+            ifd.put(IFD_TAG_PLANE_NUMBER, i);
+            saveBytes(i, plane, ifd);
+        }
+    }
 }
@@ -48,6 +48,15 @@ public class AbstractFileSystemService {
         }
     }
 
+    /**
+     * Returns the absolute path of the root of this service.
+     *
+     * @return See above.
+     */
+    protected String getRoot() {
+        return root;
+    }
+
     /**
      * Makes sure that for a given path, it's subpath exists. For example, given
      * the path "/foo/bar/foobar.txt" the method will make sure the directory
@@ -20,6 +20,7 @@ import java.util.List;
 
 import ome.model.core.Pixels;
 import ome.util.PixelData;
+import ome.util.TileDef;
 
 /**
  * Class implementation of the PixelBuffer interface for in memory planar pixel
@@ -437,6 +438,16 @@ public class InMemoryPlanarPixelBuffer implements PixelBuffer
             "Not supported with in memory planar buffers.");
     }
 
+    /* (non-Javadoc)
+     * @see ome.io.nio.PixelBuffer#getTilesDirect(java.util.List, byte[])
+     */
+    public byte[] getTilesDirect(List<TileDef> tiles, byte[] buffer)
+            throws IOException
+    {
+        throw new UnsupportedOperationException(
+            "Not supported with in memory planar buffers.");
+    }
+
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
@@ -0,0 +1,121 @@
+/*
+ * ome.io.nio.MappedSegments
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps a bounded number of large, aligned, read-only mappings of a pixels
+ * file and serves reads as slices of them, so that reading a tile no longer
+ * costs a mapping of its own. The least recently used segments are dropped
+ * first.
+ * <p>
+ * Segments never extend past the end of the file. Reads which straddle two
+ * segments or go past the end of the file are not served and have to be
+ * mapped by the caller.
+ * </p>
+ *
+ * @since 5.0
+ * @see RomioPixelBuffer#setMappedSegments(long, int)
+ */
+class MappedSegments {
+
+    /** The size in bytes of each segment. */
+    private final long segmentSize;
+
+    /** The maximum number of segments kept. */
+    private final int maxSegments;
+
+    /** The segments keyed by index, least recently used first. */
+    private final Map<Long, MappedByteBuffer> segments =
+        new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true);
+
+    /**
+     * Creates a new instance.
+     *
+     * @param segmentSize The size in bytes of each segment.
+     * @param maxSegments The maximum number of segments kept.
+     */
+    MappedSegments(long segmentSize, int maxSegments) {
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Invalid segment size: " + segmentSize);
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum number of segments: " + maxSegments);
+        }
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Returns a read-only view of a region of the file.
+     *
+     * @param channel The channel of the file.
+     * @param offset The offset of the region in the file.
+     * @param size The size of the region.
+     * @return See above or <code>null</code> if the region cannot be served
+     * from a single segment.
+     * @throws IOException If an error occurs while mapping a segment.
+     */
+    synchronized ByteBuffer slice(FileChannel channel, long offset, int size)
+        throws IOException {
+        long index = offset / segmentSize;
+        long start = index * segmentSize;
+        int position = (int) (offset - start);
+        long end = (long) position + size;
+        if (end > segmentSize) {
+            return null;
+        }
+        MappedByteBuffer segment = segments.get(index);
+        // A segment mapped up to the end of the file is replaced once the
+        // file has grown past it.
+        if (segment == null || segment.capacity() < end) {
+            long length = Math.min(segmentSize, channel.size() - start);
+            if (length < end) {
+                return null;
+            }
+            segment = channel.map(MapMode.READ_ONLY, start, length);
+            segments.put(index, segment);
+            Iterator<Long> i = segments.keySet().iterator();
+            while (segments.size() > maxSegments && i.hasNext()) {
+                i.next();
+                i.remove();
+            }
+        }
+        ByteBuffer slice = segment.duplicate();
+        slice.position(position);
+        slice.limit((int) end);
+        return slice.slice();
+    }
+
+    /**
+     * Returns the number of segments currently mapped.
+     *
+     * @return See above.
+     */
+    synchronized int size() {
+        return segments.size();
+    }
+
+    /**
+     * Drops all the segments. Their mappings are released once the slices
+     * handed out have been collected as well.
+     */
+    synchronized void clear() {
+        segments.clear();
+    }
+}
@@ -0,0 +1,900 @@
+/*
+ * ome.io.nio.PackedThumbnailService
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.conditions.ResourceError;
+import ome.model.display.Thumbnail;
+import ome.util.Utils;
+
+/**
+ * Thumbnail service which appends the thumbnails to pack files rather than
+ * writing each of them to a file of its own.
+ * <p>
+ * The thumbnails of a range of ids share a pack under
+ * <code>Thumbnails/Packs</code>: a data file of records, each the id and
+ * length of a thumbnail followed by its bytes, and an index file of the id,
+ * offset and length of each record. Writing a thumbnail again or removing
+ * it appends a new record, a removal one of length <code>-1</code>; once
+ * more than a given fraction of a pack is no longer referenced by its
+ * index, the pack is compacted. The data file is the reference: an index
+ * which does not end where the data file does, e.g. after a crash, is
+ * rebuilt from the data file.
+ * </p>
+ * <p>
+ * Writes to a pack hold an exclusive lock on its <code>.lock</code> file
+ * and reads a shared one, so that {@link #migrate} may run from another
+ * process while the server is up. An index kept in memory is read again
+ * once the length or the modification time of its data file changes,
+ * rather than written past records appended by another process or used to
+ * read a pack compacted since.
+ * </p>
+ * <p>
+ * Thumbnails not found in the packs are read from the one file per
+ * thumbnail layout of {@link ThumbnailService}, which {@link #migrate}
+ * moves into the packs.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class PackedThumbnailService extends ThumbnailService {
+
+    /* The logger for this class. */
+    private transient static Logger log = LoggerFactory
+            .getLogger(PackedThumbnailService.class);
+
+    public final static String PACKS_PATH = "Packs";
+
+    /** The default number of consecutive thumbnail ids of a pack. */
+    public final static int DEFAULT_IDS_PER_PACK = 10000;
+
+    /** The default fraction of a pack unreferenced before compacting it. */
+    public final static double DEFAULT_MAX_GARBAGE = 0.5;
+
+    /** The number of pack indexes kept in memory. */
+    private final static int CACHED_INDEXES = 256;
+
+    /** Bytes of the header of a record of a data file: id and length. */
+    private final static int HEADER = 12;
+
+    private final File packs;
+
+    private final int idsPerPack;
+
+    private final double maxGarbage;
+
+    /** Locks of the packs, held to read them and to write them. */
+    private final ConcurrentMap<Long, ReadWriteLock> locks =
+        new ConcurrentHashMap<Long, ReadWriteLock>();
+
+    /**
+     * The shared file locks of the packs being read, by pack, since the
+     * threads of a process cannot each hold an overlapping file lock.
+     */
+    private final Map<Long, SharedLock> sharedLocks =
+        new HashMap<Long, SharedLock>();
+
+    /** The most recently used pack indexes. */
+    private final Map<Long, Index> indexes =
+        new LinkedHashMap<Long, Index>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Index> e) {
+                return size() > CACHED_INDEXES;
+            }
+        };
+
+    /**
+     * A shared file lock and the number of threads holding it, taken by the
+     * first of them.
+     */
+    private static class SharedLock {
+
+        FileLock lock;
+
+        int holders;
+    }
+
+    /** A record of a pack. */
+    private static class Entry {
+
+        final long offset;
+
+        final int length;
+
+        Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /** The records of a pack referenced by thumbnail id. */
+    private static class Index {
+
+        final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+        /** The bytes of the records referenced. */
+        long live;
+
+        /** Where the next record of the data file goes. */
+        long end;
+
+        /** The length of the data file when the index was last in sync. */
+        long length;
+
+        /** The modification time of the data file when last in sync. */
+        long modified;
+
+        /** Whether the index file must be written again before appending. */
+        boolean stale;
+
+        void apply(long id, long offset, int length) {
+            Entry previous = entries.remove(id);
+            if (previous != null) {
+                live -= HEADER + previous.length;
+            }
+            if (length >= 0) {
+                entries.put(id, new Entry(offset, length));
+                live += HEADER + length;
+            }
+            end = offset + Math.max(length, 0);
+        }
+
+        long getGarbage() {
+            return end - live;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param path
+     */
+    public PackedThumbnailService(String path) {
+        this(path, DEFAULT_IDS_PER_PACK, DEFAULT_MAX_GARBAGE);
+    }
+
+    /**
+     * Constructor
+     * @param path The root of the service.
+     * @param idsPerPack The number of consecutive thumbnail ids of a pack.
+     * @param maxGarbage The fraction of a pack no longer referenced above
+     * which it is compacted.
+     */
+    public PackedThumbnailService(String path, int idsPerPack,
+            double maxGarbage) {
+        super(path);
+        if (idsPerPack < 1) {
+            throw new IllegalArgumentException(
+                    "Expecting at least one id per pack: " + idsPerPack);
+        }
+        this.idsPerPack = idsPerPack;
+        this.maxGarbage = maxGarbage;
+        this.packs = new File(new File(getRoot(), THUMBNAILS_PATH),
+                PACKS_PATH);
+    }
+
+    private long getPack(long id) {
+        return id / idsPerPack;
+    }
+
+    private File getPackDirectory(long pack) {
+        return new File(packs, String.format("Dir-%03d", pack / 1000));
+    }
+
+    private File getDataFile(long pack) {
+        return new File(getPackDirectory(pack), pack + ".pack");
+    }
+
+    private File getIndexFile(long pack) {
+        return new File(getPackDirectory(pack), pack + ".idx");
+    }
+
+    private ReadWriteLock getLock(long pack) {
+        ReadWriteLock lock = locks.get(pack);
+        if (lock == null) {
+            lock = new ReentrantReadWriteLock();
+            ReadWriteLock existing = locks.putIfAbsent(pack, lock);
+            if (existing != null) {
+                lock = existing;
+            }
+        }
+        return lock;
+    }
+
+    private File getLockFile(long pack) {
+        return new File(getPackDirectory(pack), pack + ".lock");
+    }
+
+    /**
+     * Takes the lock on a pack shared with other processes, waiting for it
+     * if need be. The caller holds the write lock of the pack.
+     */
+    private FileLock lockFile(long pack) throws IOException {
+        return lockFile(pack, false);
+    }
+
+    private FileLock lockFile(long pack, boolean shared) throws IOException {
+        File file = getLockFile(pack);
+        file.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().lock(0, Long.MAX_VALUE, shared);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a shared lock on a pack, so that it is not written by another
+     * process while read, unless the pack does not exist. The caller holds
+     * the read lock of the pack, to release the shared lock before.
+     *
+     * @return <code>true</code> if locked.
+     */
+    private boolean lockShared(long pack) throws IOException {
+        if (!getDataFile(pack).exists()) {
+            return false;
+        }
+        SharedLock shared;
+        synchronized (sharedLocks) {
+            shared = sharedLocks.get(pack);
+            if (shared == null) {
+                shared = new SharedLock();
+                sharedLocks.put(pack, shared);
+            }
+            shared.holders++;
+        }
+        boolean locked = false;
+        try {
+            // Not waiting for another process under the lock of all packs.
+            synchronized (shared) {
+                if (shared.lock == null) {
+                    shared.lock = lockFile(pack, true);
+                }
+            }
+            locked = true;
+        } finally {
+            if (!locked) {
+                unlockShared(pack);
+            }
+        }
+        return true;
+    }
+
+    private void unlockShared(long pack) throws IOException {
+        synchronized (sharedLocks) {
+            SharedLock shared = sharedLocks.get(pack);
+            if (--shared.holders == 0) {
+                sharedLocks.remove(pack);
+                if (shared.lock != null) {
+                    unlockFile(shared.lock);
+                }
+            }
+        }
+    }
+
+    private static void unlockFile(FileLock lock) throws IOException {
+        try {
+            lock.release();
+        } finally {
+            lock.channel().close();
+        }
+    }
+
+    /**
+     * Returns the index of a pack, loading it if need be or if its data
+     * file was written by another process since. The caller holds the lock
+     * of the pack.
+     */
+    private Index getIndex(long pack) throws IOException {
+        File data = getDataFile(pack);
+        long length = data.length();
+        long modified = data.lastModified();
+        synchronized (indexes) {
+            Index index = indexes.get(pack);
+            if (index != null && index.length == length
+                    && index.modified == modified) {
+                return index;
+            }
+        }
+        Index index = loadIndex(pack);
+        synchronized (indexes) {
+            indexes.put(pack, index);
+        }
+        return index;
+    }
+
+    private Index loadIndex(long pack) throws IOException {
+        File data = getDataFile(pack);
+        Index index = new Index();
+        if (!data.exists()) {
+            return index;
+        }
+        File file = getIndexFile(pack);
+        if (file.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                while (true) {
+                    long id = in.readLong();
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    index.apply(id, offset, length);
+                }
+            } catch (EOFException e) {
+                // End of the index, or a record only partly written.
+            } finally {
+                Utils.closeQuietly(in);
+            }
+        }
+        if (index.end != data.length()) {
+            log.warn("Rebuilding the index of thumbnail pack " + data);
+            index = scan(data);
+        }
+        index.length = data.length();
+        index.modified = data.lastModified();
+        return index;
+    }
+
+    /**
+     * Builds the index of a pack from its data file, up to the end of its
+     * last complete record.
+     */
+    private Index scan(File data) throws IOException {
+        Index index = new Index();
+        RandomAccessFile in = new RandomAccessFile(data, "r");
+        try {
+            long length = in.length();
+            long position = 0;
+            while (position + HEADER <= length) {
+                in.seek(position);
+                long id = in.readLong();
+                int size = in.readInt();
+                long offset = position + HEADER;
+                if (offset + Math.max(size, 0) > length) {
+                    break;
+                }
+                index.apply(id, offset, size);
+                position = index.end;
+            }
+            index.end = position;
+        } finally {
+            in.close();
+        }
+        index.stale = true;
+        return index;
+    }
+
+    /**
+     * Writes the whole index of a pack, replacing its index file.
+     */
+    private void writeIndex(long pack, Index index) throws IOException {
+        File file = getIndexFile(pack);
+        File tmp = new File(file.getPath() + ".tmp");
+        List<Map.Entry<Long, Entry>> entries = sortByOffset(index);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            for (Map.Entry<Long, Entry> e : entries) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue().offset);
+                out.writeInt(e.getValue().length);
+            }
+            if (index.end > 0
+                    && (entries.isEmpty() || last(entries) != index.end)) {
+                // Marks the end of the data file when it ends with records
+                // no longer referenced.
+                out.writeLong(-1L);
+                out.writeLong(index.end);
+                out.writeInt(-1);
+            }
+        } finally {
+            out.close();
+        }
+        rename(tmp, file);
+        index.stale = false;
+    }
+
+    private static long last(List<Map.Entry<Long, Entry>> entries) {
+        Entry e = entries.get(entries.size() - 1).getValue();
+        return e.offset + e.length;
+    }
+
+    private static List<Map.Entry<Long, Entry>> sortByOffset(Index index) {
+        List<Map.Entry<Long, Entry>> entries =
+            new ArrayList<Map.Entry<Long, Entry>>(index.entries.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Long, Entry>>() {
+            public int compare(Map.Entry<Long, Entry> a,
+                    Map.Entry<Long, Entry> b) {
+                long x = a.getValue().offset;
+                long y = b.getValue().offset;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return entries;
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            to.delete();
+            if (!from.renameTo(to)) {
+                throw new IOException("Could not rename " + from + " to "
+                        + to);
+            }
+        }
+    }
+
+    /**
+     * Appends a record to a pack. The caller holds the write lock of the
+     * pack and its file lock, and got the index under the latter.
+     *
+     * @param buf The bytes of the thumbnail, <code>null</code> to remove it.
+     */
+    private void append(long pack, Index index, long id, byte[] buf)
+            throws IOException {
+        if (index.stale) {
+            writeIndex(pack, index);
+        }
+        File data = getDataFile(pack);
+        data.getParentFile().mkdirs();
+        int length = buf == null ? -1 : buf.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER + Math.max(length, 0));
+        record.putLong(id);
+        record.putInt(length);
+        if (buf != null) {
+            record.put(buf);
+        }
+        long position = index.end;
+        RandomAccessFile out = new RandomAccessFile(data, "rw");
+        try {
+            if (out.length() != index.length) {
+                throw new IOException("Thumbnail pack " + data
+                        + " written while locked");
+            }
+            if (out.length() != position) {
+                // Drops a record only partly written, no other writer
+                // holding the file lock.
+                out.setLength(position);
+            }
+            out.seek(position);
+            out.write(record.array());
+        } finally {
+            out.close();
+        }
+        DataOutputStream indexOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(
+                        getIndexFile(pack), true)));
+        try {
+            indexOut.writeLong(id);
+            indexOut.writeLong(position + HEADER);
+            indexOut.writeInt(length);
+        } finally {
+            indexOut.close();
+        }
+        index.apply(id, position + HEADER, length);
+        index.length = index.end;
+        index.modified = data.lastModified();
+    }
+
+    /**
+     * Compacts a pack if too much of it is no longer referenced. The caller
+     * holds the write lock of the pack and its file lock.
+     */
+    private void compactIfNeeded(long pack, Index index) throws IOException {
+        long garbage = index.getGarbage();
+        if (garbage == 0 || garbage <= maxGarbage * index.end) {
+            return;
+        }
+        File data = getDataFile(pack);
+        if (index.entries.isEmpty()) {
+            if (!data.delete() || !getIndexFile(pack).delete()) {
+                throw new IOException("Could not delete thumbnail pack "
+                        + data);
+            }
+            synchronized (indexes) {
+                indexes.put(pack, new Index());
+            }
+            return;
+        }
+        File tmp = new File(data.getPath() + ".tmp");
+        Index compacted = new Index();
+        RandomAccessFile in = new RandomAccessFile(data, "r");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            for (Map.Entry<Long, Entry> e : sortByOffset(index)) {
+                byte[] buf = new byte[e.getValue().length];
+                in.seek(e.getValue().offset);
+                in.readFully(buf);
+                out.writeLong(e.getKey());
+                out.writeInt(buf.length);
+                out.write(buf);
+                compacted.apply(e.getKey(), compacted.end + HEADER,
+                        buf.length);
+            }
+        } finally {
+            Utils.closeQuietly(in);
+            out.close();
+        }
+        // Should we stop between the two, the index no longer ends where
+        // the data file does and is rebuilt.
+        rename(tmp, data);
+        writeIndex(pack, compacted);
+        compacted.length = compacted.end;
+        compacted.modified = data.lastModified();
+        synchronized (indexes) {
+            indexes.put(pack, compacted);
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Compacted thumbnail pack " + data + " from "
+                    + index.end + " to " + compacted.end + " bytes.");
+        }
+    }
+
+    /**
+     * Writes a thumbnail to its pack.
+     *
+     * @param overwrite Whether or not to write the thumbnail if already in
+     * the pack.
+     * @return <code>true</code> if the thumbnail was written.
+     */
+    private boolean write(long id, byte[] buf, boolean overwrite)
+            throws IOException {
+        long pack = getPack(id);
+        ReadWriteLock lock = getLock(pack);
+        lock.writeLock().lock();
+        try {
+            FileLock fileLock = lockFile(pack);
+            try {
+                Index index = getIndex(pack);
+                if (!overwrite && index.entries.containsKey(id)) {
+                    return false;
+                }
+                append(pack, index, id, buf);
+                compactIfNeeded(pack, index);
+                return true;
+            } finally {
+                unlockFile(fileLock);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the record of a thumbnail, <code>null</code> if it is not in
+     * the packs.
+     */
+    private Entry find(long id) throws IOException {
+        long pack = getPack(id);
+        ReadWriteLock lock = getLock(pack);
+        lock.readLock().lock();
+        try {
+            if (!lockShared(pack)) {
+                return null;
+            }
+            try {
+                return getIndex(pack).entries.get(id);
+            } finally {
+                unlockShared(pack);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the thumbnails of a pack into <code>buffers</code>, in the order
+     * of the data file, adding those not in the pack to <code>missing</code>.
+     * The shared lock of the pack is held from the index being checked to
+     * the thumbnails being read, so that the pack is not compacted by
+     * another process in between.
+     */
+    private void read(long pack, List<Thumbnail> thumbnails,
+            Map<Long, byte[]> buffers, List<Thumbnail> missing)
+            throws IOException {
+        ReadWriteLock lock = getLock(pack);
+        lock.readLock().lock();
+        try {
+            if (!lockShared(pack)) {
+                missing.addAll(thumbnails);
+                return;
+            }
+            try {
+                read(pack, getIndex(pack), thumbnails, buffers, missing);
+            } finally {
+                unlockShared(pack);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void read(long pack, Index index, List<Thumbnail> thumbnails,
+            Map<Long, byte[]> buffers, List<Thumbnail> missing)
+            throws IOException {
+        List<Thumbnail> found = new ArrayList<Thumbnail>();
+        for (Thumbnail thumbnail : thumbnails) {
+            if (index.entries.containsKey(thumbnail.getId())) {
+                found.add(thumbnail);
+            } else {
+                missing.add(thumbnail);
+            }
+        }
+        if (found.isEmpty()) {
+            return;
+        }
+        final Map<Long, Entry> entries = index.entries;
+        Collections.sort(found, new Comparator<Thumbnail>() {
+            public int compare(Thumbnail a, Thumbnail b) {
+                long x = entries.get(a.getId()).offset;
+                long y = entries.get(b.getId()).offset;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        RandomAccessFile in = new RandomAccessFile(getDataFile(pack), "r");
+        try {
+            for (Thumbnail thumbnail : found) {
+                Entry entry = entries.get(thumbnail.getId());
+                byte[] buf = new byte[entry.length];
+                in.seek(entry.offset);
+                in.readFully(buf);
+                buffers.put(thumbnail.getId(), buf);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void createThumbnail(Thumbnail thumbnail, byte[] buf)
+            throws IOException {
+        write(thumbnail.getId(), buf, true);
+    }
+
+    @Override
+    public long getThumbnailLength(Thumbnail thumbnail) {
+        try {
+            Entry entry = find(thumbnail.getId());
+            if (entry != null) {
+                return entry.length;
+            }
+        } catch (IOException e) {
+            log.error("Could not read thumbnail pack index", e);
+            throw new ResourceError(e.getMessage());
+        }
+        return super.getThumbnailLength(thumbnail);
+    }
+
+    @Override
+    public byte[] getThumbnail(Thumbnail thumbnail) throws IOException {
+        byte[] buf = getThumbnails(Collections.singletonList(thumbnail))
+                .get(thumbnail.getId());
+        return buf;
+    }
+
+    @Override
+    public byte[] getThumbnail(Thumbnail thumbnail, byte[] buf)
+            throws IOException {
+        byte[] packed = getThumbnail(thumbnail);
+        System.arraycopy(packed, 0, buf, 0, Math.min(packed.length,
+                buf.length));
+        return buf;
+    }
+
+    /**
+     * Reads the thumbnails one pack at a time, each in the order of the
+     * pack.
+     */
+    @Override
+    public Map<Long, byte[]> getThumbnails(List<Thumbnail> thumbnails)
+            throws IOException {
+        SortedMap<Long, List<Thumbnail>> byPack =
+            new TreeMap<Long, List<Thumbnail>>();
+        for (Thumbnail thumbnail : thumbnails) {
+            long pack = getPack(thumbnail.getId());
+            List<Thumbnail> list = byPack.get(pack);
+            if (list == null) {
+                list = new ArrayList<Thumbnail>();
+                byPack.put(pack, list);
+            }
+            list.add(thumbnail);
+        }
+        Map<Long, byte[]> buffers = new HashMap<Long, byte[]>();
+        List<Thumbnail> missing = new ArrayList<Thumbnail>();
+        for (Map.Entry<Long, List<Thumbnail>> e : byPack.entrySet()) {
+            read(e.getKey(), e.getValue(), buffers, missing);
+        }
+        for (Thumbnail thumbnail : missing) {
+            buffers.put(thumbnail.getId(), getUnpackedThumbnail(thumbnail));
+        }
+        return buffers;
+    }
+
+    /**
+     * Reads a thumbnail written one file per thumbnail.
+     */
+    private byte[] getUnpackedThumbnail(Thumbnail thumbnail)
+            throws IOException {
+        byte[] buf = new byte[(int) super.getThumbnailLength(thumbnail)];
+        return super.getThumbnail(thumbnail, buf);
+    }
+
+    /**
+     * Returns a stream whose bytes are written to the pack of the thumbnail
+     * once closed.
+     */
+    @Override
+    public OutputStream getThumbnailOutputStream(final Thumbnail thumbnail)
+            throws IOException {
+        return new ByteArrayOutputStream() {
+
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    createThumbnail(thumbnail, toByteArray());
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean getThumbnailExists(Thumbnail thumbnail)
+            throws IOException {
+        return find(thumbnail.getId()) != null
+            || super.getThumbnailExists(thumbnail);
+    }
+
+    /**
+     * Removes thumbnails from their packs, compacting the packs as need be,
+     * and any file of theirs left from the one file per thumbnail layout.
+     */
+    @Override
+    public void removeThumbnails(List<Long> thumbnailIds) {
+        SortedMap<Long, List<Long>> byPack = new TreeMap<Long, List<Long>>();
+        for (Long id : thumbnailIds) {
+            long pack = getPack(id);
+            List<Long> list = byPack.get(pack);
+            if (list == null) {
+                list = new ArrayList<Long>();
+                byPack.put(pack, list);
+            }
+            list.add(id);
+        }
+        for (Map.Entry<Long, List<Long>> e : byPack.entrySet()) {
+            long pack = e.getKey();
+            ReadWriteLock lock = getLock(pack);
+            lock.writeLock().lock();
+            try {
+                FileLock fileLock = lockFile(pack);
+                try {
+                    Index index = getIndex(pack);
+                    for (Long id : e.getValue()) {
+                        if (index.entries.containsKey(id)) {
+                            append(pack, index, id, null);
+                            if (log.isInfoEnabled()) {
+                                log.info("INFO: Thumbnail " + id
+                                        + " removed.");
+                            }
+                        }
+                    }
+                    compactIfNeeded(pack, index);
+                } finally {
+                    unlockFile(fileLock);
+                }
+            } catch (IOException ioe) {
+                log.error("Could not remove thumbnails of pack " + pack, ioe);
+                throw new ResourceError("Thumbnail pack " + pack
+                        + " deletion failed");
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        super.removeThumbnails(thumbnailIds);
+    }
+
+    /**
+     * Moves the thumbnails written one file per thumbnail into the packs.
+     * Thumbnails already in the packs are not overwritten. The server may
+     * be running meanwhile, see the class documentation.
+     *
+     * @param delete Whether or not to delete the files moved and the
+     * directories left empty.
+     * @return The number of thumbnails moved.
+     * @throws IOException If a thumbnail cannot be moved.
+     */
+    public int migrate(boolean delete) throws IOException {
+        return migrate(new File(getRoot(), THUMBNAILS_PATH), delete);
+    }
+
+    private int migrate(File directory, boolean delete) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (file.getName().startsWith("Dir-")) {
+                    count += migrate(file, delete);
+                    String[] left = file.list();
+                    if (delete && left != null && left.length == 0) {
+                        file.delete();
+                    }
+                }
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(file.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (find(id) == null
+                    && write(id, FileUtils.readFileToByteArray(file), false)) {
+                count++;
+            }
+            if (delete && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Commandline entry-point moving the thumbnails of a data directory
+     * into packs.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2
+                || (args.length == 2 && !"--delete".equals(args[1]))) {
+            System.out.println("usage: ome.io.nio.PackedThumbnailService "
+                    + "<omero.data.dir> [--delete]");
+            System.exit(-2);
+        }
+        PackedThumbnailService service = new PackedThumbnailService(args[0]);
+        int count = service.migrate(args.length == 2);
+        System.out.println("Moved " + count + " thumbnails into packs.");
+    }
+}
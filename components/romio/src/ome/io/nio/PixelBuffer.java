@@ -15,6 +15,7 @@ import java.nio.ByteBuffer;
 import java.util.List;
 
 import ome.util.PixelData;
+import ome.util.TileDef;
 
 /**
  * 
@@ -239,6 +240,21 @@ public interface PixelBuffer extends Closeable
                                 Integer y, Integer w, Integer h, byte[] buffer)
             throws IOException;
 
+    /**
+     * Retrieves a batch of tiles from this pixel buffer in a single call.
+     * @param tiles The tiles to retrieve.
+     * @param buffer Pre-allocated buffer of the size of all the tiles, see
+     * {@link TileBatch#getSize(List, int)}.
+     * @return <code>buffer</code> containing the data of each tile, as
+     * returned by {@link #getTileDirect}, one after the other in the order
+     * of <code>tiles</code>. {@link TileBatch#getOffsets(List, int)} returns
+     * where each tile starts.
+     * @throws IOException if there is a problem reading from the pixel buffer.
+     * @see getTileDirect()
+     */
+    public byte[] getTilesDirect(List<TileDef> tiles, byte[] buffer)
+            throws IOException;
+
     /**
      * Retrieves a region from this pixel buffer.
      * @param size byte width of the region to retrieve.
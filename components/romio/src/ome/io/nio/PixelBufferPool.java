@@ -0,0 +1,456 @@
+/*
+ * ome.io.nio.PixelBufferPool
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of read-only pixel buffers shared by the services of a process.
+ * Opening a pixel buffer backed by an original file initializes a whole
+ * Bio-Formats reader stack and opening a pyramid parses its TIFF, which
+ * thumbnail sets, rendering engines and ROI statistics would otherwise pay
+ * again for every image they touch.
+ * <p>
+ * Buffers are borrowed exclusively since they keep state, such as their
+ * resolution level, and are not thread-safe. Closing a borrowed buffer
+ * returns it to the pool; the pool holds several buffers for an image
+ * borrowed concurrently. Buffers are keyed by the id of their pixels set
+ * and the path of the file they read, so that a buffer reading the original
+ * file is never reused once a pyramid has been written in its place.
+ * </p>
+ * <p>
+ * The number of buffers open, borrowed and idle, is bounded: the least
+ * recently returned idle buffers are closed to make room and, if all are
+ * borrowed, buffers are handed out unpooled. Idle buffers are closed after
+ * a configurable time.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class PixelBufferPool {
+
+    /** The logger for this class. */
+    private static Logger log = LoggerFactory.getLogger(PixelBufferPool.class);
+
+    /**
+     * Opens the pixel buffers of the pool.
+     */
+    public interface Factory {
+
+        /**
+         * Opens a new read-only pixel buffer.
+         *
+         * @return See above.
+         */
+        PixelBuffer create();
+    }
+
+    /**
+     * A pixel buffer open in the pool.
+     */
+    static class Entry {
+
+        final long pixelsId;
+
+        final String path;
+
+        final PixelBuffer buffer;
+
+        /** Generation of the pixels set when the buffer was borrowed. */
+        long generation;
+
+        /** Time at which the buffer was last returned. */
+        long returned;
+
+        Entry(long pixelsId, String path, PixelBuffer buffer, long generation) {
+            this.pixelsId = pixelsId;
+            this.path = path;
+            this.buffer = buffer;
+            this.generation = generation;
+        }
+    }
+
+    /** Maximum number of buffers open, borrowed or idle. */
+    private final int maxOpen;
+
+    /** Time in milliseconds after which idle buffers are closed. */
+    private final long maxIdle;
+
+    /** Idle buffers per pixels set, most recently returned first. */
+    private final Map<Long, LinkedList<Entry>> idle =
+        new HashMap<Long, LinkedList<Entry>>();
+
+    /** All the idle buffers, least recently returned first. */
+    private final LinkedList<Entry> idleByAge = new LinkedList<Entry>();
+
+    /** Number of buffers borrowed per pixels set. */
+    private final Map<Long, Integer> borrowed = new HashMap<Long, Integer>();
+
+    /**
+     * Incremented each time the buffers of a pixels set are invalidated
+     * while some are borrowed, forgotten once none is.
+     */
+    private final Map<Long, Long> generations = new HashMap<Long, Long>();
+
+    /** Number of buffers open, borrowed or idle. */
+    private int open;
+
+    /** Number of borrows answered by an idle buffer. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of borrows which had to open a buffer. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxOpen Maximum number of buffers open, borrowed or idle. A
+     * value <code>&lt;= 0</code> disables the pool.
+     * @param maxIdle Time in milliseconds after which idle buffers are
+     * closed.
+     */
+    public PixelBufferPool(int maxOpen, long maxIdle) {
+        this.maxOpen = maxOpen;
+        this.maxIdle = maxIdle;
+        log.info(String.format("Pixel buffer pool: %d buffers, idle %d ms",
+                maxOpen, maxIdle));
+    }
+
+    /**
+     * Returns <code>true</code> if buffers are pooled at all,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxOpen > 0;
+    }
+
+    /**
+     * Returns the current time in milliseconds.
+     *
+     * @return See above.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Borrows a buffer reading a file of a pixels set, opening one if none
+     * is idle. The buffer is returned to the pool by closing it and must not
+     * be used afterwards.
+     *
+     * @param pixelsId The id of the pixels set.
+     * @param path The path of the file the buffer reads.
+     * @param factory Opens a buffer if none is idle.
+     * @return See above.
+     */
+    public PixelBuffer borrow(long pixelsId, String path, Factory factory) {
+        if (!isEnabled()) {
+            return factory.create();
+        }
+        List<Entry> toClose = new ArrayList<Entry>();
+        Entry entry;
+        long generation;
+        synchronized (this) {
+            evictIdle(toClose);
+            entry = takeIdle(pixelsId, path, toClose);
+            // Counted from now on so that an invalidation while the buffer
+            // is being opened is not missed.
+            addBorrowed(pixelsId, 1);
+            generation = getGeneration(pixelsId);
+            if (entry != null) {
+                entry.generation = generation;
+            }
+        }
+        close(toClose);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return new PooledPixelBuffer(this, entry);
+        }
+
+        misses.incrementAndGet();
+        PixelBuffer buffer;
+        try {
+            buffer = factory.create();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                addBorrowed(pixelsId, -1);
+            }
+            throw e;
+        }
+        toClose.clear();
+        synchronized (this) {
+            while (open >= maxOpen && !idleByAge.isEmpty()) {
+                Entry oldest = idleByAge.removeFirst();
+                removeIdle(oldest);
+                toClose.add(oldest);
+            }
+            if (open < maxOpen) {
+                entry = new Entry(pixelsId, path, buffer, generation);
+                open++;
+            } else {
+                addBorrowed(pixelsId, -1);
+            }
+        }
+        close(toClose);
+        if (entry == null) {
+            log.debug("Pixel buffer pool full, not pooling: " + path);
+            return buffer;
+        }
+        return new PooledPixelBuffer(this, entry);
+    }
+
+    /**
+     * Returns a borrowed buffer to the pool, closing it if the pixels set
+     * has been invalidated since it was opened.
+     *
+     * @param entry The entry of the buffer.
+     */
+    void release(Entry entry) {
+        boolean keep = true;
+        try {
+            // The next borrower expects the buffer as it was opened.
+            int levels = entry.buffer.getResolutionLevels();
+            if (levels > 1 && entry.buffer.getResolutionLevel() != levels - 1) {
+                entry.buffer.setResolutionLevel(levels - 1);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Error resetting pooled pixel buffer: " + entry.path, e);
+            keep = false;
+        }
+        List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            keep = keep && entry.generation == getGeneration(entry.pixelsId);
+            addBorrowed(entry.pixelsId, -1);
+            if (keep) {
+                entry.returned = currentTimeMillis();
+                LinkedList<Entry> entries = idle.get(entry.pixelsId);
+                if (entries == null) {
+                    entries = new LinkedList<Entry>();
+                    idle.put(entry.pixelsId, entries);
+                }
+                entries.addFirst(entry);
+                idleByAge.addLast(entry);
+            } else {
+                open--;
+                toClose.add(entry);
+            }
+            evictIdle(toClose);
+        }
+        close(toClose);
+    }
+
+    /**
+     * Closes the idle buffers of a pixels set and makes sure that those
+     * borrowed are closed rather than returned. Called when the pixels set
+     * has been deleted or its pyramid written.
+     *
+     * @param pixelsId The id of the pixels set.
+     */
+    public void invalidate(long pixelsId) {
+        List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            if (borrowed.containsKey(pixelsId)) {
+                generations.put(pixelsId, getGeneration(pixelsId) + 1);
+            }
+            LinkedList<Entry> entries = idle.remove(pixelsId);
+            if (entries != null) {
+                for (Entry entry : entries) {
+                    idleByAge.remove(entry);
+                    open--;
+                    toClose.add(entry);
+                }
+            }
+        }
+        close(toClose);
+    }
+
+    /**
+     * Closes all the idle buffers.
+     */
+    public void clear() {
+        List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            for (Entry entry : idleByAge) {
+                open--;
+                toClose.add(entry);
+            }
+            idleByAge.clear();
+            idle.clear();
+        }
+        close(toClose);
+    }
+
+    /**
+     * Returns the number of borrows answered by an idle buffer.
+     *
+     * @return See above.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of borrows which had to open a buffer.
+     *
+     * @return See above.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of pooled buffers open, borrowed or idle.
+     *
+     * @return See above.
+     */
+    public synchronized int getOpenCount() {
+        return open;
+    }
+
+    /**
+     * Returns the number of idle buffers.
+     *
+     * @return See above.
+     */
+    public synchronized int getIdleCount() {
+        return idleByAge.size();
+    }
+
+    /**
+     * Returns the number of buffers of a pixels set currently borrowed.
+     *
+     * @param pixelsId The id of the pixels set.
+     * @return See above.
+     */
+    public synchronized int getBorrowedCount(long pixelsId) {
+        Integer count = borrowed.get(pixelsId);
+        return count == null ? 0 : count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "PixelBufferPool(open=%d, idle=%d, hits=%d, misses=%d)",
+                getOpenCount(), getIdleCount(), getHits(), getMisses());
+    }
+
+    /**
+     * Returns the generation of a pixels set. Caller must hold the lock.
+     */
+    private long getGeneration(long pixelsId) {
+        Long generation = generations.get(pixelsId);
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Updates the number of buffers of a pixels set borrowed or being
+     * opened. Caller must hold the lock.
+     */
+    private void addBorrowed(long pixelsId, int delta) {
+        Integer count = borrowed.get(pixelsId);
+        int value = (count == null ? 0 : count) + delta;
+        if (value > 0) {
+            borrowed.put(pixelsId, value);
+        } else {
+            borrowed.remove(pixelsId);
+            generations.remove(pixelsId);
+        }
+    }
+
+    /**
+     * Takes the most recently returned idle buffer of a pixels set reading
+     * a file, removing those reading another file. Caller must hold the
+     * lock.
+     *
+     * @param toClose Receives the buffers to close once the lock released.
+     * @return See above or <code>null</code> if there is none.
+     */
+    private Entry takeIdle(long pixelsId, String path, List<Entry> toClose) {
+        LinkedList<Entry> entries = idle.get(pixelsId);
+        if (entries == null) {
+            return null;
+        }
+        Entry found = null;
+        Iterator<Entry> i = entries.iterator();
+        while (i.hasNext()) {
+            Entry entry = i.next();
+            if (!entry.path.equals(path)) {
+                // The pixels set is now read from another file.
+                i.remove();
+                idleByAge.remove(entry);
+                open--;
+                toClose.add(entry);
+            } else if (found == null) {
+                i.remove();
+                idleByAge.remove(entry);
+                found = entry;
+            }
+        }
+        if (entries.isEmpty()) {
+            idle.remove(pixelsId);
+        }
+        return found;
+    }
+
+    /**
+     * Removes an idle buffer from the buffers of its pixels set. Caller must
+     * hold the lock and remove it from {@link #idleByAge}.
+     */
+    private void removeIdle(Entry entry) {
+        LinkedList<Entry> entries = idle.get(entry.pixelsId);
+        if (entries != null) {
+            entries.remove(entry);
+            if (entries.isEmpty()) {
+                idle.remove(entry.pixelsId);
+            }
+        }
+        open--;
+    }
+
+    /**
+     * Removes the buffers idle for longer than the maximum idle time. Caller
+     * must hold the lock.
+     *
+     * @param toClose Receives the buffers to close once the lock released.
+     */
+    private void evictIdle(List<Entry> toClose) {
+        long oldest = currentTimeMillis() - maxIdle;
+        while (!idleByAge.isEmpty() && idleByAge.getFirst().returned < oldest)
+        {
+            Entry entry = idleByAge.removeFirst();
+            removeIdle(entry);
+            toClose.add(entry);
+        }
+    }
+
+    /**
+     * Closes buffers removed from the pool.
+     */
+    private void close(List<Entry> entries) {
+        for (Entry entry : entries) {
+            try {
+                entry.buffer.close();
+            } catch (IOException e) {
+                log.error("Error closing pooled pixel buffer: " + entry.path,
+                        e);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * ome.io.nio.PixelsDigest
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ome.conditions.ResourceError;
+import ome.util.checksum.ChecksumProvider;
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+
+/**
+ * Calculates the digest of the planes of a pixel buffer, the
+ * implementation of {@link PixelBuffer#calculateMessageDigest()} for ROMIO
+ * pixel buffers.
+ * <p>
+ * By default the digest is that of all the planes one after the other in
+ * XYZCT order. As a tree digest, each plane is digested on its own,
+ * concurrently if workers are given, and the digest is that of the digests
+ * of the planes in the same order; only the planes written since their
+ * digest was cached in the {@link PixelsIndex} of the pixels are read
+ * again, so that a digest interrupted part way through carries on from
+ * where it stopped. The two digests differ for the same pixels.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class PixelsDigest {
+
+    /** SHA-1 of all the planes one after the other. */
+    public static final PixelsDigest SHA1 = new PixelsDigest(
+            new ChecksumProviderFactoryImpl(), ChecksumType.SHA1, false, null);
+
+    private final ChecksumProviderFactory factory;
+
+    private final ChecksumType type;
+
+    private final boolean tree;
+
+    private final ExecutorService workers;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param factory The factory of the checksum providers.
+     * @param type The algorithm of the digest.
+     * @param tree Whether or not to calculate a tree digest.
+     * @param workers Workers to digest the planes of a tree digest
+     * concurrently with, <code>null</code> to digest them one at a time on
+     * the calling thread.
+     */
+    public PixelsDigest(ChecksumProviderFactory factory, ChecksumType type,
+            boolean tree, ExecutorService workers) {
+        this.factory = factory;
+        this.type = type;
+        this.tree = tree;
+        this.workers = workers;
+    }
+
+    /**
+     * Returns the key of the digests cached in the index.
+     */
+    private String getKey() {
+        return tree ? type.name() + "/tree" : type.name();
+    }
+
+    /**
+     * Calculates the digest of the planes of a pixel buffer.
+     *
+     * @param source The pixel buffer.
+     * @param index The index of the pixels to cache the digests in,
+     * <code>null</code> if there is none.
+     * @return See above.
+     * @throws IOException If a plane cannot be read.
+     */
+    public byte[] calculate(PixelBuffer source, PixelsIndex index)
+            throws IOException {
+        if (index != null) {
+            byte[] digest = index.getDigest(getKey());
+            if (digest != null) {
+                return digest;
+            }
+        }
+        byte[] digest = tree ? calculateTree(source, index) :
+            calculateLinear(source);
+        if (index != null) {
+            index.setDigest(getKey(), digest);
+        }
+        return digest;
+    }
+
+    private byte[] calculateLinear(PixelBuffer source) throws IOException {
+        ChecksumProvider provider = factory.getProvider(type);
+        byte[] plane = new byte[RomioPixelBuffer.safeLongToInteger(
+                source.getPlaneSize())];
+        for (int t = 0; t < source.getSizeT(); t++) {
+            for (int c = 0; c < source.getSizeC(); c++) {
+                for (int z = 0; z < source.getSizeZ(); z++) {
+                    provider.putBytes(readPlane(source, z, c, t, plane));
+                }
+            }
+        }
+        return provider.checksumAsBytes();
+    }
+
+    private byte[] calculateTree(final PixelBuffer source,
+            final PixelsIndex index) throws IOException {
+        final String planeType = type.name();
+        final int sizeZ = source.getSizeZ();
+        final int sizeC = source.getSizeC();
+        int planes = sizeZ * sizeC * source.getSizeT();
+        byte[][] digests = new byte[planes][];
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < planes; i++) {
+            if (index != null) {
+                digests[i] = index.getPlaneDigest(planeType, i % sizeZ,
+                        (i / sizeZ) % sizeC, i / (sizeZ * sizeC));
+            }
+            if (digests[i] == null) {
+                missing.add(i);
+            }
+        }
+
+        if (workers == null || missing.size() < 2) {
+            byte[] plane = null;
+            for (int i : missing) {
+                if (plane == null) {
+                    plane = new byte[RomioPixelBuffer.safeLongToInteger(
+                            source.getPlaneSize())];
+                }
+                digests[i] = digestPlane(source, index, i, plane);
+            }
+        } else {
+            List<Future<byte[]>> futures =
+                new ArrayList<Future<byte[]>>(missing.size());
+            final AtomicBoolean aborted = new AtomicBoolean();
+            boolean done = false;
+            try {
+                for (final int i : missing) {
+                    futures.add(workers.submit(new Callable<byte[]>() {
+                        public byte[] call() throws IOException {
+                            if (aborted.get()) {
+                                return null;
+                            }
+                            byte[] plane = new byte[
+                                RomioPixelBuffer.safeLongToInteger(
+                                        source.getPlaneSize())];
+                            return digestPlane(source, index, i, plane);
+                        }
+                    }));
+                }
+                for (int j = 0; j < futures.size(); j++) {
+                    digests[missing.get(j)] = futures.get(j).get();
+                }
+                done = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ResourceError("Interrupted digesting planes.");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            } finally {
+                if (!done) {
+                    aborted.set(true);
+                    awaitAll(futures);
+                }
+            }
+        }
+
+        ChecksumProvider provider = factory.getProvider(type);
+        for (byte[] digest : digests) {
+            provider.putBytes(digest);
+        }
+        return provider.checksumAsBytes();
+    }
+
+    /**
+     * Waits for the planes of a failed digest still being read to end
+     * without interrupting them: an interrupted read closes the file of
+     * the pixel buffer, which may be shared with its writer.
+     */
+    private static void awaitAll(List<Future<byte[]>> futures) {
+        boolean interrupted = false;
+        for (Future<byte[]> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Digests a plane, caching its digest in the index.
+     */
+    private byte[] digestPlane(PixelBuffer source, PixelsIndex index,
+            int i, byte[] plane) throws IOException {
+        int sizeZ = source.getSizeZ();
+        int sizeC = source.getSizeC();
+        int z = i % sizeZ;
+        int c = (i / sizeZ) % sizeC;
+        int t = i / (sizeZ * sizeC);
+        byte[] digest = factory.getProvider(type).putBytes(
+                readPlane(source, z, c, t, plane)).checksumAsBytes();
+        if (index != null) {
+            index.setPlaneDigest(type.name(), z, c, t, digest);
+        }
+        return digest;
+    }
+
+    private static byte[] readPlane(PixelBuffer source, int z, int c, int t,
+            byte[] plane) throws IOException {
+        try {
+            return source.getPlaneDirect(z, c, t, plane);
+        } catch (DimensionsOutOfBoundsException e) {
+            // This better not happen. :)
+            throw new RuntimeException(e);
+        }
+    }
+}
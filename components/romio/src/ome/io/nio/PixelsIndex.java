@@ -0,0 +1,688 @@
+/*
+ * ome.io.nio.PixelsIndex
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import ome.model.core.Pixels;
+import ome.model.stats.StatsInfo;
+import ome.util.PixelData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-plane index of a ROMIO pixels file, kept in a small sidecar file
+ * next to it (see {@link PixelsService#INDEX_SUFFIX}). It records which
+ * planes have been written and the minimum, maximum and sum of the values
+ * written to each, updated as the pixels are written, so that empty planes
+ * can be skipped and the global minimum and maximum of the channels known
+ * without reading the pixels again. It also caches the digests of the
+ * pixels calculated by {@link PixelsDigest}, which are dropped as the
+ * planes they cover are written again.
+ * <p>
+ * Statistics are only kept for planes written in whole pixels; a plane
+ * written from an offset which is not a multiple of the pixel width is
+ * still flagged as written but has no statistics. The statistics of a plane
+ * are only known once each of its pixels has been counted exactly once: a
+ * plane written again in whole starts its statistics over, while a plane
+ * some of whose counted pixels are written again in part has none, since
+ * the values they replace cannot be taken out of its minimum and maximum.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class PixelsIndex {
+
+    /** The logger for this class. */
+    private static Logger log = LoggerFactory.getLogger(PixelsIndex.class);
+
+    /** Marks the start of an index file. */
+    private static final int MAGIC = 0x4F504958;
+
+    /** Version of the layout of the index file. */
+    private static final int VERSION = 2;
+
+    private final int sizeX;
+
+    private final int sizeY;
+
+    private final int sizeZ;
+
+    private final int sizeC;
+
+    private final int sizeT;
+
+    private final String pixelsType;
+
+    /** Number of bytes per pixel, <code>0</code> if statistics are not kept. */
+    private final int byteWidth;
+
+    private final long planeSize;
+
+    /** The planes written. */
+    private final BitSet written;
+
+    /** The planes written without statistics. */
+    private final BitSet unknown;
+
+    /** The planes written since the index was created or read. */
+    private final BitSet changed;
+
+    private final double[] min;
+
+    private final double[] max;
+
+    private final double[] sum;
+
+    /** The number of values counted in the statistics of each plane. */
+    private final long[] count;
+
+    /**
+     * The pixels counted in the statistics of the planes written in part
+     * since the index was created or read, by plane. Dropped once a plane
+     * is complete or its statistics are unknown.
+     */
+    private final Map<Integer, BitSet> counted = new HashMap<Integer, BitSet>();
+
+    /** The algorithm of {@link #planeDigests}, <code>null</code> if none. */
+    private String planeDigestType;
+
+    /** The digest of each plane, <code>null</code> if not calculated. */
+    private final byte[][] planeDigests;
+
+    /** The algorithm of {@link #digest}, <code>null</code> if none. */
+    private String digestType;
+
+    /** The digest of all the planes, <code>null</code> if not calculated. */
+    private byte[] digest;
+
+    /** Whether or not the index has changed since it was read or written. */
+    private boolean dirty;
+
+    /**
+     * Creates a new index of a pixels set none of whose planes have been
+     * written.
+     *
+     * @param pixels The pixels set.
+     */
+    public PixelsIndex(Pixels pixels) {
+        this(pixels.getSizeX(), pixels.getSizeY(), pixels.getSizeZ(),
+                pixels.getSizeC(), pixels.getSizeT(),
+                pixels.getPixelsType().getValue());
+    }
+
+    private PixelsIndex(int sizeX, int sizeY, int sizeZ, int sizeC,
+            int sizeT, String pixelsType) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeC = sizeC;
+        this.sizeT = sizeT;
+        this.pixelsType = pixelsType;
+        int bitDepth = PixelData.getBitDepth(pixelsType);
+        byteWidth = bitDepth < 8 ? 0 : bitDepth / 8;
+        planeSize = (long) sizeX * sizeY * Math.max(byteWidth, 1);
+        int planes = sizeZ * sizeC * sizeT;
+        written = new BitSet(planes);
+        unknown = new BitSet(planes);
+        changed = new BitSet(planes);
+        min = new double[planes];
+        max = new double[planes];
+        sum = new double[planes];
+        count = new long[planes];
+        planeDigests = new byte[planes][];
+    }
+
+    /**
+     * Reads the index of a pixels set.
+     *
+     * @param file The index file.
+     * @param pixels The pixels set.
+     * @return The index or <code>null</code> if the file does not exist or
+     * is not the index of a pixels set of these dimensions and type.
+     * @throws IOException If the file cannot be read.
+     */
+    public static PixelsIndex read(File file, Pixels pixels)
+            throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring unknown pixels index: " + file);
+                return null;
+            }
+            PixelsIndex index = new PixelsIndex(in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readInt(), in.readUTF());
+            PixelsIndex expected = new PixelsIndex(pixels);
+            if (!index.isSameShape(expected)) {
+                log.warn("Ignoring pixels index of other dimensions: " + file);
+                return null;
+            }
+            for (int i = 0; i < index.count.length; i++) {
+                byte flags = in.readByte();
+                index.written.set(i, (flags & 1) != 0);
+                index.unknown.set(i, (flags & 2) != 0);
+                index.min[i] = in.readDouble();
+                index.max[i] = in.readDouble();
+                index.sum[i] = in.readDouble();
+                index.count[i] = in.readLong();
+            }
+            index.digestType = readType(in);
+            index.digest = readBytes(in);
+            index.planeDigestType = readType(in);
+            for (int i = 0; i < index.planeDigests.length; i++) {
+                index.planeDigests[i] = readBytes(in);
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the index, replacing the file only once it has been written
+     * in full.
+     *
+     * @param file The index file.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sizeX);
+            out.writeInt(sizeY);
+            out.writeInt(sizeZ);
+            out.writeInt(sizeC);
+            out.writeInt(sizeT);
+            out.writeUTF(pixelsType);
+            for (int i = 0; i < count.length; i++) {
+                out.writeByte((written.get(i) ? 1 : 0)
+                        | (unknown.get(i) ? 2 : 0));
+                out.writeDouble(min[i]);
+                out.writeDouble(max[i]);
+                out.writeDouble(sum[i]);
+                out.writeLong(count[i]);
+            }
+            out.writeUTF(digestType == null ? "" : digestType);
+            writeBytes(out, digest);
+            out.writeUTF(planeDigestType == null ? "" : planeDigestType);
+            for (int i = 0; i < planeDigests.length; i++) {
+                writeBytes(out, planeDigests[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            // Not atomic on all platforms.
+            file.delete();
+            if (!temporary.renameTo(file)) {
+                temporary.delete();
+                throw new IOException("Cannot write pixels index: " + file);
+            }
+        }
+        dirty = false;
+    }
+
+    private static String readType(DataInputStream in) throws IOException {
+        String type = in.readUTF();
+        return type.length() == 0 ? null : type;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private boolean isSameShape(PixelsIndex other) {
+        return sizeX == other.sizeX && sizeY == other.sizeY
+            && sizeZ == other.sizeZ && sizeC == other.sizeC
+            && sizeT == other.sizeT && pixelsType.equals(other.pixelsType);
+    }
+
+    private int getPlane(int z, int c, int t) {
+        return z + sizeZ * (c + sizeC * t);
+    }
+
+    /**
+     * Records data written to the pixels file.
+     *
+     * @param offset The offset in the pixels file the data was written at.
+     * @param data The data written, from its position to its limit. Its
+     * position is left unchanged.
+     */
+    public synchronized void update(long offset, ByteBuffer data) {
+        ByteBuffer region = data.slice();
+        long position = offset;
+        while (region.hasRemaining()) {
+            long plane = position / planeSize;
+            if (plane >= count.length) {
+                break;
+            }
+            long remaining = (plane + 1) * planeSize - position;
+            int length = (int) Math.min(region.remaining(), remaining);
+            int i = (int) plane;
+            boolean whole = position % planeSize == 0 && length == planeSize;
+            if (whole) {
+                // Written in whole, only these values count.
+                unknown.clear(i);
+                count[i] = 0;
+                counted.remove(i);
+            }
+            written.set(i);
+            changed.set(i);
+            planeDigests[i] = null;
+            if (byteWidth == 0 || position % byteWidth != 0
+                    || length % byteWidth != 0) {
+                setUnknown(i);
+            } else if (!unknown.get(i)
+                    && (whole || markCounted(i, position, length))) {
+                ByteBuffer values = region.slice();
+                values.limit(length);
+                updateStatistics(i, new PixelData(pixelsType, values.slice()));
+                if (count[i] == getPixelCount()) {
+                    counted.remove(i);
+                }
+            }
+            region.position(region.position() + length);
+            position += length;
+        }
+        digest = null;
+        dirty = true;
+    }
+
+    /** Returns the number of pixels of a plane. */
+    private long getPixelCount() {
+        return (long) sizeX * sizeY;
+    }
+
+    private void setUnknown(int plane) {
+        unknown.set(plane);
+        counted.remove(plane);
+    }
+
+    /**
+     * Marks the pixels of part of a plane written in whole pixels as
+     * counted, or the statistics of the plane as unknown if any of them
+     * has already been counted.
+     *
+     * @return <code>true</code> if the values of the part are to be counted.
+     */
+    private boolean markCounted(int plane, long position, int length) {
+        BitSet pixels = counted.get(plane);
+        if (pixels == null) {
+            if (count[plane] > 0) {
+                // Counted before the index was read, or complete.
+                setUnknown(plane);
+                return false;
+            }
+            pixels = new BitSet();
+            counted.put(plane, pixels);
+        }
+        int first = (int) (position % planeSize / byteWidth);
+        int last = first + length / byteWidth;
+        if (!pixels.get(first, last).isEmpty()) {
+            setUnknown(plane);
+            return false;
+        }
+        pixels.set(first, last);
+        return true;
+    }
+
+    private void updateStatistics(int plane, PixelData values) {
+        int size = values.size();
+        if (size == 0) {
+            return;
+        }
+        double low = values.getPixelValue(0);
+        double high = low;
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            double value = values.getPixelValue(i);
+            if (value < low) {
+                low = value;
+            }
+            if (value > high) {
+                high = value;
+            }
+            total += value;
+        }
+        if (count[plane] == 0) {
+            min[plane] = low;
+            max[plane] = high;
+            sum[plane] = total;
+        } else {
+            min[plane] = Math.min(min[plane], low);
+            max[plane] = Math.max(max[plane], high);
+            sum[plane] += total;
+        }
+        count[plane] += size;
+    }
+
+    /**
+     * Returns a copy of the index, to be merged with later.
+     *
+     * @return See above.
+     * @see #merge(PixelsIndex, PixelsIndex)
+     */
+    public synchronized PixelsIndex copy() {
+        PixelsIndex copy = new PixelsIndex(sizeX, sizeY, sizeZ, sizeC,
+                sizeT, pixelsType);
+        copy.written.or(written);
+        copy.unknown.or(unknown);
+        copy.changed.or(changed);
+        System.arraycopy(min, 0, copy.min, 0, min.length);
+        System.arraycopy(max, 0, copy.max, 0, max.length);
+        System.arraycopy(sum, 0, copy.sum, 0, sum.length);
+        System.arraycopy(count, 0, copy.count, 0, count.length);
+        for (Map.Entry<Integer, BitSet> e : counted.entrySet()) {
+            copy.counted.put(e.getKey(), (BitSet) e.getValue().clone());
+        }
+        copy.planeDigestType = planeDigestType;
+        System.arraycopy(planeDigests, 0, copy.planeDigests, 0,
+                planeDigests.length);
+        copy.digestType = digestType;
+        copy.digest = digest;
+        copy.dirty = dirty;
+        return copy;
+    }
+
+    /**
+     * Returns whether or not a plane has been recorded as written with the
+     * same statistics in both indexes.
+     */
+    private boolean isSamePlane(PixelsIndex other, int plane) {
+        return written.get(plane) == other.written.get(plane)
+            && unknown.get(plane) == other.unknown.get(plane)
+            && min[plane] == other.min[plane]
+            && max[plane] == other.max[plane]
+            && sum[plane] == other.sum[plane]
+            && count[plane] == other.count[plane];
+    }
+
+    /**
+     * Merges the planes written to the pixels file by another buffer, as
+     * recorded in the index file it wrote, with the planes written since
+     * this index was created or read. A plane written by both has no
+     * statistics, since which values are in the file is not known, and the
+     * digests of the planes written by either are dropped.
+     *
+     * @param base The index as created or read, see {@link #copy()}.
+     * @param other The index written by the other buffer.
+     */
+    public synchronized void merge(PixelsIndex base, PixelsIndex other) {
+        if (!isSameShape(other)) {
+            log.warn("Not merging pixels index of other dimensions.");
+            return;
+        }
+        if (planeDigestType == null) {
+            planeDigestType = other.planeDigestType;
+        }
+        boolean sameType = planeDigestType != null
+            && planeDigestType.equals(other.planeDigestType);
+        boolean otherChanged = false;
+        for (int i = 0; i < count.length; i++) {
+            if (other.isSamePlane(base, i)) {
+                if (sameType && planeDigests[i] == null && !changed.get(i)) {
+                    planeDigests[i] = other.planeDigests[i];
+                }
+                continue;
+            }
+            otherChanged = true;
+            if (changed.get(i)) {
+                written.set(i);
+                setUnknown(i);
+                planeDigests[i] = null;
+            } else {
+                written.set(i, other.written.get(i));
+                unknown.set(i, other.unknown.get(i));
+                min[i] = other.min[i];
+                max[i] = other.max[i];
+                sum[i] = other.sum[i];
+                count[i] = other.count[i];
+                counted.remove(i);
+                planeDigests[i] = sameType ? other.planeDigests[i] : null;
+            }
+        }
+        if (otherChanged && !changed.isEmpty()) {
+            digest = null;
+        } else if (otherChanged || (digest == null && changed.isEmpty())) {
+            digestType = other.digestType;
+            digest = other.digest;
+        }
+        dirty = true;
+    }
+
+    /**
+     * Returns whether or not the index has changed since it was last read
+     * or written.
+     *
+     * @return See above.
+     */
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Returns whether or not any data has been written to a plane.
+     *
+     * @param z offset across the Z-axis of the pixels set.
+     * @param c offset across the C-axis of the pixels set.
+     * @param t offset across the T-axis of the pixels set.
+     * @return See above.
+     */
+    public synchronized boolean isWritten(int z, int c, int t) {
+        return written.get(getPlane(z, c, t));
+    }
+
+    /**
+     * Returns whether or not the statistics of a plane are known, that is
+     * if each of its pixels has been written, in whole pixels, and counted
+     * once.
+     *
+     * @param z offset across the Z-axis of the pixels set.
+     * @param c offset across the C-axis of the pixels set.
+     * @param t offset across the T-axis of the pixels set.
+     * @return See above.
+     */
+    public synchronized boolean hasStatistics(int z, int c, int t) {
+        int plane = getPlane(z, c, t);
+        return written.get(plane) && !unknown.get(plane)
+            && count[plane] == getPixelCount();
+    }
+
+    /**
+     * Returns the minimum value written to a plane, only meaningful if
+     * {@link #hasStatistics(int, int, int)}.
+     *
+     * @param z offset across the Z-axis of the pixels set.
+     * @param c offset across the C-axis of the pixels set.
+     * @param t offset across the T-axis of the pixels set.
+     * @return See above.
+     */
+    public synchronized double getMin(int z, int c, int t) {
+        return min[getPlane(z, c, t)];
+    }
+
+    /**
+     * Returns the maximum value written to a plane, only meaningful if
+     * {@link #hasStatistics(int, int, int)}.
+     *
+     * @param z offset across the Z-axis of the pixels set.
+     * @param c offset across the C-axis of the pixels set.
+     * @param t offset across the T-axis of the pixels set.
+     * @return See above.
+     */
+    public synchronized double getMax(int z, int c, int t) {
+        return max[getPlane(z, c, t)];
+    }
+
+    /**
+     * Returns the sum of the values written to a plane, only meaningful if
+     * {@link #hasStatistics(int, int, int)}.
+     *
+     * @param z offset across the Z-axis of the pixels set.
+     * @param c offset across the C-axis of the pixels set.
+     * @param t offset across the T-axis of the pixels set.
+     * @return See above.
+     */
+    public synchronized double getSum(int z, int c, int t) {
+        return sum[getPlane(z, c, t)];
+    }
+
+    /**
+     * Returns the number of values counted in the sum of a plane.
+     *
+     * @param z offset across the Z-axis of the pixels set.
+     * @param c offset across the C-axis of the pixels set.
+     * @param t offset across the T-axis of the pixels set.
+     * @return See above.
+     */
+    public synchronized long getCount(int z, int c, int t) {
+        return count[getPlane(z, c, t)];
+    }
+
+    /**
+     * Returns the cached digest of a plane.
+     *
+     * @param type The algorithm of the digest.
+     * @param z offset across the Z-axis of the pixels set.
+     * @param c offset across the C-axis of the pixels set.
+     * @param t offset across the T-axis of the pixels set.
+     * @return See above or <code>null</code> if it has not been calculated
+     * with this algorithm since the plane was last written.
+     */
+    public synchronized byte[] getPlaneDigest(String type, int z, int c,
+            int t) {
+        return type.equals(planeDigestType) ?
+                planeDigests[getPlane(z, c, t)] : null;
+    }
+
+    /**
+     * Caches the digest of a plane. The digests of the other planes are
+     * dropped if they were calculated with another algorithm.
+     *
+     * @param type The algorithm of the digest.
+     * @param z offset across the Z-axis of the pixels set.
+     * @param c offset across the C-axis of the pixels set.
+     * @param t offset across the T-axis of the pixels set.
+     * @param planeDigest The digest.
+     */
+    public synchronized void setPlaneDigest(String type, int z, int c, int t,
+            byte[] planeDigest) {
+        if (!type.equals(planeDigestType)) {
+            Arrays.fill(planeDigests, null);
+            planeDigestType = type;
+        }
+        planeDigests[getPlane(z, c, t)] = planeDigest;
+        dirty = true;
+    }
+
+    /**
+     * Returns the cached digest of all the planes.
+     *
+     * @param type The algorithm of the digest.
+     * @return See above or <code>null</code> if it has not been calculated
+     * with this algorithm since a plane was last written.
+     */
+    public synchronized byte[] getDigest(String type) {
+        return type.equals(digestType) ? digest : null;
+    }
+
+    /**
+     * Caches the digest of all the planes.
+     *
+     * @param type The algorithm of the digest.
+     * @param digest The digest.
+     */
+    public synchronized void setDigest(String type, byte[] digest) {
+        this.digestType = type;
+        this.digest = digest;
+        dirty = true;
+    }
+
+    /**
+     * Returns the global minimum and maximum of a channel.
+     *
+     * @param c The channel.
+     * @return The minimum and the maximum or <code>null</code> if the
+     * statistics of a plane of the channel are not known.
+     */
+    public synchronized double[] getChannelMinMax(int c) {
+        double[] minMax = null;
+        for (int t = 0; t < sizeT; t++) {
+            for (int z = 0; z < sizeZ; z++) {
+                if (!hasStatistics(z, c, t)) {
+                    return null;
+                }
+                int plane = getPlane(z, c, t);
+                if (minMax == null) {
+                    minMax = new double[] { min[plane], max[plane] };
+                } else {
+                    minMax[0] = Math.min(minMax[0], min[plane]);
+                    minMax[1] = Math.max(minMax[1], max[plane]);
+                }
+            }
+        }
+        return minMax;
+    }
+
+    /**
+     * Creates the statistics of every channel.
+     *
+     * @return See above or <code>null</code> if the statistics of any plane
+     * are not known.
+     */
+    public synchronized StatsInfo[] createStatsInfo() {
+        StatsInfo[] statsInfo = new StatsInfo[sizeC];
+        for (int c = 0; c < sizeC; c++) {
+            double[] minMax = getChannelMinMax(c);
+            if (minMax == null) {
+                return null;
+            }
+            statsInfo[c] = new StatsInfo();
+            statsInfo[c].setGlobalMin(minMax[0]);
+            statsInfo[c].setGlobalMax(minMax[1]);
+        }
+        return statsInfo;
+    }
+}
@@ -14,6 +14,10 @@ import java.nio.ByteOrder;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import loci.formats.ChannelFiller;
 import loci.formats.ChannelSeparator;
@@ -28,11 +32,14 @@ import ome.conditions.MissingPyramidException;
 import ome.conditions.ResourceError;
 import ome.io.bioformats.BfPixelBuffer;
 import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.bioformats.DecodedTileCache;
 import ome.io.messages.MissingPyramidMessage;
 import ome.io.messages.MissingStatsInfoMessage;
 import ome.model.core.Pixels;
 import ome.model.stats.StatsInfo;
-import ome.util.PixelData;
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -64,6 +71,15 @@ public class PixelsService extends AbstractFileSystemService
 	/** Suffix for an the image pyramid of a given pixels set. */
 	public static final String PYRAMID_SUFFIX = "_pyramid";
 
+	/** Suffix for the index of the planes written of a given pixels set. */
+	public static final String INDEX_SUFFIX = "_index";
+
+	/**
+	 * Suffix for the marker of a given pixels set written without an index,
+	 * whose index can no longer be trusted.
+	 */
+	public static final String INVALID_INDEX_SUFFIX = "_index_invalid";
+
 	/** Null plane size constant. */
 	public static final int NULL_PLANE_SIZE = 64;
 
@@ -81,6 +97,64 @@ public class PixelsService extends AbstractFileSystemService
 	 */
 	protected final File memoizerDirectory;
 
+	/**
+	 * Size in bytes of the persistent mappings ROMIO pixel buffers serve
+	 * reads from, <code>0</code> to map every read on its own.
+	 */
+	protected long romioSegmentSize;
+
+	/** Maximum number of persistent mappings kept per ROMIO pixel buffer. */
+	protected int romioMaxSegments = 4;
+
+	/**
+	 * Maximum number of readers decoding tiles concurrently per pyramid pixel
+	 * buffer, <code>0</code> for the number of processors.
+	 */
+	protected int pyramidMaxReaders;
+
+	/** Decoded pyramid tiles shared by all the pyramid pixel buffers. */
+	protected DecodedTileCache tileCache;
+
+	/**
+	 * Number of workers reading tiles during pyramid creation,
+	 * <code>0</code> for the number of processors.
+	 */
+	protected int pyramidWorkers;
+
+	/** Workers reading tiles during pyramid creation, created on first use. */
+	private ExecutorService pyramidWorkerPool;
+
+	/**
+	 * Workers reading the tiles of a batch from a pyramid and the planes of
+	 * a tree digest, created on first use.
+	 */
+	private ExecutorService tileWorkerPool;
+
+	/** Factory of the checksum providers of the ROMIO digests. */
+	protected ChecksumProviderFactory checksumProviderFactory;
+
+	/** Algorithm of the digest of ROMIO pixels files. */
+	protected ChecksumType romioDigestType = ChecksumType.SHA1;
+
+	/** Whether or not ROMIO pixels files are given a tree digest. */
+	protected boolean romioTreeDigest;
+
+	/** Digest of ROMIO pixels files, created on first use. */
+	private PixelsDigest romioDigest;
+
+	/**
+	 * Compression of the tiles of the pyramids written, <code>null</code>
+	 * for the default of {@link BfPyramidPixelBuffer}.
+	 */
+	protected String pyramidCompression;
+
+    /**
+     * Read-only pixel buffers lent out by
+     * {@link #getPixelBuffer(Pixels, boolean)}, <code>null</code> to open a
+     * new buffer every time.
+     */
+    protected PixelBufferPool pixelBufferPool;
+
 	/** Null plane byte array. */
 	public static final byte[] nullPlane = new byte[] { -128, 127, -128, 127,
 			-128, 127, -128, 127, -128, 127, // 10
@@ -159,6 +233,144 @@ public class PixelsService extends AbstractFileSystemService
         this.resolver = resolver;
     }
 
+    /**
+     * Sets the size of the persistent mappings ROMIO pixel buffers serve
+     * reads from.
+     *
+     * @param romioSegmentSize The size in bytes, <code>0</code> to map every
+     * read on its own.
+     * @see RomioPixelBuffer#setMappedSegments(long, int)
+     */
+    public void setRomioSegmentSize(long romioSegmentSize)
+    {
+        this.romioSegmentSize = romioSegmentSize;
+    }
+
+    /**
+     * Sets the maximum number of persistent mappings kept per ROMIO pixel
+     * buffer.
+     *
+     * @param romioMaxSegments The maximum number of mappings.
+     * @see RomioPixelBuffer#setMappedSegments(long, int)
+     */
+    public void setRomioMaxSegments(int romioMaxSegments)
+    {
+        this.romioMaxSegments = romioMaxSegments;
+    }
+
+    /**
+     * Sets the maximum number of readers decoding tiles concurrently per
+     * pyramid pixel buffer.
+     *
+     * @param pyramidMaxReaders The maximum number of readers, <code>0</code>
+     * for the number of processors.
+     * @see BfPyramidPixelBuffer#setMaxReaders(int)
+     */
+    public void setPyramidMaxReaders(int pyramidMaxReaders)
+    {
+        this.pyramidMaxReaders = pyramidMaxReaders;
+    }
+
+    /**
+     * Sets the cache of decoded tiles shared by the pyramid pixel buffers
+     * created by this service.
+     *
+     * @param tileCache The cache or <code>null</code> to decode every tile.
+     * @see BfPyramidPixelBuffer#setTileCache(DecodedTileCache)
+     */
+    public void setTileCache(DecodedTileCache tileCache)
+    {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Sets the number of workers reading, and decoding if need be, the tiles
+     * of the source during pyramid creation. The workers are shared by all
+     * the pyramids created concurrently. Must be set before the first
+     * pyramid is created.
+     *
+     * @param pyramidWorkers The number of workers, <code>0</code> for the
+     * number of processors.
+     * @see TilePipeline
+     */
+    public void setPyramidWorkers(int pyramidWorkers)
+    {
+        this.pyramidWorkers = pyramidWorkers;
+    }
+
+    /**
+     * Sets the compression of the tiles of the pyramids written from now
+     * on. Existing pyramids are read whatever their compression.
+     *
+     * @param pyramidCompression The compression, blank for the default.
+     * @see BfPyramidPixelBuffer#setCompression(String)
+     */
+    public void setPyramidCompression(String pyramidCompression)
+    {
+        if (pyramidCompression == null
+            || pyramidCompression.trim().length() == 0)
+        {
+            this.pyramidCompression = null;
+        }
+        else
+        {
+            this.pyramidCompression = pyramidCompression.trim();
+        }
+    }
+
+    /**
+     * Sets the factory of the checksum providers calculating the digests
+     * of ROMIO pixels files.
+     *
+     * @param checksumProviderFactory The factory, <code>null</code> for
+     * the default.
+     */
+    public void setChecksumProviderFactory(
+            ChecksumProviderFactory checksumProviderFactory)
+    {
+        this.checksumProviderFactory = checksumProviderFactory;
+    }
+
+    /**
+     * Sets the algorithm of the digest of ROMIO pixels files, as stored in
+     * the <code>sha1</code> of their pixels sets. Must be set before the
+     * first digest is calculated.
+     *
+     * @param romioDigestType The name of a {@link ChecksumType}.
+     * @see RomioPixelBuffer#setDigest(PixelsDigest)
+     */
+    public void setRomioDigestType(String romioDigestType)
+    {
+        this.romioDigestType = ChecksumType.valueOf(
+                romioDigestType.trim().toUpperCase());
+    }
+
+    /**
+     * Sets whether or not ROMIO pixels files are given a tree digest,
+     * calculated from the digests of the planes, themselves calculated
+     * concurrently and cached. Must be set before the first digest is
+     * calculated.
+     *
+     * @param romioTreeDigest See above.
+     * @see PixelsDigest
+     */
+    public void setRomioTreeDigest(boolean romioTreeDigest)
+    {
+        this.romioTreeDigest = romioTreeDigest;
+    }
+
+    /**
+     * Sets the pool read-only pixel buffers are borrowed from. Closing a
+     * borrowed buffer returns it to the pool.
+     *
+     * @param pixelBufferPool The pool or <code>null</code> to open a new
+     * buffer every time.
+     */
+    public void setPixelBufferPool(PixelBufferPool pixelBufferPool)
+    {
+        this.pixelBufferPool = pixelBufferPool;
+    }
+
 	/**
 	 * Creates a PixelBuffer for a given pixels set.
 	 *
@@ -170,7 +382,11 @@ public class PixelsService extends AbstractFileSystemService
 	public PixelBuffer createPixelBuffer(Pixels pixels) throws IOException {
 		RomioPixelBuffer pixbuf = new RomioPixelBuffer(getPixelsPath(pixels
 				.getId()), pixels, true);
+		pixbuf.setDigest(getRomioDigest());
 		initPixelBuffer(pixbuf);
+		// None of the planes initialized has been written.
+		new PixelsIndex(pixels).write(
+				new File(pixbuf.getPath() + INDEX_SUFFIX));
 		return pixbuf;
 	}
 
@@ -252,7 +468,9 @@ public class PixelsService extends AbstractFileSystemService
             {
                 return minMaxStore.createStatsInfo();
             }
-            return null;
+            // Known without reading the pixels again if they were indexed
+            // as they were written.
+            return getIndexedStatsInfo(pixels);
         }
 
         finally
@@ -268,6 +486,34 @@ public class PixelsService extends AbstractFileSystemService
                     log.error("Error closing pixel pyramid.", e);
                 }
             }
+            if (pixelBufferPool != null)
+            {
+                // Buffers lent out before the pyramid was written read the
+                // original pixels.
+                pixelBufferPool.invalidate(pixels.getId());
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of the channels of a set of pixels from the
+     * index of the ROMIO pixels file.
+     * @param pixels Pixels set to return the statistics for.
+     * @return See above or <code>null</code> if there is no index or the
+     * statistics of a plane are not known.
+     */
+    public StatsInfo[] getIndexedStatsInfo(Pixels pixels)
+    {
+        File indexFile = new File(getPixelsPath(pixels.getId()) + INDEX_SUFFIX);
+        try
+        {
+            PixelsIndex index = PixelsIndex.read(indexFile, pixels);
+            return index == null? null : index.createStatsInfo();
+        }
+        catch (IOException e)
+        {
+            log.warn("Error reading pixels index: " + indexFile, e);
+            return null;
         }
     }
 
@@ -277,6 +523,7 @@ public class PixelsService extends AbstractFileSystemService
             final String pixelsFilePath, final String originalFilePath) {
 
         final PixelBuffer source;
+        final TilePipeline.SourceFactory factory;
         final Dimension tileSize;
         final PixelsPyramidMinMaxStore minMaxStore;
 
@@ -284,6 +531,13 @@ public class PixelsService extends AbstractFileSystemService
         {
             minMaxStore = null;
             source = createRomioPixelBuffer(pixelsFilePath, pixels, false);
+            factory = new TilePipeline.SourceFactory() {
+                public PixelBuffer open()
+                {
+                    return createRomioPixelBuffer(
+                            pixelsFilePath, pixels, false);
+                }
+            };
             // FIXME: This should be configuration or service driven
             // FIXME: Also implemented in RenderingBean.getTileSize()
             tileSize = new Dimension(Math.min(pixels.getSizeX(), sizes.getTileWidth()),
@@ -291,14 +545,22 @@ public class PixelsService extends AbstractFileSystemService
         }
         else
         {
+            // Min/max are calculated by the pipeline from the tiles read
+            // concurrently rather than by a single MinMaxCalculator.
             minMaxStore = new PixelsPyramidMinMaxStore(pixels.getSizeC());
-            int series = getSeries(pixels);
-            BfPixelBuffer bfPixelBuffer = createMinMaxBfPixelBuffer(
-                    originalFilePath, series, minMaxStore);
+            final int series = getSeries(pixels);
+            BfPixelBuffer bfPixelBuffer = createBfPixelBuffer(
+                    originalFilePath, series);
             pixelsPyramid.setByteOrder(
                     bfPixelBuffer.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
                             : ByteOrder.BIG_ENDIAN);
             source = bfPixelBuffer;
+            factory = new TilePipeline.SourceFactory() {
+                public PixelBuffer open()
+                {
+                    return createBfPixelBuffer(originalFilePath, series);
+                }
+            };
             // If the tile sizes we've been given are completely ridiculous
             // then reset them to WIDTHxHEIGHT. Currently these conditions are:
             //  * TileWidth == ImageWidth
@@ -336,51 +598,41 @@ public class PixelsService extends AbstractFileSystemService
 
         try
         {
-            final double totalTiles =
-                source.getSizeZ() * source.getSizeC() * source.getSizeT() *
-                (Math.ceil(source.getSizeX() / tileSize.getWidth())) *
-                (Math.ceil(source.getSizeY() / tileSize.getHeight()));
-            final int tenPercent = Math.max((int) totalTiles / 10, 1);
-            Utils.forEachTile(new TileLoopIteration() {
-                public void run(int z, int c, int t, int x, int y, int w,
-                            int h, int tileCount)
+            int workers = getPyramidWorkerCount();
+            TilePipeline pipeline = new TilePipeline(getPyramidWorkers(),
+                    workers, workers * 2,
+                    "Pyramid creation for Pixels:" + pixels.getId());
+            if (minMaxStore != null)
             {
-                if (log.isInfoEnabled()
-                    && tileCount % tenPercent == 0)
-                {
-                    log.info(String.format(
-                            "Pyramid creation for Pixels:%d %d/%d (%d%%).",
-                            pixels.getId(), tileCount + 1, (int) totalTiles,
-                            (int) (tileCount / totalTiles * 100)));
-                }
-                try
-                {
-                    PixelData tile = source.getTile(z, c, t, x, y, w, h);
-                    pixelsPyramid.setTile(
-                            tile.getData().array(), z, c, t, x, y, w, h);
-                }
-                catch (IOException e1)
+                pipeline.calculateChannelMinMax(pixels.getSizeC());
+            }
+            pipeline.run(source, factory, pixelsPyramid,
+                    (int) tileSize.getWidth(), (int) tileSize.getHeight());
+            if (minMaxStore != null)
+            {
+                double[][] minMax = pipeline.getChannelMinMax();
+                for (int c = 0; c < minMax.length; c++)
                 {
-                    log.error("FAIL -- Error during tile population", e1);
-                    try
-                    {
-                        pixelsPyramidFile.delete();
-                        FileUtils.touch(pixelsPyramidFile); // ticket:5189
-                    }
-                    catch (Exception e2)
-                    {
-                        log.warn("Error clearing empty or incomplete pixel " +
-                                 "buffer.", e2);
-                    }
-                    return;
+                    minMaxStore.setChannelGlobalMinMax(
+                            c, minMax[c][0], minMax[c][1], 0);  // Series unused
                 }
             }
-            }, source, (int) tileSize.getWidth(), (int) tileSize.getHeight());
-
             log.info("SUCCESS -- Pyramid created for pixels id:" + pixels.getId());
-
         }
-
+        catch (IOException e1)
+        {
+            log.error("FAIL -- Error during tile population", e1);
+            try
+            {
+                pixelsPyramidFile.delete();
+                FileUtils.touch(pixelsPyramidFile); // ticket:5189
+            }
+            catch (Exception e2)
+            {
+                log.warn("Error clearing empty or incomplete pixel " +
+                         "buffer.", e2);
+            }
+        }
         finally
         {
             if (source != null)
@@ -398,6 +650,87 @@ public class PixelsService extends AbstractFileSystemService
         return minMaxStore;
     }
 
+    /**
+     * Returns the number of workers reading tiles during pyramid creation.
+     */
+    private int getPyramidWorkerCount()
+    {
+        return pyramidWorkers > 0 ? pyramidWorkers
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns the workers reading tiles during pyramid creation, shared by
+     * all the pyramids created concurrently so that running several of them
+     * does not multiply the number of threads decoding tiles.
+     */
+    private synchronized ExecutorService getPyramidWorkers()
+    {
+        if (pyramidWorkerPool == null)
+        {
+            pyramidWorkerPool = Executors.newFixedThreadPool(
+                    getPyramidWorkerCount(), new ThreadFactory() {
+                        private final AtomicInteger count =
+                            new AtomicInteger();
+
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread thread = new Thread(r,
+                                    "PyramidWorker-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return pyramidWorkerPool;
+    }
+
+    /**
+     * Returns the workers reading the tiles of a batch from the pyramids,
+     * shared by all the pyramid pixel buffers; as many as a pyramid has
+     * readers. They also digest the planes of tree digests.
+     */
+    private synchronized ExecutorService getTileWorkers()
+    {
+        if (tileWorkerPool == null)
+        {
+            int workers = pyramidMaxReaders > 0 ? pyramidMaxReaders
+                    : Runtime.getRuntime().availableProcessors();
+            tileWorkerPool = Executors.newFixedThreadPool(
+                    workers, new ThreadFactory() {
+                        private final AtomicInteger count =
+                            new AtomicInteger();
+
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread thread = new Thread(r,
+                                    "TileReader-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return tileWorkerPool;
+    }
+
+    /**
+     * Shuts the pyramid and tile workers down once their running tasks have
+     * completed. Called by Spring on destruction.
+     */
+    public synchronized void shutdown()
+    {
+        if (pyramidWorkerPool != null)
+        {
+            pyramidWorkerPool.shutdown();
+            pyramidWorkerPool = null;
+        }
+        if (tileWorkerPool != null)
+        {
+            tileWorkerPool.shutdown();
+            tileWorkerPool = null;
+        }
+    }
+
     /**
      * Returns a pixel buffer for a given set of pixels. Either a proprietary
      * ROMIO pixel buffer or a specific pixel buffer implementation.
@@ -421,17 +754,62 @@ public class PixelsService extends AbstractFileSystemService
      * @param pixels Pixels set to retrieve a pixel buffer for.
      * @param write Whether or not to open the pixel buffer as read-write.
      * <code>true</code> opens as read-write, <code>false</code> opens as
-     * read-only.
+     * read-only. Read-only buffers are borrowed from the pixel buffer pool,
+     * if any, and returned to it when closed.
      * @return A pixel buffer instance.
      * @since OMERO-Beta4.3
      */
-    public PixelBuffer getPixelBuffer(Pixels pixels, boolean write)
+    public PixelBuffer getPixelBuffer(final Pixels pixels, boolean write)
     {
-        PixelBuffer pb = _getPixelBuffer(pixels, write);
+        PixelBuffer pb;
+        if (!write && pixelBufferPool != null && pixelBufferPool.isEnabled())
+        {
+            pb = pixelBufferPool.borrow(pixels.getId(), getPooledPath(pixels),
+                    new PixelBufferPool.Factory() {
+                        public PixelBuffer create()
+                        {
+                            return _getPixelBuffer(pixels, false);
+                        }
+                    });
+        }
+        else
+        {
+            pb = _getPixelBuffer(pixels, write);
+        }
         log.warn(pb +" for " + pixels);
         return pb;
     }
 
+    /**
+     * Returns the path of the file a read-only pixel buffer of a given set
+     * of pixels currently reads, in the same order of preference as
+     * {@link #_getPixelBuffer(Pixels, boolean)}: the pyramid, the ROMIO
+     * pixels file and the original file. Pooled buffers of another file
+     * are no longer reused, e.g. once the pyramid has been written by
+     * another process.
+     * @param pixels Pixels set to return the path for.
+     * @return See above.
+     */
+    protected String getPooledPath(Pixels pixels)
+    {
+        final String pixelsFilePath = getPixelsPath(pixels.getId());
+        final String pixelsPyramidFilePath = pixelsFilePath + PYRAMID_SUFFIX;
+        if (new File(pixelsPyramidFilePath).exists())
+        {
+            return pixelsPyramidFilePath;
+        }
+        if (new File(pixelsFilePath).exists())
+        {
+            return pixelsFilePath;
+        }
+        final String originalFilePath = getOriginalFilePath(pixels);
+        if (originalFilePath != null)
+        {
+            return originalFilePath + "|" + getSeries(pixels);
+        }
+        return pixelsFilePath;
+    }
+
     public PixelBuffer _getPixelBuffer(Pixels pixels, boolean write)
     {
         final String originalFilePath = getOriginalFilePath(pixels);
@@ -763,7 +1141,22 @@ public class PixelsService extends AbstractFileSystemService
                 // #5159. Creating the path if we need to write.
                 createSubpath(filePath);
             }
-            return new BfPyramidPixelBuffer(pixels, filePath, write);
+            BfPyramidPixelBuffer buffer =
+                new BfPyramidPixelBuffer(pixels, filePath, write);
+            if (pyramidMaxReaders > 0)
+            {
+                buffer.setMaxReaders(pyramidMaxReaders);
+            }
+            buffer.setTileCache(tileCache);
+            if (!write)
+            {
+                buffer.setTileWorkers(getTileWorkers());
+            }
+            if (write && pyramidCompression != null)
+            {
+                buffer.setCompression(pyramidCompression);
+            }
+            return buffer;
         }
         catch (Exception e)
         {
@@ -786,7 +1179,35 @@ public class PixelsService extends AbstractFileSystemService
      */
     protected PixelBuffer createRomioPixelBuffer(String pixelsFilePath,
         Pixels pixels, boolean allowModification) {
-        return new RomioPixelBuffer(pixelsFilePath, pixels, allowModification);
+        RomioPixelBuffer buffer =
+            new RomioPixelBuffer(pixelsFilePath, pixels, allowModification);
+        buffer.setMappedSegments(romioSegmentSize, romioMaxSegments);
+        buffer.setDigest(getRomioDigest());
+        return buffer;
+    }
+
+    /**
+     * Returns the digest of ROMIO pixels files, shared by all the ROMIO
+     * pixel buffers.
+     */
+    private synchronized PixelsDigest getRomioDigest()
+    {
+        if (romioDigest == null)
+        {
+            if (romioDigestType == ChecksumType.SHA1 && !romioTreeDigest)
+            {
+                romioDigest = PixelsDigest.SHA1;
+            }
+            else
+            {
+                romioDigest = new PixelsDigest(checksumProviderFactory == null?
+                        new ChecksumProviderFactoryImpl()
+                        : checksumProviderFactory,
+                        romioDigestType, romioTreeDigest,
+                        romioTreeDigest? getTileWorkers() : null);
+            }
+        }
+        return romioDigest;
     }
 
     /**
@@ -805,6 +1226,15 @@ public class PixelsService extends AbstractFileSystemService
 			Long id = iter.next();
 
 			String pixelPath = getPixelsPath(id);
+			if (pixelBufferPool != null) {
+				pixelBufferPool.invalidate(id);
+			}
+			if (tileCache != null) {
+				tileCache.invalidate(new File(
+						pixelPath + PYRAMID_SUFFIX).getAbsolutePath());
+			}
+			new File(pixelPath + INDEX_SUFFIX).delete();
+			new File(pixelPath + INVALID_INDEX_SUFFIX).delete();
 			file = new File(pixelPath);
 			fileName = file.getName();
 			if (file.exists()) {
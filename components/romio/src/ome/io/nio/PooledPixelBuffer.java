@@ -0,0 +1,349 @@
+/*
+ * ome.io.nio.PooledPixelBuffer
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import ome.conditions.ApiUsageException;
+import ome.util.PixelData;
+import ome.util.TileDef;
+
+/**
+ * Pixel buffer borrowed from a {@link PixelBufferPool}. Delegates to the
+ * pooled buffer until closed, when the buffer is returned to the pool
+ * instead of being closed. Using it after that fails rather than reading
+ * through a buffer which may have been borrowed again.
+ *
+ * @since 5.0
+ */
+public class PooledPixelBuffer implements PixelBuffer {
+
+    /** The pool the buffer was borrowed from. */
+    private final PixelBufferPool pool;
+
+    /** The entry of the buffer, <code>null</code> once returned. */
+    private PixelBufferPool.Entry entry;
+
+    PooledPixelBuffer(PixelBufferPool pool, PixelBufferPool.Entry entry) {
+        this.pool = pool;
+        this.entry = entry;
+    }
+
+    /**
+     * Returns the pooled buffer.
+     *
+     * @return See above.
+     * @throws ApiUsageException If the buffer has been returned to the pool.
+     */
+    protected synchronized PixelBuffer getDelegate() {
+        if (entry == null) {
+            throw new ApiUsageException(
+                    "Pixel buffer already returned to the pool.");
+        }
+        return entry.buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool. Subsequent calls have no effect.
+     */
+    public void close() throws IOException {
+        PixelBufferPool.Entry returned;
+        synchronized (this) {
+            returned = entry;
+            entry = null;
+        }
+        if (returned != null) {
+            pool.release(returned);
+        }
+    }
+
+    public void checkBounds(Integer x, Integer y, Integer z, Integer c,
+            Integer t) throws DimensionsOutOfBoundsException {
+        getDelegate().checkBounds(x, y, z, c, t);
+    }
+
+    public Long getPlaneSize() {
+        return getDelegate().getPlaneSize();
+    }
+
+    public Integer getRowSize() {
+        return getDelegate().getRowSize();
+    }
+
+    public Integer getColSize() {
+        return getDelegate().getColSize();
+    }
+
+    public Long getStackSize() {
+        return getDelegate().getStackSize();
+    }
+
+    public Long getTimepointSize() {
+        return getDelegate().getTimepointSize();
+    }
+
+    public Long getTotalSize() {
+        return getDelegate().getTotalSize();
+    }
+
+    public Long getHypercubeSize(List<Integer> offset, List<Integer> size,
+            List<Integer> step) throws DimensionsOutOfBoundsException {
+        return getDelegate().getHypercubeSize(offset, size, step);
+    }
+
+    public Long getRowOffset(Integer y, Integer z, Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return getDelegate().getRowOffset(y, z, c, t);
+    }
+
+    public Long getPlaneOffset(Integer z, Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return getDelegate().getPlaneOffset(z, c, t);
+    }
+
+    public Long getStackOffset(Integer c, Integer t)
+            throws DimensionsOutOfBoundsException {
+        return getDelegate().getStackOffset(c, t);
+    }
+
+    public Long getTimepointOffset(Integer t)
+            throws DimensionsOutOfBoundsException {
+        return getDelegate().getTimepointOffset(t);
+    }
+
+    public PixelData getHypercube(List<Integer> offset, List<Integer> size,
+            List<Integer> step) throws IOException,
+            DimensionsOutOfBoundsException {
+        return getDelegate().getHypercube(offset, size, step);
+    }
+
+    public byte[] getHypercubeDirect(List<Integer> offset, List<Integer> size,
+            List<Integer> step, byte[] buffer) throws IOException,
+            DimensionsOutOfBoundsException {
+        return getDelegate().getHypercubeDirect(offset, size, step, buffer);
+    }
+
+    public byte[] getPlaneRegionDirect(Integer z, Integer c, Integer t,
+            Integer count, Integer offset, byte[] buffer) throws IOException,
+            DimensionsOutOfBoundsException {
+        return getDelegate().getPlaneRegionDirect(z, c, t, count, offset,
+                buffer);
+    }
+
+    public PixelData getTile(Integer z, Integer c, Integer t, Integer x,
+            Integer y, Integer w, Integer h) throws IOException {
+        return getDelegate().getTile(z, c, t, x, y, w, h);
+    }
+
+    public byte[] getTileDirect(Integer z, Integer c, Integer t, Integer x,
+            Integer y, Integer w, Integer h, byte[] buffer) throws IOException {
+        return getDelegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+    }
+
+    public byte[] getTilesDirect(List<TileDef> tiles, byte[] buffer)
+            throws IOException {
+        return getDelegate().getTilesDirect(tiles, buffer);
+    }
+
+    public PixelData getRegion(Integer size, Long offset) throws IOException {
+        return getDelegate().getRegion(size, offset);
+    }
+
+    public byte[] getRegionDirect(Integer size, Long offset, byte[] buffer)
+            throws IOException {
+        return getDelegate().getRegionDirect(size, offset, buffer);
+    }
+
+    public PixelData getRow(Integer y, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getRow(y, z, c, t);
+    }
+
+    public PixelData getCol(Integer x, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getCol(x, z, c, t);
+    }
+
+    public byte[] getRowDirect(Integer y, Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getRowDirect(y, z, c, t, buffer);
+    }
+
+    public byte[] getColDirect(Integer x, Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getColDirect(x, z, c, t, buffer);
+    }
+
+    public PixelData getPlane(Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getPlane(z, c, t);
+    }
+
+    public PixelData getPlaneRegion(Integer x, Integer y, Integer width,
+            Integer height, Integer z, Integer c, Integer t, Integer stride)
+            throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getPlaneRegion(x, y, width, height, z, c, t,
+                stride);
+    }
+
+    public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+            byte[] buffer) throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getPlaneDirect(z, c, t, buffer);
+    }
+
+    public PixelData getStack(Integer c, Integer t) throws IOException,
+            DimensionsOutOfBoundsException {
+        return getDelegate().getStack(c, t);
+    }
+
+    public byte[] getStackDirect(Integer c, Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getStackDirect(c, t, buffer);
+    }
+
+    public PixelData getTimepoint(Integer t) throws IOException,
+            DimensionsOutOfBoundsException {
+        return getDelegate().getTimepoint(t);
+    }
+
+    public byte[] getTimepointDirect(Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+        return getDelegate().getTimepointDirect(t, buffer);
+    }
+
+    public void setTile(byte[] buffer, Integer z, Integer c, Integer t,
+            Integer x, Integer y, Integer w, Integer h) throws IOException,
+            BufferOverflowException {
+        getDelegate().setTile(buffer, z, c, t, x, y, w, h);
+    }
+
+    public void setRegion(Integer size, Long offset, byte[] buffer)
+            throws IOException, BufferOverflowException {
+        getDelegate().setRegion(size, offset, buffer);
+    }
+
+    public void setRegion(Integer size, Long offset, ByteBuffer buffer)
+            throws IOException, BufferOverflowException {
+        getDelegate().setRegion(size, offset, buffer);
+    }
+
+    public void setRow(ByteBuffer buffer, Integer y, Integer z, Integer c,
+            Integer t) throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        getDelegate().setRow(buffer, y, z, c, t);
+    }
+
+    public void setPlane(ByteBuffer buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        getDelegate().setPlane(buffer, z, c, t);
+    }
+
+    public void setPlane(byte[] buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        getDelegate().setPlane(buffer, z, c, t);
+    }
+
+    public void setStack(ByteBuffer buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        getDelegate().setStack(buffer, z, c, t);
+    }
+
+    public void setStack(byte[] buffer, Integer z, Integer c, Integer t)
+            throws IOException, DimensionsOutOfBoundsException,
+            BufferOverflowException {
+        getDelegate().setStack(buffer, z, c, t);
+    }
+
+    public void setTimepoint(ByteBuffer buffer, Integer t) throws IOException,
+            DimensionsOutOfBoundsException, BufferOverflowException {
+        getDelegate().setTimepoint(buffer, t);
+    }
+
+    public void setTimepoint(byte[] buffer, Integer t) throws IOException,
+            DimensionsOutOfBoundsException, BufferOverflowException {
+        getDelegate().setTimepoint(buffer, t);
+    }
+
+    public byte[] calculateMessageDigest() throws IOException {
+        return getDelegate().calculateMessageDigest();
+    }
+
+    public int getByteWidth() {
+        return getDelegate().getByteWidth();
+    }
+
+    public boolean isSigned() {
+        return getDelegate().isSigned();
+    }
+
+    public boolean isFloat() {
+        return getDelegate().isFloat();
+    }
+
+    public String getPath() {
+        return getDelegate().getPath();
+    }
+
+    public long getId() {
+        return getDelegate().getId();
+    }
+
+    public int getSizeX() {
+        return getDelegate().getSizeX();
+    }
+
+    public int getSizeY() {
+        return getDelegate().getSizeY();
+    }
+
+    public int getSizeZ() {
+        return getDelegate().getSizeZ();
+    }
+
+    public int getSizeC() {
+        return getDelegate().getSizeC();
+    }
+
+    public int getSizeT() {
+        return getDelegate().getSizeT();
+    }
+
+    public int getResolutionLevels() {
+        return getDelegate().getResolutionLevels();
+    }
+
+    public int getResolutionLevel() {
+        return getDelegate().getResolutionLevel();
+    }
+
+    public void setResolutionLevel(int resolutionLevel) {
+        getDelegate().setResolutionLevel(resolutionLevel);
+    }
+
+    public Dimension getTileSize() {
+        return getDelegate().getTileSize();
+    }
+
+    public List<List<Integer>> getResolutionDescriptions() {
+        return getDelegate().getResolutionDescriptions();
+    }
+
+    @Override
+    public String toString() {
+        PixelBufferPool.Entry current = entry;
+        return "PooledPixelBuffer(" + (current == null ? "returned"
+                : current.buffer.toString()) + ")";
+    }
+}
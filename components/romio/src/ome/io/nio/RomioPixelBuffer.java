@@ -7,6 +7,7 @@
 package ome.io.nio;
 
 import java.awt.Dimension;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -15,9 +16,8 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.channels.FileChannel.MapMode;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -26,6 +26,7 @@ import java.util.List;
 import ome.conditions.ApiUsageException;
 import ome.model.core.Pixels;
 import ome.util.PixelData;
+import ome.util.TileDef;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +46,12 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     /** The logger for this particular class */
     private static Logger log = LoggerFactory.getLogger(RomioPixelBuffer.class);
 
+    /**
+     * Serializes the locks of the index files taken in this JVM, which
+     * cannot hold overlapping file locks.
+     */
+    private static final Object INDEX_LOCK = new Object();
+
     /** Default maximum buffer size for planar data transfer. (1MB) */
     public static final int MAXIMUM_BUFFER_SIZE = 1048576;
 
@@ -55,6 +62,12 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 
     private FileChannel channel;
 
+    /**
+     * The persistent mappings reads are served from or <code>null</code> if
+     * every read is mapped on its own.
+     */
+    private MappedSegments segments;
+
     /** The size of a row. */
     private Integer rowSize;
     
@@ -80,6 +93,37 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      */
     private final boolean permitModification;
 
+    /**
+     * The index of the planes written, <code>null</code> if there is none,
+     * e.g. for pixels files written before indexes were kept.
+     */
+    private PixelsIndex index;
+
+    /**
+     * The index as created or read by a writable buffer, to merge the
+     * planes written by other buffers with when closed.
+     */
+    private PixelsIndex indexBase;
+
+    /**
+     * The modification time of the index file {@link #index} was read
+     * from, to read it again once written by another buffer.
+     */
+    private long indexModified;
+
+    /** Whether or not the index has been looked for by a writable buffer. */
+    private boolean indexLoaded;
+
+    /**
+     * Whether or not the index file has been removed while writing, to be
+     * written again when the buffer is closed, or marked as invalid if this
+     * buffer keeps no index.
+     */
+    private boolean indexRemoved;
+
+    /** Calculates the digest of the pixels. */
+    private PixelsDigest digest = PixelsDigest.SHA1;
+
     /**
      * Creates a new instance. {@link #permitModification} defaults to false.
      * 
@@ -92,6 +136,9 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 
     /**
      * Creates a new instance, with manual setting of {@link #permitModification}.
+     * A writable buffer looks for the index right away, so that the planes
+     * it writes can be merged with those written by the other buffers
+     * opened before its first write.
      *
      * @param path The path to the file.
      * @param pixels The pixels object to handle.
@@ -104,6 +151,38 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         }
         this.pixels = pixels;
         this.permitModification = permitModification;
+        if (permitModification) {
+            getIndex();
+        }
+    }
+
+    /**
+     * Serves reads from a bounded set of large mappings of the pixels file
+     * which are kept until the buffer is closed, instead of mapping every
+     * read on its own. Reads which do not fit within a single segment are
+     * still mapped on their own.
+     *
+     * @param segmentSize The size in bytes of each mapping, <code>0</code>
+     * to disable.
+     * @param maxSegments The maximum number of mappings kept.
+     */
+    public void setMappedSegments(long segmentSize, int maxSegments) {
+        if (segments != null) {
+            segments.clear();
+        }
+        segments = segmentSize > 0 ?
+                new MappedSegments(segmentSize, maxSegments) : null;
+    }
+
+    /**
+     * Sets how the digest of the pixels is calculated, by default the SHA-1
+     * of all the planes one after the other.
+     *
+     * @param digest The digest.
+     * @see #calculateMessageDigest()
+     */
+    public void setDigest(PixelsDigest digest) {
+        this.digest = digest;
     }
 
     private void throwIfReadOnly() {
@@ -171,6 +250,115 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         return channel;
     }
 
+    /**
+     * Returns the index file of the pixels file.
+     */
+    private File getIndexFile() {
+        return new File(getPath() + PixelsService.INDEX_SUFFIX);
+    }
+
+    /**
+     * Returns the marker of a pixels file written by a buffer which kept no
+     * index, whose index can no longer be written.
+     */
+    private File getInvalidIndexFile() {
+        return new File(getPath() + PixelsService.INVALID_INDEX_SUFFIX);
+    }
+
+    /**
+     * Locks the index file against the other buffers writing the pixels
+     * file, in this process or another, by locking a region of the pixels
+     * file beyond its data. To be called within {@link #INDEX_LOCK}.
+     */
+    private FileLock lockIndex() throws IOException {
+        return getFileChannel().lock(Long.MAX_VALUE - 1, 1, false);
+    }
+
+    /**
+     * Returns the index of the planes written to the pixels file. A
+     * writable buffer starts a new index for a new pixels file but keeps
+     * none for an existing one written without an index; a read-only
+     * buffer reads the index again whenever its file has changed.
+     *
+     * @return See above or <code>null</code> if there is no index.
+     */
+    public PixelsIndex getIndex() {
+        if (permitModification) {
+            if (!indexLoaded) {
+                indexLoaded = true;
+                index = readIndex();
+                if (index == null && new File(getPath()).length() == 0) {
+                    index = new PixelsIndex(pixels);
+                }
+                if (index != null) {
+                    indexBase = index.copy();
+                }
+            }
+            return index;
+        }
+        long modified = getIndexFile().lastModified();
+        if (modified != indexModified) {
+            indexModified = modified;
+            index = modified == 0 ? null : readIndex();
+        }
+        return index;
+    }
+
+    private PixelsIndex readIndex() {
+        try {
+            return PixelsIndex.read(getIndexFile(), pixels);
+        } catch (IOException e) {
+            log.warn("Error reading pixels index: " + getIndexFile(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index, merged with the index written by the other buffers
+     * closed since it was read, unless a buffer which kept no index has
+     * written the pixels file meanwhile.
+     */
+    private void writeIndex() throws IOException {
+        synchronized (INDEX_LOCK) {
+            FileLock lock = lockIndex();
+            try {
+                if (getInvalidIndexFile().exists()) {
+                    log.warn("Not writing invalidated pixels index: "
+                            + getIndexFile());
+                    return;
+                }
+                PixelsIndex other = readIndex();
+                if (other != null) {
+                    index.merge(indexBase, other);
+                }
+                index.write(getIndexFile());
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Removes the index file before the pixels file is first written, so
+     * that it is not trusted by readers until written again on close. If
+     * this buffer keeps no index, the pixels file is also marked so that
+     * the other buffers do not write theirs, which would miss the planes
+     * written by this one.
+     */
+    private void invalidateIndex() throws IOException {
+        synchronized (INDEX_LOCK) {
+            FileLock lock = lockIndex();
+            try {
+                if (index == null) {
+                    getInvalidIndexFile().createNewFile();
+                }
+                getIndexFile().delete();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
     /**
      * Closes the buffer, cleaning up file state.
      * 
@@ -178,6 +366,17 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      *             if an I/O error occurs.
      */
     public void close() throws IOException {
+        if (segments != null) {
+            segments.clear();
+        }
+        if (permitModification && index != null && index.isDirty()) {
+            try {
+                writeIndex();
+                indexRemoved = false;
+            } catch (IOException e) {
+                log.error("Error writing pixels index", e);
+            }
+        }
         if (channel != null) {
             try {
                 channel.close();
@@ -342,6 +541,12 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
          * there happens to be an error.
          */
 
+        if (segments != null) {
+            ByteBuffer b = segments.slice(fileChannel, offset, size);
+            if (b != null) {
+                return new PixelData(pixels.getPixelsType().getValue(), b);
+            }
+        }
         MappedByteBuffer b = fileChannel.map(MapMode.READ_ONLY, offset, size);
         return new PixelData(pixels.getPixelsType().getValue(), b);
     }
@@ -473,9 +678,11 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
 			Integer count, Integer offset, byte[] buffer)
 		throws IOException, DimensionsOutOfBoundsException
 	{
-		ByteBuffer b = getPlane(z, c, t).getData();
-		b.position(offset * getByteWidth());
-		b.get(buffer, 0, count * getByteWidth());
+		// Only the requested pixels are mapped rather than the whole plane.
+		int byteWidth = getByteWidth();
+		ByteBuffer b = getRegion(count * byteWidth,
+				getPlaneOffset(z, c, t) + (long) offset * byteWidth).getData();
+		b.get(buffer, 0, count * byteWidth);
 		return buffer;
 	}
 
@@ -488,6 +695,13 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         log.info("Retrieving plane: " + z + "x" + c + "x" + t);
         Long offset = getPlaneOffset(z, c, t);
         Integer size = safeLongToInteger(getPlaneSize());
+        PixelsIndex index = getIndex();
+        if (index != null) {
+            if (!index.isWritten(z, c, t)) {
+                return null; // Never written, non-filled plane
+            }
+            return getRegion(size, offset);
+        }
         PixelData region = getRegion(size, offset);
 
         byte[] nullPlane = PixelsService.nullPlane;
@@ -513,40 +727,69 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     	checkBounds(x, y, z, c, t);
     	checkBounds(x+width-1, y+height-1, null, null, null);
     	
-    	PixelData plane = getPlane(z, c, t);
-    	Integer size;
-    	ByteBuffer buf;
-    	PixelData region = null;
-    	int offset;
-    	
-    	if (stride == 0) {
-    		size =  width*height*getByteWidth();
-            buf = ByteBuffer.wrap(new byte[size]);
-            region = new PixelData(pixels.getPixelsType().getValue(), buf);
-            for (int i = 0; i < height; i++) {
-            	for (int j = 0; j < width; j++) {
-            		offset = (i+y)*getSizeX()+x+j;
-            		region.setPixelValue(i*width+j, plane.getPixelValue(offset));
-            	}
-            }
-            return region;
-    	}
     	stride++;
+    	int byteWidth = getByteWidth();
+    	int sizeX = getSizeX();
+    	// Sampled columns and rows, matching the sizes computed by the
+    	// renderer for strided planes.
     	int w = width/stride;
-    	size = width*height*getByteWidth()/(stride*stride);
-        buf = ByteBuffer.wrap(new byte[size]);
-        region = new PixelData(pixels.getPixelsType().getValue(), buf);
-    	int k = 0;
-    	int l = 0;
-    	for (int i = 0; i < height; i = i+stride) {
-    		l = 0;
-        	for (int j = 0; j < width; j = j+stride) {
-        		offset = (i+y)*getSizeX()+x+j;
-        		region.setPixelValue(k*w+l, plane.getPixelValue(offset));
-        		l++;
-        	}
-        	k++;
-        }
+    	int h = height/stride;
+    	byte[] data = new byte[w*h*byteWidth];
+    	PixelData region = new PixelData(pixels.getPixelsType().getValue(),
+    			ByteBuffer.wrap(data));
+    	if (data.length == 0) {
+    		return region;
+    	}
+    	// Map only the rows spanned by the region, from its first to its
+    	// last sampled pixel, instead of the whole plane.
+    	long first = (long) y*sizeX+x;
+    	long last = (long) (y+(h-1)*stride)*sizeX+x+(w-1)*stride;
+    	ByteBuffer b = getRegion(
+    			safeLongToInteger((last-first+1)*byteWidth),
+    			getPlaneOffset(z, c, t)+first*byteWidth).getData();
+    	int rowLength = sizeX*stride*byteWidth;
+    	if (stride == 1) {
+    		int length = w*byteWidth;
+    		for (int i = 0; i < h; i++) {
+    			b.position(i*rowLength);
+    			b.get(data, i*length, length);
+    		}
+    		return region;
+    	}
+    	ByteBuffer out = ByteBuffer.wrap(data).order(b.order());
+    	int step = stride*byteWidth;
+    	for (int i = 0; i < h; i++) {
+    		int position = i*rowLength;
+    		int end = position+w*step;
+    		switch (byteWidth) {
+    			case 1:
+    				for (; position < end; position += step) {
+    					out.put(b.get(position));
+    				}
+    				break;
+    			case 2:
+    				for (; position < end; position += step) {
+    					out.putShort(b.getShort(position));
+    				}
+    				break;
+    			case 4:
+    				for (; position < end; position += step) {
+    					out.putInt(b.getInt(position));
+    				}
+    				break;
+    			case 8:
+    				for (; position < end; position += step) {
+    					out.putLong(b.getLong(position));
+    				}
+    				break;
+    			default:
+    				for (; position < end; position += step) {
+    					b.position(position);
+    					b.get(data, out.position(), byteWidth);
+    					out.position(out.position()+byteWidth);
+    				}
+    		}
+    	}
         return region;
     }
     
@@ -559,7 +802,9 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     {
 		if (buffer.length != getPlaneSize())
 			throw new ApiUsageException("Buffer size incorrect.");
-		ByteBuffer b = getPlane(z, c, t).getData();
+		// The plane as stored, whether or not it has been written.
+		ByteBuffer b = getRegion(buffer.length, getPlaneOffset(z, c, t))
+				.getData();
 		b.get(buffer);
 		return buffer;
     }
@@ -635,13 +880,23 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
     public void setRegion(Integer size, Long offset, ByteBuffer buffer)
             throws IOException {
         throwIfReadOnly();
+        PixelsIndex index = getIndex();
         FileChannel fileChannel = getFileChannel();
+        ByteBuffer data = buffer.duplicate();
+        if (!indexRemoved) {
+            invalidateIndex();
+            indexRemoved = true;
+        }
 
         /*
          * fileChannel should not be "null" as it will throw an exception if
          * there happens to be an error.
          */
-        fileChannel.write(buffer, offset);
+        int count = fileChannel.write(buffer, offset);
+        if (index != null) {
+            data.limit(data.position() + count);
+            index.update(offset, data);
+        }
     }
 
     /**
@@ -752,30 +1007,9 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
      * @see PixelBuffer#calculateMessageDigest()
 	 */
     public byte[] calculateMessageDigest() throws IOException {
-        MessageDigest md;
-
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(
-                    "Required SHA-1 message digest algorithm unavailable.");
-        }
-
-        for (int t = 0; t < getSizeT(); t++) {
-            for (int c = 0; c < getSizeC(); c++) {
-                for (int z = 0; z < getSizeZ(); z++) {
-                    try {
-                        ByteBuffer buffer = getPlane(z, c, t).getData();
-                        md.update(buffer);
-                    } catch (DimensionsOutOfBoundsException e) {
-                        // This better not happen. :)
-                        throw new RuntimeException(e);
-                    }
-                }
-            }
-        }
-
-        return md.digest();
+        // Opened before the planes are read, concurrently for a tree digest.
+        getFileChannel();
+        return digest.calculate(this, getIndex());
     }
 
     /**
@@ -883,6 +1117,18 @@ public class RomioPixelBuffer extends AbstractBuffer implements PixelBuffer {
         return getHypercubeDirect(offset, size, step, buffer);
     }
 
+    /**
+     * Implemented as specified by {@link PixelBuffer} I/F. Tiles are read
+     * one at a time in file order since they are served from memory
+     * mappings.
+     * @see PixelBuffer#getTilesDirect(List, byte[])
+     */
+    public byte[] getTilesDirect(List<TileDef> tiles, byte[] buffer)
+            throws IOException
+    {
+        return TileBatch.read(this, tiles, buffer, null);
+    }
+
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
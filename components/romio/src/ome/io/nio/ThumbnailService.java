@@ -10,7 +10,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -98,13 +101,29 @@ public class ThumbnailService extends AbstractFileSystemService {
 	}
 
 	/**
-	 * Return FileOutputStream of Thumbnail
+	 * Return byte arrays of several Thumbnails, keyed by thumbnail id
+	 * 
+	 * @param thumbnails
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<Long, byte[]> getThumbnails(List<Thumbnail> thumbnails)
+			throws IOException {
+		Map<Long, byte[]> buffers = new HashMap<Long, byte[]>();
+		for (Thumbnail thumbnail : thumbnails) {
+			buffers.put(thumbnail.getId(), getThumbnail(thumbnail));
+		}
+		return buffers;
+	}
+
+	/**
+	 * Return OutputStream of Thumbnail, written once closed
 	 * 
 	 * @param thumbnail
 	 * @return
 	 * @throws IOException
 	 */
-	public FileOutputStream getThumbnailOutputStream(Thumbnail thumbnail)
+	public OutputStream getThumbnailOutputStream(Thumbnail thumbnail)
 			throws IOException {
 		String path = getThumbnailPath(thumbnail.getId());
 		createSubpath(path);
@@ -0,0 +1,248 @@
+/*
+ * ome.io.nio.TileBatch
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ome.conditions.ApiUsageException;
+import ome.conditions.ResourceError;
+import ome.util.TileDef;
+
+/**
+ * Reads a batch of tiles of a {@link PixelBuffer} into a single buffer,
+ * the implementation of {@link PixelBuffer#getTilesDirect(List, byte[])}.
+ * <p>
+ * The tiles are laid out in the buffer one after the other in the order
+ * requested; {@link #getOffsets(List, int)} returns where each starts. They
+ * are read in the order of the planes and rows of the pixels set, which is
+ * that of a ROMIO pixels file and of the pyramid TIFF, so that consecutive
+ * reads are close together. Pixel buffers which can read tiles concurrently
+ * pass workers to read them with.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class TileBatch {
+
+    /** Orders tiles by plane (XYZCT) then by row and column. */
+    private static class FileOrder implements Comparator<Integer> {
+
+        private final List<TileDef> tiles;
+
+        FileOrder(List<TileDef> tiles) {
+            this.tiles = tiles;
+        }
+
+        public int compare(Integer a, Integer b) {
+            TileDef x = tiles.get(a);
+            TileDef y = tiles.get(b);
+            int[] left = { x.getT(), x.getC(), x.getZ(), x.getY(), x.getX() };
+            int[] right = { y.getT(), y.getC(), y.getZ(), y.getY(), y.getX() };
+            for (int i = 0; i < left.length; i++) {
+                if (left[i] != right[i]) {
+                    return left[i] < right[i] ? -1 : 1;
+                }
+            }
+            return a.compareTo(b);
+        }
+    }
+
+    /**
+     * Checks the tiles of a batch against the dimensions of a pixel buffer
+     * at its current resolution level.
+     *
+     * @param source The pixel buffer to read the tiles from.
+     * @param tiles The tiles in the order requested.
+     * @throws ApiUsageException If <code>tiles</code> or one of them is
+     * <code>null</code>, or a tile is empty or out of the bounds of the pixel
+     * buffer.
+     */
+    public static void checkTiles(PixelBuffer source, List<TileDef> tiles) {
+        if (tiles == null) {
+            throw new ApiUsageException("Tile definitions cannot be null.");
+        }
+        for (int i = 0; i < tiles.size(); i++) {
+            TileDef tile = tiles.get(i);
+            if (tile == null) {
+                throw new ApiUsageException(
+                        "Tile definition cannot be null: " + i);
+            }
+            if (tile.getWidth() < 1 || tile.getHeight() < 1) {
+                throw new ApiUsageException("Invalid tile size: " + tile);
+            }
+            try {
+                source.checkBounds(tile.getX(), tile.getY(), tile.getZ(),
+                        tile.getC(), tile.getT());
+                source.checkBounds(tile.getX() + tile.getWidth() - 1,
+                        tile.getY() + tile.getHeight() - 1, tile.getZ(),
+                        tile.getC(), tile.getT());
+            } catch (DimensionsOutOfBoundsException e) {
+                throw new ApiUsageException("Tile out of bounds: " + tile
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the offset of each tile in the buffer of a batch and, as the
+     * last element, the size of the buffer.
+     *
+     * @param tiles The tiles in the order requested.
+     * @param byteWidth The number of bytes per pixel.
+     * @return An array of <code>tiles.size() + 1</code> offsets.
+     */
+    public static long[] getOffsets(List<TileDef> tiles, int byteWidth) {
+        long[] offsets = new long[tiles.size() + 1];
+        for (int i = 0; i < tiles.size(); i++) {
+            offsets[i + 1] = offsets[i] + tiles.get(i).getSize(byteWidth);
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns the size of the buffer of a batch.
+     *
+     * @param tiles The tiles.
+     * @param byteWidth The number of bytes per pixel.
+     * @return See above.
+     * @throws ApiUsageException If the tiles do not fit in a single buffer.
+     */
+    public static int getSize(List<TileDef> tiles, int byteWidth) {
+        long[] offsets = getOffsets(tiles, byteWidth);
+        return RomioPixelBuffer.safeLongToInteger(offsets[tiles.size()]);
+    }
+
+    /**
+     * Reads a batch of tiles.
+     *
+     * @param source The pixel buffer to read the tiles from.
+     * @param tiles The tiles in the order they are laid out in the buffer.
+     * @param buffer The buffer, of the size returned by
+     * {@link #getSize(List, int)}.
+     * @param workers Workers to read the tiles concurrently with,
+     * <code>null</code> to read them one at a time on the calling thread.
+     * @return <code>buffer</code>.
+     * @throws IOException If a tile cannot be read.
+     * @throws ApiUsageException If a tile is invalid, see
+     * {@link #checkTiles(PixelBuffer, List)}.
+     */
+    public static byte[] read(final PixelBuffer source,
+            final List<TileDef> tiles, final byte[] buffer,
+            ExecutorService workers) throws IOException {
+        checkTiles(source, tiles);
+        final long[] offsets = getOffsets(tiles, source.getByteWidth());
+        if (buffer.length != offsets[tiles.size()]) {
+            throw new ApiUsageException("Buffer size incorrect.");
+        }
+        Integer[] order = new Integer[tiles.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new FileOrder(tiles));
+
+        if (workers == null || order.length < 2) {
+            byte[] tile = null;
+            for (int i : order) {
+                int size = (int) (offsets[i + 1] - offsets[i]);
+                if (tile == null || tile.length != size) {
+                    tile = new byte[size];
+                }
+                readTile(source, tiles.get(i), tile, buffer, (int) offsets[i]);
+            }
+            return buffer;
+        }
+
+        // Set once the batch fails, so that the reads not started yet are
+        // skipped rather than cancelled.
+        final AtomicBoolean aborted = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<Future<?>>(order.length);
+        boolean done = false;
+        try {
+            for (final int i : order) {
+                futures.add(workers.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        if (aborted.get()) {
+                            return null;
+                        }
+                        byte[] tile = new byte[(int) (offsets[i + 1]
+                                                      - offsets[i])];
+                        readTile(source, tiles.get(i), tile, buffer,
+                                (int) offsets[i]);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            done = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceError("Interrupted reading tiles.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (!done) {
+                aborted.set(true);
+                awaitAll(futures);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Waits for the reads of a failed batch to end without interrupting
+     * them: an interrupted read closes the file of its reader, which is
+     * shared, and a read still running would go on writing to the buffer
+     * once it has been handed back to the caller.
+     */
+    private static void awaitAll(List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads a tile and copies it to its offset in the buffer of the batch.
+     */
+    private static void readTile(PixelBuffer source, TileDef def, byte[] tile,
+            byte[] buffer, int offset) throws IOException {
+        byte[] data = source.getTileDirect(def.getZ(), def.getC(), def.getT(),
+                def.getX(), def.getY(), def.getWidth(), def.getHeight(), tile);
+        System.arraycopy(data, 0, buffer, offset, data.length);
+    }
+}
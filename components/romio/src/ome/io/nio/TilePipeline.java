@@ -0,0 +1,499 @@
+/*
+ * ome.io.nio.TilePipeline
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import ome.util.PixelData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies every tile of a source pixel buffer into a destination pixel buffer,
+ * typically a pyramid being written. Tiles are read, and decoded if need be,
+ * concurrently by the workers of an executor shared with the other pipelines
+ * of the process, each worker using one of up to <code>maxSources</code>
+ * instances of the source. Tiles are handed to the destination in order on
+ * the calling thread, which is the only one writing.
+ * <p>
+ * At most <code>maxInFlight</code> tiles are read ahead of the tile being
+ * written, which bounds the memory used to <code>maxInFlight</code> tiles
+ * whatever the size of the image.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class TilePipeline {
+
+    /** The logger for this class. */
+    private final static Logger log = LoggerFactory.getLogger(TilePipeline.class);
+
+    /**
+     * Opens additional instances of the source, each used by a single worker
+     * at a time.
+     */
+    public interface SourceFactory {
+
+        /**
+         * Opens a new read-only instance of the source.
+         *
+         * @return See above.
+         * @throws IOException If the source cannot be opened.
+         */
+        PixelBuffer open() throws IOException;
+    }
+
+    /** Workers reading tiles, possibly shared with other pipelines. */
+    private final ExecutorService workers;
+
+    /** Maximum number of instances of the source opened. */
+    private final int maxSources;
+
+    /** Maximum number of tiles read ahead of the tile being written. */
+    private final int maxInFlight;
+
+    /** Name of the pipeline used when logging. */
+    private final String name;
+
+    /** Instances of the source which are not in use. */
+    private final BlockingQueue<PixelBuffer> idleSources =
+        new LinkedBlockingQueue<PixelBuffer>();
+
+    /** Instances of the source opened by the pipeline. */
+    private final List<PixelBuffer> openedSources = new ArrayList<PixelBuffer>();
+
+    /** Number of instances of the source, guarded by {@link #openedSources}. */
+    private int sourceCount;
+
+    /**
+     * Minimum and maximum of each channel or <code>null</code> if they are
+     * not calculated, guarded by itself.
+     */
+    private double[][] channelMinMax;
+
+    /** Number of tiles written. */
+    private long tileCount;
+
+    /** Number of bytes written. */
+    private long byteCount;
+
+    /** Time taken by the last run in milliseconds. */
+    private long elapsedTime;
+
+    /**
+     * Creates a new pipeline.
+     *
+     * @param workers The workers reading tiles.
+     * @param maxSources The maximum number of instances of the source read
+     * concurrently.
+     * @param maxInFlight The maximum number of tiles read ahead of the tile
+     * being written.
+     * @param name The name of the pipeline used when logging.
+     */
+    public TilePipeline(ExecutorService workers, int maxSources,
+            int maxInFlight, String name)
+    {
+        if (maxSources < 1 || maxInFlight < 1)
+        {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid pipeline bounds: sources=%d in flight=%d",
+                    maxSources, maxInFlight));
+        }
+        this.workers = workers;
+        this.maxSources = maxSources;
+        this.maxInFlight = maxInFlight;
+        this.name = name;
+    }
+
+    /**
+     * Calculates the minimum and maximum of each channel while reading the
+     * tiles.
+     *
+     * @param sizeC The number of channels of the source.
+     * @see #getChannelMinMax()
+     */
+    public void calculateChannelMinMax(int sizeC)
+    {
+        channelMinMax = new double[sizeC][];
+        for (int c = 0; c < sizeC; c++)
+        {
+            channelMinMax[c] = new double[] {
+                    Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        }
+    }
+
+    /**
+     * Returns the minimum and maximum of each channel read.
+     *
+     * @return See above or <code>null</code> if they were not calculated.
+     * @see #calculateChannelMinMax(int)
+     */
+    public double[][] getChannelMinMax()
+    {
+        return channelMinMax;
+    }
+
+    /**
+     * Returns the number of tiles written by the last run.
+     *
+     * @return See above.
+     */
+    public long getTileCount()
+    {
+        return tileCount;
+    }
+
+    /**
+     * Returns the number of bytes written by the last run.
+     *
+     * @return See above.
+     */
+    public long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * Returns the time taken by the last run in milliseconds.
+     *
+     * @return See above.
+     */
+    public long getElapsedTime()
+    {
+        return elapsedTime;
+    }
+
+    /**
+     * Copies every tile of the source into the destination. The instances of
+     * the source opened by the pipeline are closed on return,
+     * <code>source</code> is left to the caller.
+     *
+     * @param source The source, also used to iterate over the tiles.
+     * @param factory Opens additional instances of the source.
+     * @param destination The pixel buffer the tiles are written to.
+     * @param tileWidth The maximum width of the tiles.
+     * @param tileHeight The maximum height of the tiles.
+     * @throws IOException If a tile cannot be read or written. No tile is
+     * read or written afterwards.
+     */
+    public void run(PixelBuffer source, SourceFactory factory,
+            final PixelBuffer destination, int tileWidth, int tileHeight)
+        throws IOException
+    {
+        final Run run = new Run(factory, destination, source.getSizeX(),
+                source.getSizeY(), tileWidth, tileHeight,
+                (long) source.getSizeZ() * source.getSizeC()
+                * source.getSizeT());
+        idleSources.add(source);
+        sourceCount = 1;
+        tileCount = 0;
+        byteCount = 0;
+        long start = System.currentTimeMillis();
+        try
+        {
+            Utils.forEachTile(new TileLoopIteration() {
+                public void run(int z, int c, int t, int x, int y, int w,
+                                int h, int count)
+                {
+                    run.submit(new int[] { z, c, t, x, y, w, h });
+                }
+            }, source, tileWidth, tileHeight);
+            run.drain();
+        }
+        finally
+        {
+            run.await();
+            elapsedTime = System.currentTimeMillis() - start;
+            idleSources.clear();
+            closeSources();
+        }
+        log.info(String.format(
+                "%s: %d tiles, %d bytes in %d ms (%.1f tiles/s)", name,
+                tileCount, byteCount, elapsedTime, rate(tileCount)));
+    }
+
+    /**
+     * Returns a number of items per second since the start of the run.
+     */
+    private double rate(long count)
+    {
+        return elapsedTime == 0 ? 0 : count * 1000.0 / elapsedTime;
+    }
+
+    /**
+     * Closes the instances of the source opened by the pipeline.
+     */
+    private void closeSources()
+    {
+        synchronized (openedSources)
+        {
+            for (PixelBuffer opened : openedSources)
+            {
+                try
+                {
+                    opened.close();
+                }
+                catch (IOException e)
+                {
+                    log.warn("Failed to close source of " + name, e);
+                }
+            }
+            openedSources.clear();
+        }
+    }
+
+    /**
+     * Takes an idle instance of the source, opening a new one if fewer than
+     * {@link #maxSources} are open and waiting otherwise.
+     */
+    private PixelBuffer acquireSource(SourceFactory factory)
+        throws IOException, InterruptedException
+    {
+        PixelBuffer source = idleSources.poll();
+        if (source != null)
+        {
+            return source;
+        }
+        synchronized (openedSources)
+        {
+            if (sourceCount < maxSources)
+            {
+                source = factory.open();
+                openedSources.add(source);
+                sourceCount++;
+                return source;
+            }
+        }
+        return idleSources.take();
+    }
+
+    /**
+     * Merges the minimum and maximum of a tile into those of its channel.
+     */
+    private void updateChannelMinMax(int c, PixelData tile)
+    {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int size = tile.size();
+        for (int i = 0; i < size; i++)
+        {
+            double value = tile.getPixelValue(i);
+            if (value < min)
+            {
+                min = value;
+            }
+            if (value > max)
+            {
+                max = value;
+            }
+        }
+        synchronized (channelMinMax)
+        {
+            channelMinMax[c][0] = Math.min(channelMinMax[c][0], min);
+            channelMinMax[c][1] = Math.max(channelMinMax[c][1], max);
+        }
+    }
+
+    /**
+     * State of a single run, only accessed by the calling thread except for
+     * the tasks reading tiles.
+     */
+    private class Run
+    {
+        private final SourceFactory factory;
+
+        private final PixelBuffer destination;
+
+        /** Tiles read or being read, in the order they have to be written. */
+        private final LinkedList<Future<PixelData>> inFlight =
+            new LinkedList<Future<PixelData>>();
+
+        /** Coordinates of the tiles in {@link #inFlight}. */
+        private final LinkedList<int[]> inFlightTiles = new LinkedList<int[]>();
+
+        /** Total number of tiles to write. */
+        private final long totalTiles;
+
+        /** Number of tiles between two progress messages. */
+        private final long tenPercent;
+
+        /** The first failure, after which no tile is submitted or written. */
+        private IOException failure;
+
+        /** Time of the start of the run. */
+        private final long start = System.currentTimeMillis();
+
+        Run(SourceFactory factory, PixelBuffer destination, int sizeX,
+                int sizeY, int tileWidth, int tileHeight, long planeCount)
+        {
+            this.factory = factory;
+            this.destination = destination;
+            totalTiles = planeCount
+                * ((sizeX + tileWidth - 1) / tileWidth)
+                * ((sizeY + tileHeight - 1) / tileHeight);
+            tenPercent = Math.max(totalTiles / 10, 1);
+        }
+
+        /**
+         * Queues the reading of a tile, first writing tiles already read
+         * until fewer than {@link TilePipeline#maxInFlight} are in flight.
+         */
+        void submit(final int[] tile)
+        {
+            if (failure != null)
+            {
+                return;
+            }
+            try
+            {
+                while (inFlight.size() >= maxInFlight)
+                {
+                    writeNext();
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                return;
+            }
+            inFlight.add(workers.submit(new Callable<PixelData>() {
+                public PixelData call() throws Exception
+                {
+                    return read(tile);
+                }
+            }));
+            inFlightTiles.add(tile);
+        }
+
+        /**
+         * Writes all the tiles in flight, rethrowing the first failure.
+         */
+        void drain() throws IOException
+        {
+            while (failure == null && !inFlight.isEmpty())
+            {
+                try
+                {
+                    writeNext();
+                }
+                catch (IOException e)
+                {
+                    failure = e;
+                }
+            }
+            if (failure != null)
+            {
+                throw failure;
+            }
+        }
+
+        /**
+         * Waits for the tasks still in flight so that no source is in use
+         * once the run is over.
+         */
+        void await()
+        {
+            for (Future<PixelData> future : inFlight)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (ExecutionException e)
+                {
+                    // Already failed, reported by the first failure.
+                }
+            }
+            inFlight.clear();
+            inFlightTiles.clear();
+        }
+
+        /**
+         * Reads a tile on a worker.
+         */
+        private PixelData read(int[] tile) throws Exception
+        {
+            PixelBuffer source = acquireSource(factory);
+            try
+            {
+                PixelData data = source.getTile(tile[0], tile[1], tile[2],
+                        tile[3], tile[4], tile[5], tile[6]);
+                if (channelMinMax != null)
+                {
+                    updateChannelMinMax(tile[1], data);
+                }
+                return data;
+            }
+            finally
+            {
+                idleSources.add(source);
+            }
+        }
+
+        /**
+         * Writes the oldest tile in flight once it has been read.
+         */
+        private void writeNext() throws IOException
+        {
+            Future<PixelData> future = inFlight.removeFirst();
+            int[] tile = inFlightTiles.removeFirst();
+            PixelData data;
+            try
+            {
+                data = future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+            byte[] buffer = data.getData().array();
+            destination.setTile(buffer, tile[0], tile[1], tile[2], tile[3],
+                    tile[4], tile[5], tile[6]);
+            tileCount++;
+            byteCount += buffer.length;
+            if (log.isInfoEnabled() && tileCount % tenPercent == 0)
+            {
+                long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+                log.info(String.format(
+                        "%s: %d/%d (%d%%) %.1f tiles/s %.1f MB/s", name,
+                        tileCount, totalTiles, tileCount * 100 / totalTiles,
+                        tileCount * 1000.0 / elapsed,
+                        byteCount * 1000.0 / elapsed / (1024 * 1024)));
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import ome.io.bioformats.DecodedTileCache;
+
+/**
+ * Checks the bounds, eviction order, invalidation and metrics of the
+ * {@link DecodedTileCache}.
+ */
+public class DecodedTileCacheUnitTest {
+
+    private static final String PATH = "/OMERO/Pixels/1_pyramid";
+
+    private static final String OTHER_PATH = "/OMERO/Pixels/2_pyramid";
+
+    private byte[] tile(int size, int value) {
+        byte[] tile = new byte[size];
+        Arrays.fill(tile, (byte) value);
+        return tile;
+    }
+
+    private String key(DecodedTileCache cache, String path, int x) {
+        return cache.createKey(path, 1000L, 0, 0, x, 0, 16, 16);
+    }
+
+    @Test
+    public void testGetReturnsCopy() {
+        DecodedTileCache cache = new DecodedTileCache(1024);
+        String key = key(cache, PATH, 0);
+        assertNull(cache.get(key));
+        cache.put(key, tile(256, 7));
+        byte[] data = cache.get(key);
+        assertTrue(Arrays.equals(tile(256, 7), data));
+        data[0] = 0;
+        assertTrue(Arrays.equals(tile(256, 7), cache.get(key)));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2.0 / 3.0, cache.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void testGetIntoBuffer() {
+        DecodedTileCache cache = new DecodedTileCache(1024);
+        String key = key(cache, PATH, 0);
+        cache.put(key, tile(256, 3));
+        byte[] buffer = new byte[256];
+        assertTrue(cache.get(key, buffer));
+        assertTrue(Arrays.equals(tile(256, 3), buffer));
+        assertFalse(cache.get(key, new byte[128]));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        DecodedTileCache cache = new DecodedTileCache(768);
+        String first = key(cache, PATH, 0);
+        String second = key(cache, PATH, 16);
+        String third = key(cache, PATH, 32);
+        String fourth = key(cache, PATH, 48);
+        cache.put(first, tile(256, 1));
+        cache.put(second, tile(256, 2));
+        cache.put(third, tile(256, 3));
+        assertNotNull(cache.get(first));
+        cache.put(fourth, tile(256, 4));
+        assertEquals(768, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(second));
+        assertTrue(Arrays.equals(tile(256, 1), cache.get(first)));
+        assertTrue(Arrays.equals(tile(256, 3), cache.get(third)));
+        assertTrue(Arrays.equals(tile(256, 4), cache.get(fourth)));
+    }
+
+    @Test
+    public void testTilesOfOtherSizesEvicted() {
+        DecodedTileCache cache = new DecodedTileCache(768);
+        cache.put(key(cache, PATH, 0), tile(256, 1));
+        cache.put(key(cache, PATH, 16), tile(256, 2));
+        cache.put(key(cache, PATH, 32), tile(512, 3));
+        assertEquals(768, cache.getSize());
+        assertEquals(2, cache.getCount());
+        assertNull(cache.get(key(cache, PATH, 0)));
+        assertTrue(Arrays.equals(tile(512, 3),
+                cache.get(key(cache, PATH, 32))));
+    }
+
+    @Test
+    public void testTooLargeTileNotCached() {
+        DecodedTileCache cache = new DecodedTileCache(128);
+        cache.put(key(cache, PATH, 0), tile(256, 1));
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidate() {
+        DecodedTileCache cache = new DecodedTileCache(1024);
+        cache.put(key(cache, PATH, 0), tile(256, 1));
+        cache.put(key(cache, PATH, 16), tile(256, 2));
+        cache.put(key(cache, OTHER_PATH, 0), tile(256, 3));
+        cache.invalidate(PATH);
+        assertEquals(1, cache.getCount());
+        assertEquals(256, cache.getSize());
+        assertNull(cache.get(key(cache, PATH, 0)));
+        assertNotNull(cache.get(key(cache, OTHER_PATH, 0)));
+        // The buffers of invalidated tiles are reused and stay in bounds.
+        for (int x = 0; x < 10; x++) {
+            cache.put(key(cache, PATH, x * 16), tile(256, x));
+        }
+        assertEquals(1024, cache.getSize());
+        assertTrue(Arrays.equals(tile(256, 9),
+                cache.get(key(cache, PATH, 9 * 16))));
+    }
+
+    @Test
+    public void testModifiedPyramidMisses() {
+        DecodedTileCache cache = new DecodedTileCache(1024);
+        cache.put(cache.createKey(PATH, 1000L, 0, 0, 0, 0, 16, 16),
+                tile(256, 1));
+        assertNull(cache.get(cache.createKey(PATH, 2000L, 0, 0, 0, 0, 16, 16)));
+        assertNull(cache.get(cache.createKey(PATH, 1000L, 1, 0, 0, 0, 16, 16)));
+    }
+
+    @Test
+    public void testDisabled() {
+        DecodedTileCache cache = new DecodedTileCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put(key(cache, PATH, 0), tile(16, 1));
+        assertNull(cache.get(key(cache, PATH, 0)));
+        assertEquals(0, cache.getCount());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.testng.annotations.*;
+
+import ome.io.bioformats.DownsampledLevels;
+import ome.util.PixelData;
+
+/**
+ * Checks the lower resolution levels built by {@link DownsampledLevels} from
+ * the full resolution tiles of two planes.
+ */
+public class DownsampledLevelsUnitTest {
+
+    private static final int SIZE_X = 100;
+
+    private static final int SIZE_Y = 70;
+
+    private static final int TILE = 32;
+
+    private static final int[] FACTORS = new int[] { 4, 2 };
+
+    /** Level sizes as computed by BfPyramidPixelBuffer for a 32x32 tile. */
+    private static final int[] WIDTHS = new int[] { 25, 50 };
+
+    private static final int[] HEIGHTS = new int[] { 18, 35 };
+
+    private File spill;
+
+    private DownsampledLevels levels;
+
+    @BeforeMethod
+    public void createLevels() throws IOException {
+        spill = File.createTempFile("levels", ".tmp");
+        levels = new DownsampledLevels(spill, "uint16", ByteOrder.BIG_ENDIAN,
+                SIZE_X, SIZE_Y, TILE, TILE, FACTORS, WIDTHS, HEIGHTS);
+    }
+
+    @AfterMethod
+    public void closeLevels() throws IOException {
+        levels.close();
+        assertFalse(spill.exists());
+    }
+
+    private static int value(int plane, int x, int y) {
+        return plane * 1000 + x * 3 + y * 7;
+    }
+
+    private void addPlane(int plane) throws IOException {
+        for (int y = 0; y < SIZE_Y; y += TILE) {
+            for (int x = 0; x < SIZE_X; x += TILE) {
+                int w = Math.min(TILE, SIZE_X - x);
+                int h = Math.min(TILE, SIZE_Y - y);
+                PixelData tile = new PixelData("uint16",
+                        ByteBuffer.wrap(new byte[w * h * 2]));
+                for (int j = 0; j < h; j++) {
+                    for (int i = 0; i < w; i++) {
+                        tile.setPixelValue(j * w + i, value(plane, x + i, y + j));
+                    }
+                }
+                assertTrue(levels.add(plane, tile.getData().array(), x, y, w, h));
+            }
+        }
+    }
+
+    private void assertBoxMeans(int level, int plane) throws IOException {
+        PixelData data = new PixelData("uint16",
+                ByteBuffer.wrap(levels.getPlane(level, plane)));
+        int f = FACTORS[level];
+        // Pixels of full tiles are the mean of an f x f block.
+        for (int y = 0; y < (SIZE_Y / TILE) * TILE / f; y++) {
+            for (int x = 0; x < (SIZE_X / TILE) * TILE / f; x++) {
+                double sum = 0;
+                for (int j = 0; j < f; j++) {
+                    for (int i = 0; i < f; i++) {
+                        sum += value(plane, x * f + i, y * f + j);
+                    }
+                }
+                assertEquals(Math.round(sum / (f * f)),
+                        (long) data.getPixelValue(y * WIDTHS[level] + x));
+            }
+        }
+        // Pixels of remainder tiles are filled too.
+        double last = data.getPixelValue(
+                WIDTHS[level] * HEIGHTS[level] - 1);
+        assertTrue(last >= value(plane, 0, 0));
+    }
+
+    @Test
+    public void testBoxMeans() throws Exception {
+        addPlane(0);
+        addPlane(1);
+        levels.flush();
+        for (int level = 0; level < FACTORS.length; level++) {
+            assertBoxMeans(level, 0);
+            assertBoxMeans(level, 1);
+        }
+    }
+
+    @Test
+    public void testPlaneRevisited() throws Exception {
+        addPlane(1);
+        addPlane(0);
+        levels.flush();
+        assertBoxMeans(0, 1);
+        assertBoxMeans(1, 0);
+    }
+
+    @Test
+    public void testMissingPlaneEmpty() throws Exception {
+        addPlane(0);
+        levels.flush();
+        byte[] plane = levels.getPlane(1, 2);
+        assertEquals(WIDTHS[1] * HEIGHTS[1] * 2, plane.length);
+        for (byte b : plane) {
+            assertEquals(0, b);
+        }
+    }
+
+    @Test
+    public void testTileOffGrid() throws Exception {
+        assertFalse(levels.add(0, new byte[16 * 16 * 2], 16, 0, 16, 16));
+        assertFalse(levels.add(0, new byte[16 * 32 * 2], 0, 0, 16, 32));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.io.nio.PackedThumbnailService;
+import ome.io.nio.ThumbnailService;
+import ome.model.display.Thumbnail;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Writes, reads, removes and migrates thumbnails in the packs of a
+ * {@link PackedThumbnailService}.
+ */
+public class PackedThumbnailServiceUnitTest {
+
+    private String root;
+
+    private PackedThumbnailService service;
+
+    @BeforeMethod
+    public void setup() {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        service = new PackedThumbnailService(root, 10, 0.5);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private Thumbnail thumbnail(long id) {
+        Thumbnail thumbnail = new Thumbnail();
+        thumbnail.setId(id);
+        return thumbnail;
+    }
+
+    private byte[] bytes(long id, int version) {
+        byte[] buf = new byte[(int) (id % 7) * 100 + 10];
+        Arrays.fill(buf, (byte) (id * 13 + version));
+        return buf;
+    }
+
+    private File pack(long pack) {
+        return new File(root, "Thumbnails/Packs/Dir-000/" + pack + ".pack");
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        List<Thumbnail> thumbnails = new ArrayList<Thumbnail>();
+        for (long id = 1; id < 25; id++) {
+            service.createThumbnail(thumbnail(id), bytes(id, 0));
+            thumbnails.add(thumbnail(id));
+        }
+        OutputStream stream = service.getThumbnailOutputStream(thumbnail(3));
+        stream.write(bytes(3, 1));
+        stream.close();
+
+        assertEquals(service.getThumbnail(thumbnail(3)), bytes(3, 1));
+        assertEquals(service.getThumbnailLength(thumbnail(5)),
+                bytes(5, 0).length);
+        assertTrue(service.getThumbnailExists(thumbnail(24)));
+        assertFalse(service.getThumbnailExists(thumbnail(25)));
+        Map<Long, byte[]> buffers = service.getThumbnails(thumbnails);
+        assertEquals(buffers.size(), 24);
+        for (long id = 4; id < 25; id++) {
+            assertEquals(buffers.get(id), bytes(id, 0));
+        }
+        // One pack per ten ids, no file per thumbnail.
+        assertTrue(pack(0).exists());
+        assertTrue(pack(2).exists());
+        assertFalse(new File(service.getThumbnailPath(3L)).exists());
+
+        // Read again from disk.
+        service = new PackedThumbnailService(root, 10, 0.5);
+        assertEquals(service.getThumbnail(thumbnail(3)), bytes(3, 1));
+        assertEquals(service.getThumbnail(thumbnail(17)), bytes(17, 0));
+    }
+
+    @Test
+    public void testRemoveCompacts() throws IOException {
+        for (long id = 10; id < 20; id++) {
+            service.createThumbnail(thumbnail(id), bytes(id, 0));
+        }
+        long before = pack(1).length();
+        service.removeThumbnails(Arrays.asList(10L, 11L, 12L));
+        assertFalse(service.getThumbnailExists(thumbnail(11)));
+        assertTrue(pack(1).length() > before);
+        service.removeThumbnails(Arrays.asList(13L, 14L, 15L, 16L));
+        assertTrue(pack(1).length() < before);
+        for (long id = 17; id < 20; id++) {
+            assertEquals(service.getThumbnail(thumbnail(id)), bytes(id, 0));
+        }
+
+        service = new PackedThumbnailService(root, 10, 0.5);
+        assertFalse(service.getThumbnailExists(thumbnail(16)));
+        assertEquals(service.getThumbnail(thumbnail(19)), bytes(19, 0));
+
+        service.removeThumbnails(Arrays.asList(17L, 18L, 19L));
+        assertFalse(pack(1).exists());
+    }
+
+    @Test
+    public void testIndexRebuiltFromPack() throws IOException {
+        for (long id = 0; id < 5; id++) {
+            service.createThumbnail(thumbnail(id), bytes(id, 0));
+        }
+        service.removeThumbnails(Arrays.asList(1L));
+        File index = new File(root, "Thumbnails/Packs/Dir-000/0.idx");
+        assertTrue(index.delete());
+        // A record only partly written.
+        RandomAccessFile data = new RandomAccessFile(pack(0), "rw");
+        data.seek(data.length());
+        data.writeLong(4L);
+        data.writeInt(1000);
+        data.close();
+
+        service = new PackedThumbnailService(root, 10, 0.5);
+        assertFalse(service.getThumbnailExists(thumbnail(1)));
+        assertEquals(service.getThumbnail(thumbnail(4)), bytes(4, 0));
+        service.createThumbnail(thumbnail(2), bytes(2, 1));
+
+        service = new PackedThumbnailService(root, 10, 0.5);
+        assertEquals(service.getThumbnail(thumbnail(2)), bytes(2, 1));
+        assertEquals(service.getThumbnail(thumbnail(4)), bytes(4, 0));
+    }
+
+    @Test
+    public void testPackWrittenByAnotherService() throws IOException {
+        for (long id = 0; id < 3; id++) {
+            service.createThumbnail(thumbnail(id), bytes(id, 0));
+        }
+        assertEquals(service.getThumbnail(thumbnail(1)), bytes(1, 0));
+        // As a migration run by another process while the server is up.
+        PackedThumbnailService other = new PackedThumbnailService(root, 10,
+                0.5);
+        other.createThumbnail(thumbnail(5), bytes(5, 0));
+        other.createThumbnail(thumbnail(6), bytes(6, 0));
+
+        assertEquals(service.getThumbnail(thumbnail(5)), bytes(5, 0));
+        service.createThumbnail(thumbnail(7), bytes(7, 0));
+        assertEquals(other.getThumbnail(thumbnail(7)), bytes(7, 0));
+
+        service = new PackedThumbnailService(root, 10, 0.5);
+        for (long id : new long[] { 0, 1, 2, 5, 6, 7 }) {
+            assertEquals(service.getThumbnail(thumbnail(id)), bytes(id, 0));
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        for (long id = 0; id < 10; id++) {
+            service.createThumbnail(thumbnail(id), bytes(id, 0));
+        }
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 8; i++) {
+                final boolean writer = i == 0;
+                futures.add(threads.submit(new Callable<Object>() {
+                    public Object call() throws IOException {
+                        for (int j = 0; j < 50; j++) {
+                            long id = j % 10;
+                            if (writer) {
+                                // Appends and compacts the pack.
+                                service.createThumbnail(thumbnail(id),
+                                        bytes(id, 0));
+                            } else {
+                                assertEquals(service.getThumbnail(
+                                        thumbnail(id)), bytes(id, 0));
+                                assertEquals(service.getThumbnailLength(
+                                        thumbnail(id)), bytes(id, 0).length);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMigrate() throws IOException {
+        ThumbnailService files = new ThumbnailService(root);
+        for (long id = 998; id < 1003; id++) {
+            files.createThumbnail(thumbnail(id), bytes(id, 0));
+        }
+        // Read from the file until migrated.
+        assertEquals(service.getThumbnail(thumbnail(1001)), bytes(1001, 0));
+        service.createThumbnail(thumbnail(999), bytes(999, 1));
+
+        assertEquals(service.migrate(true), 4);
+        assertFalse(new File(files.getThumbnailPath(1001L)).exists());
+        assertFalse(new File(files.getThumbnailPath(1001L)).getParentFile()
+                .exists());
+        assertEquals(service.getThumbnail(thumbnail(999)), bytes(999, 1));
+        for (long id = 1000; id < 1003; id++) {
+            assertEquals(service.getThumbnail(thumbnail(id)), bytes(id, 0));
+        }
+        assertEquals(service.migrate(true), 0);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.*;
+
+import java.io.IOException;
+
+import ome.conditions.ApiUsageException;
+import ome.io.nio.InMemoryPlanarPixelBuffer;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelBufferPool;
+import ome.io.nio.PooledPixelBuffer;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Borrows and returns buffers of a {@link PixelBufferPool}, checking that
+ * buffers are reused, bounded in number, closed once idle for too long and
+ * never reused once invalidated.
+ */
+public class PixelBufferPoolUnitTest {
+
+    private static final long MAX_IDLE = 1000;
+
+    /** Buffer recording whether it has been closed. */
+    private static class TestBuffer extends InMemoryPlanarPixelBuffer {
+
+        boolean closed;
+
+        int resolutionLevel = 2;
+
+        TestBuffer() {
+            super(null, null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public int getResolutionLevels() {
+            return 3;
+        }
+
+        @Override
+        public int getResolutionLevel() {
+            return resolutionLevel;
+        }
+
+        @Override
+        public void setResolutionLevel(int resolutionLevel) {
+            this.resolutionLevel = resolutionLevel;
+        }
+    }
+
+    /** Counts the buffers opened. */
+    private static class TestFactory implements PixelBufferPool.Factory {
+
+        int created;
+
+        TestBuffer last;
+
+        public PixelBuffer create() {
+            created++;
+            last = new TestBuffer();
+            return last;
+        }
+    }
+
+    /** Pool whose clock is set by the tests. */
+    private static class TestPool extends PixelBufferPool {
+
+        long now;
+
+        TestPool(int maxOpen) {
+            super(maxOpen, MAX_IDLE);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private TestPool pool;
+
+    private TestFactory factory;
+
+    @BeforeMethod
+    public void setup() {
+        pool = new TestPool(2);
+        factory = new TestFactory();
+    }
+
+    @Test
+    public void testReturnedBufferIsReused() throws IOException {
+        PixelBuffer buffer = pool.borrow(1L, "a", factory);
+        assertTrue(buffer instanceof PooledPixelBuffer);
+        assertEquals(pool.getBorrowedCount(1L), 1);
+        buffer.setResolutionLevel(0);
+        buffer.close();
+        assertEquals(pool.getBorrowedCount(1L), 0);
+        assertEquals(pool.getIdleCount(), 1);
+        assertFalse(factory.last.closed);
+        // Back at the highest resolution for the next borrower.
+        assertEquals(factory.last.resolutionLevel, 2);
+
+        PixelBuffer again = pool.borrow(1L, "a", factory);
+        assertEquals(factory.created, 1);
+        assertEquals(pool.getHits(), 1);
+        assertEquals(again.getResolutionLevel(), 2);
+        again.close();
+    }
+
+    @Test
+    public void testConcurrentBorrowsOpenSeveralBuffers() throws IOException {
+        PixelBuffer first = pool.borrow(1L, "a", factory);
+        PixelBuffer second = pool.borrow(1L, "a", factory);
+        assertEquals(factory.created, 2);
+        assertEquals(pool.getBorrowedCount(1L), 2);
+        first.close();
+        second.close();
+        assertEquals(pool.getIdleCount(), 2);
+    }
+
+    @Test(expectedExceptions = ApiUsageException.class)
+    public void testReturnedBufferCannotBeUsed() throws IOException {
+        PixelBuffer buffer = pool.borrow(1L, "a", factory);
+        buffer.close();
+        // Closing twice is harmless.
+        buffer.close();
+        assertEquals(pool.getIdleCount(), 1);
+        buffer.getSizeX();
+    }
+
+    @Test
+    public void testOtherPathIsNotReused() throws IOException {
+        pool.borrow(1L, "original", factory).close();
+        TestBuffer original = factory.last;
+        pool.borrow(1L, "pyramid", factory).close();
+        assertEquals(factory.created, 2);
+        assertTrue(original.closed);
+        assertEquals(pool.getOpenCount(), 1);
+    }
+
+    @Test
+    public void testLeastRecentlyReturnedIsClosedWhenFull()
+        throws IOException {
+        pool.borrow(1L, "a", factory).close();
+        TestBuffer first = factory.last;
+        pool.now++;
+        pool.borrow(2L, "b", factory).close();
+        TestBuffer second = factory.last;
+        pool.borrow(3L, "c", factory).close();
+        assertTrue(first.closed);
+        assertFalse(second.closed);
+        assertEquals(pool.getOpenCount(), 2);
+    }
+
+    @Test
+    public void testUnpooledWhenAllBorrowed() throws IOException {
+        PixelBuffer a = pool.borrow(1L, "a", factory);
+        PixelBuffer b = pool.borrow(2L, "b", factory);
+        PixelBuffer c = pool.borrow(3L, "c", factory);
+        assertFalse(c instanceof PooledPixelBuffer);
+        c.close();
+        assertTrue(factory.last.closed);
+        a.close();
+        b.close();
+        assertEquals(pool.getOpenCount(), 2);
+    }
+
+    @Test
+    public void testIdleBuffersAreClosed() throws IOException {
+        pool.borrow(1L, "a", factory).close();
+        TestBuffer idle = factory.last;
+        pool.now += MAX_IDLE + 1;
+        pool.borrow(2L, "b", factory).close();
+        assertTrue(idle.closed);
+        assertEquals(pool.getIdleCount(), 1);
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        pool.borrow(1L, "a", factory).close();
+        TestBuffer first = factory.last;
+        PixelBuffer borrowed = pool.borrow(1L, "a", factory);
+        pool.borrow(1L, "a", factory).close();
+        TestBuffer second = factory.last;
+        pool.invalidate(1L);
+        // Idle, closed straight away.
+        assertTrue(second.closed);
+        assertFalse(first.closed);
+        borrowed.close();
+        // Borrowed before the invalidation, closed rather than returned.
+        assertTrue(first.closed);
+        assertEquals(pool.getOpenCount(), 0);
+        pool.borrow(1L, "a", factory).close();
+        assertEquals(pool.getIdleCount(), 1);
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        pool = new TestPool(0);
+        PixelBuffer buffer = pool.borrow(1L, "a", factory);
+        assertFalse(buffer instanceof PooledPixelBuffer);
+        buffer.close();
+        assertTrue(factory.last.closed);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ome.io.nio.DimensionsOutOfBoundsException;
+import ome.io.nio.PixelsDigest;
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Calculates the digests of ROMIO pixels files, one plane after the other
+ * and as tree digests, checking which planes are read again once written.
+ */
+public class PixelsDigestUnitTest {
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    /** Counts the planes read. */
+    private static class CountingBuffer extends RomioPixelBuffer {
+
+        int reads;
+
+        CountingBuffer(String path, Pixels pixels) {
+            super(path, pixels, true);
+        }
+
+        @Override
+        public synchronized byte[] getPlaneDirect(Integer z, Integer c,
+                Integer t, byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+            reads++;
+            return super.getPlaneDirect(z, c, t, buffer);
+        }
+    }
+
+    /**
+     * Fails to read the first plane once two others are being read, slowly
+     * reads the others.
+     */
+    private static class FailingBuffer extends RomioPixelBuffer {
+
+        final CountDownLatch reading = new CountDownLatch(2);
+
+        volatile boolean interrupted;
+
+        FailingBuffer(String path, Pixels pixels) {
+            super(path, pixels, true);
+        }
+
+        @Override
+        public byte[] getPlaneDirect(Integer z, Integer c, Integer t,
+                byte[] buffer)
+            throws IOException, DimensionsOutOfBoundsException {
+            if (z == 0 && c == 0 && t == 0) {
+                try {
+                    reading.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Failed read");
+            }
+            reading.countDown();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                Thread.currentThread().interrupt();
+            }
+            return super.getPlaneDirect(z, c, t, buffer);
+        }
+    }
+
+    private Pixels pixels;
+
+    private String path;
+
+    private ExecutorService workers;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        PixelsType type = new PixelsType();
+        type.setValue("uint8");
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(16);
+        pixels.setSizeY(8);
+        pixels.setSizeZ(3);
+        pixels.setSizeC(2);
+        pixels.setSizeT(2);
+        pixels.setPixelsType(type);
+        new File(ROOT).mkdirs();
+        path = ROOT + "1";
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        for (int t = 0; t < 2; t++) {
+            for (int c = 0; c < 2; c++) {
+                for (int z = 0; z < 3; z++) {
+                    writer.setPlane(plane(z + 3 * c + 6 * t), z, c, t);
+                }
+            }
+        }
+        writer.close();
+        workers = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        workers.shutdownNow();
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    private byte[] plane(int seed) {
+        byte[] plane = new byte[16 * 8];
+        for (int i = 0; i < plane.length; i++) {
+            plane[i] = (byte) (i * 31 + seed * 17);
+        }
+        return plane;
+    }
+
+    private PixelsDigest tree(ExecutorService workers) {
+        return new PixelsDigest(new ChecksumProviderFactoryImpl(),
+                ChecksumType.SHA1, true, workers);
+    }
+
+    @Test
+    public void testDefaultIsSha1OfPlanes() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        for (int i = 0; i < 12; i++) {
+            md.update(plane(i));
+        }
+        RomioPixelBuffer buffer = new RomioPixelBuffer(path, pixels);
+        assertEquals(buffer.calculateMessageDigest(), md.digest());
+        buffer.close();
+    }
+
+    @Test
+    public void testAlgorithm() throws IOException {
+        RomioPixelBuffer buffer = new RomioPixelBuffer(path, pixels);
+        buffer.setDigest(new PixelsDigest(new ChecksumProviderFactoryImpl(),
+                ChecksumType.MURMUR128, false, null));
+        byte[] murmur = buffer.calculateMessageDigest();
+        assertEquals(murmur.length, 16);
+        buffer.close();
+    }
+
+    @Test
+    public void testTreeDigestConcurrently() throws IOException {
+        RomioPixelBuffer buffer = new RomioPixelBuffer(path, pixels);
+        byte[] linear = buffer.calculateMessageDigest();
+        buffer.setDigest(tree(null));
+        byte[] tree = buffer.calculateMessageDigest();
+        buffer.close();
+        assertFalse(Arrays.equals(linear, tree));
+
+        buffer = new RomioPixelBuffer(path, pixels);
+        buffer.setDigest(tree(workers));
+        assertEquals(buffer.calculateMessageDigest(), tree);
+        buffer.close();
+    }
+
+    @Test
+    public void testOnlyPlanesWrittenDigestedAgain() throws IOException {
+        CountingBuffer buffer = new CountingBuffer(path, pixels);
+        buffer.setDigest(tree(workers));
+        byte[] before = buffer.calculateMessageDigest();
+        assertEquals(buffer.reads, 12);
+        // Cached until written.
+        assertEquals(buffer.calculateMessageDigest(), before);
+        assertEquals(buffer.reads, 12);
+        buffer.close();
+
+        // Cached next to the pixels file.
+        buffer = new CountingBuffer(path, pixels);
+        buffer.setDigest(tree(workers));
+        assertEquals(buffer.calculateMessageDigest(), before);
+        assertEquals(buffer.reads, 0);
+        buffer.setPlane(plane(100), 1, 1, 1);
+        byte[] after = buffer.calculateMessageDigest();
+        assertEquals(buffer.reads, 1);
+        assertFalse(Arrays.equals(after, before));
+        buffer.close();
+    }
+
+    @Test
+    public void testFailedDigestWaitsForTheOthers() throws Exception {
+        FailingBuffer buffer = new FailingBuffer(path, pixels);
+        buffer.setDigest(tree(workers));
+        try {
+            buffer.calculateMessageDigest();
+            fail("Expected the read to fail.");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "Failed read");
+        }
+        assertFalse(buffer.interrupted);
+        // The file of the buffer is still open.
+        buffer.setPlane(plane(100), 1, 1, 1);
+        assertEquals(buffer.getPlaneDirect(1, 1, 1, new byte[16 * 8]),
+                plane(100));
+        buffer.close();
+    }
+}
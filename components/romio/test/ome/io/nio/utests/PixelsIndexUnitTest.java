@@ -0,0 +1,300 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ome.io.nio.PixelsIndex;
+import ome.io.nio.PixelsService;
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.model.stats.StatsInfo;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Writes ROMIO pixels files through {@link RomioPixelBuffer}, checking the
+ * planes written and their statistics recorded in the {@link PixelsIndex}
+ * next to them.
+ */
+public class PixelsIndexUnitTest {
+
+    private static final int SIZE_X = 8;
+
+    private static final int SIZE_Y = 4;
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private Pixels pixels;
+
+    private String path;
+
+    @BeforeMethod
+    public void setup() {
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(2);
+        pixels.setSizeC(2);
+        pixels.setSizeT(1);
+        pixels.setPixelsType(type);
+        new File(ROOT).mkdirs();
+        path = ROOT + "1";
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    /** Returns a plane whose values go from <code>start</code> up. */
+    private byte[] plane(int start) {
+        ByteBuffer plane = ByteBuffer.allocate(SIZE_X * SIZE_Y * 2);
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+            plane.putShort((short) (start + i));
+        }
+        return plane.array();
+    }
+
+    private File indexFile() {
+        return new File(path + PixelsService.INDEX_SUFFIX);
+    }
+
+    @Test
+    public void testPlanesWritten() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        writer.setPlane(plane(10), 1, 0, 0);
+        writer.setPlane(plane(100), 0, 1, 0);
+        writer.close();
+        assertTrue(indexFile().exists());
+
+        RomioPixelBuffer reader = new RomioPixelBuffer(path, pixels);
+        PixelsIndex index = reader.getIndex();
+        assertFalse(index.isWritten(0, 0, 0));
+        assertTrue(index.isWritten(1, 0, 0));
+        assertTrue(index.isWritten(0, 1, 0));
+        assertEquals(index.getMin(1, 0, 0), 10.0);
+        assertEquals(index.getMax(1, 0, 0), 41.0);
+        assertEquals(index.getSum(1, 0, 0), (10.0 + 41.0) * 32 / 2);
+        assertEquals(index.getCount(1, 0, 0), 32);
+        // Empty planes are skipped, written ones read as they are.
+        assertNull(reader.getPlane(0, 0, 0));
+        assertEquals(reader.getPlane(1, 0, 0).getPixelValue(0), 10.0);
+        // Not every plane of the channels is known.
+        assertNull(index.getChannelMinMax(0));
+        assertNull(index.createStatsInfo());
+        reader.close();
+    }
+
+    @Test
+    public void testStatsInfo() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        writer.setPlane(plane(10), 0, 0, 0);
+        writer.setPlane(plane(20), 1, 0, 0);
+        // A stack at once, spanning both planes of the second channel.
+        byte[] stack = new byte[SIZE_X * SIZE_Y * 4];
+        System.arraycopy(plane(300), 0, stack, 0, SIZE_X * SIZE_Y * 2);
+        System.arraycopy(plane(200), 0, stack, SIZE_X * SIZE_Y * 2,
+                SIZE_X * SIZE_Y * 2);
+        writer.setStack(stack, 0, 1, 0);
+        writer.close();
+
+        RomioPixelBuffer reader = new RomioPixelBuffer(path, pixels);
+        StatsInfo[] stats = reader.getIndex().createStatsInfo();
+        assertEquals(stats[0].getGlobalMin(), 10.0);
+        assertEquals(stats[0].getGlobalMax(), 51.0);
+        assertEquals(stats[1].getGlobalMin(), 200.0);
+        assertEquals(stats[1].getGlobalMax(), 331.0);
+        reader.close();
+    }
+
+    @Test
+    public void testRowsWritten() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        byte[] plane = plane(5);
+        int rowSize = SIZE_X * 2;
+        for (int y = 0; y < SIZE_Y; y++) {
+            byte[] row = new byte[rowSize];
+            System.arraycopy(plane, y * rowSize, row, 0, rowSize);
+            writer.setTile(row, 0, 0, 0, 0, y, SIZE_X, 1);
+        }
+        PixelsIndex index = writer.getIndex();
+        assertTrue(index.hasStatistics(0, 0, 0));
+        assertEquals(index.getMin(0, 0, 0), 5.0);
+        assertEquals(index.getMax(0, 0, 0), 36.0);
+        assertEquals(index.getCount(0, 0, 0), 32);
+        // Not trusted by readers while being written.
+        assertFalse(indexFile().exists());
+        writer.close();
+        assertTrue(indexFile().exists());
+    }
+
+    @Test
+    public void testPlaneWrittenInPart() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        byte[] plane = plane(5);
+        int rowSize = SIZE_X * 2;
+        byte[] row = new byte[rowSize];
+        System.arraycopy(plane, 0, row, 0, rowSize);
+        writer.setTile(row, 0, 0, 0, 0, 0, SIZE_X, 1);
+        PixelsIndex index = writer.getIndex();
+        assertTrue(index.isWritten(0, 0, 0));
+        assertEquals(index.getCount(0, 0, 0), SIZE_X);
+        // The rest of the plane has not been counted.
+        assertFalse(index.hasStatistics(0, 0, 0));
+        writer.close();
+    }
+
+    @Test
+    public void testPartOfPlaneWrittenAgain() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        byte[] plane = plane(5);
+        int rowSize = SIZE_X * 2;
+        for (int y = 0; y < SIZE_Y; y++) {
+            byte[] row = new byte[rowSize];
+            System.arraycopy(plane, y * rowSize, row, 0, rowSize);
+            writer.setTile(row, 0, 0, 0, 0, y, SIZE_X, 1);
+        }
+        // The first row again, lowering the maximum of the plane.
+        writer.setTile(new byte[rowSize], 0, 0, 0, 0, 0, SIZE_X, 1);
+        PixelsIndex index = writer.getIndex();
+        assertTrue(index.isWritten(0, 0, 0));
+        assertFalse(index.hasStatistics(0, 0, 0));
+        // Until written again in whole.
+        writer.setPlane(plane(7), 0, 0, 0);
+        assertTrue(index.hasStatistics(0, 0, 0));
+        assertEquals(index.getMin(0, 0, 0), 7.0);
+        assertEquals(index.getCount(0, 0, 0), 32);
+        writer.close();
+    }
+
+    @Test
+    public void testPartOfPlaneWrittenAgainOnceRead() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        writer.setTile(new byte[SIZE_X * 2], 0, 0, 0, 0, 0, SIZE_X, 1);
+        writer.close();
+
+        // Which pixels were counted is not kept in the index file.
+        writer = new RomioPixelBuffer(path, pixels, true);
+        writer.setTile(new byte[SIZE_X * 2], 0, 0, 0, 0, 1, SIZE_X, 1);
+        assertFalse(writer.getIndex().hasStatistics(0, 0, 0));
+        assertEquals(writer.getIndex().getCount(0, 0, 0), SIZE_X);
+        writer.close();
+    }
+
+    @Test
+    public void testPlaneWrittenAgain() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        writer.setPlane(plane(1000), 0, 0, 0);
+        writer.close();
+
+        writer = new RomioPixelBuffer(path, pixels, true);
+        writer.setPlane(plane(3), 0, 0, 0);
+        PixelsIndex index = writer.getIndex();
+        assertEquals(index.getMin(0, 0, 0), 3.0);
+        assertEquals(index.getMax(0, 0, 0), 34.0);
+        assertEquals(index.getCount(0, 0, 0), 32);
+        writer.close();
+    }
+
+    @Test
+    public void testPartialPixelWritten() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        writer.setRegion(3, 1L, new byte[] { 1, 2, 3 });
+        PixelsIndex index = writer.getIndex();
+        assertTrue(index.isWritten(0, 0, 0));
+        assertFalse(index.hasStatistics(0, 0, 0));
+        writer.close();
+    }
+
+    @Test
+    public void testNoIndexForExistingPixels() throws IOException {
+        FileUtils.writeByteArrayToFile(new File(path), plane(0));
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        assertNull(writer.getIndex());
+        writer.setPlane(plane(1), 1, 0, 0);
+        writer.close();
+        assertFalse(indexFile().exists());
+
+        RomioPixelBuffer reader = new RomioPixelBuffer(path, pixels);
+        assertNull(reader.getIndex());
+        assertNotNull(reader.getPlane(0, 0, 0));
+        reader.close();
+    }
+
+    @Test
+    public void testConcurrentWritersMerged() throws IOException {
+        RomioPixelBuffer first = new RomioPixelBuffer(path, pixels, true);
+        RomioPixelBuffer second = new RomioPixelBuffer(path, pixels, true);
+        first.setPlane(plane(10), 0, 0, 0);
+        second.setPlane(plane(20), 1, 0, 0);
+        first.close();
+        second.close();
+
+        RomioPixelBuffer reader = new RomioPixelBuffer(path, pixels);
+        PixelsIndex index = reader.getIndex();
+        assertTrue(index.hasStatistics(0, 0, 0));
+        assertEquals(index.getMin(0, 0, 0), 10.0);
+        assertTrue(index.hasStatistics(1, 0, 0));
+        assertEquals(index.getMin(1, 0, 0), 20.0);
+        assertFalse(index.isWritten(0, 1, 0));
+        reader.close();
+    }
+
+    @Test
+    public void testPlaneWrittenByConcurrentWriters() throws IOException {
+        RomioPixelBuffer first = new RomioPixelBuffer(path, pixels, true);
+        RomioPixelBuffer second = new RomioPixelBuffer(path, pixels, true);
+        first.setPlane(plane(10), 0, 0, 0);
+        second.setPlane(plane(20), 0, 0, 0);
+        second.close();
+        first.close();
+
+        RomioPixelBuffer reader = new RomioPixelBuffer(path, pixels);
+        PixelsIndex index = reader.getIndex();
+        assertTrue(index.isWritten(0, 0, 0));
+        assertFalse(index.hasStatistics(0, 0, 0));
+        reader.close();
+    }
+
+    @Test
+    public void testWriterWithoutIndexInvalidates() throws IOException {
+        RomioPixelBuffer first = new RomioPixelBuffer(path, pixels, true);
+        first.setPlane(plane(10), 0, 0, 0);
+        // Opened while the index is not on disk.
+        RomioPixelBuffer second = new RomioPixelBuffer(path, pixels, true);
+        assertNull(second.getIndex());
+        second.setPlane(plane(20), 1, 0, 0);
+        first.close();
+        second.close();
+        assertFalse(indexFile().exists());
+
+        RomioPixelBuffer reader = new RomioPixelBuffer(path, pixels);
+        assertNull(reader.getIndex());
+        assertEquals(reader.getPlane(1, 0, 0).getPixelValue(0), 20.0);
+        reader.close();
+    }
+
+    @Test
+    public void testIndexOfOtherDimensionsIgnored() throws IOException {
+        RomioPixelBuffer writer = new RomioPixelBuffer(path, pixels, true);
+        writer.setPlane(plane(1), 0, 0, 0);
+        writer.close();
+        pixels.setSizeZ(3);
+        assertNull(PixelsIndex.read(indexFile(), pixels));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import loci.formats.FormatTools;
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.perf4j.StopWatch;
+import org.perf4j.slf4j.Slf4JStopWatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Writes and reads back pyramids of each tile compression. The
+ * <code>manual</code> benchmark compares the encoding and decoding
+ * throughput and the file size of each compression on synthetic 8 and 16-bit
+ * data.
+ * @since 5.0
+ */
+public class PyramidCodecUnitTest {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(PyramidCodecUnitTest.class);
+
+    private static final String[] CODECS =
+        new String[] { "JPEG-2000", "LZW", "Uncompressed" };
+
+    private static final int TILE_SIZE = 256;
+
+    private String root;
+
+    @BeforeClass
+    public void setup() {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        new File(root).mkdirs();
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private Pixels createPixels(String pixelsType, int sizeX, int sizeY) {
+        PixelsType type = new PixelsType();
+        type.setValue(pixelsType);
+        Pixels pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(sizeX);
+        pixels.setSizeY(sizeY);
+        pixels.setSizeZ(1);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        pixels.setPixelsType(type);
+        return pixels;
+    }
+
+    /**
+     * Synthetic microscopy-like data: a smooth background, a few bright
+     * blobs and some noise.
+     */
+    private double value(Random noise, double max, int x, int y) {
+        double background = 0.1 + 0.05 * Math.sin(x / 97.0)
+                * Math.cos(y / 83.0);
+        double blob = Math.max(0, Math.sin(x / 23.0) * Math.sin(y / 19.0));
+        double v = (background + 0.6 * blob * blob) * max
+                + noise.nextGaussian() * max * 0.01;
+        return Math.min(max, Math.max(0, v));
+    }
+
+    private byte[] tile(String pixelsType, int x0, int y0, int w, int h) {
+        Random noise = new Random(x0 * 31 + y0);
+        int bytesPerPixel = FormatTools.getBytesPerPixel(pixelsType);
+        double max = Math.pow(2, bytesPerPixel * 8) - 1;
+        byte[] tile = new byte[w * h * bytesPerPixel];
+        PixelData data = new PixelData(pixelsType, java.nio.ByteBuffer.wrap(tile));
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                data.setPixelValue(y * w + x,
+                        Math.round(value(noise, max, x0 + x, y0 + y)));
+            }
+        }
+        return tile;
+    }
+
+    private File write(final String codec, final String pixelsType,
+            int sizeX, int sizeY) throws Exception {
+        final File file = new File(root, codec + "-" + pixelsType + "_pyramid");
+        file.delete();
+        final BfPyramidPixelBuffer pyramid = new BfPyramidPixelBuffer(
+                createPixels(pixelsType, sizeX, sizeY),
+                file.getAbsolutePath(), true);
+        pyramid.setCompression(codec);
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int w, int h,
+                            int tileCount) {
+                try {
+                    pyramid.setTile(tile(pixelsType, x, y, w, h),
+                            z, c, t, x, y, w, h);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, pyramid, TILE_SIZE, TILE_SIZE);
+        pyramid.close();
+        return file;
+    }
+
+    private long readAll(File file, String pixelsType, int sizeX, int sizeY,
+            final boolean verify) throws Exception {
+        final String type = pixelsType;
+        final BfPyramidPixelBuffer pyramid = new BfPyramidPixelBuffer(
+                createPixels(pixelsType, sizeX, sizeY),
+                file.getAbsolutePath(), false);
+        final long[] bytes = new long[1];
+        try {
+            Utils.forEachTile(new TileLoopIteration() {
+                public void run(int z, int c, int t, int x, int y, int w,
+                                int h, int tileCount) {
+                    try {
+                        byte[] read = pyramid.getTile(z, c, t, x, y, w, h)
+                                .getData().array();
+                        if (verify) {
+                            assertEquals(read, tile(type, x, y, w, h));
+                        }
+                        bytes[0] += read.length;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, pyramid, TILE_SIZE, TILE_SIZE);
+            // The lower resolutions are described whatever the compression,
+            // highest resolution first.
+            List<List<Integer>> descriptions =
+                pyramid.getResolutionDescriptions();
+            assertEquals(descriptions.size(), pyramid.getResolutionLevels());
+            assertEquals(descriptions.get(0), Arrays.asList(sizeX, sizeY));
+            for (int i = 1; i < descriptions.size(); i++) {
+                assertTrue(descriptions.get(i).get(0)
+                        < descriptions.get(i - 1).get(0));
+                assertTrue(descriptions.get(i).get(1)
+                        < descriptions.get(i - 1).get(1));
+            }
+            // The lower resolutions are readable whatever the compression.
+            for (int level = 0; level < pyramid.getResolutionLevels() - 1;
+                 level++) {
+                pyramid.setResolutionLevel(level);
+                assertTrue(pyramid.getSizeX() > 0 && pyramid.getSizeY() > 0);
+                List<Integer> description = descriptions.get(
+                        pyramid.getResolutionLevels() - 1 - level);
+                assertEquals(pyramid.getSizeX(), (int) description.get(0));
+                assertEquals(pyramid.getSizeY(), (int) description.get(1));
+                pyramid.getTile(0, 0, 0, 0, 0, pyramid.getSizeX(),
+                        pyramid.getSizeY());
+            }
+        } finally {
+            pyramid.close();
+        }
+        return bytes[0];
+    }
+
+    @Test
+    public void testCodecs() throws Exception {
+        for (String codec : CODECS) {
+            for (String pixelsType : new String[] { "uint8", "uint16" }) {
+                File file = write(codec, pixelsType, 1000, 700);
+                // Only the tiles of the other compressions are bit exact.
+                readAll(file, pixelsType, 1000, 700,
+                        !"JPEG-2000".equals(codec));
+            }
+        }
+    }
+
+    @Test(groups = "manual")
+    public void benchmarkCodecs() throws Exception {
+        int size = 4096;
+        for (String pixelsType : new String[] { "uint8", "uint16" }) {
+            for (String codec : CODECS) {
+                String tag = "PyramidCodec." + codec + "." + pixelsType;
+                StopWatch encode = new Slf4JStopWatch(tag + ".encode");
+                File file = write(codec, pixelsType, size, size);
+                encode.stop();
+                long bytes = 0;
+                StopWatch decode = new Slf4JStopWatch(tag + ".decode");
+                for (int i = 0; i < 3; i++) {
+                    bytes += readAll(file, pixelsType, size, size, false);
+                }
+                decode.stop();
+                log.info(String.format(
+                        "%s: file %d bytes, encode %.1f MB/s, decode %.1f MB/s",
+                        tag, file.length(),
+                        bytes / 3.0 / 1048576 * 1000 / encode.getElapsedTime(),
+                        bytes / 1048576.0 * 1000 / decode.getElapsedTime()));
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+import ome.util.checksum.ChecksumProviderFactory;
+import ome.util.checksum.ChecksumProviderFactoryImpl;
+import ome.util.checksum.ChecksumType;
+
+import org.perf4j.StopWatch;
+import org.perf4j.slf4j.Slf4JStopWatch;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Reads tiles of a {@link BfPyramidPixelBuffer} from several threads through
+ * its pool of readers. The <code>manual</code> benchmark compares the time
+ * taken with a single reader, i.e. all decoding serialized, and with one
+ * reader per processor.
+ * @since 5.0
+ */
+public class PyramidReaderPoolUnitTest extends AbstractPyramidPixelBufferUnitTest {
+
+    private static final int THREAD_COUNT =
+        Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private final ChecksumProviderFactory cpf = new ChecksumProviderFactoryImpl();
+
+    /** Tile requests as {z, c, t, x, y, width, height}. */
+    private final List<int[]> tiles = new ArrayList<int[]>();
+
+    /** Digest of each tile read sequentially by a single reader. */
+    private final List<String> digests = new ArrayList<String>();
+
+    @BeforeClass
+    public void setup() throws Exception {
+        createService();
+        pixelBuffer = service.getPixelBuffer(pixels);
+        writeTiles(new ArrayList<String>());
+        pixelBuffer.close();
+        pixelBuffer = service.getPixelBuffer(pixels);
+        Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int tileWidth,
+                            int tileHeight, int tileCount) {
+                tiles.add(new int[] { z, c, t, x, y, tileWidth, tileHeight });
+            }
+        }, pixelBuffer, tileWidth, tileHeight);
+        getPyramid().setMaxReaders(1);
+        for (int[] tile : tiles) {
+            digests.add(readTile(tile));
+        }
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        if (pixelBuffer != null) {
+            pixelBuffer.close();
+        }
+        deleteRoot();
+    }
+
+    private BfPyramidPixelBuffer getPyramid() {
+        return (BfPyramidPixelBuffer) pixelBuffer;
+    }
+
+    private String readTile(int[] tile) throws IOException {
+        return cpf.getProvider(ChecksumType.MD5).putBytes(pixelBuffer.getTile(
+                tile[0], tile[1], tile[2], tile[3], tile[4], tile[5], tile[6])
+                .getData()).checksumAsString();
+    }
+
+    /**
+     * Reads all the tiles from {@link #THREAD_COUNT} threads, checking each
+     * against the tile read sequentially.
+     */
+    private void readConcurrently() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREAD_COUNT);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (final int[] tile : tiles) {
+                results.add(pool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return readTile(tile);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(results.get(i).get(), digests.get(i));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        getPyramid().setMaxReaders(THREAD_COUNT);
+        readConcurrently();
+    }
+
+    @Test
+    public void testConcurrentReadsAtLowerResolution() throws Exception {
+        getPyramid().setMaxReaders(THREAD_COUNT);
+        pixelBuffer.setResolutionLevel(0);
+        try {
+            int[] tile = new int[] { 1, 1, 1, 0, 0,
+                    pixelBuffer.getSizeX(), pixelBuffer.getSizeY() };
+            getPyramid().setMaxReaders(1);
+            final String expected = readTile(tile);
+            getPyramid().setMaxReaders(THREAD_COUNT);
+            List<String> actual = new ArrayList<String>();
+            for (int i = 0; i < THREAD_COUNT * 2; i++) {
+                actual.add(readTile(tile));
+            }
+            for (String digest : actual) {
+                assertEquals(digest, expected);
+            }
+        } finally {
+            pixelBuffer.setResolutionLevel(
+                    pixelBuffer.getResolutionLevels() - 1);
+        }
+    }
+
+    @Test
+    public void testReadAfterInterruptedRead() throws Exception {
+        getPyramid().setMaxReaders(1);
+        Thread.currentThread().interrupt();
+        try {
+            readTile(tiles.get(0));
+        } catch (Exception e) {
+            // The reader whose read failed is closed rather than pooled.
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(readTile(tiles.get(0)), digests.get(0));
+    }
+
+    @Test(groups = "manual")
+    public void benchmarkReaderContention() throws Exception {
+        for (int readers : new int[] { 1, THREAD_COUNT }) {
+            getPyramid().setMaxReaders(readers);
+            // Warm up the readers of the pool.
+            readConcurrently();
+            StopWatch watch = new Slf4JStopWatch(
+                    "PyramidReaderPool.readers." + readers);
+            for (int i = 0; i < 5; i++) {
+                readConcurrently();
+            }
+            watch.stop();
+        }
+    }
+}
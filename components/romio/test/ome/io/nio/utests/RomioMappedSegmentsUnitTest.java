@@ -0,0 +1,133 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+
+/**
+ * Checks that reads served from the persistent mappings of a
+ * {@link RomioPixelBuffer} return the same data as reads mapped on their
+ * own.
+ */
+public class RomioMappedSegmentsUnitTest {
+
+    private static final int SIZE_X = 40;
+
+    private static final int SIZE_Y = 30;
+
+    private static final int SIZE_Z = 5;
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private Pixels pixels;
+
+    private RomioPixelBuffer reference;
+
+    private RomioPixelBuffer segmented;
+
+    @BeforeClass
+    public void writePixels() throws Exception {
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        pixels.setPixelsType(type);
+        RomioPixelBuffer writer = new RomioPixelBuffer(ROOT + "1", pixels, true);
+        byte[] plane = new byte[writer.getPlaneSize().intValue()];
+        for (int z = 0; z < SIZE_Z; z++) {
+            for (int i = 0; i < plane.length; i++) {
+                plane[i] = (byte) (i * 31 + z);
+            }
+            writer.setPlane(plane, z, 0, 0);
+        }
+        writer.close();
+    }
+
+    @BeforeMethod
+    public void openBuffers() {
+        reference = new RomioPixelBuffer(ROOT + "1", pixels);
+        segmented = new RomioPixelBuffer(ROOT + "1", pixels);
+        // Small segments so that some reads straddle two of them and the
+        // least recently used ones are dropped.
+        segmented.setMappedSegments(1000, 2);
+    }
+
+    @AfterMethod
+    public void closeBuffers() throws IOException {
+        reference.close();
+        segmented.close();
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    private void assertData(ByteBuffer expected, ByteBuffer actual) {
+        assertEquals(expected.remaining(), actual.remaining());
+        while (expected.hasRemaining()) {
+            assertEquals(expected.get(), actual.get());
+        }
+    }
+
+    @Test
+    public void testRows() throws Exception {
+        for (int z = 0; z < SIZE_Z; z++) {
+            for (int y = 0; y < SIZE_Y; y++) {
+                assertData(reference.getRow(y, z, 0, 0).getData(),
+                        segmented.getRow(y, z, 0, 0).getData());
+            }
+        }
+    }
+
+    @Test
+    public void testTiles() throws Exception {
+        for (int z = SIZE_Z - 1; z >= 0; z--) {
+            for (int y = 0; y < SIZE_Y; y += 10) {
+                for (int x = 0; x < SIZE_X; x += 16) {
+                    int w = Math.min(16, SIZE_X - x);
+                    assertData(
+                            reference.getTile(z, 0, 0, x, y, w, 10).getData(),
+                            segmented.getTile(z, 0, 0, x, y, w, 10).getData());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRegions() throws Exception {
+        long size = reference.getTotalSize();
+        for (long offset = 0; offset < size; offset += 333) {
+            int length = (int) Math.min(100, size - offset);
+            assertData(reference.getRegion(length, offset).getData(),
+                    segmented.getRegion(length, offset).getData());
+        }
+    }
+
+    @Test
+    public void testReadAfterClose() throws Exception {
+        ByteBuffer expected = reference.getRow(3, 1, 0, 0).getData();
+        segmented.getRow(3, 1, 0, 0);
+        segmented.close();
+        assertData(expected, segmented.getRow(3, 1, 0, 0).getData());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+/**
+ * Checks region and strided reads of {@link RomioPixelBuffer} against the
+ * pixels of the whole plane.
+ */
+public class RomioPlaneRegionUnitTest {
+
+    private static final int SIZE_X = 37;
+
+    private static final int SIZE_Y = 23;
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private RomioPixelBuffer buffer;
+
+    private PixelData plane;
+
+    @AfterMethod
+    public void closeBuffer() throws IOException {
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    private void createBuffer(String type) throws Exception {
+        PixelsType pixelsType = new PixelsType();
+        pixelsType.setValue(type);
+        Pixels pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(2);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        pixels.setPixelsType(pixelsType);
+        buffer = new RomioPixelBuffer(ROOT + type, pixels, true);
+        int size = buffer.getPlaneSize().intValue();
+        plane = new PixelData(type, ByteBuffer.wrap(new byte[size]));
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+            plane.setPixelValue(i, (i * 7) % 101);
+        }
+        // The second plane is the one read, the first one must not leak in.
+        buffer.setPlane(new byte[size], 0, 0, 0);
+        buffer.setPlane(plane.getData().array(), 1, 0, 0);
+    }
+
+    private void assertRegion(int x, int y, int w, int h, int stride)
+        throws Exception {
+        PixelData region = buffer.getPlaneRegion(x, y, w, h, 1, 0, 0, stride);
+        int step = stride + 1;
+        int width = w / step;
+        int height = h / step;
+        assertEquals(width * height * buffer.getByteWidth(),
+                region.getData().capacity());
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                int offset = (y + i * step) * SIZE_X + x + j * step;
+                assertEquals(plane.getPixelValue(offset),
+                        region.getPixelValue(i * width + j));
+            }
+        }
+    }
+
+    private void assertRegions(String type) throws Exception {
+        createBuffer(type);
+        assertRegion(0, 0, SIZE_X, SIZE_Y, 0);
+        assertRegion(3, 5, 20, 11, 0);
+        assertRegion(SIZE_X - 1, SIZE_Y - 1, 1, 1, 0);
+        assertRegion(0, 0, SIZE_X, SIZE_Y, 1);
+        assertRegion(3, 5, 20, 11, 1);
+        assertRegion(1, 2, 30, 21, 2);
+        assertRegion(0, 0, 2, 2, 3);
+    }
+
+    @Test
+    public void testUint8Regions() throws Exception {
+        assertRegions("uint8");
+    }
+
+    @Test
+    public void testUint16Regions() throws Exception {
+        assertRegions("uint16");
+    }
+
+    @Test
+    public void testFloatRegions() throws Exception {
+        assertRegions("float");
+    }
+
+    @Test
+    public void testDoubleRegions() throws Exception {
+        assertRegions("double");
+    }
+
+    @Test
+    public void testPlaneRegionDirect() throws Exception {
+        createBuffer("uint16");
+        byte[] region = new byte[8 * 2];
+        buffer.getPlaneRegionDirect(1, 0, 0, 8, 50, region);
+        PixelData data = new PixelData("uint16", ByteBuffer.wrap(region));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(plane.getPixelValue(50 + i), data.getPixelValue(i));
+        }
+    }
+}
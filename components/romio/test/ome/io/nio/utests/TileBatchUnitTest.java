@@ -0,0 +1,202 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.conditions.ApiUsageException;
+import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileBatch;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.TileDef;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Reads batches of tiles of a {@link RomioPixelBuffer}, one at a time and
+ * through workers, checking each against the tile read on its own.
+ */
+public class TileBatchUnitTest {
+
+    private static final int SIZE_X = 50;
+
+    private static final int SIZE_Y = 40;
+
+    private static final int SIZE_Z = 3;
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private Pixels pixels;
+
+    private RomioPixelBuffer buffer;
+
+    /** The same pixels through a buffer safe to read from the workers. */
+    private RomioPixelBuffer locked;
+
+    private ExecutorService workers;
+
+    /** Tiles out of file order, of several sizes and planes. */
+    private final List<TileDef> tiles = Arrays.asList(
+            new TileDef(2, 0, 0, 0, 0, 16, 16),
+            new TileDef(0, 0, 0, 32, 32, 18, 8),
+            new TileDef(1, 0, 0, 16, 0, 16, 16),
+            new TileDef(0, 0, 0, 0, 0, 16, 16),
+            new TileDef(0, 0, 0, 48, 0, 2, 40));
+
+    @BeforeClass
+    public void setup() throws Exception {
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(SIZE_Z);
+        pixels.setSizeC(1);
+        pixels.setSizeT(1);
+        pixels.setPixelsType(type);
+        RomioPixelBuffer writer = new RomioPixelBuffer(ROOT + "1", pixels, true);
+        byte[] plane = new byte[writer.getPlaneSize().intValue()];
+        for (int z = 0; z < SIZE_Z; z++) {
+            for (int i = 0; i < plane.length; i++) {
+                plane[i] = (byte) (i * 7 + z * 13);
+            }
+            writer.setPlane(plane, z, 0, 0);
+        }
+        writer.close();
+        buffer = new RomioPixelBuffer(ROOT + "1", pixels);
+        locked = new RomioPixelBuffer(ROOT + "1", pixels) {
+            @Override
+            public synchronized byte[] getTileDirect(Integer z, Integer c,
+                    Integer t, Integer x, Integer y, Integer w, Integer h,
+                    byte[] buffer) throws IOException {
+                return super.getTileDirect(z, c, t, x, y, w, h, buffer);
+            }
+        };
+        workers = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        buffer.close();
+        locked.close();
+        workers.shutdownNow();
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    private void assertTiles(byte[] data) throws IOException {
+        long[] offsets = TileBatch.getOffsets(tiles, buffer.getByteWidth());
+        assertEquals(offsets[tiles.size()], data.length);
+        for (int i = 0; i < tiles.size(); i++) {
+            TileDef tile = tiles.get(i);
+            byte[] expected = new byte[(int) tile.getSize(2)];
+            buffer.getTileDirect(tile.getZ(), tile.getC(), tile.getT(),
+                    tile.getX(), tile.getY(), tile.getWidth(),
+                    tile.getHeight(), expected);
+            byte[] actual = new byte[expected.length];
+            System.arraycopy(data, (int) offsets[i], actual, 0, actual.length);
+            assertEquals(actual, expected, tile.toString());
+        }
+    }
+
+    @Test
+    public void testSize() {
+        int size = 2 * (16 * 16 + 18 * 8 + 16 * 16 + 16 * 16 + 2 * 40);
+        assertEquals(TileBatch.getSize(tiles, 2), size);
+    }
+
+    @Test
+    public void testGetTilesDirect() throws IOException {
+        byte[] data = new byte[TileBatch.getSize(tiles, 2)];
+        assertSame(buffer.getTilesDirect(tiles, data), data);
+        assertTiles(data);
+    }
+
+    @Test
+    public void testConcurrentRead() throws IOException {
+        byte[] data = new byte[TileBatch.getSize(tiles, 2)];
+        assertSame(TileBatch.read(locked, tiles, data, workers), data);
+        assertTiles(data);
+    }
+
+    @Test
+    public void testFailedReadWaitsForTheOthers() throws IOException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        RomioPixelBuffer failing = new RomioPixelBuffer(ROOT + "1", pixels) {
+            @Override
+            public byte[] getTileDirect(Integer z, Integer c, Integer t,
+                    Integer x, Integer y, Integer w, Integer h,
+                    byte[] buffer) throws IOException {
+                if (z == 0 && x == 0) {
+                    throw new IOException("Cannot read tile.");
+                }
+                running.incrementAndGet();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                } finally {
+                    running.decrementAndGet();
+                }
+                synchronized (this) {
+                    return super.getTileDirect(z, c, t, x, y, w, h, buffer);
+                }
+            }
+        };
+        try {
+            TileBatch.read(failing, tiles,
+                    new byte[TileBatch.getSize(tiles, 2)], workers);
+            fail("Should throw");
+        } catch (IOException e) {
+            // The other reads are neither interrupted nor left running.
+            assertEquals(running.get(), 0);
+            assertFalse(interrupted.get());
+        } finally {
+            failing.close();
+        }
+    }
+
+    @Test
+    public void testInvalidTiles() throws IOException {
+        List<List<TileDef>> invalid = Arrays.asList(
+                null,
+                Arrays.asList(tiles.get(0), null),
+                Arrays.asList(new TileDef(0, 0, 0, 0, 0, 0, 16)),
+                Arrays.asList(new TileDef(0, 0, 0, 0, 0, 16, -1)),
+                Arrays.asList(new TileDef(SIZE_Z, 0, 0, 0, 0, 16, 16)),
+                Arrays.asList(new TileDef(0, 0, 0, -1, 0, 16, 16)),
+                Arrays.asList(new TileDef(0, 0, 0, 40, 0, 16, 16)),
+                Arrays.asList(new TileDef(0, 0, 0, 0, 30, 16, 16)));
+        for (List<TileDef> batch : invalid) {
+            try {
+                TileBatch.checkTiles(buffer, batch);
+                fail("Should throw: " + batch);
+            } catch (ApiUsageException e) {
+                // ok
+            }
+        }
+        TileBatch.checkTiles(buffer, tiles);
+    }
+
+    @Test(expectedExceptions = ApiUsageException.class)
+    public void testWrongBufferSize() throws IOException {
+        buffer.getTilesDirect(tiles, new byte[10]);
+    }
+}
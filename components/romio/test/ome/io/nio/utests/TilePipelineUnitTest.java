@@ -0,0 +1,134 @@
+/*
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.io.nio.utests;
+
+import static org.testng.AssertJUnit.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.*;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TilePipeline;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+
+/**
+ * Copies a ROMIO pixel buffer through a {@link TilePipeline} and checks the
+ * copy, the channel min/max and the bounds on the sources opened.
+ */
+public class TilePipelineUnitTest {
+
+    private static final int SIZE_X = 31;
+
+    private static final int SIZE_Y = 47;
+
+    private static final int SIZE_C = 2;
+
+    private static final String ROOT =
+        PathUtil.getInstance().getTemporaryDataFilePath();
+
+    private Pixels pixels;
+
+    private ExecutorService workers;
+
+    @BeforeClass
+    public void writeSource() throws Exception {
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        pixels = new Pixels();
+        pixels.setId(1L);
+        pixels.setSizeX(SIZE_X);
+        pixels.setSizeY(SIZE_Y);
+        pixels.setSizeZ(3);
+        pixels.setSizeC(SIZE_C);
+        pixels.setSizeT(1);
+        pixels.setPixelsType(type);
+        RomioPixelBuffer writer = new RomioPixelBuffer(ROOT + "source", pixels, true);
+        int size = writer.getPlaneSize().intValue();
+        for (int z = 0; z < 3; z++) {
+            for (int c = 0; c < SIZE_C; c++) {
+                PixelData plane = new PixelData("uint16",
+                        java.nio.ByteBuffer.wrap(new byte[size]));
+                for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                    plane.setPixelValue(i, 10 + c * 1000 + (i * 13 + z) % 500);
+                }
+                writer.setPlane(plane.getData().array(), z, c, 0);
+            }
+        }
+        writer.close();
+        workers = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        workers.shutdownNow();
+        FileUtils.deleteDirectory(new File(ROOT));
+    }
+
+    private void assertCopy(int maxSources, int maxInFlight) throws Exception {
+        final AtomicInteger opened = new AtomicInteger();
+        RomioPixelBuffer source = new RomioPixelBuffer(ROOT + "source", pixels);
+        RomioPixelBuffer destination =
+            new RomioPixelBuffer(ROOT + "copy" + maxSources, pixels, true);
+        TilePipeline pipeline = new TilePipeline(
+                workers, maxSources, maxInFlight, "test");
+        pipeline.calculateChannelMinMax(SIZE_C);
+        try {
+            // Full rows since the ROMIO destination only supports those.
+            pipeline.run(source, new TilePipeline.SourceFactory() {
+                public PixelBuffer open() {
+                    opened.incrementAndGet();
+                    return new RomioPixelBuffer(ROOT + "source", pixels);
+                }
+            }, destination, SIZE_X, 5);
+        } finally {
+            destination.close();
+        }
+        assertTrue(opened.get() < maxSources);
+        assertEquals(3 * SIZE_C * ((SIZE_Y + 4) / 5), pipeline.getTileCount());
+        assertEquals(source.getTotalSize().longValue(),
+                pipeline.getByteCount());
+        RomioPixelBuffer copy =
+            new RomioPixelBuffer(ROOT + "copy" + maxSources, pixels);
+        try {
+            for (int z = 0; z < 3; z++) {
+                for (int c = 0; c < SIZE_C; c++) {
+                    PixelData expected = source.getPlane(z, c, 0);
+                    PixelData actual = copy.getPlane(z, c, 0);
+                    for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                        assertEquals(expected.getPixelValue(i),
+                                actual.getPixelValue(i));
+                    }
+                }
+            }
+        } finally {
+            copy.close();
+            source.close();
+        }
+        double[][] minMax = pipeline.getChannelMinMax();
+        for (int c = 0; c < SIZE_C; c++) {
+            assertEquals(10.0 + c * 1000, minMax[c][0]);
+            assertEquals(10.0 + c * 1000 + 499, minMax[c][1]);
+        }
+    }
+
+    @Test
+    public void testSingleSource() throws Exception {
+        assertCopy(1, 1);
+    }
+
+    @Test
+    public void testConcurrentSources() throws Exception {
+        assertCopy(3, 6);
+    }
+}
@@ -21,6 +21,12 @@ import java.io.OutputStream;
  */
 public interface LocalCompress {
 
+    /** The JPEG compression format, this is the default. */
+    public static final String FORMAT_JPEG = "jpeg";
+
+    /** The (lossless) PNG compression format. */
+    public static final String FORMAT_PNG = "png";
+
     /**
      * Compresses a buffered image to an output stream.
      * 
@@ -34,6 +40,51 @@ public interface LocalCompress {
 	void compressToStream(BufferedImage image, OutputStream outputStream)
 		throws IOException;
 
+    /**
+     * Compresses a buffered image.
+     * 
+     * @param image
+     *            the buffered image.
+     * @return the compressed image.
+     * @throws IOException
+     *             if there is a problem when compressing the image.
+     */
+	byte[] compress(BufferedImage image) throws IOException;
+
+    /**
+     * Compresses a packed integer <i>RGB</i> image, as rendered by the
+     * rendering engine, to an output stream.
+     * 
+     * @param buf
+     *            the packed integer buffer.
+     * @param sizeX
+     *            the X-width of the image.
+     * @param sizeY
+     *            the Y-width of the image.
+     * @param outputStream
+     *            the stream to write to.
+     * @throws IOException
+     *             if there is a problem when writing to <i>stream<i>.
+     */
+	void compressToStream(int[] buf, int sizeX, int sizeY,
+	        OutputStream outputStream) throws IOException;
+
+    /**
+     * Compresses a packed integer <i>RGB</i> image, as rendered by the
+     * rendering engine.
+     * 
+     * @param buf
+     *            the packed integer buffer.
+     * @param sizeX
+     *            the X-width of the image.
+     * @param sizeY
+     *            the Y-width of the image.
+     * @return the compressed image.
+     * @throws IOException
+     *             if there is a problem when compressing the image.
+     */
+	byte[] compress(int[] buf, int sizeX, int sizeY) throws IOException;
+
 	/**
 	 * Sets the current compression level for the service. (The default is 85%)
 	 * 
@@ -50,4 +101,21 @@ public interface LocalCompress {
 	 * @returns See above.
 	 */
 	float getCompressionLevel();
+
+	/**
+	 * Sets the current compression format for the service. (The default is
+	 * {@link #FORMAT_JPEG})
+	 * 
+	 * @param format Either {@link #FORMAT_JPEG} or {@link #FORMAT_PNG}.
+	 * @throws ValidationException if the <code>format</code> is not
+	 * supported.
+	 */
+	void setCompressionFormat(String format);
+
+	/**
+	 * Returns the current compression format for the service.
+	 * 
+	 * @returns See above.
+	 */
+	String getCompressionFormat();
 }
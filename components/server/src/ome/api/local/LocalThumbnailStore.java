@@ -0,0 +1,35 @@
+/*
+ * ome.api.local.LocalThumbnailStore
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.api.local;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provides local (internal) extensions for thumbnailing
+ *
+ * @since 5.0
+ */
+public interface LocalThumbnailStore extends ome.api.ThumbnailStore {
+
+    /**
+     * Creates the thumbnails of a set of pixels sets as
+     * {@link ome.api.ThumbnailStore#createThumbnailsByLongestSideSet(Integer, Set)}
+     * does, reporting the outcome for each pixels set.
+     *
+     * @param size the size of the longest side of the thumbnails.
+     * @param pixelsIds the Pixels sets to create thumbnails for.
+     * @return Map of Pixels ID vs. <code>true</code> if its thumbnail is up
+     * to date, <code>false</code> if it could not be created. The Pixels
+     * sets still in progress, whose thumbnails are yet to be created, are
+     * left out.
+     */
+    Map<Long, Boolean> createAndReportThumbnailsByLongestSideSet(
+            Integer size, Set<Long> pixelsIds);
+
+}
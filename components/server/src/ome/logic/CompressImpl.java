@@ -11,18 +11,17 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
-
 import ome.api.local.LocalCompress;
+import ome.conditions.ValidationException;
+import ome.util.ImageUtil;
 
 public class CompressImpl implements LocalCompress {
 
 	/** The default compression quality in fractional percent. */
-    private float quality = 0.85F;
+    private volatile float quality = 0.85F;
+
+    /** The compression format. */
+    private volatile String format = FORMAT_JPEG;
 	
     /* (non-Javadoc)
      * @see ome.api.ICompress#compressToStream(java.awt.image.BufferedImage, java.io.OutputStream)
@@ -30,25 +29,34 @@ public class CompressImpl implements LocalCompress {
     public void compressToStream(BufferedImage image, OutputStream outputStream)
     	throws IOException
     {
-        // Get a JPEG image writer
-        ImageWriter jpegWriter =
-        	ImageIO.getImageWritersByFormatName("jpeg").next();
+        // The writer and output buffer are reused by the current thread.
+        ImageEncoder.get(format).encode(image, quality, outputStream);
+    }
 
-        // Setup the compression value from (0.05, 0.75 and 0.95)
-        ImageWriteParam iwp = jpegWriter.getDefaultWriteParam();
-        iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        iwp.setCompressionQuality(quality);
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compress(java.awt.image.BufferedImage)
+     */
+    public byte[] compress(BufferedImage image) throws IOException
+    {
+        return ImageEncoder.get(format).encode(image, quality);
+    }
 
-        // Write the JPEG to our ByteArray stream
-    	ImageOutputStream imageOutputStream = null;
-        try {
-        	imageOutputStream = ImageIO.createImageOutputStream(outputStream);
-        	jpegWriter.setOutput(imageOutputStream);
-        	jpegWriter.write(null, new IIOImage(image, null, null), iwp);
-        } finally {
-        	if (imageOutputStream != null)
-        		imageOutputStream.close();
-        }
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compressToStream(int[], int, int, java.io.OutputStream)
+     */
+    public void compressToStream(int[] buf, int sizeX, int sizeY,
+            OutputStream outputStream) throws IOException
+    {
+        compressToStream(ImageUtil.createBufferedImage(buf, sizeX, sizeY),
+                outputStream);
+    }
+
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalCompress#compress(int[], int, int)
+     */
+    public byte[] compress(int[] buf, int sizeX, int sizeY) throws IOException
+    {
+        return compress(ImageUtil.createBufferedImage(buf, sizeX, sizeY));
     }
 
 	/* (non-Javadoc)
@@ -66,4 +74,31 @@ public class CompressImpl implements LocalCompress {
 	{
 		return quality;
 	}
+
+	/* (non-Javadoc)
+	 * @see ome.api.local.LocalCompress#setCompressionFormat(java.lang.String)
+	 */
+	public void setCompressionFormat(String format)
+	{
+		if (format == null)
+		{
+			throw new ValidationException("Compression format is null.");
+		}
+		format = format.toLowerCase();
+		if (!(FORMAT_JPEG.equals(format) || FORMAT_PNG.equals(format))
+			|| !ImageEncoder.isSupported(format))
+		{
+			throw new ValidationException(
+					"Unsupported compression format: " + format);
+		}
+		this.format = format;
+	}
+
+	/* (non-Javadoc)
+	 * @see ome.api.local.LocalCompress#getCompressionFormat()
+	 */
+	public String getCompressionFormat()
+	{
+		return format;
+	}
 }
@@ -0,0 +1,294 @@
+/*
+ * ome.logic.ImageEncoder
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.logic;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Encodes images with an {@link ImageWriter} and an in-memory output buffer
+ * which are both kept, per thread and per format, from one image to the
+ * next. This avoids looking up a new writer through the service registry,
+ * growing a fresh byte array and, as <code>ImageIO</code> does by default,
+ * caching the encoded image in a temporary file for every image compressed.
+ * <p>
+ * Instances are bound to the thread which retrieved them through
+ * {@link #get(String)} and must not be shared.
+ * </p>
+ *
+ * @since 5.0
+ */
+final class ImageEncoder {
+
+    /** The initial size of the output buffer. */
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The largest output buffer kept between images, larger ones are only
+     * used for the image which required them.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    /** The encoders of each thread keyed by format name. */
+    private static final ThreadLocal<Map<String, ImageEncoder>> ENCODERS =
+        new ThreadLocal<Map<String, ImageEncoder>>() {
+            @Override
+            protected Map<String, ImageEncoder> initialValue() {
+                return new HashMap<String, ImageEncoder>();
+            }
+        };
+
+    /** The writer for the format. */
+    private final ImageWriter writer;
+
+    /** The output buffer reused for every image. */
+    private final ByteArrayImageOutputStream output =
+        new ByteArrayImageOutputStream();
+
+    /**
+     * Returns the encoder of the current thread for a format.
+     *
+     * @param format The informal format name, for example <code>jpeg</code>
+     * or <code>png</code>.
+     * @return See above.
+     * @throws IllegalArgumentException If no writer is available for the
+     * format.
+     */
+    static ImageEncoder get(String format) {
+        Map<String, ImageEncoder> encoders = ENCODERS.get();
+        ImageEncoder encoder = encoders.get(format);
+        if (encoder == null) {
+            encoder = new ImageEncoder(format);
+            encoders.put(format, encoder);
+        }
+        return encoder;
+    }
+
+    /**
+     * Returns <code>true</code> if a writer is available for a format.
+     *
+     * @param format The informal format name.
+     * @return See above.
+     */
+    static boolean isSupported(String format) {
+        return ImageIO.getImageWritersByFormatName(format).hasNext();
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param format The informal format name.
+     */
+    private ImageEncoder(String format) {
+        Iterator<ImageWriter> writers =
+            ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IllegalArgumentException(
+                    "No image writer for format: " + format);
+        }
+        writer = writers.next();
+    }
+
+    /**
+     * Encodes an image into the output buffer.
+     *
+     * @param image The image to encode.
+     * @param quality The compression quality from 0.0 to 1.0, ignored by
+     * writers which do not support compression settings and by lossless
+     * writers such as <code>png</code>.
+     * @throws IOException If an error occurs while encoding.
+     */
+    private void write(RenderedImage image, float quality) throws IOException {
+        ImageWriteParam iwp = writer.getDefaultWriteParam();
+        if (iwp.canWriteCompressed()) {
+            iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            String[] types = iwp.getCompressionTypes();
+            if (iwp.getCompressionType() == null && types != null) {
+                iwp.setCompressionType(types[0]);
+            }
+            if (iwp.isCompressionLossless()) {
+                // The png writer maps the quality onto the deflate level,
+                // the compression level is documented as ignored for it.
+                iwp.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+            } else {
+                iwp.setCompressionQuality(quality);
+            }
+        }
+        output.clear();
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), iwp);
+            output.flush();
+        } finally {
+            writer.reset();
+        }
+    }
+
+    /**
+     * Encodes an image to a stream.
+     *
+     * @param image The image to encode.
+     * @param quality The compression quality from 0.0 to 1.0.
+     * @param stream The stream to write to, not closed by this method.
+     * @throws IOException If an error occurs while encoding or writing.
+     */
+    void encode(RenderedImage image, float quality, OutputStream stream)
+        throws IOException {
+        try {
+            write(image, quality);
+            output.writeTo(stream);
+        } finally {
+            output.release();
+        }
+    }
+
+    /**
+     * Encodes an image.
+     *
+     * @param image The image to encode.
+     * @param quality The compression quality from 0.0 to 1.0.
+     * @return The encoded image.
+     * @throws IOException If an error occurs while encoding.
+     */
+    byte[] encode(RenderedImage image, float quality) throws IOException {
+        try {
+            write(image, quality);
+            return output.toByteArray();
+        } finally {
+            output.release();
+        }
+    }
+
+    /**
+     * Seekable image output stream backed by a growable byte array. Unlike
+     * <code>MemoryCacheImageOutputStream</code> it can be reused and does
+     * not copy the data into an intermediate cache.
+     */
+    private static final class ByteArrayImageOutputStream
+        extends ImageOutputStreamImpl {
+
+        /** The encoded data. */
+        private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+
+        /** The number of valid bytes in {@link #buf}. */
+        private int count;
+
+        /** Empties the stream so that it can be written to again. */
+        void clear() {
+            count = 0;
+            streamPos = 0;
+            flushedPos = 0;
+            bitOffset = 0;
+        }
+
+        /**
+         * Drops an overly large buffer once an image has been encoded so that
+         * it is not kept alive by the thread.
+         */
+        void release() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+            count = 0;
+        }
+
+        /**
+         * Writes the valid bytes to a stream.
+         *
+         * @param stream The stream to write to.
+         * @throws IOException If an error occurs while writing.
+         */
+        void writeTo(OutputStream stream) throws IOException {
+            stream.write(buf, 0, count);
+        }
+
+        /**
+         * Returns a copy of the valid bytes.
+         *
+         * @return See above.
+         */
+        byte[] toByteArray() {
+            byte[] data = new byte[count];
+            System.arraycopy(buf, 0, data, 0, count);
+            return data;
+        }
+
+        /**
+         * Ensures the buffer can hold <code>size</code> bytes.
+         *
+         * @param size The required size.
+         */
+        private void ensureCapacity(long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Encoded image too large.");
+            }
+            if (size > buf.length) {
+                int length = (int) Math.min(Integer.MAX_VALUE,
+                        Math.max(size, 2L * buf.length));
+                byte[] grown = new byte[length];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + 1);
+            buf[(int) streamPos++] = (byte) b;
+            count = (int) Math.max(count, streamPos);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            flushBits();
+            ensureCapacity(streamPos + len);
+            System.arraycopy(b, off, buf, (int) streamPos, len);
+            streamPos += len;
+            count = (int) Math.max(count, streamPos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= count) {
+                return -1;
+            }
+            return buf[(int) streamPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (streamPos >= count) {
+                return -1;
+            }
+            int n = (int) Math.min(len, count - streamPos);
+            System.arraycopy(buf, (int) streamPos, b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return count;
+        }
+    }
+}
@@ -34,8 +34,10 @@ import ome.io.bioformats.BfPixelBuffer;
 import ome.io.bioformats.BfPyramidPixelBuffer;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelsIndex;
 import ome.io.nio.PixelsService;
 import ome.io.nio.RomioPixelBuffer;
+import ome.io.nio.TileBatch;
 import ome.model.IObject;
 import ome.model.core.Pixels;
 import ome.parameters.Parameters;
@@ -43,6 +45,7 @@ import ome.security.basic.BasicSecuritySystem;
 import ome.services.messages.EventLogMessage;
 import ome.util.ShallowCopy;
 import ome.util.SqlAction;
+import ome.util.TileDef;
 import ome.util.Utils;
 
 import org.apache.commons.codec.binary.Hex;
@@ -197,12 +200,39 @@ public class RawPixelsBean extends AbstractStatefulBean implements
             }
 
             iUpdate.flush();
+            populateStatsInfo();
             modified = false;
             return new ShallowCopy().copy(pixelsInstance);
         }
         return null;
     }
 
+    /**
+     * Sets the global minimum and maximum of the channels which have none
+     * from the index of the planes written, sparing clients a pass over the
+     * pixels to calculate them.
+     */
+    private synchronized void populateStatsInfo() {
+        if (!(buffer instanceof RomioPixelBuffer)) {
+            return;
+        }
+        PixelsIndex index = ((RomioPixelBuffer) buffer).getIndex();
+        if (index == null) {
+            return;
+        }
+        Pixels pixels = metadataService.retrievePixDescription(id);
+        for (int c = 0; c < pixels.sizeOfChannels(); c++) {
+            if (pixels.getChannel(c).getStatsInfo() != null) {
+                continue;
+            }
+            double[] minMax = index.getChannelMinMax(c);
+            if (minMax != null) {
+                metadataService.setChannelGlobalMinMax(
+                        id, c, minMax[0], minMax[1]);
+            }
+        }
+    }
+
     @RolesAllowed("user")
     @Transactional(readOnly = false)
     public synchronized void close() {
@@ -789,6 +819,27 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         return readBuffer;
     }
 
+    /* (non-Javadoc)
+     * @see ome.api.RawPixelsStore#getTiles(java.util.List)
+     */
+    @RolesAllowed("user")
+    public synchronized byte[] getTiles(List<TileDef> tiles)
+    {
+        errorIfNotLoaded();
+
+        TileBatch.checkTiles(buffer, tiles);
+        int size = TileBatch.getSize(tiles, buffer.getByteWidth());
+        if (readBuffer == null || readBuffer.length != size) {
+            readBuffer = new byte[size];
+        }
+        try {
+            readBuffer = buffer.getTilesDirect(tiles, readBuffer);
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return readBuffer;
+    }
+
     /* (non-Javadoc)
      * @see ome.api.RawPixelsStore#setTile(byte[], int, int, int, int, int, int, int)
      */
@@ -0,0 +1,485 @@
+/*
+ * ome.services.RenderedImageCache
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.conditions.InternalException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide cache of compressed rendered planes and tiles shared by all
+ * {@link RenderingBean} instances. Viewers panning around large images
+ * request the same tiles over and over; serving those from memory avoids
+ * both rendering and compression.
+ * <p>
+ * The cache is bounded by the total number of bytes held in memory and
+ * evicts the least recently used images first. If a spill directory is
+ * configured, evicted images are written to local disk (itself bounded by
+ * a number of bytes and evicted least recently used first) and promoted
+ * back to memory when requested again.
+ * </p>
+ * <p>
+ * Keys are created by {@link #createKey(long, String)} from the pixels set
+ * identifier and a description of everything which influences the rendered
+ * output. Since the description includes the rendering settings, a change of
+ * settings never returns a stale image; {@link #invalidate(long)} simply
+ * frees the space held by a pixels set once its settings have been saved.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class RenderedImageCache {
+
+    /** The logger for this class. */
+    private static Logger log =
+        LoggerFactory.getLogger(RenderedImageCache.class);
+
+    /** Separates the pixels set identifier from the digest in a key. */
+    private static final String SEPARATOR = "/";
+
+    /** Maximum number of bytes held in memory. */
+    private final long maxBytes;
+
+    /** Maximum number of bytes spilled to disk. */
+    private final long maxDiskBytes;
+
+    /** Directory evicted images are spilled to or <code>null</code>. */
+    private final File spillDirectory;
+
+    /** Images held in memory, least recently used first. */
+    private final LinkedHashMap<String, byte[]> memory =
+        new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /** Size of the images spilled to disk, least recently used first. */
+    private final LinkedHashMap<String, Long> disk =
+        new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /** Number of bytes currently held in memory. */
+    private long memoryBytes;
+
+    /** Number of bytes currently spilled to disk. */
+    private long diskBytes;
+
+    /** Number of requests answered from memory. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of requests answered from disk. */
+    private final AtomicLong diskHits = new AtomicLong();
+
+    /** Number of requests which could not be answered. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of images evicted from memory. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes Maximum number of bytes held in memory. A value
+     * <code>&lt;= 0</code> disables the cache.
+     * @param spillDirectory Directory evicted images are spilled to. Pass
+     * <code>null</code> or an empty string to disable spilling.
+     * @param maxDiskBytes Maximum number of bytes spilled to disk.
+     */
+    public RenderedImageCache(long maxBytes, String spillDirectory,
+            long maxDiskBytes) {
+        this.maxBytes = maxBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        if (maxBytes > 0 && maxDiskBytes > 0 && spillDirectory != null
+                && spillDirectory.trim().length() > 0) {
+            File dir = new File(spillDirectory.trim());
+            if (!dir.exists() && !dir.mkdirs()) {
+                log.warn("Cannot create spill directory: " + dir
+                        + " Spilling disabled.");
+                dir = null;
+            } else {
+                purge(dir);
+            }
+            this.spillDirectory = dir;
+        } else {
+            this.spillDirectory = null;
+        }
+        log.info(String.format(
+                "Rendered image cache: %d bytes in memory, spill directory: %s",
+                maxBytes, this.spillDirectory));
+    }
+
+    /**
+     * Deletes the images spilled by a previous server run, which are not
+     * accounted for by this cache.
+     *
+     * @param dir The spill directory.
+     */
+    private void purge(File dir) {
+        File[] pixelsDirs = dir.listFiles();
+        if (pixelsDirs == null) {
+            return;
+        }
+        for (File pixelsDir : pixelsDirs) {
+            if (!pixelsDir.isDirectory()
+                    || !pixelsDir.getName().matches("\\d+")) {
+                continue;
+            }
+            File[] images = pixelsDir.listFiles();
+            if (images != null) {
+                for (File image : images) {
+                    if (image.getName().matches(
+                            "[0-9a-f]{40}(\\.\\d+\\.tmp)?")) {
+                        image.delete();
+                    }
+                }
+            }
+            pixelsDir.delete();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the cache holds images at all,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Creates a key for a rendered image.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     * @param description A description of everything (rendering settings,
+     * plane, region, resolution level, compression quality, etc.) which
+     * influences the rendered image.
+     * @return See above.
+     */
+    public String createKey(long pixelsId, String description) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(description.getBytes("UTF-8"));
+            return pixelsId + SEPARATOR + Hex.encodeHexString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalException("Required SHA-1 message digest " +
+                    "algorithm unavailable.");
+        } catch (UnsupportedEncodingException e) {
+            throw new InternalException("Required UTF-8 encoding " +
+                    "unavailable.");
+        }
+    }
+
+    /**
+     * Returns the image cached for a key.
+     *
+     * @param key The key created by {@link #createKey(long, String)}.
+     * @return See above or <code>null</code> if the image is not cached.
+     */
+    public byte[] get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        boolean spilled;
+        synchronized (this) {
+            byte[] image = memory.get(key);
+            if (image != null) {
+                hits.incrementAndGet();
+                return image;
+            }
+            spilled = disk.containsKey(key);
+        }
+        byte[] image = null;
+        if (spilled) {
+            image = read(key);
+        }
+        if (image == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        put(key, image);
+        return image;
+    }
+
+    /**
+     * Caches an image.
+     *
+     * @param key The key created by {@link #createKey(long, String)}.
+     * @param image The compressed image.
+     */
+    public void put(String key, byte[] image) {
+        if (!isEnabled() || image == null || image.length > maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, byte[]>> evicted =
+            new ArrayList<Map.Entry<String, byte[]>>();
+        synchronized (this) {
+            byte[] previous = memory.put(key, image);
+            if (previous != null) {
+                memoryBytes -= previous.length;
+            }
+            memoryBytes += image.length;
+            Iterator<Map.Entry<String, byte[]>> i =
+                memory.entrySet().iterator();
+            while (memoryBytes > maxBytes && i.hasNext()) {
+                Map.Entry<String, byte[]> entry = i.next();
+                memoryBytes -= entry.getValue().length;
+                i.remove();
+                evictions.incrementAndGet();
+                if (spillDirectory != null && !disk.containsKey(
+                        entry.getKey())) {
+                    evicted.add(entry);
+                }
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : evicted) {
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes all the images of a pixels set. Called when the rendering
+     * settings of the pixels set have been saved.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     */
+    public void invalidate(long pixelsId) {
+        if (!isEnabled()) {
+            return;
+        }
+        String prefix = pixelsId + SEPARATOR;
+        List<String> removed = new ArrayList<String>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, byte[]>> i =
+                memory.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<String, byte[]> entry = i.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    memoryBytes -= entry.getValue().length;
+                    i.remove();
+                }
+            }
+            Iterator<Map.Entry<String, Long>> j = disk.entrySet().iterator();
+            while (j.hasNext()) {
+                Map.Entry<String, Long> entry = j.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    diskBytes -= entry.getValue();
+                    j.remove();
+                    removed.add(entry.getKey());
+                }
+            }
+        }
+        for (String key : removed) {
+            delete(key);
+        }
+    }
+
+    /**
+     * Writes an evicted image to the spill directory, evicting the least
+     * recently spilled images if required.
+     *
+     * @param key The key of the image.
+     * @param image The image.
+     */
+    private void spill(String key, byte[] image) {
+        if (image.length > maxDiskBytes) {
+            return;
+        }
+        // Written aside and renamed into place so that a concurrent read
+        // never sees a partly written image.
+        File file = getFile(key);
+        File tmp = null;
+        FileOutputStream stream = null;
+        try {
+            file.getParentFile().mkdirs();
+            tmp = File.createTempFile(file.getName() + ".", ".tmp",
+                    file.getParentFile());
+            stream = new FileOutputStream(tmp);
+            stream.write(image);
+            stream.close();
+            stream = null;
+            if (!tmp.renameTo(file)) {
+                // Not atomic, only happens where rename does not replace.
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Could not rename: " + tmp);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not spill rendered image to: " + file, e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            return;
+        } finally {
+            close(stream);
+        }
+        List<String> removed = new ArrayList<String>();
+        synchronized (this) {
+            Long previous = disk.put(key, Long.valueOf(image.length));
+            if (previous != null) {
+                diskBytes -= previous;
+            }
+            diskBytes += image.length;
+            Iterator<Map.Entry<String, Long>> i = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && i.hasNext()) {
+                Map.Entry<String, Long> entry = i.next();
+                diskBytes -= entry.getValue();
+                i.remove();
+                removed.add(entry.getKey());
+            }
+        }
+        for (String k : removed) {
+            delete(k);
+        }
+    }
+
+    /**
+     * Reads a spilled image.
+     *
+     * @param key The key of the image.
+     * @return See above or <code>null</code> if the image could not be read.
+     */
+    private byte[] read(String key) {
+        File file = getFile(key);
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            byte[] image = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < image.length) {
+                int n = stream.read(image, offset, image.length - offset);
+                if (n < 0) {
+                    return null;
+                }
+                offset += n;
+            }
+            return image;
+        } catch (IOException e) {
+            // Evicted or invalidated concurrently.
+            log.debug("Could not read spilled rendered image: " + file, e);
+            return null;
+        } finally {
+            close(stream);
+        }
+    }
+
+    /**
+     * Deletes a spilled image.
+     *
+     * @param key The key of the image.
+     */
+    private void delete(String key) {
+        File file = getFile(key);
+        if (file.exists() && !file.delete()) {
+            log.warn("Could not delete spilled rendered image: " + file);
+        }
+    }
+
+    /**
+     * Returns the file a spilled image is stored in.
+     *
+     * @param key The key of the image.
+     * @return See above.
+     */
+    private File getFile(String key) {
+        return new File(spillDirectory, key);
+    }
+
+    /**
+     * Closes a stream, logging any error.
+     *
+     * @param stream The stream to close or <code>null</code>.
+     */
+    private void close(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                log.warn("Could not close stream.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests answered from memory.
+     *
+     * @return See above.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests answered from the spill directory.
+     *
+     * @return See above.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Returns the number of requests which could not be answered.
+     *
+     * @return See above.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of images evicted from memory.
+     *
+     * @return See above.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of bytes currently held in memory.
+     *
+     * @return See above.
+     */
+    public synchronized long getSize() {
+        return memoryBytes;
+    }
+
+    /**
+     * Returns the number of bytes currently spilled to disk.
+     *
+     * @return See above.
+     */
+    public synchronized long getDiskSize() {
+        return diskBytes;
+    }
+
+    /**
+     * Logs the cache statistics. Called when the cache is destroyed.
+     */
+    public void close() {
+        log.info(String.format("Rendered image cache: hits: %d disk hits: %d "
+                + "misses: %d evictions: %d", getHits(), getDiskHits(),
+                getMisses(), getEvictions()));
+    }
+}
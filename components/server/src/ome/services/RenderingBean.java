@@ -8,14 +8,17 @@
 package ome.services;
 
 import java.awt.Dimension;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RevisionDate;
@@ -46,11 +49,13 @@ import ome.services.util.Executor;
 import ome.system.EventContext;
 import ome.system.ServiceFactory;
 import ome.system.SimpleEventContext;
-import ome.util.ImageUtil;
 import ome.util.ShallowCopy;
 import omeis.providers.re.RGBBuffer;
+import omeis.providers.re.RenderedTileCallback;
 import omeis.providers.re.Renderer;
 import omeis.providers.re.RenderingEngine;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingTask;
 import omeis.providers.re.codomain.CodomainMapContext;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.data.RegionDef;
@@ -156,6 +161,18 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** The resolution level to be used by the pixel buffer. */
     private Integer resolutionLevel;
 
+    /** Cache of compressed rendered images shared by all instances. */
+    private transient RenderedImageCache renderedImageCache;
+
+    /** Cache of compressed thumbnails shared by the thumbnail services. */
+    private transient ThumbnailCache thumbnailCache;
+
+    /**
+     * The maximum number of bytes of quantized planes kept by the renderer,
+     * <code>0</code> to disable.
+     */
+    private long quantizedPlaneCacheSize;
+
     /**
      * Compression service Bean injector.
      * 
@@ -170,6 +187,40 @@ public class RenderingBean implements RenderingEngine, Serializable {
         this.compressionSrv = compress;
     }
 
+    /**
+     * Rendered image cache Bean injector.
+     * 
+     * @param renderedImageCache
+     *            The cache of compressed rendered images or
+     *            <code>null</code> to disable caching.
+     */
+    public void setRenderedImageCache(RenderedImageCache renderedImageCache) {
+        this.renderedImageCache = renderedImageCache;
+    }
+
+    /**
+     * Thumbnail cache Bean injector.
+     * 
+     * @param thumbnailCache
+     *            The cache of compressed thumbnails, whose thumbnails of the
+     *            pixels set are removed once the settings have been saved, or
+     *            <code>null</code>.
+     */
+    public void setThumbnailCache(ThumbnailCache thumbnailCache) {
+        this.thumbnailCache = thumbnailCache;
+    }
+
+    /**
+     * Sets the maximum number of bytes of quantized planes the renderer keeps
+     * so that only the channels whose settings changed are quantized again.
+     * 
+     * @param quantizedPlaneCacheSize
+     *            The size in bytes, <code>0</code> to disable.
+     */
+    public void setQuantizedPlaneCacheSize(long quantizedPlaneCacheSize) {
+        this.quantizedPlaneCacheSize = quantizedPlaneCacheSize;
+    }
+
     @RolesAllowed("user")
     public long getRenderingDefId() {
         if (rendDefObj == null || rendDefObj.getId() == null) {
@@ -393,6 +444,13 @@ public class RenderingBean implements RenderingEngine, Serializable {
             PixelBuffer buffer = getPixelBuffer();
             renderer = new Renderer(quantumFactory, renderingModels, pixelsObj,
                     rendDefObj, buffer);
+            renderer.setQuantizedPlaneCacheSize(quantizedPlaneCacheSize);
+            // Rendering calls run concurrently under the read lock and
+            // therefore can no longer apply the resolution level themselves.
+            if (resolutionLevel != null)
+            {
+                renderer.setResolutionLevel(resolutionLevel);
+            }
         } finally {
             rwl.writeLock().unlock();
         }
@@ -406,7 +464,13 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public void setOverlays(Map<byte[], Integer> overlays)
     {
-    	renderer.setOverlays(overlays);
+        rwl.writeLock().lock();
+        try {
+            errorIfNullRenderer();
+            renderer.setOverlays(overlays);
+        } finally {
+            rwl.writeLock().unlock();
+        }
     }
 
     /**
@@ -443,7 +507,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public RGBBuffer render(PlaneDef pd) {
-        rwl.readLock().lock();
+        acquireRenderingLock();
 
         try {
             errorIfInvalidState();
@@ -466,15 +530,26 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public int[] renderAsPackedInt(PlaneDef pd) {
-        rwl.writeLock().lock();
+        acquireRenderingLock();
 
         try {
             errorIfInvalidState();
+            return renderPlaneAsPackedInt(pd);
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Renders a plane as packed integers, the caller must hold the read lock
+     * and have checked the state of the service.
+     * 
+     * @param pd The plane to render.
+     * @return See above.
+     */
+    private int[] renderPlaneAsPackedInt(PlaneDef pd) {
+        try {
             checkPlaneDef(pd);
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             return renderer.renderAsPackedInt(pd, null);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
@@ -482,8 +557,6 @@ public class RenderingBean implements RenderingEngine, Serializable {
         } catch (QuantizationException e) {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
-        } finally {
-            rwl.writeLock().unlock();
         }
     }
 
@@ -494,15 +567,11 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public int[] renderAsPackedIntAsRGBA(PlaneDef pd) {
-    	rwl.writeLock().lock();
+    	acquireRenderingLock();
 
     	try {
     		errorIfInvalidState();
             checkPlaneDef(pd);
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
     		return renderer.renderAsPackedIntAsRGBA(pd, null);
     	} catch (IOException e) {
     	    log.error("IO error while rendering.", e);
@@ -511,7 +580,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
     	    log.error("Quantization exception while rendering.", e);
     	    throw new InternalException(e.getMessage());
     	} finally {
-    		rwl.writeLock().unlock();
+    		rwl.readLock().unlock();
     	}
     }
 
@@ -522,14 +591,125 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public byte[] renderCompressed(PlaneDef pd) {
-        rwl.writeLock().lock();
+        acquireRenderingLock();
+
+        try {
+            errorIfInvalidState();
+            return renderPlaneCompressed(pd);
+        } finally {
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see RenderingEngine#renderCompressedTiles(List)
+     */
+    @RolesAllowed("user")
+    public List<byte[]> renderCompressedTiles(List<PlaneDef> pds) {
+        if (pds == null) {
+            throw new ValidationException("No plane definitions.");
+        }
+        final List<byte[]> tiles = new ArrayList<byte[]>(
+                Collections.<byte[]>nCopies(pds.size(), null));
+        renderCompressedTilesToCallback(pds, new RenderedTileCallback() {
+            public void tileRendered(int index, byte[] tile) {
+                tiles.set(index, tile);
+            }
+        });
+        return tiles;
+    }
+
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * The planes are rendered on the shared {@link RenderingExecutor}, each
+     * one on a single worker, while the calling thread holds the read lock
+     * and hands the compressed images to <code>callback</code>.
+     * 
+     * @see RenderingEngine#renderCompressedTilesToCallback(List,
+     * RenderedTileCallback)
+     */
+    @RolesAllowed("user")
+    public void renderCompressedTilesToCallback(List<PlaneDef> pds,
+            RenderedTileCallback callback) {
+        if (pds == null) {
+            throw new ValidationException("No plane definitions.");
+        }
+        if (callback == null) {
+            throw new ValidationException("No callback.");
+        }
+        for (PlaneDef pd : pds) {
+            if (pd == null) {
+                throw new ValidationException("Null plane definition.");
+            }
+        }
+        acquireRenderingLock();
+
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            errorIfInvalidState();
+            RenderingExecutor processor = RenderingExecutor.getInstance();
+            final BlockingQueue<Integer> completed =
+                new LinkedBlockingQueue<Integer>();
+            for (int i = 0; i < pds.size(); i++) {
+                final int index = i;
+                final PlaneDef pd = pds.get(i);
+                futures.add(processor.submit(new RenderingTask() {
+                    public Object call() {
+                        try {
+                            return renderPlaneCompressed(pd);
+                        } finally {
+                            completed.add(index);
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < pds.size(); i++) {
+                int index = completed.take();
+                callback.tileRendered(index, (byte[]) futures.get(index).get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while rendering tiles.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            log.error("Error while rendering tiles.", cause);
+            throw new InternalException(cause.getMessage());
+        } finally {
+            // Do not leave tiles rendering once the call has failed.
+            for (Future<Object> future : futures) {
+                future.cancel(false);
+            }
+            rwl.readLock().unlock();
+        }
+    }
 
-        ByteArrayOutputStream byteStream = null;
+    /**
+     * Renders and compresses a plane, looking it up in the rendered image
+     * cache first. The caller must hold the read lock and have checked the
+     * state of the service.
+     * 
+     * @param pd The plane to render.
+     * @return The compressed image.
+     */
+    private byte[] renderPlaneCompressed(PlaneDef pd) {
         try {
+            String key = getCacheKey("plane " + pd + " stride="
+                    + pd.getStride());
+            if (key != null) {
+                byte[] cached = renderedImageCache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
         	int stride = pd.getStride();
         	if (stride < 0) stride = 0;
         	stride++;
-            int[] buf = renderAsPackedInt(pd);
+            int[] buf = renderPlaneAsPackedInt(pd);
             int sizeX = pixelsObj.getSizeX();
             int sizeY = pixelsObj.getSizeY();
             RegionDef region = pd.getRegion();
@@ -539,24 +719,14 @@ public class RenderingBean implements RenderingEngine, Serializable {
             }
             sizeX = sizeX/stride;
             sizeY = sizeY/stride;
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            byte[] compressed = compressionSrv.compress(buf, sizeX, sizeY);
+            if (key != null) {
+                renderedImageCache.put(key, compressed);
+            }
+            return compressed;
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
-        } finally {
-            rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
         }
     }
 
@@ -568,14 +738,10 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public int[] renderProjectedAsPackedInt(int algorithm, int timepoint,
             int stepping, int start, int end) {
-        rwl.writeLock().lock();
+        acquireRenderingLock();
 
         try {
             errorIfInvalidState();
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
             ChannelBinding[] channelBindings = renderer.getChannelBindings();
             byte[][][][] planes = new byte[1][pixelsObj.getSizeC()][1][];
             long pixelsId = pixelsObj.getId();
@@ -606,7 +772,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
+            rwl.readLock().unlock();
         }
     }
 
@@ -618,36 +784,33 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public byte[] renderProjectedCompressed(int algorithm, int timepoint,
             int stepping, int start, int end) {
-        rwl.writeLock().lock();
+        acquireRenderingLock();
 
-        ByteArrayOutputStream byteStream = null;
         try {
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
+            errorIfInvalidState();
+            String key = getCacheKey("projection algorithm=" + algorithm
+                    + " t=" + timepoint + " stepping=" + stepping
+                    + " start=" + start + " end=" + end);
+            if (key != null) {
+                byte[] cached = renderedImageCache.get(key);
+                if (cached != null) {
+                    return cached;
+                }
             }
             int[] buf = renderProjectedAsPackedInt(algorithm, timepoint,
                     stepping, start, end);
             int sizeX = pixelsObj.getSizeX();
             int sizeY = pixelsObj.getSizeY();
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            byte[] compressed = compressionSrv.compress(buf, sizeX, sizeY);
+            if (key != null) {
+                renderedImageCache.put(key, compressed);
+            }
+            return compressed;
         } catch (IOException e) {
             log.error("Could not compress rendered image.", e);
             throw new ResourceError(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
-                }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
-            }
+            rwl.readLock().unlock();
         }
     }
 
@@ -692,7 +855,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
                 // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
                 load();
             }
-            
+            invalidateRenderedImages();
         } finally {
             rwl.writeLock().unlock();
         }
@@ -743,6 +906,26 @@ public class RenderingBean implements RenderingEngine, Serializable {
         return compressionSrv.getCompressionLevel();
     }
 
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see RenderingEngine#setCompressionFormat()
+     */
+    @RolesAllowed("user")
+    public void setCompressionFormat(String format) {
+        compressionSrv.setCompressionFormat(format);
+    }
+
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see RenderingEngine#getCompressionFormat()
+     */
+    @RolesAllowed("user")
+    public String getCompressionFormat() {
+        return compressionSrv.getCompressionFormat();
+    }
+
     /**
      * Implemented as specified by the {@link RenderingEngine} interface.
      * 
@@ -836,6 +1019,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
             // we will now reload the renderer.
             // *** Ticket #848 -- Chris Allan <callan@blackcat.ca> ***
             load();
+            invalidateRenderedImages();
         } finally {
             rwl.writeLock().unlock();
         }
@@ -1474,6 +1658,98 @@ public class RenderingBean implements RenderingEngine, Serializable {
         }
     }
 
+    /**
+     * Returns the key under which the compressed image produced by a
+     * rendering request is cached. The key is made of the pixels set
+     * identifier and a digest of the request, the current rendering
+     * settings, the resolution level and the compression quality.
+     * 
+     * @param request Description of the plane, region or projection to
+     * render.
+     * @return See above or <code>null</code> if the image must not be
+     * cached: there is no cache, overlays are rendered or codomain maps
+     * are applied.
+     */
+    private String getCacheKey(String request) {
+        if (renderedImageCache == null || !renderedImageCache.isEnabled()) {
+            return null;
+        }
+        Map<byte[], Integer> overlays = renderer.getOverlays();
+        if ((overlays != null && overlays.size() > 0)
+                || !renderer.getCodomainChain().isIdentity()) {
+            return null;
+        }
+        RenderingDef def = renderer.getRenderingDef();
+        QuantumDef qd = def.getQuantization();
+        StringBuilder sb = new StringBuilder(request);
+        sb.append(";model=").append(def.getModel().getValue());
+        sb.append(";quantum=").append(qd.getBitResolution());
+        sb.append(',').append(qd.getCdStart());
+        sb.append(',').append(qd.getCdEnd());
+        ChannelBinding[] bindings = renderer.getChannelBindings();
+        ChannelBinding cb;
+        for (int w = 0; w < bindings.length; w++) {
+            cb = bindings[w];
+            sb.append(";c").append(w).append('=');
+            if (!cb.getActive()) {
+                sb.append("off");
+                continue;
+            }
+            sb.append(cb.getRed()).append(',').append(cb.getGreen());
+            sb.append(',').append(cb.getBlue()).append(',');
+            sb.append(cb.getAlpha()).append(',');
+            sb.append(cb.getFamily().getValue()).append(',');
+            sb.append(cb.getCoefficient()).append(',');
+            sb.append(cb.getNoiseReduction()).append(',');
+            sb.append(cb.getInputStart()).append(',');
+            sb.append(cb.getInputEnd());
+        }
+        sb.append(";level=").append(resolutionLevel);
+        sb.append(";quality=").append(compressionSrv.getCompressionLevel());
+        sb.append(";format=").append(compressionSrv.getCompressionFormat());
+        return renderedImageCache.createKey(pixelsObj.getId(), sb.toString());
+    }
+
+    /**
+     * Removes the cached images and thumbnails of the current pixels set.
+     * Called once the rendering settings have been saved.
+     */
+    private void invalidateRenderedImages() {
+        if (renderedImageCache != null && pixelsObj != null) {
+            renderedImageCache.invalidate(pixelsObj.getId());
+        }
+        if (thumbnailCache != null && pixelsObj != null) {
+            thumbnailCache.invalidate(pixelsObj.getId());
+        }
+    }
+
+    /**
+     * Acquires the read lock for a rendering call. Rendering calls do not
+     * change the rendering settings and run concurrently, only the settings
+     * mutators, which take the write lock, are serialized. If the renderer
+     * has to be reloaded after passivation this is done under the write
+     * lock, which is then downgraded to the read lock. Callers must release
+     * the read lock.
+     */
+    private void acquireRenderingLock() {
+        rwl.readLock().lock();
+        if (renderer != null || !wasPassivated) {
+            return;
+        }
+        rwl.readLock().unlock();
+        rwl.writeLock().lock();
+        boolean loaded = false;
+        try {
+            errorIfNullRenderer();
+            loaded = true;
+        } finally {
+            if (loaded) {
+                rwl.readLock().lock();
+            }
+            rwl.writeLock().unlock();
+        }
+    }
+
     /**
      * Validates the plane definition.
      * @param pd Plane definition to validate.
@@ -1485,8 +1761,12 @@ public class RenderingBean implements RenderingEngine, Serializable {
             return;
         }
         PixelBuffer pixelBuffer = renderer.getPixels();
-        int sizeX = pixelBuffer.getSizeX();
-        int sizeY = pixelBuffer.getSizeY();
+        int sizeX, sizeY;
+        synchronized (pixelBuffer)
+        {
+            sizeX = pixelBuffer.getSizeX();
+            sizeY = pixelBuffer.getSizeY();
+        }
         if (rd.getWidth() + rd.getX() > sizeX)
         {
             int newWidth = sizeX - rd.getX();
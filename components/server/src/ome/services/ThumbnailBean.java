@@ -10,7 +10,6 @@ package ome.services;
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -19,9 +18,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -32,6 +36,7 @@ import ome.api.IScale;
 import ome.api.ServiceInterface;
 import ome.api.ThumbnailStore;
 import ome.api.local.LocalCompress;
+import ome.api.local.LocalThumbnailStore;
 import ome.conditions.ApiUsageException;
 import ome.conditions.ConcurrencyException;
 import ome.conditions.InternalException;
@@ -77,7 +82,7 @@ import org.springframework.transaction.annotation.Transactional;
  */
 @Transactional(readOnly = true)
 public class ThumbnailBean extends AbstractLevel2Service
-    implements ThumbnailStore, Serializable
+    implements LocalThumbnailStore, Serializable
 {
     /**
      * 
@@ -111,6 +116,12 @@ public class ThumbnailBean extends AbstractLevel2Service
     /** The rendering settings service. */
     private transient IRenderingSettings settingsService;
 
+    /** The workers rendering the missing thumbnails of a set, if any. */
+    private transient ExecutorService thumbnailWorkers;
+
+    /** The process-wide cache of compressed thumbnails, if any. */
+    private transient ThumbnailCache thumbnailCache;
+
     /** The list of all families supported by the {@link Renderer}. */
     private transient List<Family> families;
 
@@ -446,13 +457,41 @@ public class ThumbnailBean extends AbstractLevel2Service
         this.settingsService = settingsService;
     }
 
+    /**
+     * Thumbnail workers Bean injector. The missing thumbnails of a set are
+     * rendered on the workers rather than one after the other on the calling
+     * thread.
+     * 
+     * @param thumbnailWorkers
+     *            an <code>ExecutorService</code>.
+     */
+    public void setThumbnailWorkers(ExecutorService thumbnailWorkers) {
+        getBeanHelper().throwIfAlreadySet(this.thumbnailWorkers,
+                thumbnailWorkers);
+        this.thumbnailWorkers = thumbnailWorkers;
+    }
+
+    /**
+     * Thumbnail cache Bean injector. Thumbnails are looked up there before
+     * being read from disk.
+     * 
+     * @param thumbnailCache
+     *            a <code>ThumbnailCache</code>.
+     */
+    public void setThumbnailCache(ThumbnailCache thumbnailCache) {
+        getBeanHelper().throwIfAlreadySet(this.thumbnailCache,
+                thumbnailCache);
+        this.thumbnailCache = thumbnailCache;
+    }
+
     /**
      * Compresses a buffered image thumbnail to disk.
      * 
      * @param thumb
      *            the thumbnail metadata.
      * @param image
-     *            the thumbnail's buffered image.
+     *            the thumbnail's buffered image or <code>null</code> for the
+     *            <i>in progress</i> image.
      * @throws IOException
      *             if there is a problem writing to disk.
      */
@@ -462,10 +501,29 @@ public class ThumbnailBean extends AbstractLevel2Service
         if (diskSpaceChecking) {
             iRepositoryInfo.sanityCheckRepository();
         }
+        writeThumbnail(thumb, image);
+    }
 
-        FileOutputStream stream = ioService.getThumbnailOutputStream(thumb);
+    /**
+     * Compresses a buffered image thumbnail to disk without checking the
+     * disk space first.
+     * 
+     * @param thumb
+     *            the thumbnail metadata.
+     * @param image
+     *            the thumbnail's buffered image or <code>null</code> for the
+     *            <i>in progress</i> image.
+     * @throws IOException
+     *             if there is a problem writing to disk.
+     */
+    private void writeThumbnail(Thumbnail thumb, BufferedImage image)
+    throws IOException {
+        if (thumbnailCache != null && thumb.getId() != null) {
+            thumbnailCache.remove(thumb.getId());
+        }
+        OutputStream stream = ioService.getThumbnailOutputStream(thumb);
         try {
-            if (inProgress) {
+            if (image == null) {
                 compressInProgressImageToStream(thumb, stream);
             } else {
                 compressionService.compressToStream(image, stream);
@@ -565,6 +623,29 @@ public class ThumbnailBean extends AbstractLevel2Service
             return null;
         }
 
+        return renderScaledImage(renderer, pixels, settings,
+                thumbnailMetadata, theZ, theT);
+    }
+
+    /**
+     * Renders a plane of a pixels set and scales it to the size of a
+     * thumbnail. Only uses the state passed in so that the thumbnails of a
+     * set can be rendered concurrently, each by its own renderer.
+     * 
+     * @param renderer the renderer of the pixels set.
+     * @param pixels the pixels set.
+     * @param settings the rendering settings of the renderer.
+     * @param metadata the metadata of the thumbnail.
+     * @param theZ the optical section (offset across the Z-axis) requested. 
+     * <pre>null</pre> signifies the rendering engine default.
+     * @param theT the timepoint (offset across the T-axis) requested. 
+     * <pre>null</pre> signifies the rendering engine default.
+     * @return a scaled buffered image.
+     */
+    private BufferedImage renderScaledImage(Renderer renderer, Pixels pixels,
+            RenderingDef settings, Thumbnail metadata, Integer theZ,
+            Integer theT)
+    {
         // Retrieve our rendered data
         if (theZ == null)
             theZ = settings.getDefaultZ();
@@ -572,31 +653,38 @@ public class ThumbnailBean extends AbstractLevel2Service
             theT = settings.getDefaultT();
         PlaneDef pd = new PlaneDef(PlaneDef.XY, theT);
         pd.setZ(theZ);
-        // Use a resolution level that matches our requested size if we can
+        // Use the smallest resolution level that is at least our requested
+        // size if we can, otherwise read every n-th row and column
         PixelBuffer pixelBuffer = renderer.getPixels();
         int originalSizeX = pixels.getSizeX();
         int originalSizeY = pixels.getSizeY();
         int pixelBufferSizeX = pixelBuffer.getSizeX();
         int pixelBufferSizeY = pixelBuffer.getSizeY();
+        int stride = 1;
         if (pixelBuffer.getResolutionLevels() > 1)
         {
-            int resolutionLevel = pixelBuffer.getResolutionLevels();
-            while (resolutionLevel > 0)
-            {
-                resolutionLevel--;
-                renderer.setResolutionLevel(resolutionLevel);
-                pixelBufferSizeX = pixelBuffer.getSizeX();
-                pixelBufferSizeY = pixelBuffer.getSizeY();
-                if (pixelBufferSizeX <= thumbnailMetadata.getSizeX()
-                    || pixelBufferSizeY <= thumbnailMetadata.getSizeY())
-                {
-                    break;
-                }
-            }
+            int resolutionLevel = getThumbnailResolutionLevel(
+                    renderer.getResolutionDescriptions(),
+                    metadata.getSizeX(), metadata.getSizeY());
+            renderer.setResolutionLevel(resolutionLevel);
+            pixelBufferSizeX = pixelBuffer.getSizeX();
+            pixelBufferSizeY = pixelBuffer.getSizeY();
             log.debug(String.format("Using resolution level %d -- %dx%d",
                     resolutionLevel, pixelBufferSizeX, pixelBufferSizeY));
-            renderer.setResolutionLevel(resolutionLevel);
         }
+        else
+        {
+            stride = getThumbnailStride(pixelBufferSizeX, pixelBufferSizeY,
+                    metadata.getSizeX(), metadata.getSizeY());
+            if (stride > 1)
+            {
+                pd.setStride(stride - 1);
+                log.debug(String.format("Using stride %d -- %dx%d", stride,
+                        pixelBufferSizeX / stride, pixelBufferSizeY / stride));
+            }
+        }
+        int renderedSizeX = pixelBufferSizeX / stride;
+        int renderedSizeY = pixelBufferSizeY / stride;
 
         // Render the planes and translate to a buffered image
         Pixels rendererPixels = renderer.getMetadata();
@@ -608,13 +696,13 @@ public class ThumbnailBean extends AbstractLevel2Service
             rendererPixels.setSizeY(pixelBufferSizeY);
             int[] buf = renderer.renderAsPackedInt(pd, null);
             BufferedImage image = ImageUtil.createBufferedImage(
-                    buf, pixelBufferSizeX, pixelBufferSizeY);
+                    buf, renderedSizeX, renderedSizeY);
 
             // Finally, scale our image using scaling factors (percentage).
             float xScale = (float)
-                    thumbnailMetadata.getSizeX() / pixelBufferSizeX;
+                    metadata.getSizeX() / renderedSizeX;
             float yScale = (float)
-                    thumbnailMetadata.getSizeY() / pixelBufferSizeY;
+                    metadata.getSizeY() / renderedSizeY;
             log.debug(String.format("Using scaling factors x:%f y:%f",
                     xScale, yScale));
             return iScale.scaleBufferedImage(image, xScale, yScale);
@@ -645,13 +733,69 @@ public class ThumbnailBean extends AbstractLevel2Service
 
     }
 
+    /**
+     * Returns the resolution level to render a thumbnail at: the smallest
+     * level which is at least as large as the thumbnail in both dimensions,
+     * the full resolution level if none is smaller.
+     * 
+     * @param descriptions the sizes of the resolution levels, as returned by
+     * {@link PixelBuffer#getResolutionDescriptions()}, the full resolution
+     * first.
+     * @param sizeX the width of the thumbnail.
+     * @param sizeY the height of the thumbnail.
+     * @return See above.
+     */
+    static int getThumbnailResolutionLevel(
+            List<List<Integer>> descriptions, int sizeX, int sizeY)
+    {
+        int levels = descriptions.size();
+        // Resolution level 0 is the smallest, the last description.
+        for (int level = 0; level < levels - 1; level++)
+        {
+            List<Integer> description = descriptions.get(levels - 1 - level);
+            if (description.get(0) >= sizeX && description.get(1) >= sizeY)
+            {
+                return level;
+            }
+        }
+        return levels - 1;
+    }
+
+    /**
+     * Returns the number of rows and columns to step over when reading a
+     * plane to render a thumbnail from: the largest stride which reads at
+     * least as many pixels as the thumbnail has in both dimensions.
+     * 
+     * @param planeSizeX the width of the plane.
+     * @param planeSizeY the height of the plane.
+     * @param sizeX the width of the thumbnail.
+     * @param sizeY the height of the thumbnail.
+     * @return See above, <code>1</code> to read every pixel.
+     */
+    static int getThumbnailStride(int planeSizeX, int planeSizeY,
+            int sizeX, int sizeY)
+    {
+        int stride = Math.min(planeSizeX / Math.max(1, sizeX),
+                planeSizeY / Math.max(1, sizeY));
+        return Math.max(1, stride);
+    }
+
     /**
      * Creates a new thumbnail context.
      */
     private void newContext()
     {
         resetMetadata();
-        ctx = new ThumbnailCtx(
+        ctx = createContext();
+    }
+
+    /**
+     * Creates the thumbnail metadata context of the current user.
+     * @return See above.
+     */
+    ThumbnailCtx createContext()
+    {
+        return new ThumbnailCtx(
                 iQuery, iUpdate, iPixels, settingsService, ioService,
                 sec, sec.getEffectiveUID());
     }
@@ -856,7 +1000,41 @@ public class ThumbnailBean extends AbstractLevel2Service
     public void createThumbnailsByLongestSideSet(Integer size,
             Set<Long> pixelsIds)
     {
-        getThumbnailByLongestSideSet(size, pixelsIds);
+        createAndReportThumbnailsByLongestSideSet(size, pixelsIds);
+    }
+
+    /* (non-Javadoc)
+     * @see ome.api.local.LocalThumbnailStore#createAndReportThumbnailsByLongestSideSet(java.lang.Integer, java.util.Set)
+     */
+    @RolesAllowed("user")
+    @Transactional(readOnly = false)
+    public Map<Long, Boolean> createAndReportThumbnailsByLongestSideSet(
+            Integer size, Set<Long> pixelsIds)
+    {
+        // Set defaults and sanity check thumbnail sizes
+        Dimension checkedDimensions = sanityCheckThumbnailSizes(size, size);
+        size = (int) checkedDimensions.getWidth();
+
+        // Prepare our thumbnail context
+        newContext();
+        ctx.loadAndPrepareRenderingSettings(pixelsIds);
+        ctx.createAndPrepareMissingRenderingSettings(pixelsIds);
+        ctx.loadAndPrepareMetadata(pixelsIds, size);
+        // Thumbnails which are already valid are neither rendered nor read.
+        Set<Long> inProgressIds = new HashSet<Long>();
+        Map<Long, byte[]> values =
+            retrieveThumbnailSet(pixelsIds, false, inProgressIds);
+        iQuery.clear();
+        Map<Long, Boolean> toReturn = new HashMap<Long, Boolean>();
+        for (Long pixelsId : pixelsIds)
+        {
+            if (!inProgressIds.contains(pixelsId))
+            {
+                toReturn.put(pixelsId, !values.containsKey(pixelsId)
+                        || values.get(pixelsId) != null);
+            }
+        }
+        return toReturn;
     }
 
     /* (non-Javadoc)
@@ -875,7 +1053,7 @@ public class ThumbnailBean extends AbstractLevel2Service
         ctx.loadAndPrepareRenderingSettings(pixelsIds);
         ctx.createAndPrepareMissingRenderingSettings(pixelsIds);
         ctx.loadAndPrepareMetadata(pixelsIds, checkedDimensions);
-        Map<Long, byte[]> values = retrieveThumbnailSet(pixelsIds);
+        Map<Long, byte[]> values = retrieveThumbnailSet(pixelsIds, true, null);
         iQuery.clear();
         return values;
     }
@@ -894,7 +1072,7 @@ public class ThumbnailBean extends AbstractLevel2Service
         ctx.loadAndPrepareRenderingSettings(pixelsIds);
         ctx.createAndPrepareMissingRenderingSettings(pixelsIds);
         ctx.loadAndPrepareMetadata(pixelsIds, size);
-        Map<Long, byte[]> values = retrieveThumbnailSet(pixelsIds);
+        Map<Long, byte[]> values = retrieveThumbnailSet(pixelsIds, true, null);
         iQuery.clear();
         return values;
     }
@@ -902,14 +1080,31 @@ public class ThumbnailBean extends AbstractLevel2Service
     /**
      * Performs the logic of retrieving a set of thumbnails.
      * @param pixelsIds The Pixels IDs to retrieve thumbnails for.
-     * @return Map of Pixels ID vs. thumbnail bytes.
+     * @param read Whether or not to read the thumbnails which are already
+     * valid, rather than only creating the others.
+     * @param inProgressIds Filled with the Pixels IDs whose <i>in
+     * progress</i> image was returned, may be <code>null</code>.
+     * @return Map of Pixels ID vs. thumbnail bytes, without the thumbnails
+     * which are already valid if <code>read</code> is <code>false</code>.
      */
-    private Map<Long, byte[]> retrieveThumbnailSet(Set<Long> pixelsIds)
+    private Map<Long, byte[]> retrieveThumbnailSet(Set<Long> pixelsIds,
+            boolean read, Set<Long> inProgressIds)
     {
         // Our return value HashMap
         Map<Long, byte[]> toReturn = new HashMap<Long, byte[]>();
 
         List<Thumbnail> toSave = new ArrayList<Thumbnail>();
+        // Missing thumbnails being rendered on the workers and their dirty
+        // metadata, saved once they have been written.
+        Map<Long, Future<byte[]>> rendering =
+            new LinkedHashMap<Long, Future<byte[]>>();
+        Map<Long, ThumbnailTask> renderingTasks =
+            new HashMap<Long, ThumbnailTask>();
+        Map<Long, Thumbnail> renderingMetadata = new HashMap<Long, Thumbnail>();
+        // Thumbnails already on disk, read together once all are known.
+        Map<Long, Thumbnail> cachedMetadata = new HashMap<Long, Thumbnail>();
+        boolean parallel = thumbnailWorkers != null && pixelsIds.size() > 1;
+        boolean repositoryChecked = false;
         for (Long pixelsId : pixelsIds)
         {
             // Ensure that the renderer has been made dirty otherwise the
@@ -922,8 +1117,10 @@ public class ThumbnailBean extends AbstractLevel2Service
                 {
                     try
                     {
+                        // Closed straight away so that it is returned to
+                        // the pixel buffer pool.
                         pixelDataService.getPixelBuffer(
-                                ctx.getPixels(pixelsId), false);
+                                ctx.getPixels(pixelsId), false).close();
                         continue;  // No exception, not an in progress image
                     }
                     catch (ConcurrencyException e)
@@ -937,10 +1134,67 @@ public class ThumbnailBean extends AbstractLevel2Service
                 pixelsId = pixels.getId();
                 settings = ctx.getSettings(pixelsId);
                 thumbnailMetadata = ctx.getMetadata(pixelsId);
+                if (read && !inProgress)
+                {
+                    byte[] cachedThumbnail =
+                        getCachedThumbnail(pixelsId, thumbnailMetadata);
+                    if (cachedThumbnail != null)
+                    {
+                        toReturn.put(pixelsId, cachedThumbnail);
+                        continue;
+                    }
+                }
+                if (!inProgress && ctx.isThumbnailCached(pixelsId))
+                {
+                    try
+                    {
+                        if (read)
+                        {
+                            cachedMetadata.put(pixelsId, thumbnailMetadata);
+                        }
+                        if (dirtyMetadata)
+                        {
+                            toSave.add(thumbnailMetadata);
+                        }
+                    }
+                    finally
+                    {
+                        dirtyMetadata = false;
+                    }
+                    continue;
+                }
+                if (parallel && !inProgress
+                    && !ctx.isThumbnailCached(pixelsId))
+                {
+                    if (diskSpaceChecking && !repositoryChecked)
+                    {
+                        iRepositoryInfo.sanityCheckRepository();
+                        repositoryChecked = true;
+                    }
+                    try
+                    {
+                        ThumbnailTask task = prepareThumbnailTask();
+                        renderingTasks.put(pixelsId, task);
+                        rendering.put(pixelsId, thumbnailWorkers.submit(task));
+                        if (dirtyMetadata)
+                        {
+                            renderingMetadata.put(pixelsId, thumbnailMetadata);
+                        }
+                    }
+                    finally
+                    {
+                        dirtyMetadata = false;
+                    }
+                    continue;
+                }
                 try
                 {
                     byte[] thumbnail = retrieveThumbnail();
                     toReturn.put(pixelsId, thumbnail);
+                    if (inProgress && inProgressIds != null)
+                    {
+                        inProgressIds.add(pixelsId);
+                    }
                     if (dirtyMetadata)
                     {
                         toSave.add(thumbnailMetadata);
@@ -958,6 +1212,41 @@ public class ThumbnailBean extends AbstractLevel2Service
                 toReturn.put(pixelsId, null);
             }
         }
+        toReturn.putAll(readThumbnails(cachedMetadata));
+        // Hibernate stays on this thread; the workers only render, compress
+        // and read back the thumbnails.
+        for (Map.Entry<Long, Future<byte[]>> entry : rendering.entrySet())
+        {
+            Long pixelsId = entry.getKey();
+            try
+            {
+                toReturn.put(pixelsId, entry.getValue().get());
+                if (renderingTasks.get(pixelsId).inProgress
+                    && inProgressIds != null)
+                {
+                    inProgressIds.add(pixelsId);
+                }
+                Thumbnail metadata = renderingMetadata.get(pixelsId);
+                if (metadata != null)
+                {
+                    toSave.add(metadata);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                entry.getValue().cancel(true);
+                log.warn("Interrupted retrieving thumbnail in set for " +
+                        "Pixels ID " + pixelsId + ".");
+                toReturn.put(pixelsId, null);
+            }
+            catch (ExecutionException e)
+            {
+                log.warn("Retrieving thumbnail in set for " +
+                        "Pixels ID " + pixelsId + " failed.", e.getCause());
+                toReturn.put(pixelsId, null);
+            }
+        }
         // We're doing the update or creation and save as a two step 
         // process due to the possible unloaded Pixels. If we do not, 
         // Pixels will be unloaded and we will hit 
@@ -970,6 +1259,35 @@ public class ThumbnailBean extends AbstractLevel2Service
         return toReturn;
     }
 
+    /**
+     * Prepares the rendering of the missing thumbnail of the active pixels
+     * set on a worker. The metadata is updated as {@link #_createThumbnail()}
+     * does and the pixels set and rendering settings loaded here, on the
+     * transactional thread.
+     * @return The task rendering the thumbnail and returning its bytes.
+     */
+    private ThumbnailTask prepareThumbnailTask()
+    {
+        if (thumbnailMetadata == null) {
+            throw new ValidationException("Missing thumbnail metadata.");
+        } else if (ctx.dirtyMetadata(pixels.getId())) {
+            // See _createThumbnail()
+            thumbnailMetadata.setVersion(thumbnailMetadata.getVersion() + 1);
+            Pixels unloadedPixels = new Pixels(pixels.getId(), false);
+            thumbnailMetadata.setPixels(unloadedPixels);
+            dirtyMetadata = true;
+        }
+        errorIfNullPixelsAndRenderingDef();
+        Pixels description = iPixels.retrievePixDescription(pixels.getId());
+        // The renderer resizes the Pixels set it renders at a lower
+        // resolution level; this must not be flushed by the queries run
+        // here meanwhile.
+        iQuery.evict(description);
+        return new ThumbnailTask(description,
+                iPixels.loadRndSettings(settings.getId()),
+                thumbnailMetadata, getFamilies(), getRenderingModels());
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -1015,6 +1333,89 @@ public class ThumbnailBean extends AbstractLevel2Service
         return thumbnail;
     }
 
+    /**
+     * Returns the thumbnail of a pixels set from the thumbnail cache, if its
+     * metadata is up to date with the rendering settings.
+     * @param pixelsId The Pixels ID.
+     * @param metadata The thumbnail metadata.
+     * @return See above or <code>null</code> if the thumbnail is not cached.
+     */
+    private byte[] getCachedThumbnail(long pixelsId, Thumbnail metadata)
+    {
+        if (thumbnailCache == null || metadata == null
+            || metadata.getId() == null || metadata.getVersion() == null
+            || ctx.dirtyMetadata(pixelsId))
+        {
+            return null;
+        }
+        return thumbnailCache.get(metadata.getId(), metadata.getVersion());
+    }
+
+    /**
+     * Adds a thumbnail read from disk to the thumbnail cache.
+     * @param pixelsId The Pixels ID.
+     * @param metadata The thumbnail metadata.
+     * @param thumbnail The thumbnail bytes.
+     */
+    private void cacheThumbnail(long pixelsId, Thumbnail metadata,
+            byte[] thumbnail)
+    {
+        if (thumbnailCache != null && metadata != null
+            && metadata.getId() != null && metadata.getVersion() != null)
+        {
+            thumbnailCache.put(metadata.getId(), metadata.getVersion(),
+                    pixelsId, thumbnail);
+        }
+    }
+
+    /**
+     * Reads a set of thumbnails from disk in one go, falling back to reading
+     * them one at a time should that fail.
+     * @param metadata Map of Pixels ID vs. thumbnail metadata.
+     * @return Map of Pixels ID vs. thumbnail bytes, <code>null</code> for
+     * those which could not be read.
+     */
+    private Map<Long, byte[]> readThumbnails(Map<Long, Thumbnail> metadata)
+    {
+        Map<Long, byte[]> toReturn = new HashMap<Long, byte[]>();
+        if (metadata.isEmpty())
+        {
+            return toReturn;
+        }
+        try
+        {
+            Map<Long, byte[]> thumbnails = ioService.getThumbnails(
+                    new ArrayList<Thumbnail>(metadata.values()));
+            for (Map.Entry<Long, Thumbnail> entry : metadata.entrySet())
+            {
+                byte[] thumbnail = thumbnails.get(entry.getValue().getId());
+                toReturn.put(entry.getKey(), thumbnail);
+                cacheThumbnail(entry.getKey(), entry.getValue(), thumbnail);
+            }
+            return toReturn;
+        }
+        catch (IOException e)
+        {
+            log.warn("Reading thumbnails in set failed, reading them " +
+                     "one at a time.", e);
+        }
+        for (Map.Entry<Long, Thumbnail> entry : metadata.entrySet())
+        {
+            try
+            {
+                toReturn.put(entry.getKey(),
+                        ioService.getThumbnail(entry.getValue()));
+            }
+            catch (IOException e)
+            {
+                log.warn("Retrieving thumbnail in set for " +
+                        "Pixels ID " + entry.getKey() + " failed.", e);
+                toReturn.put(entry.getKey(), null);
+            }
+        }
+        return toReturn;
+    }
+
     /**
      * Creates the thumbnail or retrieves it from cache.
      * @return Thumbnail bytes.
@@ -1029,6 +1430,12 @@ public class ThumbnailBean extends AbstractLevel2Service
                     0, 0);
         }
 
+        byte[] cachedThumbnail =
+            getCachedThumbnail(pixels.getId(), thumbnailMetadata);
+        if (cachedThumbnail != null)
+        {
+            return cachedThumbnail;
+        }
         try
         {
             boolean cached = ctx.isThumbnailCached(pixels.getId());
@@ -1048,6 +1455,11 @@ public class ThumbnailBean extends AbstractLevel2Service
                 _createThumbnail();
             }
             byte[] thumbnail = ioService.getThumbnail(thumbnailMetadata);
+            if (!inProgress)
+            {
+                // Not the in progress image written by _createThumbnail().
+                cacheThumbnail(pixels.getId(), thumbnailMetadata, thumbnail);
+            }
             return thumbnail;
         }
         catch (IOException e)
@@ -1116,18 +1528,19 @@ public class ThumbnailBean extends AbstractLevel2Service
         thumbnailMetadata = ctx.createThumbnailMetadata(pixels, dimensions);
 
         BufferedImage image = createScaledImage(theZ, theT);
+        if (!inProgress) {
+            try {
+                return compressionService.compress(image);
+            } catch (IOException e) {
+                log.error("Could not obtain thumbnail direct.", e);
+                throw new ResourceError(e.getMessage());
+            }
+        }
         ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
         try {
-            if (inProgress) {
-                compressInProgressImageToStream(thumbnailMetadata, byteStream);
-            } else {
-                compressionService.compressToStream(image, byteStream);
-            }
+            compressInProgressImageToStream(thumbnailMetadata, byteStream);
             byte[] thumbnail = byteStream.toByteArray();
             return thumbnail;
-        } catch (IOException e) {
-            log.error("Could not obtain thumbnail direct.", e);
-            throw new ResourceError(e.getMessage());
         } finally {
             try {
                 byteStream.close();
@@ -1239,6 +1652,10 @@ public class ThumbnailBean extends AbstractLevel2Service
         }
         _resetDefaults();
         iUpdate.flush();
+        if (thumbnailCache != null)
+        {
+            thumbnailCache.invalidate(pixels.getId());
+        }
     }
 
     /** Actually does the work specified by {@link resetDefaults()}.*/
@@ -1283,4 +1700,68 @@ public class ThumbnailBean extends AbstractLevel2Service
     public void setDiskSpaceChecking(boolean diskSpaceChecking) {
         this.diskSpaceChecking = diskSpaceChecking;
     }
+
+    /**
+     * Renders, compresses to disk and reads back a missing thumbnail of a
+     * set with its own {@link Renderer}, reading through the
+     * {@link PixelsService}. Only uses the state passed in and the
+     * thread-safe services of the bean.
+     */
+    private class ThumbnailTask implements Callable<byte[]>
+    {
+        private final Pixels pixels;
+
+        private final RenderingDef settings;
+
+        private final Thumbnail metadata;
+
+        private final List<Family> families;
+
+        private final List<RenderingModel> renderingModels;
+
+        /** Whether the <i>in progress</i> image was written. */
+        private volatile boolean inProgress;
+
+        ThumbnailTask(Pixels pixels, RenderingDef settings,
+                Thumbnail metadata, List<Family> families,
+                List<RenderingModel> renderingModels)
+        {
+            this.pixels = pixels;
+            this.settings = settings;
+            this.metadata = metadata;
+            this.families = families;
+            this.renderingModels = renderingModels;
+        }
+
+        public byte[] call() throws IOException
+        {
+            StopWatch s1 = new Slf4JStopWatch("omero._createThumbnail");
+            PixelBuffer buffer;
+            try
+            {
+                buffer = pixelDataService.getPixelBuffer(pixels, false);
+            }
+            catch (ConcurrencyException e)
+            {
+                // As _createThumbnail() once load() has failed.
+                log.info("ConcurrencyException on ThumbnailTask.call()");
+                inProgress = true;
+                writeThumbnail(metadata, null);
+                return ioService.getThumbnail(metadata);
+            }
+            Renderer renderer = new Renderer(new QuantumFactory(families),
+                    renderingModels, pixels, settings, buffer);
+            try
+            {
+                writeThumbnail(metadata, renderScaledImage(
+                        renderer, pixels, settings, metadata, null, null));
+            }
+            finally
+            {
+                renderer.close();
+            }
+            s1.stop();
+            return ioService.getThumbnail(metadata);
+        }
+    }
 }
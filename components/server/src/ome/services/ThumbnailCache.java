@@ -0,0 +1,286 @@
+/*
+ * ome.services.ThumbnailCache
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Process-wide cache of compressed thumbnails shared by all
+ * {@link ThumbnailBean} instances. Data browsers request the same thumbnails
+ * for every user of a group; serving those from memory avoids reading them
+ * from the {@link ome.io.nio.ThumbnailService} again.
+ * <p>
+ * The cache is bounded by the total number of bytes held and evicts the
+ * least recently used thumbnails first. Thumbnails are looked up by the
+ * identifier and version of their metadata: the version is increased
+ * whenever a thumbnail is rendered again for newer rendering settings, so
+ * that an older version is never returned. {@link #remove(long)} and
+ * {@link #invalidate(long)} free the space held by a thumbnail once it has
+ * been written again or the settings of its pixels set have changed.
+ * </p>
+ * <p>
+ * The statistics are exported through JMX.
+ * </p>
+ *
+ * @since 5.0
+ */
+@ManagedResource(objectName = "omero:type=ThumbnailCache",
+        description = "Process-wide cache of compressed thumbnails")
+public class ThumbnailCache {
+
+    /** The logger for this class. */
+    private static Logger log = LoggerFactory.getLogger(ThumbnailCache.class);
+
+    /** A cached thumbnail. */
+    private static class Entry {
+
+        final int version;
+
+        final long pixelsId;
+
+        final byte[] thumbnail;
+
+        Entry(int version, long pixelsId, byte[] thumbnail) {
+            this.version = version;
+            this.pixelsId = pixelsId;
+            this.thumbnail = thumbnail;
+        }
+    }
+
+    /** Maximum number of bytes held. */
+    private final long maxBytes;
+
+    /** Thumbnails held by metadata identifier, least recently used first. */
+    private final LinkedHashMap<Long, Entry> thumbnails =
+        new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    /** Number of bytes currently held. */
+    private long usedBytes;
+
+    /** Number of requests answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of requests which could not be answered. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of thumbnails evicted. */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes Maximum number of bytes held. A value
+     * <code>&lt;= 0</code> disables the cache.
+     */
+    public ThumbnailCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        log.info(String.format("Thumbnail cache: %d bytes", maxBytes));
+    }
+
+    /**
+     * Returns <code>true</code> if the cache holds thumbnails at all,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the thumbnail cached for a version of its metadata.
+     *
+     * @param thumbnailId The identifier of the thumbnail metadata.
+     * @param version The version of the thumbnail metadata.
+     * @return See above or <code>null</code> if that version of the
+     * thumbnail is not cached.
+     */
+    public byte[] get(long thumbnailId, int version) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (this) {
+            Entry entry = thumbnails.get(thumbnailId);
+            if (entry != null) {
+                if (entry.version == version) {
+                    hits.incrementAndGet();
+                    return entry.thumbnail;
+                }
+                // An older or newer version, not ours to return.
+                thumbnails.remove(thumbnailId);
+                usedBytes -= entry.thumbnail.length;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a thumbnail, replacing any other version of it.
+     *
+     * @param thumbnailId The identifier of the thumbnail metadata.
+     * @param version The version of the thumbnail metadata.
+     * @param pixelsId The identifier of the pixels set of the thumbnail.
+     * @param thumbnail The compressed thumbnail, not copied.
+     */
+    public void put(long thumbnailId, int version, long pixelsId,
+            byte[] thumbnail) {
+        if (!isEnabled() || thumbnail == null || thumbnail.length > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = thumbnails.put(thumbnailId,
+                    new Entry(version, pixelsId, thumbnail));
+            if (previous != null) {
+                usedBytes -= previous.thumbnail.length;
+            }
+            usedBytes += thumbnail.length;
+            Iterator<Entry> i = thumbnails.values().iterator();
+            while (usedBytes > maxBytes) {
+                Entry evicted = i.next();
+                i.remove();
+                usedBytes -= evicted.thumbnail.length;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes a thumbnail. Called when the thumbnail has been written again.
+     *
+     * @param thumbnailId The identifier of the thumbnail metadata.
+     */
+    public void remove(long thumbnailId) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            Entry entry = thumbnails.remove(thumbnailId);
+            if (entry != null) {
+                usedBytes -= entry.thumbnail.length;
+            }
+        }
+    }
+
+    /**
+     * Removes all the thumbnails of a pixels set. Called when its rendering
+     * settings have changed.
+     *
+     * @param pixelsId The identifier of the pixels set.
+     */
+    public void invalidate(long pixelsId) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            Iterator<Entry> i = thumbnails.values().iterator();
+            while (i.hasNext()) {
+                Entry entry = i.next();
+                if (entry.pixelsId == pixelsId) {
+                    i.remove();
+                    usedBytes -= entry.thumbnail.length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the thumbnails.
+     */
+    @ManagedOperation(description = "Removes all the thumbnails")
+    public synchronized void clear() {
+        thumbnails.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Returns the number of requests answered from the cache.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Requests answered from the cache")
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests which could not be answered.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Requests not answered from the cache")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the fraction of requests answered from the cache.
+     *
+     * @return See above, <code>0</code> if there was no request.
+     */
+    @ManagedAttribute(description = "Fraction of requests answered")
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Returns the number of thumbnails evicted.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Thumbnails evicted")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of bytes of thumbnails currently held.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Bytes of thumbnails held")
+    public synchronized long getSize() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns the number of thumbnails currently held.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Thumbnails held")
+    public synchronized int getCount() {
+        return thumbnails.size();
+    }
+
+    /**
+     * Logs the cache statistics. Called when the cache is destroyed.
+     */
+    public void close() {
+        log.info(toString());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "ThumbnailCache(size=%d, hits=%d, misses=%d, ratio=%.3f, " +
+                "evictions=%d)", getSize(), getHits(), getMisses(),
+                getHitRatio(), getEvictions());
+    }
+}
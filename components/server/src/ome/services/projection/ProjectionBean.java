@@ -8,7 +8,6 @@
 package ome.services.projection;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -24,7 +23,6 @@ import ome.conditions.ResourceError;
 import ome.conditions.ValidationException;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
-import ome.util.PixelData;
 import ome.io.nio.PixelsService;
 import ome.logic.AbstractLevel2Service;
 import ome.model.core.Channel;
@@ -53,6 +51,9 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
     /** Reference to the service used to retrieve the pixels data. */
     protected transient PixelsService pixelsService;
     
+    /** Reference to the engine projecting the stacks tile by tile. */
+    protected transient ProjectionEngine projectionEngine;
+    
     /**
      * Returns the interface this implementation is for.
      * @see AbstractLevel2Service#getServiceInterface()
@@ -82,6 +83,17 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         this.pixelsService = pixelsService;
     }
     
+    /**
+     * ProjectionEngine bean injector. For use during configuration. Can only
+     * be called once.
+     */
+    public void setProjectionEngine(ProjectionEngine projectionEngine)
+    {
+        getBeanHelper().throwIfAlreadySet(
+                this.projectionEngine, projectionEngine);
+        this.projectionEngine = projectionEngine;
+    }
+    
     /* (non-Javadoc)
      * @see ome.api.IProjection#projectStack(long, ome.model.enums.PixelsType, int, int, int, int, int, int)
      */
@@ -90,54 +102,20 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
                                int algorithm, int timepoint, int channelIndex, 
                                int stepping, int start, int end)
     {
-        ProjectionContext ctx = new ProjectionContext();
-        ctx.pixels = iQuery.get(Pixels.class, pixelsId);
-        PixelBuffer pixelBuffer = pixelsService.getPixelBuffer(
-                ctx.pixels, false);
+        Pixels pixels = iQuery.get(Pixels.class, pixelsId);
+        if (pixelsType == null)
+        {
+            pixelsType = pixels.getPixelsType();
+        }
+        else
+        {
+            pixelsType = iQuery.get(PixelsType.class, pixelsType.getId());
+        }
         try
         {
-
-            if (pixelsType == null)
-            {
-                pixelsType = ctx.pixels.getPixelsType();
-            }
-            else
-            {
-                pixelsType = iQuery.get(PixelsType.class, pixelsType.getId());
-            }
-
-            ctx.planeSizeInPixels = 
-                ctx.pixels.getSizeX() * ctx.pixels.getSizeY();
-            int planeSize = 
-                ctx.planeSizeInPixels * (iPixels.getBitDepth(pixelsType) / 8);
-            byte[] buf = new byte[planeSize];
-            ctx.from = pixelBuffer.getStack(channelIndex, timepoint);
-            ctx.to = new PixelData(pixelsType.getValue(), ByteBuffer.wrap(buf));
-
-            switch (algorithm)
-            {
-                case IProjection.MAXIMUM_INTENSITY:
-                {
-                    projectStackMax(ctx, stepping, start, end, false);
-                    break;
-                }
-                case IProjection.MEAN_INTENSITY:
-                {
-                    projectStackMean(ctx, stepping, start, end, false);
-                    break;
-                }
-                case IProjection.SUM_INTENSITY:
-                {
-                    projectStackSum(ctx, stepping, start, end, false);
-                    break;
-                }
-                default:
-                {
-                    throw new IllegalArgumentException(
-                            "Unknown algorithm: " + algorithm);
-                }
-            }
-            return buf;
+            return projectionEngine.projectPlane(getSources(pixels),
+                    pixelsType.getValue(), algorithm, channelIndex, timepoint,
+                    stepping, start, end);
         }
         catch (IOException e)
         {
@@ -151,23 +129,10 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         {
             String error = String.format(
                     "C=%d or T=%d out of range for Pixels Id %d: %s",
-                    channelIndex, timepoint, ctx.pixels.getId(), e.getMessage());
+                    channelIndex, timepoint, pixels.getId(), e.getMessage());
             log.error(error, e);
             throw new ValidationException(error);
         }
-        finally
-        {
-            try
-            {
-                pixelBuffer.close();
-            }
-            catch (IOException e)
-            {
-                log.error("Buffer did not close successfully.", e);
-                throw new ResourceError(
-                        e.getMessage() + " Please check server log.");
-            }
-        }
     }
 
     /* (non-Javadoc)
@@ -181,9 +146,8 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
                               int zStart, int zEnd, String name)
     {
         // First, copy and resize our image with sizeZ = 1.
-        ProjectionContext ctx = new ProjectionContext();
-        ctx.pixels = iQuery.get(Pixels.class, pixelsId);
-        Image image = ctx.pixels.getImage();
+        Pixels pixels = iQuery.get(Pixels.class, pixelsId);
+        Image image = pixels.getImage();
         name = name == null? image.getName() + " Projection" : name;
         //size of the new buffer.
         Integer sizeT = tEnd-tStart+1;
@@ -197,7 +161,7 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         Pixels newPixels = newImage.getPixels(0);
         if (pixelsType == null)
         {
-            pixelsType = ctx.pixels.getPixelsType();
+            pixelsType = pixels.getPixelsType();
         }
         else
         {
@@ -206,104 +170,54 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
         newPixels.setPixelsType(pixelsType);
         
         // Project each stack for each channel and each timepoint in the
-        // entire image, copying into the pixel buffer the projected pixels.
-        PixelBuffer sourceBuffer = pixelsService.getPixelBuffer(
-                ctx.pixels, false);
-        try {
-            PixelBuffer destinationBuffer = pixelsService.getPixelBuffer(
-                    newPixels, true);
-            try
-            {
-                ctx.planeSizeInPixels = ctx.pixels.getSizeX() * ctx.pixels.getSizeY();
-                int planeSize =
-                    ctx.planeSizeInPixels * (iPixels.getBitDepth(pixelsType) / 8);
-                byte[] buf = new byte[planeSize];
-                ctx.to = new PixelData(pixelsType.getValue(), ByteBuffer.wrap(buf));
-                int newC = 0;
-                for (Integer c : channels)
-                {
-                    ctx.minimum = Double.MAX_VALUE;
-                    ctx.maximum = Double.MIN_VALUE;
-                    for (int t = tStart; t <= tEnd; t++)
-                    {
-                        try
-                        {
-                            ctx.from = sourceBuffer.getStack(c, t);
-                            switch (algorithm)
-                            {
-                                case IProjection.MAXIMUM_INTENSITY:
-                                {
-                                    projectStackMax(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                case IProjection.MEAN_INTENSITY:
-                                {
-                                    projectStackMean(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                case IProjection.SUM_INTENSITY:
-                                {
-                                    projectStackSum(ctx, stepping, zStart, zEnd, true);
-                                    break;
-                                }
-                                default:
-                                {
-                                    throw new IllegalArgumentException(
-                                            "Unknown algorithm: " + algorithm);
-                                }
-                            }
-                            destinationBuffer.setPlane(buf, 0, newC, t);
-                        }
-                        catch (IOException e)
-                        {
-                            String error = String.format(
-                                    "I/O error retrieving stack C=%d T=%d: %s",
-                                    c, t, e.getMessage());
-                            log.error(error, e);
-                            throw new ResourceError(error);
-                        }
-                        catch (DimensionsOutOfBoundsException e)
-                        {
-                            String error = String.format(
-                                    "C=%d or T=%d out of range for Pixels Id %d: %s",
-                                    c, t, ctx.pixels.getId(), e.getMessage());
-                            log.error(error, e);
-                            throw new ValidationException(error);
-                        }
-                    }
-                    // Handle the change of minimum and maximum for this channel.
-                    Channel channel = newPixels.getChannel(newC);
-                    StatsInfo si = new StatsInfo();
-                    si.setGlobalMin(ctx.minimum);
-                    si.setGlobalMax(ctx.maximum);
-                    channel.setStatsInfo(si);
-                    // Set our methodology
-                    newPixels.setMethodology(
-                            IProjection.METHODOLOGY_STRINGS[algorithm]);
-                    newC++;
-                }
-            }
-            finally
+        // entire image, copying into the pixel buffer the projected pixels
+        // tile by tile.
+        PixelBuffer destinationBuffer = pixelsService.getPixelBuffer(
+                newPixels, true);
+        try
+        {
+            double[][] minMax = projectionEngine.projectPixels(
+                    getSources(pixels), destinationBuffer,
+                    pixelsType.getValue(), algorithm, channels, tStart, tEnd,
+                    stepping, zStart, zEnd);
+            for (int newC = 0; newC < minMax.length; newC++)
             {
-                try
-                {
-                    destinationBuffer.close();
-                }
-                catch (IOException e)
-                {
-                    log.error("Buffer did not close successfully: " + destinationBuffer , e);
-                    throw new ResourceError(
-                            e.getMessage() + " Please check server log.");
-                }
+                // Handle the change of minimum and maximum for this channel.
+                Channel channel = newPixels.getChannel(newC);
+                StatsInfo si = new StatsInfo();
+                si.setGlobalMin(minMax[newC][0]);
+                si.setGlobalMax(minMax[newC][1]);
+                channel.setStatsInfo(si);
+                // Set our methodology
+                newPixels.setMethodology(
+                        IProjection.METHODOLOGY_STRINGS[algorithm]);
             }
-        } finally {
+        }
+        catch (IOException e)
+        {
+            String error = String.format(
+                    "I/O error projecting C=%s T=%d-%d: %s",
+                    channels, tStart, tEnd, e.getMessage());
+            log.error(error, e);
+            throw new ResourceError(error);
+        }
+        catch (DimensionsOutOfBoundsException e)
+        {
+            String error = String.format(
+                    "C=%s or T=%d-%d out of range for Pixels Id %d: %s",
+                    channels, tStart, tEnd, pixels.getId(), e.getMessage());
+            log.error(error, e);
+            throw new ValidationException(error);
+        }
+        finally
+        {
             try
             {
-                sourceBuffer.close();
+                destinationBuffer.close();
             }
             catch (IOException e)
             {
-                log.error("Buffer did not close successfully: " + sourceBuffer, e);
+                log.error("Buffer did not close successfully: " + destinationBuffer , e);
                 throw new ResourceError(
                         e.getMessage() + " Please check server log.");
             }
@@ -313,176 +227,19 @@ public class ProjectionBean extends AbstractLevel2Service implements IProjection
     }
     
     /**
-     * Projects a stack based on the maximum intensity at each XY coordinate.
-     * @param ctx The context of our projection.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackMax(ProjectionContext ctx, int stepping,
-                                 int start, int end, boolean doMinMax)
-    {
-        int currentPlaneStart;
-        double projectedValue, stackValue;
-        double minimum = ctx.minimum;
-        double maximum = ctx.maximum;
-        for (int i = 0; i < ctx.planeSizeInPixels; i++)
-        {
-            projectedValue = 0;
-            for (int z = start; z <= end; z += stepping)
-            {
-                currentPlaneStart = ctx.planeSizeInPixels * z;
-                stackValue = ctx.from.getPixelValue(currentPlaneStart + i);
-                if (stackValue > projectedValue)
-                {
-                    projectedValue = stackValue;
-                }
-            }
-            ctx.to.setPixelValue(i, projectedValue);
-            if (doMinMax)
-            {
-                minimum = projectedValue < minimum? projectedValue : minimum;
-                maximum = projectedValue > maximum? projectedValue : maximum;
-            }
-        }
-        ctx.minimum = minimum;
-        ctx.maximum = maximum;
-    }
-    
-    /**
-     * Projects a stack based on the mean intensity at each XY coordinate.
-     * @param from The raw pixel data from the stack to project from.
-     * @param ctx The context of our projection.
-     * source Pixels set pixels type will be used.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackMean(ProjectionContext ctx, int stepping, 
-                                  int start, int end, boolean doMinMax)
-    {
-        projectStackMeanOrSum(ctx, stepping, start, end, true, doMinMax);
-    }
-    
-    /**
-     * Projects a stack based on the sum intensity at each XY coordinate.
-     * @param ctx The context of our projection.
-     * @param pixelsType The destination Pixels type. If <code>null</code>, the
-     * source Pixels set pixels type will be used.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
+     * Returns the factory of the read-only pixel buffers the projection
+     * engine reads the stacks of a Pixels set through, one per worker.
+     * @param pixels The Pixels set to project.
+     * @return See above.
      */
-    private void projectStackSum(ProjectionContext ctx, int stepping, 
-                                 int start, int end, boolean doMinMax)
+    private ProjectionEngine.SourceFactory getSources(final Pixels pixels)
     {
-        projectStackMeanOrSum(ctx, stepping, start, end, false, doMinMax);
-    }
-    
-    /**
-     * Projects a stack based on the sum intensity at each XY coordinate with
-     * the option to also average the sum intensity.
-     * @param ctx The context of our projection.
-     * @param pixelsType The destination Pixels type. If <code>null</code>, the
-     * source Pixels set pixels type will be used.
-     * @param stepping Stepping value to use while calculating the projection.
-     * For example, <code>stepping=1</code> will use every optical section from
-     * <code>start</code> to <code>end</code> where <code>stepping=2</code> will
-     * use every other section from <code>start</code> to <code>end</code> to
-     * perform the projection.
-     * @param start Optical section to start projecting from.
-     * @param end Optical section to finish projecting.
-     * @param mean Whether or not we're performing an average post sum
-     * intensity projection.
-     * @param doMinMax Whether or not to calculate the minimum and maximum of
-     * the projected pixel data.
-     */
-    private void projectStackMeanOrSum(ProjectionContext ctx, int stepping,
-                                       int start, int end, 
-                                       boolean mean, boolean doMinMax)
-    {
-        double planeMaximum = ctx.to.getMaximum();
-
-        int currentPlaneStart;
-        double projectedValue, stackValue;
-        double minimum = ctx.minimum;
-        double maximum = ctx.maximum;
-        for (int i = 0; i < ctx.planeSizeInPixels; i++)
+        return new ProjectionEngine.SourceFactory()
         {
-            projectedValue = 0;
-            int projectedPlaneCount = 0;
-            for (int z = start; z < end; z += stepping)
-            {
-                currentPlaneStart = ctx.planeSizeInPixels * z;
-                stackValue = ctx.from.getPixelValue(currentPlaneStart + i);
-                projectedValue += stackValue;
-                projectedPlaneCount++;
-            }
-            if (mean)
-            {
-                projectedValue = projectedValue / projectedPlaneCount;
-            }
-            if (projectedValue > planeMaximum)
-            {
-                projectedValue = planeMaximum;
-            }
-            ctx.to.setPixelValue(i, projectedValue);
-            if (doMinMax)
+            public PixelBuffer open()
             {
-                minimum = projectedValue < minimum? projectedValue : minimum;
-                maximum = projectedValue > maximum? projectedValue : maximum;
+                return pixelsService.getPixelBuffer(pixels, false);
             }
-        }
-        ctx.minimum = minimum;
-        ctx.maximum = maximum;
-    }
-    
-    /**
-     * Stores the context of a projection operation.
-     * 
-     * Class is static to prevent any instances from holding onto
-     * {@link ProjectionBean} instances.
-     *
-     * @author Chris Allan &nbsp;&nbsp;&nbsp;&nbsp; <a
-     *         href="mailto:callan@blackcat.ca">callan@blackcat.ca</a>
-     * @since OMERO-Beta3.1
-     */
-    private static class ProjectionContext
-    {
-        /** The Pixels set we're currently working on. */
-        public Pixels pixels;
-        
-        /** Count of the number of pixels per plane for <code>pixels</code>. */
-        public int planeSizeInPixels;
-        
-        /** Current minimum for the projected pixel data. */
-        public double minimum = Double.MAX_VALUE;
-        
-        /** Current maximum for the projected pixel data. */
-        public double maximum = Double.MIN_VALUE;
-        
-        /** The raw pixel data from the stack to project from. */
-        public PixelData from;
-        
-        /** The raw pixel data buffer to project into. */
-        public PixelData to;
+        };
     }
 }
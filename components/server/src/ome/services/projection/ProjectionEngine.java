@@ -0,0 +1,766 @@
+/*
+ * ome.services.projection.ProjectionEngine
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.projection;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.api.IProjection;
+import ome.conditions.ResourceError;
+import ome.io.nio.PixelBuffer;
+import ome.util.PixelData;
+
+/**
+ * Projects the optical sections of pixels sets tile by tile. Rather than
+ * reading a whole stack per channel and timepoint, each tile of a projected
+ * plane is computed from the same tile of the optical sections projected,
+ * read one section at a time, so that a worker only holds a tile of the
+ * source and of the projection whatever the size of the planes.
+ * <p>
+ * The tiles of all the channels and timepoints projected are computed in
+ * parallel on a bounded pool shared by all the projections, each worker
+ * reading through its own source pixel buffer. The projected tiles are
+ * written out by the calling thread in plane and tile order, as pyramid
+ * writers require, with only a few tiles per worker computed ahead.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class ProjectionEngine
+{
+    /** The logger for this class. */
+    private static Logger log = LoggerFactory.getLogger(ProjectionEngine.class);
+
+    /** Number of tiles computed ahead of the one written, per worker. */
+    private static final int TILES_AHEAD_PER_THREAD = 2;
+
+    /**
+     * Maximum size in bytes of the full width strips projected when the
+     * pixel buffer does not specify a tile size.
+     */
+    private static final int MAXIMUM_STRIP_SIZE = 1048576;
+
+    /** Opens the pixel buffers the optical sections are read from. */
+    public interface SourceFactory
+    {
+        /**
+         * Opens a read-only pixel buffer of the pixels set projected. The
+         * buffer is closed once the projection has completed.
+         *
+         * @return See above.
+         */
+        PixelBuffer open();
+    }
+
+    /** Writes the projected tiles out, in plane and tile order. */
+    private interface TileWriter
+    {
+        void write(Tile tile) throws IOException;
+    }
+
+    /** The number of worker threads. */
+    private final int threads;
+
+    /** The workers projecting the tiles. */
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new engine.
+     *
+     * @param threads The number of worker threads. A value <code>&lt;= 0
+     * </code> selects the number of available processors.
+     */
+    public ProjectionEngine(int threads)
+    {
+        if (threads <= 0)
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.threads = threads;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r,
+                        "ProjectionWorker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        log.info("Projection engine started with " + threads + " threads.");
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return See above.
+     */
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * Shuts the workers down once the tiles being projected have completed.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Projects the stack of a channel and timepoint into a plane.
+     *
+     * @param sources Opens the pixel buffers to read the stack from.
+     * @param pixelsType The pixels type of the projected plane.
+     * @param algorithm One of the algorithms of {@link IProjection}.
+     * @param c The channel to project.
+     * @param t The timepoint to project.
+     * @param stepping Stepping value to use while calculating the projection.
+     * @param start Optical section to start projecting from.
+     * @param end Optical section to finish projecting.
+     * @return The projected plane.
+     * @throws IOException If a tile of the stack cannot be read.
+     */
+    public byte[] projectPlane(SourceFactory sources, final String pixelsType,
+            int algorithm, int c, int t, int stepping, int start, int end)
+        throws IOException
+    {
+        Projection projection = new Projection(pixelsType, algorithm,
+                stepping, start, end);
+        Sources readers = new Sources(sources);
+        try
+        {
+            PixelBuffer first = readers.first();
+            final int sizeX = first.getSizeX();
+            int sizeY = first.getSizeY();
+            final boolean bit = PixelData.getBitDepth(pixelsType) == 1;
+            final int bytesPerPixel = bit? 0 : projection.bytesPerPixel;
+            final byte[] plane = new byte[bit? (sizeX * sizeY + 7) / 8
+                    : sizeX * sizeY * bytesPerPixel];
+            final PixelData to =
+                new PixelData(pixelsType, ByteBuffer.wrap(plane));
+            Grid grid = new Grid(getTileSize(first), sizeX, sizeY);
+            List<int[]> planes = new ArrayList<int[]>(1);
+            planes.add(new int[] { c, t, 0, 0 });
+            run(projection, grid, planes, readers, new TileWriter()
+            {
+                public void write(Tile tile)
+                {
+                    if (bit)
+                    {
+                        PixelData from = new PixelData(pixelsType,
+                                ByteBuffer.wrap(tile.data));
+                        for (int y = 0; y < tile.h; y++)
+                        {
+                            for (int x = 0; x < tile.w; x++)
+                            {
+                                to.setPixelValue(
+                                        (tile.y + y) * sizeX + tile.x + x,
+                                        from.getPixelValue(y * tile.w + x));
+                            }
+                        }
+                        return;
+                    }
+                    int rowSize = tile.w * bytesPerPixel;
+                    for (int y = 0; y < tile.h; y++)
+                    {
+                        System.arraycopy(tile.data, y * rowSize, plane,
+                                ((tile.y + y) * sizeX + tile.x)
+                                * bytesPerPixel, rowSize);
+                    }
+                }
+            });
+            return plane;
+        }
+        finally
+        {
+            readers.close();
+        }
+    }
+
+    /**
+     * Projects the stacks of channels and timepoints into the planes of a
+     * pixel buffer with a single optical section. The planes projected from
+     * the channels are written to the channels of the destination in the
+     * order of <code>channels</code>, and those of the timepoints from
+     * <code>tStart</code> to the timepoints of the destination from
+     * <code>0</code>.
+     *
+     * @param sources Opens the pixel buffers to read the stacks from.
+     * @param destination The pixel buffer to write the projected planes to.
+     * @param pixelsType The pixels type of the destination.
+     * @param algorithm One of the algorithms of {@link IProjection}.
+     * @param channels The channels to project.
+     * @param tStart The first timepoint to project.
+     * @param tEnd The last timepoint to project, inclusive.
+     * @param stepping Stepping value to use while calculating the projection.
+     * @param zStart Optical section to start projecting from.
+     * @param zEnd Optical section to finish projecting.
+     * @return The minimum and maximum of the projected pixels of each
+     * channel of the destination.
+     * @throws IOException If a tile cannot be read or written.
+     */
+    public double[][] projectPixels(SourceFactory sources,
+            final PixelBuffer destination, String pixelsType, int algorithm,
+            List<Integer> channels, int tStart, int tEnd, int stepping,
+            int zStart, int zEnd)
+        throws IOException
+    {
+        Projection projection = new Projection(pixelsType, algorithm,
+                stepping, zStart, zEnd);
+        final double[][] minMax = new double[channels.size()][];
+        List<int[]> planes = new ArrayList<int[]>();
+        // Planes in the order of the destination, as written by pyramids.
+        for (int t = tStart; t <= tEnd; t++)
+        {
+            for (int c = 0; c < channels.size(); c++)
+            {
+                planes.add(new int[] { channels.get(c), t, c, t - tStart });
+            }
+        }
+        for (int c = 0; c < minMax.length; c++)
+        {
+            minMax[c] = new double[] { Double.MAX_VALUE, Double.MIN_VALUE };
+        }
+        Sources readers = new Sources(sources);
+        try
+        {
+            Grid grid = new Grid(getTileSize(destination),
+                    destination.getSizeX(), destination.getSizeY());
+            run(projection, grid, planes, readers, new TileWriter()
+            {
+                public void write(Tile tile) throws IOException
+                {
+                    destination.setTile(tile.data, 0, tile.destinationC,
+                            tile.destinationT, tile.x, tile.y, tile.w,
+                            tile.h);
+                    double[] channel = minMax[tile.destinationC];
+                    channel[0] = Math.min(channel[0], tile.minimum);
+                    channel[1] = Math.max(channel[1], tile.maximum);
+                }
+            });
+        }
+        finally
+        {
+            readers.close();
+        }
+        return minMax;
+    }
+
+    /**
+     * Returns the tile size of a pixel buffer, full width strips of at most
+     * {@link #MAXIMUM_STRIP_SIZE} bytes if it does not specify one.
+     */
+    private Dimension getTileSize(PixelBuffer buffer)
+    {
+        Dimension size = buffer.getTileSize();
+        int width = size == null || size.width <= 0? buffer.getSizeX()
+                : Math.min(size.width, buffer.getSizeX());
+        int height = size == null || size.height <= 0?
+                MAXIMUM_STRIP_SIZE / Math.max(1, width * buffer.getByteWidth())
+                : size.height;
+        height = Math.max(1, Math.min(height, buffer.getSizeY()));
+        return new Dimension(width, height);
+    }
+
+    /**
+     * Projects the tiles of planes on the workers, writing them out in order
+     * on the calling thread.
+     *
+     * @param planes The channel and timepoint of the source and of the
+     * destination of each plane.
+     */
+    private void run(final Projection projection, Grid grid,
+            List<int[]> planes, final Sources sources, TileWriter writer)
+        throws IOException
+    {
+        int count = planes.size() * grid.getCount();
+        sources.open(Math.min(threads, count));
+        LinkedList<Future<Tile>> pending = new LinkedList<Future<Tile>>();
+        final AtomicBoolean aborted = new AtomicBoolean();
+        int window = threads * TILES_AHEAD_PER_THREAD;
+        int submitted = 0;
+        boolean done = false;
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                while (submitted < count && submitted - i < window)
+                {
+                    final Tile tile = grid.getTile(
+                            planes.get(submitted / grid.getCount()),
+                            submitted % grid.getCount());
+                    pending.add(executor.submit(new Callable<Tile>()
+                    {
+                        public Tile call() throws Exception
+                        {
+                            if (aborted.get())
+                            {
+                                return null;
+                            }
+                            PixelBuffer source = sources.take();
+                            try
+                            {
+                                projection.project(source, tile);
+                                return tile;
+                            }
+                            finally
+                            {
+                                sources.release(source);
+                            }
+                        }
+                    }));
+                    submitted++;
+                }
+                writer.write(pending.removeFirst().get());
+            }
+            done = true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ResourceError("Interrupted projecting tiles.");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        finally
+        {
+            if (!done)
+            {
+                aborted.set(true);
+                awaitAll(pending);
+            }
+        }
+    }
+
+    /**
+     * Waits for the tiles still pending of a failed projection to end
+     * without interrupting them, since an interrupted read may close the
+     * file of a source pixel buffer, before the sources are closed.
+     */
+    private static void awaitAll(List<Future<Tile>> futures)
+    {
+        boolean interrupted = false;
+        for (Future<Tile> future : futures)
+        {
+            while (true)
+            {
+                try
+                {
+                    future.get();
+                    break;
+                }
+                catch (ExecutionException e)
+                {
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads a tile of an optical section into values. The values are read
+     * with the typed accessors of the buffer, switching on the pixels type
+     * once per tile rather than once per pixel.
+     */
+    private static void read(PixelData tile, double[] values)
+    {
+        ByteBuffer data = tile.getData();
+        int n = values.length;
+        boolean signed = tile.isSigned();
+        switch (tile.javaType())
+        {
+            case PixelData.BYTE:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        values[i] = data.get(i);
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        values[i] = data.get(i) & 0xFF;
+                    }
+                }
+                break;
+            case PixelData.SHORT:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        values[i] = data.getShort(i << 1);
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        values[i] = data.getShort(i << 1) & 0xFFFF;
+                    }
+                }
+                break;
+            case PixelData.INT:
+                if (signed)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        values[i] = data.getInt(i << 2);
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        values[i] = data.getInt(i << 2) & 0xFFFFFFFFL;
+                    }
+                }
+                break;
+            case PixelData.FLOAT:
+                for (int i = 0; i < n; i++)
+                {
+                    values[i] = data.getFloat(i << 2);
+                }
+                break;
+            case PixelData.DOUBLE:
+                for (int i = 0; i < n; i++)
+                {
+                    values[i] = data.getDouble(i << 3);
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i++)
+                {
+                    values[i] = tile.getPixelValue(i);
+                }
+        }
+    }
+
+    /**
+     * The algorithm and optical sections of a projection.
+     */
+    private static class Projection
+    {
+        private final String pixelsType;
+
+        private final boolean maximum;
+
+        private final boolean mean;
+
+        private final int stepping;
+
+        private final int start;
+
+        /** The last optical section projected, inclusive. */
+        private final int last;
+
+        /** Bytes per pixel of the projected planes. */
+        private final int bytesPerPixel;
+
+        Projection(String pixelsType, int algorithm, int stepping,
+                int start, int end)
+        {
+            switch (algorithm)
+            {
+                case IProjection.MAXIMUM_INTENSITY:
+                case IProjection.MEAN_INTENSITY:
+                case IProjection.SUM_INTENSITY:
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Unknown algorithm: " + algorithm);
+            }
+            if (stepping < 1)
+            {
+                throw new IllegalArgumentException(
+                        "Stepping must be at least 1: " + stepping);
+            }
+            this.pixelsType = pixelsType;
+            this.maximum = algorithm == IProjection.MAXIMUM_INTENSITY;
+            this.mean = algorithm == IProjection.MEAN_INTENSITY;
+            this.stepping = stepping;
+            this.start = start;
+            // Maximum intensity projections include the end section, mean
+            // and sum intensity projections stop before it.
+            this.last = maximum? end : end - 1;
+            this.bytesPerPixel = Math.max(1,
+                    PixelData.getBitDepth(pixelsType) / 8);
+        }
+
+        /**
+         * Projects a tile, reading the optical sections one at a time.
+         */
+        void project(PixelBuffer source, Tile tile) throws IOException
+        {
+            int n = tile.w * tile.h;
+            double[] projected = new double[n];
+            double[] values = new double[n];
+            int count = 0;
+            for (int z = start; z <= last; z += stepping)
+            {
+                read(source.getTile(z, tile.c, tile.t, tile.x, tile.y,
+                        tile.w, tile.h), values);
+                if (maximum)
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        if (values[i] > projected[i])
+                        {
+                            projected[i] = values[i];
+                        }
+                    }
+                }
+                else
+                {
+                    for (int i = 0; i < n; i++)
+                    {
+                        projected[i] += values[i];
+                    }
+                }
+                count++;
+            }
+
+            boolean bit = PixelData.getBitDepth(pixelsType) == 1;
+            tile.data = new byte[bit? (n + 7) / 8 : n * bytesPerPixel];
+            PixelData to =
+                new PixelData(pixelsType, ByteBuffer.wrap(tile.data));
+            double planeMaximum = to.getMaximum();
+            double minimum = Double.MAX_VALUE;
+            double maximum = Double.MIN_VALUE;
+            for (int i = 0; i < n; i++)
+            {
+                double value = projected[i];
+                if (!this.maximum)
+                {
+                    if (mean)
+                    {
+                        value = value / count;
+                    }
+                    if (value > planeMaximum)
+                    {
+                        value = planeMaximum;
+                    }
+                }
+                to.setPixelValue(i, value);
+                minimum = value < minimum? value : minimum;
+                maximum = value > maximum? value : maximum;
+            }
+            tile.minimum = minimum;
+            tile.maximum = maximum;
+        }
+    }
+
+    /**
+     * The tiles of the planes projected, in row order.
+     */
+    private static class Grid
+    {
+        private final int tileWidth;
+
+        private final int tileHeight;
+
+        private final int sizeX;
+
+        private final int sizeY;
+
+        private final int columns;
+
+        private final int count;
+
+        Grid(Dimension tileSize, int sizeX, int sizeY)
+        {
+            this.tileWidth = tileSize.width;
+            this.tileHeight = tileSize.height;
+            this.sizeX = sizeX;
+            this.sizeY = sizeY;
+            columns = (sizeX + tileWidth - 1) / tileWidth;
+            count = columns * ((sizeY + tileHeight - 1) / tileHeight);
+        }
+
+        /** Returns the number of tiles per plane. */
+        int getCount()
+        {
+            return count;
+        }
+
+        /** Returns a tile of a plane. */
+        Tile getTile(int[] plane, int index)
+        {
+            int x = (index % columns) * tileWidth;
+            int y = (index / columns) * tileHeight;
+            return new Tile(plane, x, y, Math.min(tileWidth, sizeX - x),
+                    Math.min(tileHeight, sizeY - y));
+        }
+    }
+
+    /**
+     * A tile of a projected plane and, once projected, its pixels.
+     */
+    private static class Tile
+    {
+        final int c;
+
+        final int t;
+
+        final int destinationC;
+
+        final int destinationT;
+
+        final int x;
+
+        final int y;
+
+        final int w;
+
+        final int h;
+
+        byte[] data;
+
+        double minimum;
+
+        double maximum;
+
+        Tile(int[] plane, int x, int y, int w, int h)
+        {
+            this.c = plane[0];
+            this.t = plane[1];
+            this.destinationC = plane[2];
+            this.destinationT = plane[3];
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+    }
+
+    /**
+     * The source pixel buffers of a projection, one per worker projecting
+     * its tiles. They are all opened by the calling thread and closed once
+     * every worker has released its buffer.
+     */
+    private static class Sources
+    {
+        private final SourceFactory factory;
+
+        private final List<PixelBuffer> opened = new ArrayList<PixelBuffer>();
+
+        private final BlockingQueue<PixelBuffer> idle =
+            new LinkedBlockingQueue<PixelBuffer>();
+
+        Sources(SourceFactory factory)
+        {
+            this.factory = factory;
+        }
+
+        /** Returns the first buffer, opening it if need be. */
+        PixelBuffer first()
+        {
+            open(1);
+            return opened.get(0);
+        }
+
+        /** Opens buffers until there are <code>count</code> of them. */
+        void open(int count)
+        {
+            while (opened.size() < count)
+            {
+                PixelBuffer buffer = factory.open();
+                opened.add(buffer);
+                idle.add(buffer);
+            }
+        }
+
+        PixelBuffer take() throws InterruptedException
+        {
+            return idle.take();
+        }
+
+        void release(PixelBuffer buffer)
+        {
+            idle.add(buffer);
+        }
+
+        /**
+         * Closes the buffers, waiting for the workers still projecting a
+         * tile to release theirs.
+         */
+        void close()
+        {
+            boolean interrupted = false;
+            for (int i = 0; i < opened.size(); i++)
+            {
+                PixelBuffer buffer = null;
+                while (buffer == null)
+                {
+                    try
+                    {
+                        buffer = idle.take();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+                try
+                {
+                    buffer.close();
+                }
+                catch (IOException e)
+                {
+                    log.error("Buffer did not close successfully: "
+                            + buffer, e);
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * ome.services.thumbnail.ThumbnailEventLogLoader
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.thumbnail;
+
+import java.util.List;
+
+import ome.model.core.Pixels;
+import ome.model.display.RenderingDef;
+import ome.model.meta.EventLog;
+import ome.parameters.Parameters;
+import ome.services.eventlogs.EventLogLoader;
+
+/**
+ * {@link EventLogLoader} implementation which provides the {@link EventLog}
+ * instances of new {@link Pixels} and of new or changed {@link RenderingDef}
+ * instances, whose thumbnails are to be generated.
+ * <p>
+ * The last {@link EventLog} loaded is only saved as the current one by
+ * {@link #commit()}, once the thumbnails of its batch have been generated,
+ * so that a batch interrupted by a restart is loaded again.
+ * </p>
+ *
+ * @since 5.0
+ */
+public class ThumbnailEventLogLoader extends
+        ome.services.eventlogs.PersistentEventLogLoader {
+
+    private final static String WHERE = " where el.id > :id and ("
+            + "(el.entityType = :pixels and el.action = 'INSERT') or "
+            + "(el.entityType = :settings and el.action in ('INSERT', 'UPDATE'))"
+            + ")";
+
+    /** The last event log loaded or <code>-1</code> if none since saved. */
+    private long position = -1;
+
+    /**
+     * The id saved by {@link #initialize()}, which {@link #getCurrentId()}
+     * does not return when it initializes, or <code>-1</code>.
+     */
+    private long initialId = -1;
+
+    /**
+     * Called when the configuration database does not contain a valid
+     * current_id. Only the thumbnails of the pixels imported and settings
+     * saved from now on are generated in the background; those of existing
+     * images are still generated when first viewed.
+     */
+    @Override
+    public void initialize() {
+        EventLog last = lastEventLog();
+        if (last != null) {
+            initialId = last.getId();
+            setCurrentId(initialId);
+        }
+    }
+
+    /**
+     * Returns the id after which to look for event logs.
+     */
+    private long getStartId() {
+        long id = getCurrentId();
+        if (initialId >= 0) {
+            id = initialId;
+            initialId = -1;
+        }
+        return id;
+    }
+
+    private Parameters getParameters(long id) {
+        return new Parameters().addId(id)
+            .addString("pixels", Pixels.class.getName())
+            .addString("settings", RenderingDef.class.getName());
+    }
+
+    @Override
+    protected synchronized EventLog query() {
+        long id = position < 0 ? getStartId() : position;
+        EventLog el = queryService.findByQuery(
+                "select el from EventLog el" + WHERE + " order by el.id",
+                getParameters(id).page(0, 1));
+        if (el != null) {
+            position = el.getId();
+        }
+        return el;
+    }
+
+    /**
+     * Saves the last {@link EventLog} loaded as the current one.
+     */
+    public synchronized void commit() {
+        if (position >= 0) {
+            setCurrentId(position);
+            position = -1;
+        }
+    }
+
+    /**
+     * Returns the number of {@link EventLog} instances not yet handled.
+     */
+    @Override
+    public synchronized long more() {
+        long id = position < 0 ? getStartId() : position;
+        List<Object[]> rv = queryService.projection(
+                "select count(el) from EventLog el" + WHERE,
+                getParameters(id));
+        if (rv == null || rv.isEmpty() || rv.get(0)[0] == null) {
+            return 0;
+        }
+        return ((Number) rv.get(0)[0]).longValue();
+    }
+
+}
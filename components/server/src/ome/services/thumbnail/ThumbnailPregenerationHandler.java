@@ -0,0 +1,165 @@
+/*
+ * ome.services.thumbnail.ThumbnailPregenerationHandler
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.thumbnail;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ome.api.IQuery;
+import ome.model.core.Pixels;
+import ome.model.display.RenderingDef;
+import ome.model.meta.EventLog;
+import ome.parameters.Parameters;
+import ome.services.util.Executor.SimpleWork;
+import ome.system.ServiceFactory;
+import ome.util.SqlAction;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Simple action which loads a batch of {@link EventLog} instances from the
+ * {@link ThumbnailEventLogLoader} and groups the pixels sets whose thumbnails
+ * are to be generated by the user and group to generate them as.
+ *
+ * @since 5.0
+ */
+public class ThumbnailPregenerationHandler extends SimpleWork {
+
+    private final static Logger log =
+        LoggerFactory.getLogger(ThumbnailPregenerationHandler.class);
+
+    /**
+     * The pixels sets whose thumbnails are to be generated as a user in a
+     * group.
+     */
+    static class Job {
+
+        final String userName;
+
+        final long groupId;
+
+        final String groupName;
+
+        final Set<Long> pixelsIds = new LinkedHashSet<Long>();
+
+        Job(String userName, long groupId, String groupName) {
+            this.userName = userName;
+            this.groupId = groupId;
+            this.groupName = groupName;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Job(user=%s, group=%s, pixels=%s)",
+                    userName, groupName, pixelsIds);
+        }
+    }
+
+    final protected ThumbnailEventLogLoader loader;
+
+    /** The number of event logs left once the last batch was loaded. */
+    private volatile long backlog;
+
+    public ThumbnailPregenerationHandler(ThumbnailEventLogLoader loader) {
+        super("ThumbnailPregenerationHandler", "load");
+        this.loader = loader;
+    }
+
+    /**
+     * Since these instances are used repeatedly, we need to check for
+     * already set SqlAction
+     */
+    @Override
+    public synchronized void setSqlAction(SqlAction sql) {
+        if (getSqlAction() == null) {
+            super.setSqlAction(sql);
+        }
+    }
+
+    /**
+     * Returns the number of {@link EventLog} instances left once the last
+     * batch was loaded.
+     */
+    public long getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Loads the next batch of {@link EventLog} instances.
+     *
+     * @return the {@link Job} instances of the batch.
+     */
+    @Transactional(readOnly = false)
+    public Object doWork(Session session, ServiceFactory sf) {
+        final IQuery iQuery = sf.getQueryService();
+        final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+        synchronized (loader) {
+            while (loader.hasNext()) {
+                EventLog eventLog = loader.next();
+                Object[] row = lookup(eventLog, iQuery);
+                if (row == null) {
+                    log.debug("SKIPPED EventLog:" + eventLog.getId());
+                    continue;
+                }
+                String userName = (String) row[1];
+                long groupId = (Long) row[2];
+                String key = userName + "/" + groupId;
+                Job job = jobs.get(key);
+                if (job == null) {
+                    job = new Job(userName, groupId, (String) row[3]);
+                    jobs.put(key, job);
+                }
+                job.pixelsIds.add((Long) row[0]);
+            }
+            backlog = loader.more();
+        }
+        return new ArrayList<Job>(jobs.values());
+    }
+
+    /**
+     * Saves the last {@link EventLog} loaded as the current one.
+     */
+    public void commit() {
+        loader.commit();
+    }
+
+    /**
+     * Returns the pixels set id, the name of the user to generate its
+     * thumbnails as and the id and name of the group of the pixels set, for
+     * an event log, <code>null</code> if its entity no longer exists.
+     */
+    private Object[] lookup(EventLog eventLog, IQuery iQuery) {
+        final String type = eventLog.getEntityType();
+        final Parameters params = new Parameters().addId(
+                eventLog.getEntityId());
+        List<Object[]> rv;
+        if (Pixels.class.getName().equals(type)) {
+            rv = iQuery.projection(
+                    "select p.id, o.omeName, g.id, g.name from Pixels p " +
+                    "join p.details.owner o join p.details.group g " +
+                    "where p.id = :id", params);
+        } else if (RenderingDef.class.getName().equals(type)) {
+            // The thumbnails of the owner of the settings.
+            rv = iQuery.projection(
+                    "select p.id, o.omeName, g.id, g.name from RenderingDef r " +
+                    "join r.pixels p join r.details.owner o " +
+                    "join p.details.group g where r.id = :id", params);
+        } else {
+            return null;
+        }
+        return rv == null || rv.isEmpty() ? null : rv.get(0);
+    }
+
+}
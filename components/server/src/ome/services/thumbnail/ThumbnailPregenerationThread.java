@@ -0,0 +1,468 @@
+/*
+ * ome.services.thumbnail.ThumbnailPregenerationThread
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package ome.services.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ome.api.local.LocalThumbnailStore;
+import ome.model.meta.EventLog;
+import ome.services.sessions.SessionManager;
+import ome.services.thumbnail.ThumbnailPregenerationHandler.Job;
+import ome.services.util.ExecutionThread;
+import ome.services.util.Executor;
+import ome.system.Principal;
+import ome.system.ServiceFactory;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Generates the thumbnails of newly imported images and of images whose
+ * rendering settings have been saved in the background, so that they are
+ * ready when first browsed.
+ * <p>
+ * Each run loads a batch of {@link EventLog} instances through the
+ * {@link ThumbnailPregenerationHandler} and generates the thumbnails of the
+ * configured sizes on a bounded pool of low priority threads, as the owner
+ * of the image or of the rendering settings. Thumbnails which are already
+ * up to date are left untouched. The last {@link EventLog} of the batch is
+ * saved once the batch is done. The thumbnails of images which are still
+ * being imported, such as those whose pyramid is still being generated, are
+ * generated again by later runs, with an increasing delay, until
+ * {@link #MAX_RETRIES} attempts were made. These retries are kept in memory
+ * only: if the server is restarted, the thumbnails are generated when first
+ * requested instead.
+ * </p>
+ * <p>
+ * The number of event logs still to be handled and of images waiting for a
+ * retry are exported through JMX.
+ * </p>
+ *
+ * @since 5.0
+ */
+@ManagedResource(objectName = "omero:type=ThumbnailPregeneration",
+        description = "Background generation of thumbnails")
+public class ThumbnailPregenerationThread extends ExecutionThread {
+
+    private final static Logger log =
+        LoggerFactory.getLogger(ThumbnailPregenerationThread.class);
+
+    private final static Principal DEFAULT_PRINCIPAL = new Principal("root",
+            "system", "Task");
+
+    private final static String AGENT = "ThumbnailPregeneration";
+
+    /** Delay before the first retry of an image still being imported. */
+    private final static long RETRY_DELAY = 60 * 1000L;
+
+    /** Longest delay between two retries. */
+    private final static long MAX_RETRY_DELAY = 60 * 60 * 1000L;
+
+    /** Attempts made before giving up an image still being imported. */
+    private final static int MAX_RETRIES = 10;
+
+    /** Most images waiting for a retry at once. */
+    private final static int MAX_PENDING = 10000;
+
+    /** Number of threads generating thumbnails, none if disabled. */
+    private final int numThreads;
+
+    /** The longest side of the thumbnails to generate. */
+    private final int[] sizes;
+
+    /** The threads generating thumbnails. */
+    private final ExecutorService service;
+
+    /** Number of images whose thumbnails were generated. */
+    private final AtomicLong pregenerated = new AtomicLong();
+
+    /** Number of images whose thumbnails could not be generated. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Pixels sets still being imported when their thumbnails were generated,
+     * by Pixels ID.
+     */
+    private final Map<Long, Retry> retries = new LinkedHashMap<Long, Retry>();
+
+    /**
+     * The owner and group of a Pixels set whose thumbnails are generated
+     * again later, and when.
+     */
+    private static class Retry {
+
+        final String userName;
+
+        final long groupId;
+
+        final String groupName;
+
+        /** The number of attempts made so far. */
+        int attempts;
+
+        /** The earliest time of the next attempt. */
+        long notBefore;
+
+        Retry(Job job) {
+            this.userName = job.userName;
+            this.groupId = job.groupId;
+            this.groupName = job.groupName;
+        }
+    }
+
+    /**
+     * Main constructor. No arguments can be null.
+     *
+     * @param manager The session manager.
+     * @param executor The executor.
+     * @param handler Loads the batches of event logs.
+     * @param numThreads The number of threads generating thumbnails. A value
+     * <code>&lt;= 0</code> disables the generation.
+     * @param sizes Comma separated list of the longest side of the
+     * thumbnails to generate.
+     */
+    public ThumbnailPregenerationThread(SessionManager manager,
+            Executor executor, ThumbnailPregenerationHandler handler,
+            int numThreads, String sizes) {
+        super(manager, executor, handler, DEFAULT_PRINCIPAL);
+        this.numThreads = numThreads;
+        this.sizes = parseSizes(sizes);
+        if (numThreads > 0) {
+            service = Executors.newFixedThreadPool(numThreads,
+                    new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r,
+                            AGENT + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        } else {
+            service = null;
+        }
+    }
+
+    private static int[] parseSizes(String sizes) {
+        String[] values = sizes.split(",");
+        List<Integer> rv = new ArrayList<Integer>();
+        for (String value : values) {
+            value = value.trim();
+            if (value.length() > 0) {
+                rv.add(Integer.valueOf(value));
+            }
+        }
+        int[] array = new int[rv.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = rv.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Called by Spring on creation.
+     */
+    public void start() {
+        if (service == null) {
+            log.info("Thumbnail pregeneration disabled");
+        } else {
+            StringBuilder sb = new StringBuilder();
+            for (int size : sizes) {
+                if (sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(size);
+            }
+            log.info(String.format(
+                    "Initializing ThumbnailPregenerationThread " +
+                    "(threads=%s, sizes=%s)", numThreads, sb));
+        }
+    }
+
+    @Override
+    public void doRun() {
+        if (service == null || sizes.length == 0) {
+            return;
+        }
+
+        final Map<String, String> all = new HashMap<String, String>();
+        all.put("omero.group", "-1");
+
+        @SuppressWarnings("unchecked")
+        List<Job> loaded = (List<Job>) executor.execute(all,
+                getPrincipal(), work);
+        final List<Job> jobs = new ArrayList<Job>();
+        if (loaded != null) {
+            jobs.addAll(loaded);
+        }
+        addRetries(jobs);
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        final List<Future<Map<Long, Boolean>>> futures =
+            new ArrayList<Future<Map<Long, Boolean>>>();
+        for (final Job job : jobs) {
+            futures.add(service.submit(new Callable<Map<Long, Boolean>>() {
+                /* Java5 does not support - @Override */
+                public Map<Long, Boolean> call() throws Exception {
+                    return generate(job);
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                final Job job = jobs.get(i);
+                Map<Long, Boolean> results;
+                try {
+                    results = futures.get(i).get();
+                } catch (ExecutionException ee) {
+                    failures.addAndGet(job.pixelsIds.size());
+                    log.warn("Failed to generate thumbnails: " + job,
+                            ee.getCause());
+                    removeRetries(job.pixelsIds);
+                    continue;
+                }
+                for (Long pixelsId : job.pixelsIds) {
+                    Boolean result = results.get(pixelsId);
+                    if (result == null) {
+                        retry(job, pixelsId);
+                    } else {
+                        if (result) {
+                            pregenerated.incrementAndGet();
+                        } else {
+                            failures.incrementAndGet();
+                        }
+                        removeRetries(Collections.singleton(pixelsId));
+                    }
+                }
+            }
+        } catch (InterruptedException ie) {
+            // Not saving the position so that the batch is loaded again.
+            log.error("Interrupted while generating thumbnails.", ie);
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        executor.execute(all, getPrincipal(),
+                new Executor.SimpleWork(this, "commit") {
+            @Transactional(readOnly = false)
+            public Object doWork(Session session, ServiceFactory sf) {
+                ((ThumbnailPregenerationHandler) work).commit();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Adds the Pixels sets whose retry is due to the jobs of their user and
+     * group, creating the jobs which are missing.
+     *
+     * @param jobs The jobs of the batch loaded.
+     */
+    private void addRetries(List<Job> jobs) {
+        final long now = System.currentTimeMillis();
+        synchronized (retries) {
+            for (Map.Entry<Long, Retry> e : retries.entrySet()) {
+                final Retry retry = e.getValue();
+                if (retry.notBefore > now) {
+                    continue;
+                }
+                Job job = null;
+                for (Job j : jobs) {
+                    if (j.groupId == retry.groupId
+                            && j.userName.equals(retry.userName)) {
+                        job = j;
+                        break;
+                    }
+                }
+                if (job == null) {
+                    job = new Job(retry.userName, retry.groupId,
+                            retry.groupName);
+                    jobs.add(job);
+                }
+                job.pixelsIds.add(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Schedules the generation of the thumbnails of a Pixels set still being
+     * imported again, with an increasing delay between the attempts.
+     *
+     * @param job The job of the Pixels set.
+     * @param pixelsId The Pixels ID.
+     */
+    private void retry(Job job, Long pixelsId) {
+        synchronized (retries) {
+            Retry retry = retries.get(pixelsId);
+            if (retry == null) {
+                if (retries.size() >= MAX_PENDING) {
+                    failures.incrementAndGet();
+                    log.warn("Too many images being imported, not retrying "
+                            + "the thumbnails of Pixels:" + pixelsId);
+                    return;
+                }
+                retry = new Retry(job);
+                retries.put(pixelsId, retry);
+            } else if (retry.attempts >= MAX_RETRIES) {
+                retries.remove(pixelsId);
+                failures.incrementAndGet();
+                log.warn("Giving up the thumbnails of Pixels:" + pixelsId
+                        + " after " + retry.attempts + " attempts");
+                return;
+            }
+            long delay = RETRY_DELAY << Math.min(retry.attempts, 16);
+            retry.attempts++;
+            retry.notBefore = System.currentTimeMillis()
+                + Math.min(delay, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Forgets the retries of Pixels sets whose thumbnails were handled.
+     *
+     * @param pixelsIds The Pixels IDs.
+     */
+    private void removeRetries(Collection<Long> pixelsIds) {
+        synchronized (retries) {
+            retries.keySet().removeAll(pixelsIds);
+        }
+    }
+
+    /**
+     * Generates the thumbnails of a {@link Job} in a session of its user.
+     *
+     * @return Map of Pixels ID vs. <code>true</code> if its thumbnails are
+     * up to date, <code>false</code> if one could not be generated, without
+     * the Pixels sets still being imported.
+     */
+    private Map<Long, Boolean> generate(final Job job) {
+        final Principal owner = new Principal(job.userName, job.groupName,
+                "Task");
+        final String uuid = manager.createWithAgent(owner, AGENT).getUuid();
+        try {
+            final Principal p = new Principal(uuid, job.groupName, "Task");
+            final Map<String, String> callContext =
+                new HashMap<String, String>();
+            callContext.put("omero.group", Long.toString(job.groupId));
+            final Map<Long, Boolean> results = new HashMap<Long, Boolean>();
+            for (Long pixelsId : job.pixelsIds) {
+                results.put(pixelsId, Boolean.TRUE);
+            }
+            for (final int size : sizes) {
+                @SuppressWarnings("unchecked")
+                final Map<Long, Boolean> rv = (Map<Long, Boolean>)
+                    executor.execute(callContext, p,
+                        new Executor.SimpleWork(this, "createThumbnails") {
+                    @Transactional(readOnly = false)
+                    public Object doWork(Session session, ServiceFactory sf) {
+                        LocalThumbnailStore store = (LocalThumbnailStore)
+                            sf.createThumbnailService();
+                        try {
+                            return store
+                                .createAndReportThumbnailsByLongestSideSet(
+                                        size, job.pixelsIds);
+                        } finally {
+                            store.close();
+                        }
+                    }
+                });
+                Iterator<Map.Entry<Long, Boolean>> it =
+                    results.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, Boolean> e = it.next();
+                    Boolean result = rv.get(e.getKey());
+                    if (result == null) {
+                        it.remove();
+                    } else if (!result) {
+                        e.setValue(Boolean.FALSE);
+                    }
+                }
+            }
+            return results;
+        } finally {
+            manager.close(uuid);
+        }
+    }
+
+    /**
+     * Returns the number of event logs still to be handled.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Event logs still to be handled")
+    public long getBacklog() {
+        return ((ThumbnailPregenerationHandler) work).getBacklog();
+    }
+
+    /**
+     * Returns the number of images whose thumbnails were generated.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Images whose thumbnails were generated")
+    public long getPregenerated() {
+        return pregenerated.get();
+    }
+
+    /**
+     * Returns the number of images whose thumbnails could not be generated.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Images whose thumbnails failed")
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of images still being imported whose thumbnails
+     * will be generated again.
+     *
+     * @return See above.
+     */
+    @ManagedAttribute(description = "Images whose thumbnails are retried")
+    public int getRetries() {
+        synchronized (retries) {
+            return retries.size();
+        }
+    }
+
+    /**
+     * Called by Spring on destruction.
+     */
+    public void stop() {
+        log.info("Shutting down ThumbnailPregenerationThread");
+        if (service != null) {
+            service.shutdownNow();
+        }
+    }
+}
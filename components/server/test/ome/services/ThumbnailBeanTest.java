@@ -0,0 +1,406 @@
+/*
+ * ome.services.ThumbnailBeanTest
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ome.api.local.LocalQuery;
+import ome.api.local.LocalUpdate;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.ThumbnailService;
+import ome.logic.AWTScaleService;
+import ome.logic.CompressImpl;
+import ome.logic.RenderingSettingsImpl;
+import ome.model.IObject;
+import ome.model.core.Channel;
+import ome.model.core.Pixels;
+import ome.model.display.RenderingDef;
+import ome.model.display.Thumbnail;
+import ome.model.enums.PixelsType;
+import ome.model.stats.StatsInfo;
+import omeis.providers.re.utests.TestPixelBuffer;
+import omeis.providers.re.utests.TestPixelsMetadataService;
+import omeis.providers.re.utests.TestPixelsService;
+
+import org.apache.commons.io.FileUtils;
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Invocation;
+import org.jmock.core.Stub;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the retrieval of thumbnail sets by the {@link ThumbnailBean}, whose
+ * missing thumbnails are rendered on its workers.
+ */
+public class ThumbnailBeanTest extends MockObjectTestCase {
+
+    private static final int SIZE = 16;
+
+    /** Bytes of the thumbnails already on disk. */
+    private static final byte[] CACHED = new byte[] { 1, 2, 3 };
+
+    /** Pixels sets whose thumbnail is on disk. */
+    private static final long CACHED_ID = 1L;
+
+    /** Pixels sets whose thumbnail is missing. */
+    private static final long MISSING_ID = 2L;
+
+    /** Pixels sets whose thumbnail is missing and metadata dirty. */
+    private static final long DIRTY_ID = 3L;
+
+    /** Pixels sets whose thumbnail fails to render, metadata dirty. */
+    private static final long FAILING_ID = 4L;
+
+    private File root;
+
+    private ExecutorService workers;
+
+    private ThumbnailService ioService;
+
+    private final Map<Long, Pixels> pixels = new HashMap<Long, Pixels>();
+
+    private final Map<Long, RenderingDef> settings =
+        new HashMap<Long, RenderingDef>();
+
+    private final Map<Long, Thumbnail> metadata = new HashMap<Long, Thumbnail>();
+
+    /** The thumbnail metadata saved by the bean. */
+    private final List<IObject> saved = new ArrayList<IObject>();
+
+    /**
+     * Thumbnail metadata context of the pixels sets of the test, whose
+     * rendering settings and metadata are all loaded.
+     */
+    private class TestThumbnailCtx extends ThumbnailCtx {
+
+        TestThumbnailCtx() {
+            super(null, null, null, null, null, null, 0L);
+        }
+
+        @Override
+        public void loadAndPrepareRenderingSettings(Set<Long> pixelsIds) {
+        }
+
+        @Override
+        public void createAndPrepareMissingRenderingSettings(
+                Set<Long> pixelsIds) {
+        }
+
+        @Override
+        public void loadAndPrepareMetadata(Set<Long> pixelsIds,
+                Dimension dimensions) {
+        }
+
+        @Override
+        public void loadAndPrepareMetadata(Set<Long> pixelsIds,
+                int longestSide) {
+        }
+
+        @Override
+        public boolean hasSettings(long pixelsId) {
+            return true;
+        }
+
+        @Override
+        public Pixels getPixels(long pixelsId) {
+            return pixels.get(pixelsId);
+        }
+
+        @Override
+        public RenderingDef getSettings(long pixelsId) {
+            return settings.get(pixelsId);
+        }
+
+        @Override
+        public Thumbnail getMetadata(long pixelsId) {
+            return metadata.get(pixelsId);
+        }
+
+        @Override
+        public boolean dirtyMetadata(long pixelsId) {
+            return pixelsId == DIRTY_ID || pixelsId == FAILING_ID;
+        }
+
+        @Override
+        public boolean isThumbnailCached(long pixelsId) {
+            return pixelsId == CACHED_ID;
+        }
+    }
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        root = File.createTempFile("thumbnail-bean", "");
+        root.delete();
+        root.mkdirs();
+        workers = Executors.newFixedThreadPool(2);
+        ioService = new ThumbnailService(root.getAbsolutePath());
+        pixels.clear();
+        settings.clear();
+        metadata.clear();
+        saved.clear();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        workers.shutdownNow();
+        FileUtils.deleteDirectory(root);
+    }
+
+    private byte[] createPlane() {
+        ByteBuffer plane = ByteBuffer.allocate(SIZE * SIZE * 2);
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            plane.putShort((short) (i * 16));
+        }
+        return plane.array();
+    }
+
+    /**
+     * Creates a pixels set, its rendering settings and thumbnail metadata.
+     */
+    private void createPixelsSet(long id, RenderingSettingsImpl service) {
+        PixelsType type = new PixelsType();
+        type.setValue("uint16");
+        Pixels p = new Pixels(id, true);
+        p.setSizeX(SIZE);
+        p.setSizeY(SIZE);
+        p.setSizeZ(1);
+        p.setSizeC(1);
+        p.setSizeT(1);
+        p.setPixelsType(type);
+        StatsInfo si = new StatsInfo();
+        si.setGlobalMin(0.0);
+        si.setGlobalMax(4080.0);
+        Channel channel = new Channel();
+        channel.setStatsInfo(si);
+        p.addChannel(channel);
+        pixels.put(id, p);
+
+        RenderingDef def = service.createNewRenderingDef(p);
+        service.resetDefaultsNoSave(def, p);
+        def.setId(id);
+        settings.put(id, def);
+
+        Thumbnail thumbnail = new Thumbnail();
+        thumbnail.setId(id);
+        thumbnail.setVersion(0);
+        thumbnail.setSizeX(SIZE);
+        thumbnail.setSizeY(SIZE);
+        thumbnail.setMimeType(ThumbnailCtx.DEFAULT_MIME_TYPE);
+        thumbnail.setPixels(p);
+        metadata.put(id, thumbnail);
+    }
+
+    /**
+     * Creates a bean rendering on the workers, failing to read the pixels
+     * of {@link #FAILING_ID}.
+     */
+    private ThumbnailBean createBean() throws Exception {
+        final byte[] plane = createPlane();
+        TestPixelsService pixelsService = new TestPixelsService() {
+            @Override
+            public PixelBuffer getPixelBuffer(Pixels p, boolean write) {
+                if (p.getId() == FAILING_ID) {
+                    throw new RuntimeException("Cannot read pixels.");
+                }
+                return new TestPixelBuffer(p.getPixelsType(), plane) {
+                    @Override
+                    public int getSizeX() {
+                        return SIZE;
+                    }
+
+                    @Override
+                    public int getSizeY() {
+                        return SIZE;
+                    }
+                };
+            }
+        };
+        pixelsService.setDummyPlane(plane);
+        TestPixelsMetadataService iPixels = new TestPixelsMetadataService() {
+            @Override
+            public Pixels retrievePixDescription(long id) {
+                return pixels.get(id);
+            }
+
+            @Override
+            public RenderingDef loadRndSettings(long id) {
+                return settings.get(id);
+            }
+        };
+        RenderingSettingsImpl settingsService = new RenderingSettingsImpl();
+        settingsService.setPixelsMetadata(iPixels);
+        settingsService.setPixelsData(pixelsService);
+        for (long id : new long[] {
+                CACHED_ID, MISSING_ID, DIRTY_ID, FAILING_ID }) {
+            createPixelsSet(id, settingsService);
+        }
+        ioService.createThumbnail(metadata.get(CACHED_ID), CACHED);
+
+        Mock query = mock(LocalQuery.class);
+        query.stubs().method("evict");
+        query.stubs().method("clear");
+        Mock update = mock(LocalUpdate.class);
+        update.stubs().method("flush");
+        update.stubs().method("saveArray").will(new Stub() {
+            public Object invoke(Invocation i) throws Throwable {
+                saved.addAll(Arrays.asList((IObject[]) i.parameterValues.get(0)));
+                return null;
+            }
+
+            public StringBuffer describeTo(StringBuffer sb) {
+                return sb.append("records the saved metadata");
+            }
+        });
+
+        ThumbnailBean bean = new ThumbnailBean() {
+            @Override
+            ThumbnailCtx createContext() {
+                return new TestThumbnailCtx();
+            }
+        };
+        bean.setQueryService((LocalQuery) query.proxy());
+        bean.setUpdateService((LocalUpdate) update.proxy());
+        bean.setIPixels(iPixels);
+        bean.setPixelDataService(pixelsService);
+        bean.setIoService(ioService);
+        bean.setScaleService(new AWTScaleService());
+        bean.setCompressionService(new CompressImpl());
+        bean.setThumbnailWorkers(workers);
+        return bean;
+    }
+
+    @Test(timeOut = 10000)
+    public void testThumbnailSetRenderedOnWorkers() throws Exception {
+        ThumbnailBean bean = createBean();
+        Set<Long> pixelsIds = new LinkedHashSet<Long>(Arrays.asList(
+                CACHED_ID, MISSING_ID, DIRTY_ID, FAILING_ID));
+        Map<Long, byte[]> thumbnails =
+            bean.getThumbnailSet(SIZE, SIZE, pixelsIds);
+
+        assertEquals(pixelsIds, thumbnails.keySet());
+        // Read from disk as it was.
+        assertTrue(Arrays.equals(CACHED, thumbnails.get(CACHED_ID)));
+        // Rendered, compressed to disk and read back.
+        for (long id : new long[] { MISSING_ID, DIRTY_ID }) {
+            byte[] thumbnail = thumbnails.get(id);
+            assertNotNull(thumbnail);
+            assertEquals((byte) 0xFF, thumbnail[0]);
+            assertEquals((byte) 0xD8, thumbnail[1]);
+            assertTrue(Arrays.equals(thumbnail,
+                    ioService.getThumbnail(metadata.get(id))));
+        }
+        // The failure of a worker only loses its own thumbnail.
+        assertNull(thumbnails.get(FAILING_ID));
+
+        // Only the dirty metadata of the rendered thumbnail is saved.
+        assertEquals(1, saved.size());
+        Thumbnail dirty = (Thumbnail) saved.get(0);
+        assertEquals(Long.valueOf(DIRTY_ID), dirty.getId());
+        assertEquals(Integer.valueOf(1), dirty.getVersion());
+        assertEquals(Integer.valueOf(0), metadata.get(MISSING_ID).getVersion());
+    }
+
+    @Test(timeOut = 10000)
+    public void testOnlyMissingThumbnailsCreated() throws Exception {
+        ThumbnailBean bean = createBean();
+        Set<Long> pixelsIds = new HashSet<Long>(Arrays.asList(
+                CACHED_ID, MISSING_ID));
+        bean.createThumbnailsByLongestSideSet(SIZE, pixelsIds);
+        assertTrue(Arrays.equals(CACHED,
+                ioService.getThumbnail(metadata.get(CACHED_ID))));
+        assertTrue(new File(ioService.getThumbnailPath(MISSING_ID)).exists());
+        assertTrue(saved.isEmpty());
+    }
+
+    @Test(timeOut = 10000)
+    public void testCreatedThumbnailsReported() throws Exception {
+        ThumbnailBean bean = createBean();
+        Set<Long> pixelsIds = new LinkedHashSet<Long>(Arrays.asList(
+                CACHED_ID, MISSING_ID, FAILING_ID));
+        Map<Long, Boolean> results =
+            bean.createAndReportThumbnailsByLongestSideSet(SIZE, pixelsIds);
+        assertEquals(pixelsIds, results.keySet());
+        // Up to date whether already on disk or just created.
+        assertTrue(results.get(CACHED_ID));
+        assertTrue(results.get(MISSING_ID));
+        assertFalse(results.get(FAILING_ID));
+    }
+
+    private List<List<Integer>> descriptions(int... sizes) {
+        List<List<Integer>> rv = new ArrayList<List<Integer>>();
+        for (int i = 0; i < sizes.length; i += 2) {
+            rv.add(Arrays.asList(sizes[i], sizes[i + 1]));
+        }
+        return rv;
+    }
+
+    @Test
+    public void testResolutionLevelOfUnequalAspectRatios() {
+        // Full resolution first, level 0 is the smallest.
+        List<List<Integer>> levels = descriptions(
+                4000, 1000, 2000, 500, 1000, 250, 500, 125);
+        assertEquals(0,
+                ThumbnailBean.getThumbnailResolutionLevel(levels, 96, 24));
+        assertEquals(1,
+                ThumbnailBean.getThumbnailResolutionLevel(levels, 512, 128));
+        // Both dimensions must be at least those of the thumbnail.
+        assertEquals(1,
+                ThumbnailBean.getThumbnailResolutionLevel(levels, 100, 200));
+        assertEquals(2,
+                ThumbnailBean.getThumbnailResolutionLevel(levels, 100, 251));
+    }
+
+    @Test
+    public void testResolutionLevelWhenNoLevelQualifies() {
+        List<List<Integer>> levels = descriptions(
+                1000, 800, 500, 400, 250, 200);
+        assertEquals(2,
+                ThumbnailBean.getThumbnailResolutionLevel(levels, 600, 480));
+        assertEquals(2,
+                ThumbnailBean.getThumbnailResolutionLevel(levels, 2000, 1600));
+    }
+
+    @Test
+    public void testResolutionLevelOfPlaneSmallerThanThumbnail() {
+        assertEquals(0, ThumbnailBean.getThumbnailResolutionLevel(
+                descriptions(32, 16), 96, 48));
+    }
+
+    @Test
+    public void testStrideOfUnequalAspectRatios() {
+        assertEquals(41, ThumbnailBean.getThumbnailStride(4000, 1000, 96, 24));
+        // The shorter side of the plane limits the stride.
+        assertEquals(10, ThumbnailBean.getThumbnailStride(4000, 1000, 96, 96));
+        assertEquals(10, ThumbnailBean.getThumbnailStride(1000, 4000, 96, 96));
+    }
+
+    @Test
+    public void testStrideOfPlaneSmallerThanThumbnail() {
+        assertEquals(1, ThumbnailBean.getThumbnailStride(32, 32, 96, 96));
+        assertEquals(1, ThumbnailBean.getThumbnailStride(200, 32, 96, 96));
+    }
+
+    @Test
+    public void testStrideOfEmptyThumbnail() {
+        assertEquals(2, ThumbnailBean.getThumbnailStride(100, 100, 0, 50));
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * ome.services.thumbnail.ThumbnailPregenerationTest
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.api.IQuery;
+import ome.model.core.Image;
+import ome.model.core.Pixels;
+import ome.model.display.RenderingDef;
+import ome.model.meta.EventLog;
+import ome.parameters.Parameters;
+import ome.services.thumbnail.ThumbnailPregenerationHandler.Job;
+import ome.system.OmeroContext;
+import ome.system.ServiceFactory;
+import ome.util.SqlAction;
+
+import org.jmock.Mock;
+import org.jmock.MockObjectTestCase;
+import org.jmock.core.Constraint;
+import org.jmock.core.Invocation;
+import org.jmock.core.Stub;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the queries of the {@link ThumbnailEventLogLoader} and the grouping
+ * of its {@link EventLog} instances by the
+ * {@link ThumbnailPregenerationHandler}.
+ */
+@Test(groups = { "query", "thumbnail" })
+public class ThumbnailPregenerationTest extends MockObjectTestCase {
+
+    private static final String KEY = "thumbnailEventLogLoader.v1.current_id";
+
+    Mock q;
+
+    Mock sql;
+
+    ThumbnailEventLogLoader loader;
+
+    @BeforeMethod
+    public void setup() {
+        q = mock(IQuery.class);
+        sql = mock(SqlAction.class);
+        loader = new ThumbnailEventLogLoader();
+        loader.setQueryService((IQuery) q.proxy());
+        loader.setSqlAction((SqlAction) sql.proxy());
+        loader.setKey(KEY);
+    }
+
+    private EventLog eventLog(long id, Class<?> type, long entityId,
+            String action) {
+        EventLog el = new EventLog(id, true);
+        el.setEntityType(type.getName());
+        el.setEntityId(entityId);
+        el.setAction(action);
+        return el;
+    }
+
+    /**
+     * Matches the parameters of a query for the event logs after an id.
+     */
+    private Constraint after(final long id) {
+        return new Constraint() {
+            public boolean eval(Object o) {
+                Parameters p = (Parameters) o;
+                return Long.valueOf(id).equals(p.get("id").value)
+                    && Pixels.class.getName().equals(p.get("pixels").value)
+                    && RenderingDef.class.getName().equals(
+                            p.get("settings").value);
+            }
+
+            public StringBuffer describeTo(StringBuffer sb) {
+                return sb.append("event logs after " + id);
+            }
+        };
+    }
+
+    private void expectNext(long after, EventLog el) {
+        q.expects(once()).method("findByQuery").with(
+                stringContains("where el.id > :id"), after(after)).will(
+                returnValue(el));
+    }
+
+    public void testQueryStartsAfterCurrentId() {
+        sql.expects(once()).method("selectCurrentEventLog").with(eq(KEY))
+                .will(returnValue(5L));
+        EventLog first = eventLog(6L, Pixels.class, 1L, "INSERT");
+        EventLog second = eventLog(8L, RenderingDef.class, 2L, "UPDATE");
+        expectNext(5L, first);
+        assertTrue(loader.hasNext());
+        assertEquals(first, loader.next());
+        // The position is kept in memory until committed.
+        expectNext(6L, second);
+        assertEquals(second, loader.next());
+        expectNext(8L, null);
+        assertFalse(loader.hasNext());
+    }
+
+    public void testInitializeStartsAfterLastEventLog() {
+        sql.expects(once()).method("selectCurrentEventLog").with(eq(KEY))
+                .will(throwException(new EmptyResultDataAccessException(1)));
+        sql.expects(once()).method("setCurrentEventLog").with(eq(-1L),
+                eq(KEY)).id("reset");
+        q.expects(once()).method("findByQuery").with(
+                eq("select el from EventLog el order by id desc"), ANYTHING)
+                .will(returnValue(new EventLog(9L, false)));
+        sql.expects(once()).method("setCurrentEventLog").with(eq(9L),
+                eq(KEY)).after("reset");
+        // The current id is not looked up again once initialized.
+        expectNext(9L, null);
+        assertFalse(loader.hasNext());
+    }
+
+    public void testCommitSavesLastEventLogLoaded() {
+        sql.expects(once()).method("selectCurrentEventLog").with(eq(KEY))
+                .will(returnValue(5L));
+        expectNext(5L, eventLog(6L, Pixels.class, 1L, "INSERT"));
+        loader.next();
+        expectNext(6L, eventLog(7L, Pixels.class, 2L, "INSERT"));
+        loader.next();
+        sql.expects(once()).method("setCurrentEventLog").with(eq(7L),
+                eq(KEY));
+        loader.commit();
+        // Nothing loaded since.
+        loader.commit();
+    }
+
+    public void testMoreCountsEventLogsLeft() {
+        sql.expects(once()).method("selectCurrentEventLog").with(eq(KEY))
+                .will(returnValue(5L));
+        q.expects(once()).method("projection").with(
+                stringContains("select count(el) from EventLog el"),
+                after(5L)).will(returnValue(Collections.singletonList(
+                new Object[] { 3L })));
+        assertEquals(3L, loader.more());
+    }
+
+    /**
+     * Loader of a fixed list of event logs.
+     */
+    private static class ListLoader extends ThumbnailEventLogLoader {
+
+        final List<EventLog> logs = new ArrayList<EventLog>();
+
+        @Override
+        protected synchronized EventLog query() {
+            return logs.isEmpty() ? null : logs.remove(0);
+        }
+
+        @Override
+        public synchronized long more() {
+            return logs.size();
+        }
+    }
+
+    /**
+     * Answers the lookup of the owner and group of the pixels set of an
+     * event log from rows per entity type and id.
+     */
+    private static class Lookup implements Stub {
+
+        final Map<String, Object[]> rows = new HashMap<String, Object[]>();
+
+        void add(Class<?> type, long id, Object... row) {
+            rows.put(type.getSimpleName() + id, row);
+        }
+
+        public Object invoke(Invocation i) throws Throwable {
+            String query = (String) i.parameterValues.get(0);
+            Parameters p = (Parameters) i.parameterValues.get(1);
+            String type = query.contains("from Pixels") ? "Pixels"
+                    : "RenderingDef";
+            Object[] row = rows.get(type + p.get("id").value);
+            if (row == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(row);
+        }
+
+        public StringBuffer describeTo(StringBuffer sb) {
+            return sb.append("looks up the pixels sets");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testHandlerGroupsByUserAndGroup() {
+        ListLoader list = new ListLoader();
+        list.logs.addAll(Arrays.asList(
+                eventLog(1L, Pixels.class, 1L, "INSERT"),
+                eventLog(2L, RenderingDef.class, 10L, "INSERT"),
+                eventLog(3L, Pixels.class, 3L, "INSERT"),
+                eventLog(4L, RenderingDef.class, 11L, "UPDATE"),
+                eventLog(5L, Pixels.class, 4L, "INSERT"),
+                // Deleted since.
+                eventLog(6L, Pixels.class, 5L, "INSERT"),
+                // Not a type handled.
+                eventLog(7L, Image.class, 1L, "INSERT"),
+                eventLog(8L, Pixels.class, 6L, "INSERT")));
+        list.setBatchSize(10);
+        Lookup lookup = new Lookup();
+        lookup.add(Pixels.class, 1L, 1L, "a", 1L, "one");
+        // The thumbnails of the owner of the settings.
+        lookup.add(RenderingDef.class, 10L, 2L, "b", 1L, "one");
+        lookup.add(Pixels.class, 3L, 3L, "a", 1L, "one");
+        lookup.add(RenderingDef.class, 11L, 1L, "a", 1L, "one");
+        lookup.add(Pixels.class, 4L, 4L, "a", 2L, "two");
+        lookup.add(Pixels.class, 6L, 6L, "b", 1L, "one");
+        q.stubs().method("projection").will(lookup);
+        final IQuery iQuery = (IQuery) q.proxy();
+        ServiceFactory sf = new ServiceFactory((OmeroContext) null) {
+            @Override
+            public IQuery getQueryService() {
+                return iQuery;
+            }
+        };
+
+        ThumbnailPregenerationHandler handler =
+            new ThumbnailPregenerationHandler(list);
+        List<Job> jobs = (List<Job>) handler.doWork(null, sf);
+        assertEquals(3, jobs.size());
+
+        Job job = jobs.get(0);
+        assertEquals("a", job.userName);
+        assertEquals(1L, job.groupId);
+        assertEquals("one", job.groupName);
+        assertEquals(Arrays.asList(1L, 3L),
+                new ArrayList<Long>(job.pixelsIds));
+
+        job = jobs.get(1);
+        assertEquals("b", job.userName);
+        assertEquals(1L, job.groupId);
+        assertEquals(Arrays.asList(2L, 6L),
+                new ArrayList<Long>(job.pixelsIds));
+
+        job = jobs.get(2);
+        assertEquals("a", job.userName);
+        assertEquals(2L, job.groupId);
+        assertEquals("two", job.groupName);
+        assertEquals(Arrays.asList(4L), new ArrayList<Long>(job.pixelsIds));
+
+        assertEquals(0L, handler.getBacklog());
+    }
+}
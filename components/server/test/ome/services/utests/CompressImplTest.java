@@ -0,0 +1,112 @@
+/*
+ * ome.services.utests.CompressImplTest
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.utests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import ome.api.local.LocalCompress;
+import ome.conditions.ValidationException;
+import ome.logic.CompressImpl;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the pooled encoders behind {@link CompressImpl}.
+ */
+public class CompressImplTest extends TestCase {
+
+    private int[] createImage(int sizeX, int sizeY) {
+        int[] buf = new int[sizeX * sizeY];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (i * 7919) & 0xFFFFFF;
+        }
+        return buf;
+    }
+
+    private BufferedImage decode(byte[] data) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    @Test
+    public void testJpeg() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        assertEquals(LocalCompress.FORMAT_JPEG,
+                compress.getCompressionFormat());
+        byte[] data = compress.compress(createImage(64, 32), 64, 32);
+        assertEquals((byte) 0xFF, data[0]);
+        assertEquals((byte) 0xD8, data[1]);
+        BufferedImage image = decode(data);
+        assertEquals(64, image.getWidth());
+        assertEquals(32, image.getHeight());
+    }
+
+    @Test
+    public void testPngIsLossless() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        compress.setCompressionFormat("PNG");
+        assertEquals(LocalCompress.FORMAT_PNG,
+                compress.getCompressionFormat());
+        int[] buf = createImage(48, 40);
+        BufferedImage image = decode(compress.compress(buf, 48, 40));
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 48; x++) {
+                assertEquals(buf[y * 48 + x], image.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    @Test
+    public void testPngIgnoresCompressionLevel() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        compress.setCompressionFormat(LocalCompress.FORMAT_PNG);
+        int[] buf = createImage(64, 64);
+        compress.setCompressionLevel(0.1f);
+        byte[] low = compress.compress(buf, 64, 64);
+        compress.setCompressionLevel(1.0f);
+        assertTrue(Arrays.equals(low, compress.compress(buf, 64, 64)));
+    }
+
+    @Test
+    public void testStreamMatchesArray() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        int[] buf = createImage(32, 32);
+        byte[] data = compress.compress(buf, 32, 32);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        compress.compressToStream(buf, 32, 32, stream);
+        assertTrue(Arrays.equals(data, stream.toByteArray()));
+    }
+
+    @Test
+    public void testBufferReuse() throws Exception {
+        CompressImpl compress = new CompressImpl();
+        compress.setCompressionFormat(LocalCompress.FORMAT_PNG);
+        byte[] small = compress.compress(createImage(8, 8), 8, 8);
+        // Much larger than the initial output buffer.
+        compress.compress(createImage(1024, 1024), 1024, 1024);
+        assertTrue(Arrays.equals(small,
+                compress.compress(createImage(8, 8), 8, 8)));
+    }
+
+    @Test
+    public void testUnsupportedFormat() {
+        CompressImpl compress = new CompressImpl();
+        try {
+            compress.setCompressionFormat("gif");
+            fail("Expected a validation exception.");
+        } catch (ValidationException e) {
+            assertEquals(LocalCompress.FORMAT_JPEG,
+                    compress.getCompressionFormat());
+        }
+    }
+}
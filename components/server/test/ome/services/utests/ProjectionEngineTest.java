@@ -0,0 +1,272 @@
+/*
+ * ome.services.utests.ProjectionEngineTest
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.utests;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import ome.api.IProjection;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.RomioPixelBuffer;
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.services.projection.ProjectionEngine;
+import ome.util.PixelData;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Projects small ROMIO pixels sets tile by tile through the
+ * {@link ProjectionEngine}, checking the projected pixels against those
+ * projected one pixel at a time.
+ */
+public class ProjectionEngineTest extends TestCase {
+
+    private static final int SIZE_X = 13;
+
+    private static final int SIZE_Y = 11;
+
+    private static final int SIZE_Z = 5;
+
+    private static final int SIZE_C = 2;
+
+    private static final int SIZE_T = 3;
+
+    private File root;
+
+    private Pixels pixels;
+
+    private ProjectionEngine engine;
+
+    private Pixels createPixels(String type, int sizeZ, int sizeC,
+            int sizeT) {
+        PixelsType pixelsType = new PixelsType();
+        pixelsType.setValue(type);
+        Pixels p = new Pixels();
+        p.setId(1L);
+        p.setSizeX(SIZE_X);
+        p.setSizeY(SIZE_Y);
+        p.setSizeZ(sizeZ);
+        p.setSizeC(sizeC);
+        p.setSizeT(sizeT);
+        p.setPixelsType(pixelsType);
+        return p;
+    }
+
+    /** Returns the value of a pixel of the source. */
+    private int value(int i, int z, int c, int t) {
+        return (i * 131 + z * 977 + c * 61 + t * 7) % 30000;
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        root = File.createTempFile("projection-engine", "");
+        root.delete();
+        root.mkdirs();
+        pixels = createPixels("uint16", SIZE_Z, SIZE_C, SIZE_T);
+        RomioPixelBuffer writer = new RomioPixelBuffer(
+                new File(root, "source").getPath(), pixels, true);
+        for (int t = 0; t < SIZE_T; t++) {
+            for (int c = 0; c < SIZE_C; c++) {
+                for (int z = 0; z < SIZE_Z; z++) {
+                    ByteBuffer plane = ByteBuffer.allocate(SIZE_X * SIZE_Y * 2);
+                    for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                        plane.putShort((short) value(i, z, c, t));
+                    }
+                    writer.setPlane(plane.array(), z, c, t);
+                }
+            }
+        }
+        writer.close();
+        engine = new ProjectionEngine(3);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        engine.shutdown();
+        FileUtils.deleteDirectory(root);
+    }
+
+    /** Opens the source through buffers of small tiles. */
+    private ProjectionEngine.SourceFactory sources() {
+        return new ProjectionEngine.SourceFactory() {
+            public PixelBuffer open() {
+                return new RomioPixelBuffer(
+                        new File(root, "source").getPath(), pixels) {
+                    @Override
+                    public Dimension getTileSize() {
+                        return new Dimension(5, 4);
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void testMaximumIntensity() throws Exception {
+        byte[] plane = engine.projectPlane(sources(), "uint16",
+                IProjection.MAXIMUM_INTENSITY, 1, 2, 2, 0, 4);
+        ByteBuffer projected = ByteBuffer.wrap(plane);
+        assertEquals(SIZE_X * SIZE_Y * 2, plane.length);
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+            // Sections 0, 2 and 4, the end included.
+            int expected = Math.max(value(i, 0, 1, 2),
+                    Math.max(value(i, 2, 1, 2), value(i, 4, 1, 2)));
+            assertEquals(expected, projected.getShort(i * 2) & 0xFFFF);
+        }
+    }
+
+    @Test
+    public void testMeanIntensity() throws Exception {
+        byte[] plane = engine.projectPlane(sources(), "uint16",
+                IProjection.MEAN_INTENSITY, 0, 1, 1, 1, 4);
+        ByteBuffer projected = ByteBuffer.wrap(plane);
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+            // Sections 1 to 3, the end excluded.
+            int sum = value(i, 1, 0, 1) + value(i, 2, 0, 1)
+                    + value(i, 3, 0, 1);
+            assertEquals(sum / 3, projected.getShort(i * 2) & 0xFFFF);
+        }
+    }
+
+    @Test
+    public void testSumIntensityClampedToPixelsType() throws Exception {
+        byte[] plane = engine.projectPlane(sources(), "uint8",
+                IProjection.SUM_INTENSITY, 0, 0, 1, 0, 5);
+        assertEquals(SIZE_X * SIZE_Y, plane.length);
+        for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+            int sum = 0;
+            for (int z = 0; z < SIZE_Z; z++) {
+                sum += value(i, z, 0, 0);
+            }
+            assertEquals(Math.min(sum, 255), plane[i] & 0xFF);
+        }
+    }
+
+    @Test
+    public void testProjectPixels() throws Exception {
+        Pixels projection = createPixels("uint16", 1, 2, 2);
+        String path = new File(root, "projection").getPath();
+        RomioPixelBuffer destination =
+            new RomioPixelBuffer(path, projection, true) {
+                @Override
+                public Dimension getTileSize() {
+                    return new Dimension(SIZE_X, 3);
+                }
+            };
+        // Channels in reverse order, from the second timepoint.
+        double[][] minMax = engine.projectPixels(sources(), destination,
+                "uint16", IProjection.MAXIMUM_INTENSITY, Arrays.asList(1, 0),
+                1, 2, 1, 0, SIZE_Z - 1);
+        destination.close();
+
+        RomioPixelBuffer reader = new RomioPixelBuffer(path, projection);
+        for (int c = 0; c < 2; c++) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int t = 0; t < 2; t++) {
+                ByteBuffer plane = ByteBuffer.wrap(
+                        reader.getPlaneDirect(0, c, t,
+                                new byte[SIZE_X * SIZE_Y * 2]));
+                for (int i = 0; i < SIZE_X * SIZE_Y; i++) {
+                    int expected = 0;
+                    for (int z = 0; z < SIZE_Z; z++) {
+                        expected = Math.max(expected,
+                                value(i, z, 1 - c, t + 1));
+                    }
+                    assertEquals(expected, plane.getShort(i * 2) & 0xFFFF);
+                    min = Math.min(min, expected);
+                    max = Math.max(max, expected);
+                }
+            }
+            assertEquals((double) min, minMax[c][0]);
+            assertEquals((double) max, minMax[c][1]);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void testFailedTileWaitsForTheOthers() throws Exception {
+        final AtomicInteger reading = new AtomicInteger();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final AtomicBoolean closedWhileReading = new AtomicBoolean();
+        ProjectionEngine.SourceFactory failing =
+            new ProjectionEngine.SourceFactory() {
+            public PixelBuffer open() {
+                return new RomioPixelBuffer(
+                        new File(root, "source").getPath(), pixels) {
+                    @Override
+                    public Dimension getTileSize() {
+                        return new Dimension(5, 4);
+                    }
+
+                    @Override
+                    public PixelData getTile(Integer z, Integer c,
+                            Integer t, Integer x, Integer y, Integer w,
+                            Integer h) throws IOException {
+                        if (x == 0 && y == 0 && c == 0 && t == 0) {
+                            throw new IOException("Failed read");
+                        }
+                        reading.incrementAndGet();
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            interrupted.set(true);
+                        } finally {
+                            reading.decrementAndGet();
+                        }
+                        return super.getTile(z, c, t, x, y, w, h);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        if (reading.get() > 0) {
+                            closedWhileReading.set(true);
+                        }
+                        super.close();
+                    }
+                };
+            }
+        };
+        Pixels projection = createPixels("uint16", 1, 1, 1);
+        RomioPixelBuffer destination = new RomioPixelBuffer(
+                new File(root, "projection").getPath(), projection, true) {
+            @Override
+            public Dimension getTileSize() {
+                return new Dimension(5, 4);
+            }
+        };
+        try {
+            engine.projectPixels(failing, destination, "uint16",
+                    IProjection.MAXIMUM_INTENSITY, Arrays.asList(0), 0, 0,
+                    1, 0, SIZE_Z - 1);
+            fail("Expected the read to fail.");
+        } catch (IOException e) {
+            assertEquals("Failed read", e.getMessage());
+        } finally {
+            destination.close();
+        }
+        assertFalse(interrupted.get());
+        assertFalse(closedWhileReading.get());
+        assertEquals(0, reading.get());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownAlgorithm() throws Exception {
+        engine.projectPlane(sources(), "uint16", 3, 0, 0, 1, 0, 1);
+    }
+}
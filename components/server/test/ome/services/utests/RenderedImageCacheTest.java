@@ -0,0 +1,132 @@
+/*
+ * ome.services.utests.RenderedImageCacheTest
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.utests;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import ome.services.RenderedImageCache;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the eviction, spilling and invalidation of the
+ * {@link RenderedImageCache}.
+ */
+public class RenderedImageCacheTest extends TestCase {
+
+    private File createSpillDirectory() throws Exception {
+        File dir = File.createTempFile("rendered-image-cache", "");
+        dir.delete();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        RenderedImageCache cache = new RenderedImageCache(1024, null, 0);
+        String key = cache.createKey(1L, "plane z=0");
+        assertNull(cache.get(key));
+        cache.put(key, new byte[] { 1, 2, 3 });
+        assertEquals(3, cache.get(key).length);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(3, cache.getSize());
+    }
+
+    @Test
+    public void testKeysDifferByDescription() {
+        RenderedImageCache cache = new RenderedImageCache(1024, null, 0);
+        assertFalse(cache.createKey(1L, "plane z=0").equals(
+                cache.createKey(1L, "plane z=1")));
+        assertFalse(cache.createKey(1L, "plane z=0").equals(
+                cache.createKey(2L, "plane z=0")));
+        assertEquals(cache.createKey(1L, "plane z=0"),
+                cache.createKey(1L, "plane z=0"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        RenderedImageCache cache = new RenderedImageCache(20, null, 0);
+        String a = cache.createKey(1L, "a");
+        String b = cache.createKey(1L, "b");
+        String c = cache.createKey(1L, "c");
+        cache.put(a, new byte[8]);
+        cache.put(b, new byte[8]);
+        cache.get(a);
+        cache.put(c, new byte[8]);
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(16, cache.getSize());
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception {
+        File dir = createSpillDirectory();
+        RenderedImageCache cache =
+            new RenderedImageCache(10, dir.getAbsolutePath(), 100);
+        String a = cache.createKey(1L, "a");
+        String b = cache.createKey(1L, "b");
+        cache.put(a, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        cache.put(b, new byte[8]);
+        assertEquals(8, cache.getDiskSize());
+        byte[] image = cache.get(a);
+        assertEquals(8, image.length);
+        assertEquals(8, image[7]);
+        assertEquals(1, cache.getDiskHits());
+        cache.invalidate(1L);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getDiskSize());
+        assertNull(cache.get(a));
+        assertNull(cache.get(b));
+    }
+
+    @Test
+    public void testSpillReplacesImage() throws Exception {
+        File dir = createSpillDirectory();
+        RenderedImageCache cache =
+            new RenderedImageCache(10, dir.getAbsolutePath(), 100);
+        String a = cache.createKey(1L, "a");
+        String b = cache.createKey(2L, "b");
+        cache.put(a, new byte[] { 1, 1, 1, 1, 1, 1, 1, 1 });
+        cache.put(b, new byte[8]);
+        cache.invalidate(1L);
+        cache.put(a, new byte[] { 2, 2, 2, 2, 2, 2, 2, 2, 2 });
+        cache.put(b, new byte[8]);
+        byte[] image = cache.get(a);
+        assertEquals(9, image.length);
+        assertEquals(2, image[8]);
+        // Spilled images are written aside then renamed into place.
+        File[] files = new File(dir, "1").listFiles();
+        assertEquals(1, files.length);
+        assertFalse(files[0].getName().endsWith(".tmp"));
+    }
+
+    @Test
+    public void testInvalidateOnlyAffectsPixelsSet() {
+        RenderedImageCache cache = new RenderedImageCache(1024, null, 0);
+        String a = cache.createKey(1L, "a");
+        String b = cache.createKey(11L, "a");
+        cache.put(a, new byte[4]);
+        cache.put(b, new byte[4]);
+        cache.invalidate(1L);
+        assertNull(cache.get(a));
+        assertNotNull(cache.get(b));
+    }
+
+    @Test
+    public void testDisabled() {
+        RenderedImageCache cache = new RenderedImageCache(0, null, 0);
+        assertFalse(cache.isEnabled());
+        String key = cache.createKey(1L, "a");
+        cache.put(key, new byte[4]);
+        assertNull(cache.get(key));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * ome.services.utests.ThumbnailCacheTest
+ *
+ *   Copyright 2013 University of Dundee. All rights reserved.
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package ome.services.utests;
+
+import junit.framework.TestCase;
+
+import ome.services.ThumbnailCache;
+
+import org.testng.annotations.Test;
+
+/**
+ * Tests the versioning, eviction and invalidation of the
+ * {@link ThumbnailCache}.
+ */
+public class ThumbnailCacheTest extends TestCase {
+
+    @Test
+    public void testHitAndMiss() {
+        ThumbnailCache cache = new ThumbnailCache(1024);
+        assertNull(cache.get(1L, 0));
+        cache.put(1L, 0, 10L, new byte[] { 1, 2, 3 });
+        assertEquals(3, cache.get(1L, 0).length);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio());
+        assertEquals(3, cache.getSize());
+    }
+
+    @Test
+    public void testOtherVersionMisses() {
+        ThumbnailCache cache = new ThumbnailCache(1024);
+        cache.put(1L, 0, 10L, new byte[4]);
+        assertNull(cache.get(1L, 1));
+        // The older version is gone.
+        assertNull(cache.get(1L, 0));
+        assertEquals(0, cache.getSize());
+        cache.put(1L, 1, 10L, new byte[4]);
+        cache.put(1L, 2, 10L, new byte[6]);
+        assertEquals(1, cache.getCount());
+        assertEquals(6, cache.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        ThumbnailCache cache = new ThumbnailCache(20);
+        cache.put(1L, 0, 10L, new byte[8]);
+        cache.put(2L, 0, 10L, new byte[8]);
+        assertNotNull(cache.get(1L, 0));
+        cache.put(3L, 0, 10L, new byte[8]);
+        assertNull(cache.get(2L, 0));
+        assertNotNull(cache.get(1L, 0));
+        assertNotNull(cache.get(3L, 0));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(16, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidateAndRemove() {
+        ThumbnailCache cache = new ThumbnailCache(1024);
+        cache.put(1L, 0, 10L, new byte[8]);
+        cache.put(2L, 0, 10L, new byte[8]);
+        cache.put(3L, 0, 11L, new byte[8]);
+        cache.invalidate(10L);
+        assertNull(cache.get(1L, 0));
+        assertNull(cache.get(2L, 0));
+        assertNotNull(cache.get(3L, 0));
+        cache.remove(3L);
+        assertNull(cache.get(3L, 0));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testDisabled() {
+        ThumbnailCache cache = new ThumbnailCache(0);
+        assertFalse(cache.isEnabled());
+        cache.put(1L, 0, 10L, new byte[8]);
+        assertNull(cache.get(1L, 0));
+        assertEquals(0, cache.getCount());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *   Copyright (C) 2013 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.data.PlaneDef;
+
+import org.testng.annotations.Test;
+
+/**
+ * Ensures that the fused colour lookup tables used by the HSB strategy are
+ * rebuilt when channel settings change.
+ */
+public class TestChannelColorTables extends BaseRenderingTest
+{
+
+	@Override
+	protected int getSizeX()
+	{
+		return 16;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return 16;
+	}
+
+	@Override
+	protected byte[] getPlane()
+	{
+		byte[] plane = new byte[getSizeX() * getSizeY() * getBytesPerPixel()];
+		for (int i = 0; i < getSizeX() * getSizeY(); i++)
+		{
+			int value = i * 16;
+			plane[i * 2] = (byte) (value >> 8);
+			plane[i * 2 + 1] = (byte) value;
+		}
+		return plane;
+	}
+
+	private int[] renderFirstChannel(int red, int green, int blue)
+		throws Exception
+	{
+		RenderingModel model = new RenderingModel();
+		model.setValue(Renderer.MODEL_RGB);
+		renderer.setModel(model);
+		renderer.setActive(0, true);
+		renderer.setActive(1, false);
+		renderer.setActive(2, false);
+		renderer.setRGBA(0, red, green, blue, 255);
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		return renderer.renderAsPackedInt(def, pixelBuffer);
+	}
+
+	@Test
+	public void testSetRGBAInvalidatesTables() throws Exception
+	{
+		int[] red = renderFirstChannel(255, 0, 0);
+		int[] green = renderFirstChannel(0, 255, 0);
+		assertEquals(red.length, green.length);
+		for (int i = 0; i < red.length; i++)
+		{
+			assertEquals((red[i] >> 16) & 0xFF, (green[i] >> 8) & 0xFF);
+			assertEquals(0, (green[i] >> 16) & 0xFF);
+			assertEquals(0, red[i] & 0xFFFF);
+		}
+	}
+
+	@Test
+	public void testSetChannelWindowInvalidatesTables() throws Exception
+	{
+		renderer.setChannelWindow(0, 0, 4080);
+		int[] before = renderFirstChannel(255, 255, 255);
+		renderer.setChannelWindow(0, 0, 2040);
+		int[] after = renderFirstChannel(255, 255, 255);
+		// The pixel holding 2040 is saturated only with the narrower window.
+		int pixel = 2040 / 16;
+		assertTrue((before[pixel] & 0xFF) < 255);
+		assertEquals(255, after[pixel] & 0xFF);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ *   Copyright (C) 2013 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.nio.ByteBuffer;
+
+import ome.model.core.Pixels;
+import ome.model.display.RenderingDef;
+import ome.model.enums.PixelsType;
+import ome.model.enums.RenderingModel;
+import ome.util.PixelData;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.codomain.ReverseIntensityContext;
+import omeis.providers.re.data.PlaneDef;
+
+import org.testng.annotations.Test;
+
+/**
+ * Ensures that integral pixels, looked up in the fused colour tables, and
+ * floating point pixels, quantized pixel by pixel, are composited the same
+ * way, codomain chain included.
+ */
+public class TestCompositing extends BaseRenderingTest
+{
+
+	@Override
+	protected int getSizeX()
+	{
+		return 16;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return 16;
+	}
+
+	@Override
+	protected int getSizeC()
+	{
+		return 1;
+	}
+
+	@Override
+	protected byte[] getPlane()
+	{
+		byte[] plane = new byte[getSizeX() * getSizeY() * getBytesPerPixel()];
+		for (int i = 0; i < getSizeX() * getSizeY(); i++)
+		{
+			int value = i * 16;
+			plane[i * 2] = (byte) (value >> 8);
+			plane[i * 2 + 1] = (byte) value;
+		}
+		return plane;
+	}
+
+	/**
+	 * Creates a renderer for a floating point copy of the plane.
+	 */
+	private Renderer createFloatRenderer()
+	{
+		PixelsType type = new PixelsType();
+		type.setValue("float");
+		ByteBuffer plane = ByteBuffer.allocate(getSizeX() * getSizeY() * 4);
+		for (int i = 0; i < getSizeX() * getSizeY(); i++)
+		{
+			plane.putFloat(i * 4, i * 16);
+		}
+		Pixels floatPixels = createDummyPixels(type,
+				new PixelData(type.getValue(), plane));
+		RenderingDef def = settingsService.createNewRenderingDef(floatPixels);
+		settingsService.resetDefaultsNoSave(def, floatPixels);
+		return new Renderer(quantumFactory,
+				pixelsMetadataService.getAllEnumerations(RenderingModel.class),
+				floatPixels, def, new TestPixelBuffer(type, plane.array()));
+	}
+
+	private void configure(Renderer r)
+	{
+		RenderingModel model = new RenderingModel();
+		model.setValue(Renderer.MODEL_RGB);
+		r.setModel(model);
+		r.setActive(0, true);
+		r.setChannelWindow(0, 0, 4080);
+		r.setRGBA(0, 255, 128, 0, 200);
+		r.setQuantizedPlaneCacheSize(0);
+		r.getCodomainChain().add(new ReverseIntensityContext());
+	}
+
+	private void assertImage(int[] expected, int[] actual)
+	{
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+		{
+			assertEquals(expected[i], actual[i]);
+		}
+	}
+
+	@Test
+	public void testIntegralAndFloatingPointPixels() throws Exception
+	{
+		Renderer floatRenderer = createFloatRenderer();
+		configure(renderer);
+		configure(floatRenderer);
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		int[] integral = renderer.renderAsPackedInt(def, pixelBuffer);
+		// The codomain chain is applied: the lowest value is the brightest.
+		assertTrue((integral[0] >> 16 & 0xFF) > (integral[255] >> 16 & 0xFF));
+		assertImage(integral, floatRenderer.renderAsPackedInt(def, null));
+		assertImage(renderer.renderAsPackedIntAsRGBA(def, pixelBuffer),
+				floatRenderer.renderAsPackedIntAsRGBA(def, null));
+	}
+}
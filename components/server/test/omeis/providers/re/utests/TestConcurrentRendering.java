@@ -0,0 +1,165 @@
+/*
+ *   Copyright (C) 2013 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.RenderingExecutor;
+import omeis.providers.re.RenderingTask;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+
+import org.testng.annotations.Test;
+
+/**
+ * Ensures that concurrent rendering calls against the same {@link Renderer}
+ * produce the same images as sequential ones.
+ */
+public class TestConcurrentRendering extends BaseRenderingTest
+{
+
+	private static final int THREAD_COUNT = 4;
+
+	@Override
+	protected int getSizeX()
+	{
+		return 64;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return 64;
+	}
+
+	@Override
+	protected byte[] getPlane()
+	{
+		byte[] plane = new byte[getSizeX() * getSizeY() * getBytesPerPixel()];
+		for (int i = 0; i < getSizeX() * getSizeY(); i++)
+		{
+			int value = i % 4096;
+			plane[i * 2] = (byte) (value >> 8);
+			plane[i * 2 + 1] = (byte) value;
+		}
+		return plane;
+	}
+
+	private PlaneDef createRegion(int y)
+	{
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		def.setRegion(new RegionDef(0, y, getSizeX(), getSizeY() / 4));
+		return def;
+	}
+
+	private void assertConcurrentRendering(String model) throws Exception
+	{
+		RenderingModel m = new RenderingModel();
+		m.setValue(model);
+		renderer.setModel(m);
+		renderer.setChannelWindow(0, 0, 4095);
+		final int regions = 4;
+		List<int[]> expected = new ArrayList<int[]>();
+		for (int i = 0; i < regions; i++)
+		{
+			expected.add(renderer.renderAsPackedInt(
+					createRegion(i * getSizeY() / regions), pixelBuffer));
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(THREAD_COUNT);
+		try
+		{
+			List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+			for (int run = 0; run < RUN_COUNT; run++)
+			{
+				for (int i = 0; i < regions; i++)
+				{
+					final PlaneDef def = createRegion(i * getSizeY() / regions);
+					results.add(pool.submit(new Callable<int[]>() {
+						public int[] call() throws Exception
+						{
+							return renderer.renderAsPackedInt(def, pixelBuffer);
+						}
+					}));
+				}
+			}
+			for (int i = 0; i < results.size(); i++)
+			{
+				int[] actual = results.get(i).get();
+				int[] reference = expected.get(i % regions);
+				assertEquals(reference.length, actual.length);
+				for (int j = 0; j < reference.length; j++)
+				{
+					assertEquals(reference[j], actual[j]);
+				}
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRenderingOnExecutorWorkers() throws Exception
+	{
+		RenderingModel m = new RenderingModel();
+		m.setValue(Renderer.MODEL_RGB);
+		renderer.setModel(m);
+		final PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		int[] expected = renderer.renderAsPackedInt(def, pixelBuffer);
+		// Tiles rendered on the workers must not fork row bands onto the
+		// already busy pool.
+		RenderingExecutor processor = RenderingExecutor.getInstance();
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int i = 0; i < processor.getMaxTasks() * 2; i++)
+		{
+			results.add(processor.submit(new RenderingTask() {
+				public Object call()
+				{
+					assertTrue(RenderingExecutor.isWorkerThread());
+					try
+					{
+						return renderer.renderAsPackedInt(def, pixelBuffer);
+					}
+					catch (Exception e)
+					{
+						throw new RuntimeException(e);
+					}
+				}
+			}));
+		}
+		for (Future<Object> result : results)
+		{
+			int[] actual = (int[]) result.get();
+			assertEquals(expected.length, actual.length);
+			for (int j = 0; j < expected.length; j++)
+			{
+				assertEquals(expected[j], actual[j]);
+			}
+		}
+		assertFalse(RenderingExecutor.isWorkerThread());
+	}
+
+	@Test
+	public void testConcurrentGreyScaleRendering() throws Exception
+	{
+		assertConcurrentRendering(Renderer.MODEL_GREYSCALE);
+	}
+
+	@Test
+	public void testConcurrentHSBRendering() throws Exception
+	{
+		assertConcurrentRendering(Renderer.MODEL_RGB);
+	}
+}
@@ -17,6 +17,7 @@ import java.util.List;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
 import ome.util.PixelData;
+import ome.util.TileDef;
 import ome.model.enums.PixelsType;
 
 public class TestPixelBuffer implements PixelBuffer {
@@ -339,6 +340,16 @@ public class TestPixelBuffer implements PixelBuffer {
         return null;
     }
 
+    /* (non-Javadoc)
+     * @see ome.io.nio.PixelBuffer#getTilesDirect(java.util.List, byte[])
+     */
+    public byte[] getTilesDirect(List<TileDef> tiles, byte[] buffer)
+            throws IOException
+    {
+        // TODO Auto-generated method stub
+        return null;
+    }
+
     /* (non-Javadoc)
      * @see ome.io.nio.PixelBuffer#setTile(byte[], java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer, java.lang.Integer)
      */
@@ -0,0 +1,124 @@
+/*
+ *   Copyright (C) 2013 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import ome.model.core.Pixels;
+import ome.model.enums.PixelsType;
+import ome.util.PixelData;
+import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.data.PlaneDef;
+
+import org.testng.annotations.Test;
+
+/**
+ * Checks that the bulk row accessors of {@link Plane2D} return the same
+ * values as per-pixel retrieval for each pixels type.
+ */
+public class TestPlane2DRows extends TestCase
+{
+
+	private static final int SIZE_X = 7;
+
+	private static final int SIZE_Y = 5;
+
+	private Plane2D createPlane(String type, int bytesPerPixel,
+			ByteOrder order)
+	{
+		byte[] plane = new byte[SIZE_X * SIZE_Y * bytesPerPixel];
+		new Random(1L).nextBytes(plane);
+		ByteBuffer buf = ByteBuffer.wrap(plane);
+		buf.order(order);
+		PixelData data = new PixelData(type, buf);
+		PixelsType pixelsType = new PixelsType();
+		pixelsType.setValue(type);
+		Pixels pixels = new Pixels();
+		pixels.setSizeX(SIZE_X);
+		pixels.setSizeY(SIZE_Y);
+		pixels.setPixelsType(pixelsType);
+		return new Plane2D(new PlaneDef(PlaneDef.XY, 0), pixels, data);
+	}
+
+	private void assertRows(String type, int bytesPerPixel,
+			boolean integral)
+	{
+		for (ByteOrder order : new ByteOrder[] {
+				ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN })
+		{
+			Plane2D plane = createPlane(type, bytesPerPixel, order);
+			assertEquals(integral, plane.hasIntegerRows());
+			assertTrue(plane.hasRows());
+			assertEquals(SIZE_X, plane.getRowLength());
+			int[] intRow = new int[SIZE_X];
+			double[] doubleRow = new double[SIZE_X];
+			for (int y = 0; y < SIZE_Y; y++)
+			{
+				plane.getRow(y, doubleRow);
+				if (integral)
+				{
+					plane.getRow(y, intRow);
+				}
+				for (int x = 0; x < SIZE_X; x++)
+				{
+					double expected = plane.getPixelValue(x, y);
+					assertEquals(expected, doubleRow[x]);
+					if (integral)
+					{
+						assertEquals(expected, (double) intRow[x]);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testInt8Rows()
+	{
+		assertRows("int8", 1, true);
+	}
+
+	@Test
+	public void testUint8Rows()
+	{
+		assertRows("uint8", 1, true);
+	}
+
+	@Test
+	public void testInt16Rows()
+	{
+		assertRows("int16", 2, true);
+	}
+
+	@Test
+	public void testUint16Rows()
+	{
+		assertRows("uint16", 2, true);
+	}
+
+	@Test
+	public void testInt32Rows()
+	{
+		assertRows("int32", 4, true);
+	}
+
+	@Test
+	public void testUint32Rows()
+	{
+		assertRows("uint32", 4, false);
+	}
+
+	@Test
+	public void testDoubleRows()
+	{
+		assertRows("double", 8, false);
+	}
+}
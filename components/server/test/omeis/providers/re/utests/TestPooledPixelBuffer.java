@@ -0,0 +1,85 @@
+/*
+ *   Copyright (C) 2013 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.util.List;
+
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelBufferPool;
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.data.PlaneDef;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Ensures that a {@link Renderer} keeps the pixel buffer it was borrowed
+ * from a {@link PixelBufferPool} across renders and only returns it to the
+ * pool when closed.
+ */
+public class TestPooledPixelBuffer extends BaseRenderingTest
+{
+
+	private PixelBufferPool pool;
+
+	@Override
+	protected int getSizeX()
+	{
+		return 16;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return 16;
+	}
+
+	@Override
+	@BeforeClass
+	protected void setUp()
+	{
+		super.setUp();
+		final PixelBuffer unpooled = pixelBuffer;
+		pool = new PixelBufferPool(2, 60000L);
+		pixelBuffer = pool.borrow(pixels.getId(), "pooled",
+				new PixelBufferPool.Factory() {
+			public PixelBuffer create()
+			{
+				return unpooled;
+			}
+		});
+		List<RenderingModel> renderingModels =
+			pixelsMetadataService.getAllEnumerations(RenderingModel.class);
+		renderer = new Renderer(quantumFactory, renderingModels,
+				pixels, settings, pixelBuffer);
+	}
+
+	private void setModel(String value)
+	{
+		RenderingModel model = new RenderingModel();
+		model.setValue(value);
+		renderer.setModel(model);
+	}
+
+	@Test
+	public void testRenderTwice() throws Exception
+	{
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		for (String model : new String[] {
+				Renderer.MODEL_GREYSCALE, Renderer.MODEL_RGB })
+		{
+			setModel(model);
+			renderer.renderAsPackedInt(def, null);
+			renderer.renderAsPackedInt(def, null);
+			assertEquals(1, pool.getBorrowedCount(pixels.getId()));
+		}
+		renderer.close();
+		assertEquals(0, pool.getBorrowedCount(pixels.getId()));
+		assertEquals(1, pool.getIdleCount());
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *   Copyright (C) 2013 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.codomain.ReverseIntensityContext;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.data.RegionDef;
+
+import org.testng.annotations.Test;
+
+/**
+ * Ensures that images composited from the quantized planes kept by the
+ * {@link Renderer} are the same as those rendered from the pixels.
+ */
+public class TestQuantizedPlaneCache extends BaseRenderingTest
+{
+
+	@Override
+	protected int getSizeX()
+	{
+		return 16;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return 16;
+	}
+
+	@Override
+	protected byte[] getPlane()
+	{
+		byte[] plane = new byte[getSizeX() * getSizeY() * getBytesPerPixel()];
+		for (int i = 0; i < getSizeX() * getSizeY(); i++)
+		{
+			int value = i * 16;
+			plane[i * 2] = (byte) (value >> 8);
+			plane[i * 2 + 1] = (byte) value;
+		}
+		return plane;
+	}
+
+	private void setUpChannels()
+	{
+		RenderingModel model = new RenderingModel();
+		model.setValue(Renderer.MODEL_RGB);
+		renderer.setModel(model);
+		for (int w = 0; w < getSizeC(); w++)
+		{
+			renderer.setActive(w, true);
+			renderer.setChannelWindow(w, 0, 4080);
+		}
+		renderer.setRGBA(0, 255, 0, 0, 255);
+		renderer.setRGBA(1, 0, 255, 0, 255);
+		renderer.setRGBA(2, 0, 0, 255, 255);
+	}
+
+	private int[] renderUncached(PlaneDef def) throws Exception
+	{
+		renderer.setQuantizedPlaneCacheSize(0);
+		return renderer.renderAsPackedInt(def, pixelBuffer);
+	}
+
+	private void assertImage(int[] expected, int[] actual)
+	{
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+		{
+			assertEquals(expected[i], actual[i]);
+		}
+	}
+
+	@Test
+	public void testChannelWindowChange() throws Exception
+	{
+		setUpChannels();
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		renderer.setQuantizedPlaneCacheSize(1024 * 1024);
+		int[] first = renderer.renderAsPackedInt(def, pixelBuffer);
+		assertImage(first, renderer.renderAsPackedInt(def, pixelBuffer));
+		renderer.setChannelWindow(1, 0, 2040);
+		int[] second = renderer.renderAsPackedInt(def, pixelBuffer);
+		assertImage(renderUncached(def), second);
+	}
+
+	@Test
+	public void testColorChange() throws Exception
+	{
+		setUpChannels();
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		renderer.setQuantizedPlaneCacheSize(1024 * 1024);
+		renderer.renderAsPackedInt(def, pixelBuffer);
+		renderer.setRGBA(2, 255, 255, 0, 255);
+		int[] second = renderer.renderAsPackedInt(def, pixelBuffer);
+		assertImage(renderUncached(def), second);
+	}
+
+	@Test
+	public void testRegionChange() throws Exception
+	{
+		setUpChannels();
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		def.setRegion(new RegionDef(0, 0, getSizeX(), getSizeY() / 2));
+		renderer.setQuantizedPlaneCacheSize(1024 * 1024);
+		renderer.renderAsPackedInt(def, pixelBuffer);
+		def = new PlaneDef(PlaneDef.XY, 0);
+		def.setRegion(new RegionDef(0, getSizeY() / 2, getSizeX(),
+				getSizeY() / 2));
+		int[] second = renderer.renderAsPackedInt(def, pixelBuffer);
+		assertImage(renderUncached(def), second);
+	}
+
+	@Test
+	public void testTooSmallCache() throws Exception
+	{
+		setUpChannels();
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		renderer.setQuantizedPlaneCacheSize(getSizeX());
+		renderer.renderAsPackedInt(def, pixelBuffer);
+		renderer.setChannelWindow(0, 0, 2040);
+		int[] second = renderer.renderAsPackedInt(def, pixelBuffer);
+		assertImage(renderUncached(def), second);
+	}
+
+	@Test
+	public void testCodomainChain() throws Exception
+	{
+		setUpChannels();
+		renderer.getCodomainChain().add(new ReverseIntensityContext());
+		try
+		{
+			PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+			renderer.setQuantizedPlaneCacheSize(1024 * 1024);
+			int[] first = renderer.renderAsPackedInt(def, pixelBuffer);
+			// Composited from the cached quantized planes.
+			assertImage(first, renderer.renderAsPackedInt(def, pixelBuffer));
+			int[] rgba = renderer.renderAsPackedIntAsRGBA(def, pixelBuffer);
+			assertImage(rgba,
+					renderer.renderAsPackedIntAsRGBA(def, pixelBuffer));
+			assertImage(renderUncached(def), first);
+		}
+		finally
+		{
+			renderer.getCodomainChain().remove();
+		}
+	}
+}